@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.commons;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+@SuppressWarnings("nls")
+public class BinaryDeltaTest {
+
+    private static final String UTF_8 = "UTF-8";
+
+    @Test
+    public void testDiffAndPatch() throws Exception {
+        String base = newDocument(100, "initial");
+        assertRoundtrip(base, base);
+        assertRoundtrip(base, newDocument(100, "changed"));
+        assertRoundtrip(base, newDocument(101, "initial"));
+        assertRoundtrip(base, newDocument(50, "initial"));
+        assertRoundtrip(base, "");
+        assertRoundtrip("", base);
+        assertRoundtrip("short", "shorter");
+        assertRoundtrip(base, "<completely>different</completely>");
+    }
+
+    @Test
+    public void testDeltaIsSmall() throws Exception {
+        byte[] base = newDocument(100, "initial").getBytes(UTF_8);
+        byte[] target = newDocument(100, "changed").getBytes(UTF_8);
+        byte[] delta = BinaryDelta.diff(base, target);
+        Assert.assertTrue(delta.length + " bytes", delta.length < target.length / 20);
+    }
+
+    @Test
+    public void testRandomEdits() throws Exception {
+        Random random = new Random(4711);
+        for (int i = 0; i < 200; ++i) {
+            StringBuilder sb = new StringBuilder(newDocument(random.nextInt(200), "initial"));
+            for (int j = 0; j < 5 && sb.length() > 0; ++j) {
+                int pos = random.nextInt(sb.length());
+                if (random.nextBoolean()) {
+                    sb.insert(pos, "<inserted>" + j + "</inserted>");
+                } else {
+                    sb.delete(pos, Math.min(sb.length(), pos + random.nextInt(100)));
+                }
+            }
+            assertRoundtrip(newDocument(random.nextInt(200), "initial"), sb.toString());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongBase() throws Exception {
+        byte[] base = newDocument(100, "initial").getBytes(UTF_8);
+        byte[] delta = BinaryDelta.diff(base, newDocument(100, "changed").getBytes(UTF_8));
+        base[base.length - 2] = 'x';
+        BinaryDelta.patch(base, delta);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedDelta() throws Exception {
+        byte[] base = newDocument(100, "initial").getBytes(UTF_8);
+        byte[] delta = BinaryDelta.diff(base, newDocument(100, "changed").getBytes(UTF_8));
+        byte[] truncated = new byte[delta.length - 3];
+        System.arraycopy(delta, 0, truncated, 0, truncated.length);
+        BinaryDelta.patch(base, truncated);
+    }
+
+    private static void assertRoundtrip(String base, String target) throws Exception {
+        byte[] baseBytes = base.getBytes(UTF_8);
+        byte[] targetBytes = target.getBytes(UTF_8);
+        byte[] delta = BinaryDelta.diff(baseBytes, targetBytes);
+        Assert.assertArrayEquals(targetBytes, BinaryDelta.patch(baseBytes, delta));
+    }
+
+    private static String newDocument(int items, String description) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<entity><uuid>e4d78581-08da-4f04-8a90-a7dac41f6247</uuid><description>");
+        sb.append(description).append("</description><items>");
+        for (int i = 0; i < items; ++i) {
+            sb.append("<item>item ").append(i).append("</item>");
+        }
+        sb.append("</items></entity>");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.commons;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+@SuppressWarnings("nls")
+public class GroupCommitTest {
+
+    private static class RecordingCommitter implements GroupCommit.Committer<Integer> {
+        final List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<List<Integer>>());
+        volatile long delay;
+        volatile boolean fail;
+
+        @Override
+        public void commit(List<Integer> items) throws IOException {
+            batches.add(new ArrayList<Integer>(items));
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (fail) {
+                throw new IOException("commit failed");
+            }
+        }
+    }
+
+    @Test
+    public void testSingleThread() throws Exception {
+        RecordingCommitter committer = new RecordingCommitter();
+        GroupCommit<Integer> groupCommit = new GroupCommit<Integer>(committer, 0L, 0);
+        for (int i = 0; i < 3; ++i) {
+            groupCommit.commit(i);
+        }
+        Assert.assertEquals(3, committer.batches.size());
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertEquals(Collections.singletonList(i), committer.batches.get(i));
+        }
+    }
+
+    @Test
+    public void testConcurrentCommits() throws Exception {
+        RecordingCommitter committer = new RecordingCommitter();
+        committer.delay = 20L;
+        Throwable[] failures = runConcurrently(new GroupCommit<Integer>(committer, 10L, 0), 16);
+        for (Throwable failure : failures) {
+            Assert.assertNull(failure);
+        }
+        assertAllCommittedOnce(committer, 16);
+        Assert.assertTrue(committer.batches.size() < 16);
+    }
+
+    @Test
+    public void testMaxBatchSize() throws Exception {
+        RecordingCommitter committer = new RecordingCommitter();
+        committer.delay = 5L;
+        runConcurrently(new GroupCommit<Integer>(committer, 1000L, 4), 16);
+        assertAllCommittedOnce(committer, 16);
+        for (List<Integer> batch : committer.batches) {
+            Assert.assertTrue(batch.size() <= 4);
+        }
+    }
+
+    @Test
+    public void testNoConcurrentCommits() throws Exception {
+        final int[] active = new int[1];
+        final boolean[] overlapped = new boolean[1];
+        GroupCommit.Committer<Integer> committer = new GroupCommit.Committer<Integer>() {
+            @Override
+            public void commit(List<Integer> items) throws IOException {
+                synchronized (active) {
+                    overlapped[0] |= ++active[0] > 1;
+                }
+                try {
+                    Thread.sleep(5L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized (active) {
+                    --active[0];
+                }
+            }
+        };
+        // full batches let the leaders of subsequent batches wait for their windows concurrently
+        Throwable[] failures = runConcurrently(new GroupCommit<Integer>(committer, 20L, 2), 32);
+        for (Throwable failure : failures) {
+            Assert.assertNull(failure);
+        }
+        Assert.assertFalse(overlapped[0]);
+    }
+
+    @Test
+    public void testFailedCommit() throws Exception {
+        RecordingCommitter committer = new RecordingCommitter();
+        committer.fail = true;
+        Throwable[] failures = runConcurrently(new GroupCommit<Integer>(committer, 10L, 0), 8);
+        for (Throwable failure : failures) {
+            Assert.assertTrue(failure instanceof IOException);
+            Assert.assertEquals("commit failed", failure.getCause().getMessage());
+        }
+    }
+
+    private Throwable[] runConcurrently(final GroupCommit<Integer> groupCommit, int count) throws Exception {
+        final Throwable[] failures = new Throwable[count];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; ++i) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        groupCommit.commit(n);
+                    } catch (Throwable t) {
+                        failures[n] = t;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return failures;
+    }
+
+    private void assertAllCommittedOnce(RecordingCommitter committer, int count) {
+        Set<Integer> committed = new HashSet<Integer>();
+        int total = 0;
+        for (List<Integer> batch : committer.batches) {
+            Assert.assertFalse(batch.isEmpty());
+            committed.addAll(batch);
+            total += batch.size();
+        }
+        Assert.assertEquals(count, total);
+        Assert.assertEquals(count, committed.size());
+    }
+}
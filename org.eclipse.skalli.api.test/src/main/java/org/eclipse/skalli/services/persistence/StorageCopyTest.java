@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.services.persistence;
+
+import static org.eclipse.skalli.testutil.StorageKey.keyOf;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.eclipse.skalli.testutil.HashMapStorageService;
+import org.junit.Test;
+
+@SuppressWarnings("nls")
+public class StorageCopyTest {
+
+    private static final String CATEGORY = "Project";
+    private static final int RECORDS = 1000;
+
+    private static class ProgressRecorder implements StorageCopy.ProgressListener {
+        List<Integer> copied = new ArrayList<Integer>();
+        List<String> failed = new ArrayList<String>();
+
+        @Override
+        public void copied(int copied, int total, long elapsed) {
+            this.copied.add(copied);
+        }
+
+        @Override
+        public void failed(List<String> keys, Exception e) {
+            failed.addAll(keys);
+        }
+    }
+
+    private static class FailingStorageService extends HashMapStorageService {
+        String failingKey;
+
+        @Override
+        public void writeAll(String category, Map<String, InputStream> blobs) throws IOException {
+            if (blobs.containsKey(failingKey)) {
+                throw new IOException("failed to write " + failingKey);
+            }
+            super.writeAll(category, blobs);
+        }
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        HashMapStorageService source = createSource();
+        HashMapStorageService destination = new HashMapStorageService();
+        ProgressRecorder progress = new ProgressRecorder();
+        int copied = new StorageCopy(source, destination, 4, 10).copy(CATEGORY, source.keys(CATEGORY), progress);
+        assertEquals(RECORDS, copied);
+        assertEquals(RECORDS / 10, progress.copied.size());
+        assertEquals(RECORDS, progress.copied.get(progress.copied.size() - 1).intValue());
+        for (int i = 1; i < progress.copied.size(); ++i) {
+            assertTrue(progress.copied.get(i - 1) < progress.copied.get(i));
+        }
+        assertTrue(progress.failed.isEmpty());
+        assertEquals(source.keys(CATEGORY).size(), destination.keys(CATEGORY).size());
+        for (String key : source.keys(CATEGORY)) {
+            assertArrayEquals(source.asMap().get(keyOf(CATEGORY, key)),
+                    destination.asMap().get(keyOf(CATEGORY, key)));
+        }
+    }
+
+    @Test
+    public void testCopyFailedBatch() throws Exception {
+        HashMapStorageService source = createSource();
+        FailingStorageService destination = new FailingStorageService();
+        List<String> keys = source.keys(CATEGORY);
+        destination.failingKey = keys.get(15);
+        ProgressRecorder progress = new ProgressRecorder();
+        int copied = new StorageCopy(source, destination, 2, 10).copy(CATEGORY, keys, progress);
+        assertEquals(RECORDS - 10, copied);
+        assertEquals(keys.subList(10, 20), progress.failed);
+        assertEquals(RECORDS - 10, destination.keys(CATEGORY).size());
+        assertNull(destination.read(CATEGORY, destination.failingKey));
+    }
+
+    @Test
+    public void testCopyNothing() throws Exception {
+        ProgressRecorder progress = new ProgressRecorder();
+        int copied = new StorageCopy(new HashMapStorageService(), new HashMapStorageService(), 2)
+                .copy(CATEGORY, new ArrayList<String>(), progress);
+        assertEquals(0, copied);
+        assertTrue(progress.copied.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoThreads() throws Exception {
+        new StorageCopy(new HashMapStorageService(), new HashMapStorageService(), 0);
+    }
+
+    private static HashMapStorageService createSource() throws Exception {
+        HashMapStorageService source = new HashMapStorageService();
+        for (int i = 0; i < RECORDS; ++i) {
+            String key = UUID.randomUUID().toString();
+            source.write(CATEGORY, key, new ByteArrayInputStream(("content " + key).getBytes("UTF-8")));
+        }
+        return source;
+    }
+}
@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.commons;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Generic binary delta encoding, which describes a target byte sequence as a list of
+ * instructions to copy ranges of a base byte sequence and to insert literal bytes.
+ * <p>
+ * The encoder indexes the base in blocks of {@value #BLOCK_SIZE} bytes and scans the target
+ * with a rolling hash for matching blocks, which then are extended as far as possible in both
+ * directions. Both encoding and decoding take time linear in the size of base and target.
+ * Consecutive versions of an entity usually differ only in a few places, so that the delta
+ * of two versions is a small fraction of the size of a version.
+ * <p>
+ * A delta starts with the length and the CRC-32 checksum of the target, followed by
+ * the instructions. Lengths and offsets are encoded as variable-length integers.
+ */
+public class BinaryDelta {
+
+    /** Size of the blocks of the base that are matched with the target. */
+    public static final int BLOCK_SIZE = 16;
+
+    private static final int COPY = 0;
+    private static final int INSERT = 1;
+
+    private static final int HASH_BASE = 31;
+    private static final int HASH_POWER = power(HASH_BASE, BLOCK_SIZE - 1);
+
+    private BinaryDelta() {
+    }
+
+    /**
+     * Calculates the delta that transforms <code>base</code> into <code>target</code>.
+     *
+     * @param base  the base byte sequence, never <code>null</code>.
+     * @param target  the target byte sequence, never <code>null</code>.
+     *
+     * @return the delta, never <code>null</code>.
+     */
+    public static byte[] diff(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + target.length / 8);
+        writeVarInt(out, target.length);
+        writeInt(out, checksum(target));
+
+        int literalStart = 0;
+        if (base.length >= BLOCK_SIZE && target.length >= BLOCK_SIZE) {
+            int[] table = index(base);
+            int shift = Integer.numberOfLeadingZeros(table.length) + 1;
+            int pos = 0;
+            int hash = hash(target, 0);
+            while (pos + BLOCK_SIZE <= target.length) {
+                int candidate = table[slot(hash, shift)];
+                if (candidate >= 0 && matches(base, candidate, target, pos)) {
+                    // extend the match backwards into the pending literal and then forwards
+                    int baseStart = candidate;
+                    int targetStart = pos;
+                    while (targetStart > literalStart && baseStart > 0
+                            && base[baseStart - 1] == target[targetStart - 1]) {
+                        --baseStart;
+                        --targetStart;
+                    }
+                    int length = pos - targetStart + BLOCK_SIZE;
+                    while (targetStart + length < target.length && baseStart + length < base.length
+                            && base[baseStart + length] == target[targetStart + length]) {
+                        ++length;
+                    }
+                    writeInsert(out, target, literalStart, targetStart);
+                    out.write(COPY);
+                    writeVarInt(out, baseStart);
+                    writeVarInt(out, length);
+                    pos = targetStart + length;
+                    literalStart = pos;
+                    if (pos + BLOCK_SIZE <= target.length) {
+                        hash = hash(target, pos);
+                    }
+                } else {
+                    if (pos + BLOCK_SIZE < target.length) {
+                        hash = (hash - (target[pos] & 0xff) * HASH_POWER) * HASH_BASE
+                                + (target[pos + BLOCK_SIZE] & 0xff);
+                    }
+                    ++pos;
+                }
+            }
+        }
+        writeInsert(out, target, literalStart, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Applies a delta calculated with {@link #diff(byte[], byte[])} to the given base.
+     *
+     * @param base  the base byte sequence the delta has been calculated for, never <code>null</code>.
+     * @param delta  the delta, never <code>null</code>.
+     *
+     * @return the target byte sequence.
+     * @throws IOException  if the delta is corrupt or does not belong to the given base.
+     */
+    public static byte[] patch(byte[] base, byte[] delta) throws IOException {
+        int[] pos = new int[1];
+        try {
+            int length = readVarInt(delta, pos);
+            int checksum = readInt(delta, pos);
+            byte[] target = new byte[length];
+            int written = 0;
+            while (written < length) {
+                int op = delta[pos[0]++];
+                if (op == COPY) {
+                    int offset = readVarInt(delta, pos);
+                    int count = readVarInt(delta, pos);
+                    System.arraycopy(base, offset, target, written, count);
+                    written += count;
+                } else if (op == INSERT) {
+                    int count = readVarInt(delta, pos);
+                    System.arraycopy(delta, pos[0], target, written, count);
+                    pos[0] += count;
+                    written += count;
+                } else {
+                    throw new IOException(MessageFormat.format("Invalid delta instruction {0}", op));
+                }
+            }
+            if (pos[0] != delta.length || checksum(target) != checksum) {
+                throw new IOException("Delta does not match its base");
+            }
+            return target;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt delta");
+        } catch (NegativeArraySizeException e) {
+            throw new IOException("Corrupt delta");
+        }
+    }
+
+    // maps the hashes of the blocks of the base to the offsets of the blocks
+    private static int[] index(byte[] base) {
+        int blocks = base.length / BLOCK_SIZE;
+        int size = Integer.highestOneBit(Math.max(blocks, 8)) * 2;
+        int[] table = new int[size];
+        Arrays.fill(table, -1);
+        int shift = Integer.numberOfLeadingZeros(size) + 1;
+        // index the blocks backwards, so that the first of equal blocks wins
+        for (int block = blocks - 1; block >= 0; --block) {
+            int offset = block * BLOCK_SIZE;
+            table[slot(hash(base, offset), shift)] = offset;
+        }
+        return table;
+    }
+
+    private static int slot(int hash, int shift) {
+        return (hash * 0x9E3779B9) >>> shift;
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + BLOCK_SIZE; ++i) {
+            hash = hash * HASH_BASE + (bytes[i] & 0xff);
+        }
+        return hash;
+    }
+
+    private static boolean matches(byte[] base, int baseOffset, byte[] target, int targetOffset) {
+        if (baseOffset + BLOCK_SIZE > base.length) {
+            return false;
+        }
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            if (base[baseOffset + i] != target[targetOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int power(int base, int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; ++i) {
+            result *= base;
+        }
+        return result;
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        if (to > from) {
+            out.write(INSERT);
+            writeVarInt(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(byte[] bytes, int[] pos) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = bytes[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("Corrupt delta");
+                }
+                return value;
+            }
+        }
+        throw new IOException("Corrupt delta");
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static int readInt(byte[] bytes, int[] pos) {
+        int value = 0;
+        for (int i = 0; i < 4; ++i) {
+            value = (value << 8) | (bytes[pos[0]++] & 0xff);
+        }
+        return value;
+    }
+}
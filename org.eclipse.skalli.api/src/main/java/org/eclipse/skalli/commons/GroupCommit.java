@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.commons;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Batches expensive commit operations, e.g. <tt>fsync</tt> calls or database transactions,
+ * that are requested concurrently by several threads.
+ * <p>
+ * The first thread that adds an item to a batch becomes the leader of that batch. It waits until
+ * the commit window of the batch has passed, or until the batch is full, for other threads to join
+ * the batch, and then commits all items of the batch at once. Threads that join a batch are blocked
+ * until the leader has committed the batch. Only one batch is committed at a time: threads arriving
+ * while a batch is being committed join the next batch, which is committed as soon as the current one
+ * is done. With a commit window of zero, batches are formed only from threads that arrive while another
+ * batch is being committed, i.e. a single thread never has to wait.
+ * <p>
+ * If the commit of a batch fails, all threads of that batch receive the exception.
+ *
+ * @param <T>  the type of the items to commit.
+ */
+public class GroupCommit<T> {
+
+    /**
+     * Performs the actual commit of a batch of items.
+     */
+    public interface Committer<T> {
+        /**
+         * Commits the given items.
+         *
+         * @param items  the items to commit, never <code>null</code> or empty.
+         * @throws IOException  if the commit failed.
+         */
+        public void commit(List<T> items) throws IOException;
+    }
+
+    private static class Batch<T> {
+        final List<T> items = new ArrayList<T>();
+        final long deadline;
+        boolean led;
+        boolean done;
+        Throwable failure;
+
+        Batch(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    private final Committer<T> committer;
+    private final long windowMillis;
+    private final int maxBatchSize;
+
+    private final Object lock = new Object();
+
+    // the batch collecting items, or null; guarded by lock
+    private Batch<T> open;
+
+    // true, while a batch is being committed; guarded by lock
+    private boolean committing;
+
+    /**
+     * Creates a group commit.
+     *
+     * @param committer  the committer performing the actual commits.
+     * @param windowMillis  the time in milliseconds a leader waits for other threads to join its batch,
+     * or zero if the leader should commit as soon as no other batch is being committed.
+     * @param maxBatchSize  the maximum number of items of a batch, or zero if batches should
+     * not be limited. A leader commits as soon as its batch is full.
+     */
+    public GroupCommit(Committer<T> committer, long windowMillis, int maxBatchSize) {
+        if (committer == null) {
+            throw new IllegalArgumentException("argument 'committer' must not be null"); //$NON-NLS-1$
+        }
+        this.committer = committer;
+        this.windowMillis = Math.max(0L, windowMillis);
+        this.maxBatchSize = Math.max(0, maxBatchSize);
+    }
+
+    /**
+     * Commits the given item together with the items of other threads
+     * and returns when the item has been committed.
+     *
+     * @param item  the item to commit.
+     * @throws IOException  if the commit of the batch failed.
+     */
+    public void commit(T item) throws IOException {
+        Batch<T> batch;
+        boolean leader = false;
+        boolean interrupted = false;
+        synchronized (lock) {
+            if (open == null || isFull(open)) {
+                open = new Batch<T>(System.currentTimeMillis() + windowMillis);
+            }
+            batch = open;
+            batch.items.add(item);
+            if (isFull(batch)) {
+                // wake up the leader waiting for the window to close
+                lock.notifyAll();
+            }
+            if (!batch.led) {
+                batch.led = true;
+                leader = true;
+                while (committing) {
+                    interrupted |= waitForNotify(0L);
+                }
+                long remaining = batch.deadline - System.currentTimeMillis();
+                while (remaining > 0 && !isFull(batch)) {
+                    interrupted |= waitForNotify(remaining);
+                    remaining = batch.deadline - System.currentTimeMillis();
+                }
+                // the leader of the next batch might have started to commit while this leader
+                // was waiting for its window to close
+                while (committing) {
+                    interrupted |= waitForNotify(0L);
+                }
+                if (open == batch) {
+                    open = null;
+                }
+                committing = true;
+            } else {
+                while (!batch.done) {
+                    interrupted |= waitForNotify(0L);
+                }
+            }
+        }
+        if (leader) {
+            // no other thread modifies the items of the batch anymore
+            Throwable failure = null;
+            try {
+                committer.commit(Collections.unmodifiableList(batch.items));
+            } catch (Throwable t) {
+                failure = t;
+            }
+            synchronized (lock) {
+                batch.failure = failure;
+                batch.done = true;
+                committing = false;
+                lock.notifyAll();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        rethrow(batch.failure);
+    }
+
+    private boolean isFull(Batch<T> batch) {
+        return maxBatchSize > 0 && batch.items.size() >= maxBatchSize;
+    }
+
+    // must be called with the lock held; returns true if the thread has been interrupted
+    private boolean waitForNotify(long millis) {
+        try {
+            lock.wait(millis);
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    private static void rethrow(Throwable failure) throws IOException {
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof IOException) {
+            IOException e = new IOException(failure.getMessage());
+            e.initCause(failure);
+            throw e;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new IllegalStateException(failure);
+    }
+}
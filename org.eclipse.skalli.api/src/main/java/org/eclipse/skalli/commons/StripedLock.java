@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.commons;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed number of reentrant locks ("stripes") that serialize operations on the same key,
+ * e.g. on the same entity, while operations on different keys usually can proceed in parallel.
+ * <p>
+ * Several keys are always locked in the same order, so that threads locking overlapping
+ * sets of keys cannot deadlock each other.
+ */
+public class StripedLock {
+
+    private final ReentrantLock[] stripes;
+
+    /**
+     * Creates a striped lock.
+     *
+     * @param stripes  the number of stripes. The more stripes, the less likely it is
+     * that different keys share the same lock.
+     */
+    public StripedLock(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("argument 'stripes' must be positive"); //$NON-NLS-1$
+        }
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; ++i) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Returns the lock for the given key.
+     *
+     * @param key  the key, must not be <code>null</code>.
+     */
+    public Lock get(Object key) {
+        return stripes[indexOf(key)];
+    }
+
+    /**
+     * Acquires the locks for all given keys. Each lock is acquired only once, even
+     * if several keys share the same lock.
+     *
+     * @param keys  the keys to lock. <code>null</code> keys are ignored.
+     * @return  the acquired locks, which must be passed to {@link #unlockAll(List)}.
+     */
+    public List<Lock> lockAll(Object... keys) {
+        SortedSet<Integer> indices = new TreeSet<Integer>();
+        for (Object key : keys) {
+            if (key != null) {
+                indices.add(indexOf(key));
+            }
+        }
+        List<Lock> locks = new ArrayList<Lock>(indices.size());
+        try {
+            for (int index : indices) {
+                Lock lock = stripes[index];
+                lock.lock();
+                locks.add(lock);
+            }
+        } catch (RuntimeException e) {
+            unlockAll(locks);
+            throw e;
+        }
+        return locks;
+    }
+
+    /**
+     * Releases locks acquired with {@link #lockAll(Object...)} in reverse order.
+     *
+     * @param locks  the locks to release.
+     */
+    public static void unlockAll(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; --i) {
+            locks.get(i).unlock();
+        }
+    }
+
+    private int indexOf(Object key) {
+        int h = key.hashCode();
+        // spread the bits of the hash code, since UUIDs and strings
+        // often differ only in a few bits
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return (h & 0x7fffffff) % stripes.length;
+    }
+}
@@ -75,7 +75,7 @@ public interface EntityService<T extends EntityBase> {
      * This may lead to surprising effects especially when iterating through the list
      * (see {@link ConcurrentModificationException}).
      *
-     * @returns a list of entities, or an empty list.
+     * @returns a list of entities, or an empty list. The list may be unmodifiable.
      */
     public List<T> getAll();
 
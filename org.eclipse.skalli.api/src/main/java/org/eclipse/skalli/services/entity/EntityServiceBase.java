@@ -20,7 +20,9 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.locks.Lock;
 
+import org.eclipse.skalli.commons.StripedLock;
 import org.eclipse.skalli.model.EntityBase;
 import org.eclipse.skalli.model.EntityFilter;
 import org.eclipse.skalli.model.Issue;
@@ -64,9 +66,13 @@ public abstract class EntityServiceBase<T extends EntityBase> implements EntityS
 
     private static final Logger LOG = LoggerFactory.getLogger(EntityServiceBase.class);
 
+    private static final int LOCK_STRIPES = 64;
+
     private PersistenceService persistenceService;
     private EventService eventService;
 
+    private final StripedLock locks = new StripedLock(LOCK_STRIPES);
+
     protected void bindPersistenceService(PersistenceService persistenceService) {
         this.persistenceService = persistenceService;
         LOG.info(MessageFormat.format("bindPersistenceService({0})", persistenceService)); //$NON-NLS-1$
@@ -146,17 +152,43 @@ public abstract class EntityServiceBase<T extends EntityBase> implements EntityS
     }
 
     @Override
-    public synchronized void persist(T entity, String userId) throws ValidationException {
+    public void persist(T entity, String userId) throws ValidationException {
         if (entity.getUuid() == null) {
             entity.setUuid(UUID.randomUUID());
         }
-        validateEntity(entity);
-        getPersistenceService().persist(getEntityClass(), entity, userId);
-        if (eventService != null) {
-            eventService.fireEvent(new EventEntityUpdate(getEntityClass(), entity, userId));
+        // serialize only persists of the same entity, so that listeners
+        // are notified in the order in which the changes have been persisted
+        Object[] lockKeys = getLockKeys(entity);
+        Object[] keys = new Object[lockKeys.length + 1];
+        keys[0] = entity.getUuid();
+        System.arraycopy(lockKeys, 0, keys, 1, lockKeys.length);
+        List<Lock> acquiredLocks = locks.lockAll(keys);
+        try {
+            validateEntity(entity);
+            getPersistenceService().persist(getEntityClass(), entity, userId);
+            if (eventService != null) {
+                eventService.fireEvent(new EventEntityUpdate(getEntityClass(), entity, userId));
+            }
+        } finally {
+            StripedLock.unlockAll(acquiredLocks);
         }
     }
 
+    /**
+     * Returns additional keys to lock while the given entity is validated and persisted,
+     * e.g. values of properties that must be unique among all entities. Persisting of
+     * entities that share one of these keys is serialized, so that the validation of one
+     * entity cannot miss the concurrent change of another. Persisting of the same entity
+     * is always serialized.
+     * <p>
+     * This implementation returns an empty array.
+     *
+     * @param entity  the entity to persist.
+     */
+    protected Object[] getLockKeys(T entity) {
+        return new Object[0];
+    }
+
     @Override
     public T loadEntity(Class<T> entityClass, UUID uuid) {
         return getPersistenceService().loadEntity(entityClass, uuid);
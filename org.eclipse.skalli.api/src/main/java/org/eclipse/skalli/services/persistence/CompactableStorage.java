@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.services.persistence;
+
+import java.io.IOException;
+
+/**
+ * Optional interface for {@link StorageService storage services} that are able
+ * to compact their archive. Compaction is meant to be performed offline, e.g. from
+ * the OSGi console, since it may take a while for large archives.
+ */
+public interface CompactableStorage {
+
+    /**
+     * Compacts the archive of the given category by dropping archived versions
+     * that are no longer needed. Reading from the archive with
+     * {@link StorageService#readFromArchive(String, String, StorageConsumer)}
+     * yields the remaining versions as before.
+     *
+     * @param category  category of the archive to compact.
+     * @param maxVersions  the number of most recent versions to keep for each key,
+     * or zero if the number of versions should not be limited.
+     * @param maxAge  the age in milliseconds after which versions are dropped,
+     * or zero if versions should not be dropped because of their age.
+     * @param collapseUnchanged  if <code>true</code>, consecutive versions of a key
+     * with the same content are collapsed into one version.
+     *
+     * @return the number of archived versions that have been dropped.
+     * @throws IOException  if an i/o error occured while compacting the archive.
+     */
+    public int compactArchive(String category, int maxVersions, long maxAge, boolean collapseUnchanged)
+            throws IOException;
+}
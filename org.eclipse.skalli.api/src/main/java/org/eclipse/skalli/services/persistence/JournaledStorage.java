@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.services.persistence;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Optional interface for {@link StorageService storage services} that record an ordered
+ * journal of the changes of their content. The journal allows several instances that share
+ * the same storage to catch up with the changes of the others incrementally, i.e. without
+ * reading all content again.
+ * <p>
+ * Every call of {@link StorageService#write(String, String, java.io.InputStream) write},
+ * {@link StorageService#writeAll(String, java.util.Map) writeAll} and
+ * {@link StorageService#archive(String, String) archive} appends a {@link StorageChange}
+ * for each affected key after the content has been stored.
+ */
+public interface JournaledStorage {
+
+    /**
+     * Returns the sequence number of the most recent change in the journal.
+     * Readers should determine this number <em>before</em> reading content from
+     * the storage and later ask for the changes since then.
+     *
+     * @return the sequence number of the most recent change, or zero if the journal is empty.
+     * @throws IOException  if an i/o error occured while reading the journal.
+     */
+    public long getLastSequence() throws IOException;
+
+    /**
+     * Returns the changes that have been recorded after the change with the given
+     * sequence number, ordered by sequence number.
+     *
+     * @param sequence  the sequence number of the last known change, or zero
+     * to retrieve all changes in the journal.
+     *
+     * @return a list of changes, which is empty if there are no changes after the given
+     * sequence number, or <code>null</code> if the journal does not cover the given sequence
+     * number, e.g. because it has been truncated or deleted. In that case callers must assume
+     * that arbitrary content might have changed.
+     * @throws IOException  if an i/o error occured while reading the journal.
+     */
+    public List<StorageChange> getChanges(long sequence) throws IOException;
+}
@@ -75,7 +75,8 @@ public interface PersistenceService {
      * @param <T> a type derived from <code>EntityBase</code>.
      * @param entityClass  the class of the entities to retrieve.
      *
-     * @returns a list of entities, or an empty list.
+     * @returns a list of entities, or an empty list. The list is a snapshot that does not
+     * reflect subsequent changes and may be unmodifiable.
      */
     public <T extends EntityBase> List<T> getEntities(Class<T> entityClass);
 
@@ -142,7 +143,8 @@ public interface PersistenceService {
      * @param <T> a type derived from <code>EntityBase</code>.
      * @param entityClass  the class of the entities to retrieve.
      *
-     * @returns a list of entities, or an empty list.
+     * @returns a list of entities, or an empty list. The list is a snapshot that does not
+     * reflect subsequent changes and may be unmodifiable.
      */
     public <T extends EntityBase> List<T> getDeletedEntities(Class<T> entityClass);
 
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.services.persistence;
+
+import java.text.MessageFormat;
+
+/**
+ * Entry of the change journal of a {@link JournaledStorage journaled storage}
+ * recording that content has been written or archived.
+ */
+public class StorageChange {
+
+    /**
+     * Kinds of recorded changes.
+     */
+    public static enum Type {
+        /** Content has been written with {@link StorageService#write(String, String, java.io.InputStream)}
+         * or {@link StorageService#writeAll(String, java.util.Map)}. */
+        WRITE,
+        /** Content has been archived with {@link StorageService#archive(String, String)}. */
+        ARCHIVE
+    }
+
+    private final Type type;
+    private final String category;
+    private final String key;
+    private final long sequence;
+    private final String digest;
+
+    public StorageChange(Type type, String category, String key, long sequence, String digest) {
+        this.type = type;
+        this.category = category;
+        this.key = key;
+        this.sequence = sequence;
+        this.digest = digest;
+    }
+
+    /**
+     * Returns whether the content has been written or archived.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the category of the changed content.
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    /**
+     * Returns the key of the changed content within its category.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the sequence number of the change. Sequence numbers are positive and
+     * increase in the order in which changes have been recorded, but are not necessarily
+     * consecutive.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns the MD5 digest of the written or archived content as hex string.
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    @Override
+    public String toString() {
+        return MessageFormat.format("{0} {1}/{2} #{3} ({4})", type, category, key, //$NON-NLS-1$
+                Long.toString(sequence), digest);
+    }
+}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.services.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Copies the content of a storage category from one {@link StorageService storage service}
+ * to another, e.g. when migrating an installation from file storage to a database.
+ * <p>
+ * The copy is performed by a bounded producer/consumer pipeline: the calling thread reads
+ * batches of records from the source with {@link StorageService#readMany(String, java.util.Collection,
+ * StorageConsumer) readMany} and hands them over to a number of writer threads, which store them
+ * in the destination with {@link StorageService#writeAll(String, Map) writeAll}. At most two batches
+ * per writer thread are buffered, so the memory consumption does not depend on the size of the category.
+ * The destination storage must allow concurrent calls of <code>writeAll</code> if more than one
+ * writer thread is used.
+ */
+public class StorageCopy {
+
+    /** Default number of records that are read and written with one batch operation. */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * Callback for tracking the progress of a copy. Callbacks are invoked from different
+     * threads, but never concurrently.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called after a batch of records has been written to the destination.
+         *
+         * @param copied  the number of records copied so far.
+         * @param total  the number of records to copy.
+         * @param elapsed  the number of milliseconds since the start of the copy.
+         */
+        public void copied(int copied, int total, long elapsed);
+
+        /**
+         * Called when a batch of records could not be read from the source
+         * or written to the destination. The copy continues with the next batch.
+         *
+         * @param keys  the keys of the records in the failed batch.
+         * @param e  the cause of the failure.
+         */
+        public void failed(List<String> keys, Exception e);
+    }
+
+    // marks the end of the batches for the writer threads
+    private static final Map<String, byte[]> END_OF_BATCHES = Collections.emptyMap();
+
+    private final StorageService source;
+    private final StorageService destination;
+    private final int threads;
+    private final int batchSize;
+
+    /**
+     * Creates a copy with the {@link #DEFAULT_BATCH_SIZE default batch size}.
+     *
+     * @param source  the storage to read from.
+     * @param destination  the storage to write to.
+     * @param threads  the number of writer threads.
+     */
+    public StorageCopy(StorageService source, StorageService destination, int threads) {
+        this(source, destination, threads, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a copy.
+     *
+     * @param source  the storage to read from.
+     * @param destination  the storage to write to.
+     * @param threads  the number of writer threads.
+     * @param batchSize  the number of records that are read and written with one batch operation.
+     */
+    public StorageCopy(StorageService source, StorageService destination, int threads, int batchSize) {
+        if (source == null || destination == null) {
+            throw new IllegalArgumentException("source and destination storage must not be null"); //$NON-NLS-1$
+        }
+        if (threads <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("number of threads and batch size must be positive"); //$NON-NLS-1$
+        }
+        this.source = source;
+        this.destination = destination;
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Copies the records with the given keys.
+     *
+     * @param category  the category of the records.
+     * @param keys  the keys of the records to copy.
+     * @param listener  the listener to notify about the progress, or <code>null</code>.
+     *
+     * @return the number of records that have been copied.
+     * @throws InterruptedIOException  if the calling thread has been interrupted while reading
+     * or waiting for the writer threads.
+     */
+    public int copy(final String category, List<String> keys, ProgressListener listener)
+            throws InterruptedIOException {
+        final int total = keys.size();
+        final long start = System.currentTimeMillis();
+        final AtomicInteger copied = new AtomicInteger();
+        final ProgressListener progress = listener != null ? listener : new ProgressListener() {
+            @Override
+            public void copied(int copied, int total, long elapsed) {
+            }
+            @Override
+            public void failed(List<String> keys, Exception e) {
+            }
+        };
+        final BlockingQueue<Map<String, byte[]>> queue =
+                new ArrayBlockingQueue<Map<String, byte[]>>(2 * threads);
+        ExecutorService writers = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < threads; ++i) {
+                writers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Map<String, byte[]> batch = queue.take();
+                            while (batch != END_OF_BATCHES) {
+                                write(category, batch, total, start, copied, progress);
+                                batch = queue.take();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+            for (int from = 0; from < total; from += batchSize) {
+                List<String> batchKeys = keys.subList(from, Math.min(from + batchSize, total));
+                Map<String, byte[]> batch = read(category, batchKeys, progress);
+                if (batch != null && !batch.isEmpty()) {
+                    queue.put(batch);
+                }
+            }
+            for (int i = 0; i < threads; ++i) {
+                queue.put(END_OF_BATCHES);
+            }
+            writers.shutdown();
+            while (!writers.awaitTermination(1L, TimeUnit.SECONDS)) {
+                // wait until all batches have been written
+            }
+        } catch (InterruptedException e) {
+            writers.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+        return copied.get();
+    }
+
+    private Map<String, byte[]> read(String category, List<String> keys, ProgressListener progress) {
+        final Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+        try {
+            source.readMany(category, keys, new StorageConsumer() {
+                @Override
+                public void consume(String category, String key, long lastModified, InputStream blob)
+                        throws IOException {
+                    batch.put(key, IOUtils.toByteArray(blob));
+                }
+            });
+        } catch (Exception e) {
+            synchronized (progress) {
+                progress.failed(keys, e);
+            }
+            return null;
+        }
+        return batch;
+    }
+
+    private void write(String category, Map<String, byte[]> batch, int total, long start,
+            AtomicInteger copied, ProgressListener progress) {
+        Map<String, InputStream> blobs = new LinkedHashMap<String, InputStream>();
+        for (Entry<String, byte[]> entry : batch.entrySet()) {
+            blobs.put(entry.getKey(), new ByteArrayInputStream(entry.getValue()));
+        }
+        try {
+            destination.writeAll(category, blobs);
+            synchronized (progress) {
+                progress.copied(copied.addAndGet(batch.size()), total, System.currentTimeMillis() - start);
+            }
+        } catch (Exception e) {
+            synchronized (progress) {
+                progress.failed(new ArrayList<String>(batch.keySet()), e);
+            }
+        }
+    }
+}
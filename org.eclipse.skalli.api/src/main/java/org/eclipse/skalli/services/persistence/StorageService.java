@@ -12,12 +12,18 @@ package org.eclipse.skalli.services.persistence;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Interface representing a storage service that can be used for
  * persisting of project date, customizations etc.
  *
+ * Implementations that have no more efficient way to perform the batch operations
+ * {@link #writeAll(String, Map)} and {@link #readMany(String, Collection, StorageConsumer)}
+ * than calling the single-key operations for each key may derive from {@link StorageServiceBase}.
+ *
  * Note: For testing a StorageService there is a test helper available:
  * {@link org.eclipse.skalli.testutil.StorageServiceTestBase}.
  */
@@ -46,6 +52,19 @@ public interface StorageService {
      */
     public InputStream read(String category, String key) throws IOException;
 
+    /**
+     * Writes the contents of the given streams to the storage in one batch.
+     * This is equivalent to calling {@link #write(String, String, InputStream)}
+     * for each entry of the map, but allows implementations to save the per-item
+     * overhead, e.g. by writing all entries in a single transaction.
+     * Note, this method does not close the content streams.
+     *
+     * @param category  category or type of the content.
+     * @param blobs  map of unique keys within the category to the respective content.
+     * @throws IOException  if an i/o error occured while writing content to the store.
+     */
+    public void writeAll(String category, Map<String, InputStream> blobs) throws IOException;
+
     /** Reads the content specified by its category and key from the storage.
      *
      * @param category  category or type of the content.
@@ -55,6 +74,21 @@ public interface StorageService {
      */
     public void read(String category, String key, StorageConsumer consumer) throws IOException;
 
+    /**
+     * Provides the stored content for the given keys to the specified consumer.
+     * This is equivalent to calling {@link #read(String, String, StorageConsumer)}
+     * for each key, but allows implementations to save the per-item overhead,
+     * e.g. by retrieving the content of several keys with a single query.
+     * Keys for which no content is stored are skipped. The order in which
+     * the content is provided is not specified.
+     *
+     * @param category  category or type of the content.
+     * @param keys  the unique keys of the content within its category.
+     * @param consumer  consumer for the content.
+     * @throws IOException  if an i/o error occured while reading content from the store.
+     */
+    public void readMany(String category, Collection<String> keys, StorageConsumer consumer) throws IOException;
+
     /**
      * Provides all stored content for the given category to the specified consumer.
      *
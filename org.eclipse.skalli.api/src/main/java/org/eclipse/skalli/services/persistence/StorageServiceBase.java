@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.services.persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Base class for storage services that implements the batch operations
+ * by delegating to the respective single-key operations.
+ */
+public abstract class StorageServiceBase implements StorageService {
+
+    @Override
+    public void writeAll(String category, Map<String, InputStream> blobs) throws IOException {
+        for (Entry<String, InputStream> entry : blobs.entrySet()) {
+            write(category, entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void readMany(String category, Collection<String> keys, StorageConsumer consumer) throws IOException {
+        for (String key : keys) {
+            read(category, key, consumer);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.services.persistence;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Result of an {@link UpgradablePersistence#upgrade(StorageService, String, int) upgrade}
+ * of a storage category.
+ */
+public class StorageUpgrade {
+
+    private final String category;
+    private final int modelVersion;
+    private final int total;
+    private final int upgraded;
+    private final Map<String, String> errors;
+    private final long duration;
+
+    public StorageUpgrade(String category, int modelVersion, int total, int upgraded,
+            Map<String, String> errors, long duration) {
+        this.category = category;
+        this.modelVersion = modelVersion;
+        this.total = total;
+        this.upgraded = upgraded;
+        this.errors = errors != null ? errors : Collections.<String, String>emptyMap();
+        this.duration = duration;
+    }
+
+    /**
+     * Returns the upgraded category.
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    /**
+     * Returns the model version to which entities have been migrated.
+     */
+    public int getModelVersion() {
+        return modelVersion;
+    }
+
+    /**
+     * Returns the number of entities in the category.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns the number of entities that have been migrated and written back.
+     */
+    public int getUpgraded() {
+        return upgraded;
+    }
+
+    /**
+     * Returns the number of entities that already had the current model version.
+     */
+    public int getUpToDate() {
+        return total - upgraded - errors.size();
+    }
+
+    /**
+     * Returns the keys of the entities that could not be migrated or failed
+     * the validation, and the corresponding error messages.
+     */
+    public Map<String, String> getErrors() {
+        return Collections.unmodifiableMap(errors);
+    }
+
+    /**
+     * Returns the duration of the upgrade in milliseconds.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns the number of processed entities per second.
+     */
+    public long getThroughput() {
+        return total * 1000L / Math.max(1L, duration);
+    }
+}
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.services.persistence;
+
+import java.io.IOException;
+
+/**
+ * Optional interface for {@link PersistenceService persistence services} that are able
+ * to migrate all entities of a storage category to the current model version at once,
+ * instead of migrating them each time they are loaded. Upgrading is meant to be performed
+ * offline, e.g. from the OSGi console after an installation has been updated, since it
+ * may take a while for large storages.
+ */
+public interface UpgradablePersistence {
+
+    /**
+     * Migrates all entities of the given category that are stored with an older model version
+     * to the current model version and writes them back to the given storage. Migrated entities
+     * are validated by converting them to entities and back before they are written. Entities that
+     * fail to migrate or to validate are left untouched.
+     *
+     * @param storage  the storage to upgrade.
+     * @param category  the category of the entities to upgrade, i.e. the simple name of the entity class.
+     * @param threads  the number of worker threads used for the migration of entities.
+     *
+     * @return the result of the upgrade.
+     * @throws IOException  if the storage could not be read or written.
+     * @throws IllegalArgumentException  if there is no entity service for the given category.
+     */
+    public StorageUpgrade upgrade(StorageService storage, String category, int threads) throws IOException;
+}
@@ -11,14 +11,24 @@
 package org.eclipse.skalli.commands;
 
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
 import static org.eclipse.skalli.testutil.StorageKey.keyOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
 
 import org.eclipse.osgi.framework.console.CommandInterpreter;
+import org.eclipse.skalli.services.persistence.CompactableStorage;
+import org.eclipse.skalli.services.persistence.StorageService;
+import org.eclipse.skalli.services.persistence.StorageUpgrade;
+import org.eclipse.skalli.services.persistence.UpgradablePersistence;
 import org.eclipse.skalli.testutil.HashMapStorageService;
 import org.eclipse.skalli.testutil.TestUUIDs;
 import org.junit.Test;
@@ -49,6 +59,107 @@ public class StorageCommandTest {
                 destination.asMap().get(keyOf(CATEGORY_PROJECT, KEY_2))));
     }
 
+    @Test
+    public void testParallelCopy() throws Exception {
+        HashMapStorageService source = new HashMapStorageService();
+        for (int i = 0; i < 500; ++i) {
+            source.write(CATEGORY_PROJECT, UUID.randomUUID().toString(), new ByteArrayInputStream(TEST_CONTENT_1));
+        }
+        source.write(CATEGORY_PROJECT, "noUUID", new ByteArrayInputStream(TEST_CONTENT_2));
+
+        HashMapStorageService destination = new HashMapStorageService();
+        CommandInterpreter intr = createNiceMock(CommandInterpreter.class);
+        StorageCommand.copy(source, destination, CATEGORY_PROJECT, 4, intr);
+
+        assertEquals(500, destination.keys(CATEGORY_PROJECT).size());
+        assertNull(destination.read(CATEGORY_PROJECT, "noUUID"));
+        for (String key : destination.keys(CATEGORY_PROJECT)) {
+            assertTrue(Arrays.equals(TEST_CONTENT_1, destination.asMap().get(keyOf(CATEGORY_PROJECT, key))));
+        }
+    }
+
+    private static class CompactableHashMapStorageService extends HashMapStorageService
+            implements CompactableStorage {
+        String category;
+        int maxVersions;
+        long maxAge;
+        boolean collapseUnchanged;
+
+        @Override
+        public int compactArchive(String category, int maxVersions, long maxAge, boolean collapseUnchanged)
+                throws IOException {
+            this.category = category;
+            this.maxVersions = maxVersions;
+            this.maxAge = maxAge;
+            this.collapseUnchanged = collapseUnchanged;
+            return 1;
+        }
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        CompactableHashMapStorageService storage = new CompactableHashMapStorageService();
+        CommandInterpreter intr = createNiceMock(CommandInterpreter.class);
+        StorageCommand.compact(storage, CATEGORY_PROJECT, 5, 2L, true, intr);
+        assertEquals(CATEGORY_PROJECT, storage.category);
+        assertEquals(5, storage.maxVersions);
+        assertEquals(2L * 24L * 60L * 60L * 1000L, storage.maxAge);
+        assertTrue(storage.collapseUnchanged);
+    }
+
+    @Test
+    public void testCompactNothingToDo() throws Exception {
+        CompactableHashMapStorageService storage = new CompactableHashMapStorageService();
+        CommandInterpreter intr = createNiceMock(CommandInterpreter.class);
+        StorageCommand.compact(storage, CATEGORY_PROJECT, 0, 0L, false, intr);
+        assertNull(storage.category);
+    }
+
+    private static class TestUpgradablePersistence implements UpgradablePersistence {
+        StorageService storage;
+        String category;
+        int threads;
+
+        @Override
+        public StorageUpgrade upgrade(StorageService storage, String category, int threads) throws IOException {
+            if (!CATEGORY_PROJECT.equals(category)) {
+                throw new IllegalArgumentException("No entity service registered for entities of type " + category);
+            }
+            this.storage = storage;
+            this.category = category;
+            this.threads = threads;
+            return new StorageUpgrade(category, 42, 3, 1, Collections.singletonMap(KEY_2, "failed"), 10L);
+        }
+    }
+
+    @Test
+    public void testUpgrade() throws Exception {
+        HashMapStorageService storage = new HashMapStorageService();
+        TestUpgradablePersistence persistence = new TestUpgradablePersistence();
+        CommandInterpreter intr = createNiceMock(CommandInterpreter.class);
+        StorageCommand.upgrade(persistence, storage, CATEGORY_PROJECT, 4, intr);
+        assertTrue(storage == persistence.storage);
+        assertEquals(CATEGORY_PROJECT, persistence.category);
+        assertEquals(4, persistence.threads);
+    }
+
+    @Test
+    public void testUpgradeUnknownCategory() throws Exception {
+        TestUpgradablePersistence persistence = new TestUpgradablePersistence();
+        CommandInterpreter intr = createNiceMock(CommandInterpreter.class);
+        StorageCommand.upgrade(persistence, new HashMapStorageService(), "customization", 4, intr);
+        assertNull(persistence.category);
+    }
+
+    @Test
+    public void testStorageUpgrade() throws Exception {
+        StorageUpgrade upgrade = new StorageUpgrade(CATEGORY_PROJECT, 42, 3, 1,
+                Collections.singletonMap(KEY_2, "failed"), 10L);
+        assertEquals(1, upgrade.getUpToDate());
+        assertEquals(300L, upgrade.getThroughput());
+        assertEquals("failed", upgrade.getErrors().get(KEY_2));
+    }
+
     private static byte[] getBytesUTF8(String s) {
         try {
             return s.getBytes("UTF-8");
@@ -11,6 +11,7 @@
 package org.eclipse.skalli.commands;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.eclipse.osgi.framework.console.CommandInterpreter;
 import org.eclipse.osgi.framework.console.CommandProvider;
 
@@ -24,13 +25,27 @@ public class CommandProviderImpl implements CommandProvider {
     private static final String OPTION_REMOVE = "-remove"; //$NON-NLS-1$
 
     private static final String OPTION_COPY = "-copy"; //$NON-NLS-1$
+    private static final String OPTION_COMPACT = "-compact"; //$NON-NLS-1$
+    private static final String OPTION_MAX_VERSIONS = "-maxVersions"; //$NON-NLS-1$
+    private static final String OPTION_MAX_AGE = "-maxAge"; //$NON-NLS-1$
+    private static final String OPTION_COLLAPSE = "-collapse"; //$NON-NLS-1$
+    private static final String OPTION_UPGRADE = "-upgrade"; //$NON-NLS-1$
+    private static final String OPTION_THREADS = "-threads"; //$NON-NLS-1$
 
     private static final String DESCRIPTION_ADMIN = "maintain set of user with administrative permissions";
 
     private static final String DESCRIPTION_STORAGE = "maintain data storage";
+    private static final String DESCRIPTION_COMPACT = "compact the archive of a data storage";
+    private static final String DESCRIPTION_UPGRADE = "migrate a data storage to the current model version";
     private static String HELP_STORAGE = "\t" + COMMAND + " " + COMMAND_STORAGE + //$NON-NLS-1$ //$NON-NLS-2$
-            " -copy <sourceType> <destinationType> <category>" + //$NON-NLS-1$
-            " - " + DESCRIPTION_STORAGE + "\n"; //$NON-NLS-1$ //$NON-NLS-2$
+            " -copy <sourceType> <destinationType> <category> [-threads <n>]" + //$NON-NLS-1$
+            " - " + DESCRIPTION_STORAGE + "\n" + //$NON-NLS-1$ //$NON-NLS-2$
+            "\t" + COMMAND + " " + COMMAND_STORAGE + //$NON-NLS-1$ //$NON-NLS-2$
+            " -compact <storageType> <category> [-maxVersions <n>] [-maxAge <days>] [-collapse]" + //$NON-NLS-1$
+            " - " + DESCRIPTION_COMPACT + "\n" + //$NON-NLS-1$ //$NON-NLS-2$
+            "\t" + COMMAND + " " + COMMAND_STORAGE + //$NON-NLS-1$ //$NON-NLS-2$
+            " -upgrade <storageType> <category> [-threads <n>]" + //$NON-NLS-1$
+            " - " + DESCRIPTION_UPGRADE + "\n"; //$NON-NLS-1$ //$NON-NLS-2$
 
     private static String HELP = "\n---Skalli---\n" + HELP_STORAGE; //$NON-NLS-1$
 
@@ -46,18 +61,14 @@ public class CommandProviderImpl implements CommandProvider {
             String command = intr.nextArgument();
             if (StringUtils.equalsIgnoreCase(command, COMMAND_STORAGE)) {
                 String arg = intr.nextArgument();
-                if (StringUtils.isBlank(arg) || OPTION_COPY.compareToIgnoreCase(arg) != 0) {
+                if (OPTION_COMPACT.equalsIgnoreCase(arg)) {
+                    compact(intr);
+                } else if (OPTION_UPGRADE.equalsIgnoreCase(arg)) {
+                    upgrade(intr);
+                } else if (StringUtils.isBlank(arg) || OPTION_COPY.compareToIgnoreCase(arg) != 0) {
                     intr.println(INVALID);
                 } else {
-                    String sourceType = intr.nextArgument();
-                    String destinationType = intr.nextArgument();
-                    String category = intr.nextArgument();
-                    if (StringUtils.isBlank(sourceType) || StringUtils.isBlank(destinationType)
-                            || StringUtils.isBlank(category)) {
-                        intr.println(INVALID);
-                    } else {
-                        StorageCommand.copy(sourceType, destinationType, category, intr);
-                    }
+                    copy(intr);
                 }
             } else {
                 // command not valid or null, print help
@@ -68,4 +79,86 @@ public class CommandProviderImpl implements CommandProvider {
         }
     }
 
+    private void copy(CommandInterpreter intr) {
+        String sourceType = intr.nextArgument();
+        String destinationType = intr.nextArgument();
+        String category = intr.nextArgument();
+        if (StringUtils.isBlank(sourceType) || StringUtils.isBlank(destinationType)
+                || StringUtils.isBlank(category)) {
+            intr.println(INVALID);
+            return;
+        }
+        int threads = nextThreads(intr);
+        if (threads <= 0) {
+            intr.println(INVALID);
+            return;
+        }
+        StorageCommand.copy(sourceType, destinationType, category, threads, intr);
+    }
+
+    private void compact(CommandInterpreter intr) {
+        String storageType = intr.nextArgument();
+        String category = intr.nextArgument();
+        if (StringUtils.isBlank(storageType) || StringUtils.isBlank(category)) {
+            intr.println(INVALID);
+            return;
+        }
+        int maxVersions = 0;
+        long maxAgeDays = 0;
+        boolean collapse = false;
+        String option = intr.nextArgument();
+        while (option != null) {
+            if (OPTION_MAX_VERSIONS.equalsIgnoreCase(option)) {
+                maxVersions = NumberUtils.toInt(intr.nextArgument(), -1);
+            } else if (OPTION_MAX_AGE.equalsIgnoreCase(option)) {
+                maxAgeDays = NumberUtils.toLong(intr.nextArgument(), -1L);
+            } else if (OPTION_COLLAPSE.equalsIgnoreCase(option)) {
+                collapse = true;
+            } else {
+                intr.println(INVALID);
+                return;
+            }
+            if (maxVersions < 0 || maxAgeDays < 0) {
+                intr.println(INVALID);
+                return;
+            }
+            option = intr.nextArgument();
+        }
+        StorageCommand.compact(storageType, category, maxVersions, maxAgeDays, collapse, intr);
+    }
+
+    private void upgrade(CommandInterpreter intr) {
+        String storageType = intr.nextArgument();
+        String category = intr.nextArgument();
+        if (StringUtils.isBlank(storageType) || StringUtils.isBlank(category)) {
+            intr.println(INVALID);
+            return;
+        }
+        int threads = nextThreads(intr);
+        if (threads <= 0) {
+            intr.println(INVALID);
+            return;
+        }
+        StorageCommand.upgrade(storageType, category, threads, intr);
+    }
+
+    // returns the number of threads specified with -threads, the number of processors
+    // if the option is missing, or 0 if the option is invalid
+    private int nextThreads(CommandInterpreter intr) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String option = intr.nextArgument();
+        while (option != null) {
+            if (OPTION_THREADS.equalsIgnoreCase(option)) {
+                threads = NumberUtils.toInt(intr.nextArgument(), 0);
+            } else {
+                threads = 0;
+            }
+            if (threads <= 0) {
+                return 0;
+            }
+            option = intr.nextArgument();
+        }
+        return threads;
+    }
+
 }
@@ -11,19 +11,28 @@
 package org.eclipse.skalli.commands;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map.Entry;
 
-import org.apache.commons.io.IOUtils;
 import org.eclipse.osgi.framework.console.CommandInterpreter;
 import org.eclipse.skalli.commons.UUIDUtils;
 import org.eclipse.skalli.services.Services;
+import org.eclipse.skalli.services.persistence.CompactableStorage;
 import org.eclipse.skalli.services.persistence.PersistenceService;
+import org.eclipse.skalli.services.persistence.StorageCopy;
 import org.eclipse.skalli.services.persistence.StorageService;
+import org.eclipse.skalli.services.persistence.StorageUpgrade;
+import org.eclipse.skalli.services.persistence.UpgradablePersistence;
 import org.osgi.framework.Constants;
 
 public class StorageCommand {
-    public static void copy(String sourceType, String destType, String category, CommandInterpreter intr) {
+
+    // number of records that are copied with one batch operation
+    private static final int BATCH_SIZE = StorageCopy.DEFAULT_BATCH_SIZE;
+
+    public static void copy(String sourceType, String destType, String category, int threads,
+            CommandInterpreter intr) {
         StorageService source = null;
         StorageService destination = null;
 
@@ -47,7 +56,7 @@ public class StorageCommand {
             return;
         }
 
-        copy(source, destination, category, intr);
+        copy(source, destination, category, threads, intr);
 
         // ensure that the persistence service attached to the destination storage
         // refreshes all caches and reloads the entities
@@ -55,6 +64,11 @@ public class StorageCommand {
     }
 
     static void copy(StorageService source, StorageService destination, String category, CommandInterpreter intr) {
+        copy(source, destination, category, 1, intr);
+    }
+
+    static void copy(StorageService source, StorageService destination, final String category, int threads,
+            final CommandInterpreter intr) {
         List<String> keys;
         try {
             keys = source.keys(category);
@@ -67,40 +81,142 @@ public class StorageCommand {
             return;
         }
 
-        int copiedRecords = 0;
         StringBuffer noUUIDKeys = new StringBuffer();
+        List<String> validKeys = new ArrayList<String>();
         for (String key : keys) {
-            InputStream blob = null;
-            try {
-                blob = source.read(category, key);
-                // only copy records with valid uuids, expect for customization (these are "normal" strings!)
-                if (UUIDUtils.isUUID(key) || "customization".equalsIgnoreCase(category)) {
-                    destination.write(category, key, blob);
-                    copiedRecords++;
-                    if ((copiedRecords % 10) == 0) {
-                        intr.println(copiedRecords + " data copied for category '" + category + "'.");
-                    }
-                } else {
-                    noUUIDKeys.append("'");
-                    noUUIDKeys.append(key);
-                    noUUIDKeys.append("';");
-                }
-            } catch (IOException e) {
-                intr.printStackTrace(e);
-            } finally {
-                IOUtils.closeQuietly(blob);
+            // only copy records with valid uuids, expect for customization (these are "normal" strings!)
+            if (UUIDUtils.isUUID(key) || "customization".equalsIgnoreCase(category)) {
+                validKeys.add(key);
+            } else {
+                noUUIDKeys.append("'");
+                noUUIDKeys.append(key);
+                noUUIDKeys.append("';");
             }
         }
 
+        long start = System.currentTimeMillis();
+        int copiedRecords = 0;
+        try {
+            StorageCopy copy = new StorageCopy(source, destination, threads, BATCH_SIZE);
+            copiedRecords = copy.copy(category, validKeys, new StorageCopy.ProgressListener() {
+                @Override
+                public void copied(int copied, int total, long elapsed) {
+                    intr.println(copied + " of " + total + " data records copied for category '" + category
+                            + "' (" + throughput(copied, elapsed) + " records/s).");
+                }
+
+                @Override
+                public void failed(List<String> keys, Exception e) {
+                    intr.println("ERROR: could not copy " + keys.size() + " data records of category '"
+                            + category + "': " + keys);
+                    intr.printStackTrace(e);
+                }
+            });
+        } catch (IOException e) {
+            intr.printStackTrace(e);
+        }
+        long duration = System.currentTimeMillis() - start;
+
         intr.println(copiedRecords + " data records of category '" + category
                 + "' successfully copied from source with "
-                + keys.size() + " records.");
+                + keys.size() + " records with " + threads + " thread(s) in " + duration + " ms ("
+                + throughput(copiedRecords, duration) + " records/s).");
         if (copiedRecords != keys.size()) {
             intr.println("Warning: could not copy " + (keys.size() - copiedRecords) + " record(s). This are: "
                     + noUUIDKeys);
         }
     }
 
+    public static void compact(String type, String category, int maxVersions, long maxAgeDays, boolean collapse,
+            CommandInterpreter intr) {
+        StorageService storage = null;
+        try {
+            storage = getStorageService(type);
+        } catch (IllegalStateException e) {
+            intr.println("ERROR: more than one'" + StorageService.class.getSimpleName() + "' found.");
+            intr.printStackTrace(e);
+            return;
+        }
+        if (storage == null) {
+            intr.println("ERROR: no '" + StorageService.class.getSimpleName() + "' found with type '" + type + "'");
+            return;
+        }
+        compact(storage, category, maxVersions, maxAgeDays, collapse, intr);
+    }
+
+    static void compact(StorageService storage, String category, int maxVersions, long maxAgeDays, boolean collapse,
+            CommandInterpreter intr) {
+        if (!(storage instanceof CompactableStorage)) {
+            intr.println("ERROR: '" + storage.getClass().getName() + "' does not support compaction");
+            return;
+        }
+        if (maxVersions == 0 && maxAgeDays == 0 && !collapse) {
+            intr.println("Neither retention nor collapsing of unchanged versions specified. Nothing to compact.");
+            return;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            int dropped = ((CompactableStorage) storage).compactArchive(category, maxVersions,
+                    maxAgeDays * 24L * 60L * 60L * 1000L, collapse);
+            intr.println(dropped + " archived versions of category '" + category + "' dropped in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        } catch (IOException e) {
+            intr.printStackTrace(e);
+        }
+    }
+
+    public static void upgrade(String type, String category, int threads, CommandInterpreter intr) {
+        StorageService storage = null;
+        try {
+            storage = getStorageService(type);
+        } catch (IllegalStateException e) {
+            intr.println("ERROR: more than one'" + StorageService.class.getSimpleName() + "' found.");
+            intr.printStackTrace(e);
+            return;
+        }
+        if (storage == null) {
+            intr.println("ERROR: no '" + StorageService.class.getSimpleName() + "' found with type '" + type + "'");
+            return;
+        }
+        PersistenceService persistenceService = Services.getRequiredService(PersistenceService.class);
+        if (!(persistenceService instanceof UpgradablePersistence)) {
+            intr.println("ERROR: '" + persistenceService.getClass().getName() + "' does not support upgrades");
+            return;
+        }
+        upgrade((UpgradablePersistence) persistenceService, storage, category, threads, intr);
+
+        // ensure that the persistence service replaces cached entities with upgraded ones
+        persistenceService.refreshAll();
+    }
+
+    static void upgrade(UpgradablePersistence persistence, StorageService storage, String category, int threads,
+            CommandInterpreter intr) {
+        StorageUpgrade upgrade;
+        try {
+            upgrade = persistence.upgrade(storage, category, threads);
+        } catch (IllegalArgumentException e) {
+            intr.println("ERROR: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            intr.printStackTrace(e);
+            return;
+        }
+        intr.println(upgrade.getUpgraded() + " of " + upgrade.getTotal() + " data records of category '" + category
+                + "' upgraded to model version " + upgrade.getModelVersion() + " with " + threads + " thread(s) in "
+                + upgrade.getDuration() + " ms (" + upgrade.getThroughput() + " records/s), "
+                + upgrade.getUpToDate() + " record(s) already up to date.");
+        if (!upgrade.getErrors().isEmpty()) {
+            intr.println("Warning: could not upgrade " + upgrade.getErrors().size() + " record(s):");
+            for (Entry<String, String> error : upgrade.getErrors().entrySet()) {
+                intr.println("'" + error.getKey() + "': " + error.getValue());
+            }
+        }
+    }
+
+    private static long throughput(int records, long elapsed) {
+        return records * 1000L / Math.max(1L, elapsed);
+    }
+
     /**
      * @param sourceType
      * @return
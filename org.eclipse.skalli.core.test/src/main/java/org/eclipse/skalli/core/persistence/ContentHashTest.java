@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.skalli.commons.CollectionUtils;
+import org.eclipse.skalli.commons.UUIDListConverter;
+import org.eclipse.skalli.commons.XMLUtils;
+import org.eclipse.skalli.core.xstream.ExtensionsMapConverter;
+import org.eclipse.skalli.core.xstream.NoopConverter;
+import org.eclipse.skalli.testutil.TestExtensibleEntityBase;
+import org.eclipse.skalli.testutil.TestExtension;
+import org.eclipse.skalli.testutil.TestExtension1;
+import org.eclipse.skalli.testutil.TestUUIDs;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.thoughtworks.xstream.converters.Converter;
+
+@SuppressWarnings("nls")
+public class ContentHashTest {
+
+    private static final String[] DOCUMENTS = {
+        "<entity><uuid>1</uuid><name>foo</name><items><string>a</string><string>b</string></items></entity>",
+        // other attributes
+        "<entity version=\"42\" lastModified=\"2014-01-01T00:00:00Z\" modifiedBy=\"hugo\"><uuid>1</uuid>"
+            + "<name>foo</name><items><string>a</string><string>b</string></items></entity>",
+        // indented
+        "<entity>\n  <uuid>1</uuid>\n  <name>foo</name>\n  <items>\n    <string>a</string>\n"
+            + "    <string>b</string>\n  </items>\n</entity>",
+        // other order of elements with different names
+        "<entity><name>foo</name><items><string>a</string><string>b</string></items><uuid>1</uuid></entity>",
+        // other order of items
+        "<entity><uuid>1</uuid><name>foo</name><items><string>b</string><string>a</string></items></entity>",
+        // other text
+        "<entity><uuid>1</uuid><name>bar</name><items><string>a</string><string>b</string></items></entity>",
+        // whitespace text
+        "<entity><uuid>1</uuid><name> </name><items><string>a</string><string>b</string></items></entity>",
+        "<entity><uuid>1</uuid><name></name><items><string>a</string><string>b</string></items></entity>",
+        // additional element
+        "<entity><uuid>1</uuid><name>foo</name><items><string>a</string><string>b</string>"
+            + "<string>c</string></items></entity>",
+        // missing element
+        "<entity><uuid>1</uuid><items><string>a</string><string>b</string></items></entity>",
+        // renamed element
+        "<entity><uuid>1</uuid><title>foo</title><items><string>a</string><string>b</string></items></entity>",
+        // moved element
+        "<entity><uuid>1</uuid><items><name>foo</name><string>a</string><string>b</string></items></entity>",
+        // other root
+        "<project><uuid>1</uuid><name>foo</name><items><string>a</string><string>b</string></items></project>",
+    };
+
+    @Test
+    public void testEquivalentToXMLDiff() throws Exception {
+        List<Document> docs = new ArrayList<Document>();
+        for (String xml : DOCUMENTS) {
+            docs.add(XMLUtils.documentFromString(xml));
+        }
+        assertEquivalentToXMLDiff(docs);
+    }
+
+    @Test
+    public void testEquivalentToXMLDiffForEntities() throws Exception {
+        Map<String, Class<?>> aliases = getAliases();
+        List<Document> docs = new ArrayList<Document>();
+        for (int i = 0; i < 8; ++i) {
+            TestExtensibleEntityBase entity = new TestExtensibleEntityBase(TestUUIDs.TEST_UUIDS[0]);
+            TestExtension ext = new TestExtension();
+            ext.setStr((i & 1) == 0 ? "foo" : "bar");
+            ext.setBool((i & 2) == 0);
+            ext.addItem("a");
+            ext.addItem("b");
+            if ((i & 4) != 0) {
+                ext.addItem("c");
+            }
+            entity.addExtension(ext);
+            entity.addExtension(new TestExtension1());
+            docs.add(XStreamPersistence.entityToDom(entity, aliases, getConverters()));
+        }
+        assertEquivalentToXMLDiff(docs);
+
+        // entities marshalled twice must have the same hashes, even after post-processing
+        Document doc = docs.get(0);
+        Document copy = (Document) doc.cloneNode(true);
+        XStreamPersistence.postProcessXML(copy, null, aliases, "hugo", 42);
+        ContentHash content = ContentHash.of(null, doc, aliases);
+        ContentHash copyContent = ContentHash.of("checksum", copy, aliases);
+        assertEquals(content.getHash(), copyContent.getHash());
+        assertEquals(content.getExtensionHash("ext1"), copyContent.getExtensionHash("ext1"));
+        assertEquals(content.getExtensionHash("ext2"), copyContent.getExtensionHash("ext2"));
+        assertNull(content.getExtensionHash("ext3"));
+        assertEquals("checksum", copyContent.getChecksum());
+        assertEquals("hugo", copyContent.getLastModifiedBy());
+        assertEquals("hugo", copyContent.getExtensionLastModifiedBy("ext1"));
+        assertNotNull(copyContent.getLastModified());
+        assertNotNull(copyContent.getExtensionLastModified("ext2"));
+
+        // only the hash of the changed extension changes
+        ContentHash other = ContentHash.of(null, docs.get(1), aliases);
+        assertFalse(content.getHash().equals(other.getHash()));
+        assertFalse(content.getExtensionHash("ext1").equals(other.getExtensionHash("ext1")));
+        assertEquals(content.getExtensionHash("ext2"), other.getExtensionHash("ext2"));
+    }
+
+    @Test
+    public void testWithAttributesOf() throws Exception {
+        Map<String, Class<?>> aliases = getAliases();
+        TestExtensibleEntityBase entity = new TestExtensibleEntityBase(TestUUIDs.TEST_UUIDS[0]);
+        entity.addExtension(new TestExtension());
+        Document doc = XStreamPersistence.entityToDom(entity, aliases, getConverters());
+        ContentHash content = ContentHash.of(null, doc, aliases);
+        assertNull(content.getLastModifiedBy());
+
+        XStreamPersistence.postProcessXML(doc, null, aliases, "hugo", 42);
+        ContentHash updated = content.withAttributesOf("checksum", doc, aliases);
+        assertEquals(content.getHash(), updated.getHash());
+        assertEquals(content.getExtensionHash("ext1"), updated.getExtensionHash("ext1"));
+        assertEquals("checksum", updated.getChecksum());
+        assertEquals("hugo", updated.getLastModifiedBy());
+        assertEquals(XStreamPersistence.getLastModifiedAttribute(doc.getDocumentElement()),
+                updated.getLastModified());
+        assertEquals("hugo", updated.getExtensionLastModifiedBy("ext1"));
+    }
+
+    private void assertEquivalentToXMLDiff(List<Document> docs) {
+        for (int i = 0; i < docs.size(); ++i) {
+            for (int j = 0; j < docs.size(); ++j) {
+                // documents are compared without indentation when entities are saved
+                Element e1 = (Element) docs.get(i).getDocumentElement().cloneNode(true);
+                Element e2 = (Element) docs.get(j).getDocumentElement().cloneNode(true);
+                XStreamPersistence.removeIndentation(e1);
+                XStreamPersistence.removeIndentation(e2);
+                assertEquals("documents " + i + " and " + j, XMLDiff.identical(e1, e2),
+                        ContentHash.hash(e1).equals(ContentHash.hash(e2)));
+            }
+        }
+    }
+
+    private Map<String, Class<?>> getAliases() {
+        Map<String, Class<?>> aliases = new HashMap<String, Class<?>>();
+        aliases.put("ext1", TestExtension.class);
+        aliases.put("ext2", TestExtension1.class);
+        return aliases;
+    }
+
+    private Set<Converter> getConverters() {
+        return CollectionUtils.asSet(new NoopConverter(), new UUIDListConverter(), new ExtensionsMapConverter());
+    }
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import java.util.UUID;
+
+import org.eclipse.skalli.model.EntityBase;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Measures the read throughput of the entity cache with an increasing number
+ * of concurrent readers, while a single writer keeps updating entities.
+ * <p>
+ * The number of cached entities can be changed with the system property
+ * <tt>skalli.benchmark.entities</tt>, the number of reads per thread with
+ * <tt>skalli.benchmark.iterations</tt> and the maximum number of readers with
+ * <tt>skalli.benchmark.threads</tt>.
+ */
+@SuppressWarnings("nls")
+public class EntityCacheBenchmark extends BenchmarkBase {
+
+    private static final int ENTITIES = getParameter("entities", 5000);
+    private static final int ITERATIONS = getParameter("iterations", 200000);
+    private static final int THREADS = getParameter("threads", Runtime.getRuntime().availableProcessors());
+
+    private static class TestEntity extends EntityBase {
+    }
+
+    private static class TestEntityDerived extends TestEntity {
+    }
+
+    @Test
+    public void benchmarkReads() throws Exception {
+        final EntityCache cache = new EntityCache();
+        cache.registerEntityClass(TestEntity.class);
+        final UUID[] uuids = new UUID[ENTITIES];
+        for (int i = 0; i < ENTITIES; ++i) {
+            TestEntity entity = i % 2 == 0 ? new TestEntity() : new TestEntityDerived();
+            uuids[i] = UUID.randomUUID();
+            entity.setUuid(uuids[i]);
+            cache.putEntity(entity);
+        }
+        for (int threads = 1; threads <= THREADS; threads *= 2) {
+            long millis = measure(cache, uuids, threads);
+            report(threads + " readers: " + (threads * ITERATIONS * 1000L / millis) + " reads/s");
+        }
+    }
+
+    private long measure(final EntityCache cache, final UUID[] uuids, int threads) throws Exception {
+        final Throwable[] failures = new Throwable[threads];
+        Thread[] readers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            final int n = i;
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < ITERATIONS; ++j) {
+                            UUID uuid = uuids[(j + n) % uuids.length];
+                            Assert.assertNotNull(cache.getEntity(TestEntity.class, uuid));
+                            Assert.assertTrue(cache.isRegistered(TestEntityDerived.class));
+                            if (j % 100 == 0) {
+                                Assert.assertEquals(uuids.length, cache.getEntities(TestEntity.class).size());
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures[n] = t;
+                    }
+                }
+            };
+        }
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                int j = 0;
+                while (!isInterrupted()) {
+                    TestEntity entity = new TestEntity();
+                    entity.setUuid(uuids[j++ % uuids.length]);
+                    cache.putEntity(entity);
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        interrupt();
+                    }
+                }
+            }
+        };
+        writer.start();
+        long start = System.currentTimeMillis();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        long millis = Math.max(1L, System.currentTimeMillis() - start);
+        writer.interrupt();
+        writer.join();
+        for (Throwable failure : failures) {
+            Assert.assertNull(failure);
+        }
+        return millis;
+    }
+}
@@ -194,4 +194,92 @@ public class EntityCacheTest {
         Assert.assertEquals(0, cont.getEntities(TestEntity.class).size());
         Assert.assertEquals(1, cont.getEntities(TestEntityBase1.class).size());
     }
+
+    @Test
+    public void testSnapshots() throws Exception {
+        TestEntity e1 = new TestEntity();
+        TestEntity e2 = new TestEntity();
+        e1.setUuid(UUID.randomUUID());
+        e2.setUuid(UUID.randomUUID());
+        EntityCache cont = new EntityCache();
+        cont.registerEntityClass(TestEntity.class);
+        cont.putEntity(e1);
+
+        List<TestEntity> res = cont.getEntities(TestEntity.class);
+        Assert.assertSame(res, cont.getEntities(TestEntity.class));
+        try {
+            res.add(e2);
+            Assert.fail("UnsupportedOperationException expected");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        // snapshots taken before a modification do not change
+        cont.putEntity(e2);
+        Assert.assertEquals(1, res.size());
+        Assert.assertEquals(2, cont.getEntities(TestEntity.class).size());
+        cont.removeEntity(e1);
+        Assert.assertEquals(1, cont.getEntities(TestEntity.class).size());
+        Assert.assertSame(e2, cont.getEntities(TestEntity.class).get(0));
+        cont.clearAll();
+        Assert.assertEquals(0, cont.getEntities(TestEntity.class).size());
+    }
+
+    @Test
+    public void testMapEntityType() throws Exception {
+        EntityCache cont = new EntityCache();
+        Assert.assertEquals(TestEntityDerived.class, cont.mapEntityType(TestEntityDerived.class));
+        Assert.assertFalse(cont.isRegistered(TestEntityDerived.class));
+
+        // the mapping calculated before must not survive the registration
+        cont.registerEntityClass(TestEntity.class);
+        Assert.assertEquals(TestEntity.class, cont.mapEntityType(TestEntityDerived.class));
+        Assert.assertTrue(cont.isRegistered(TestEntityDerived.class));
+        Assert.assertEquals(TestEntity.class, cont.mapEntityType(TestEntity.class));
+        Assert.assertEquals(TestEntityBase1.class, cont.mapEntityType(TestEntityBase1.class));
+        try {
+            cont.registerEntityClass(TestEntityDerived.class);
+            Assert.fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final EntityCache cont = new EntityCache();
+        cont.registerEntityClass(TestEntity.class);
+        final int count = 1000;
+        Thread[] threads = new Thread[8];
+        final Throwable[] failures = new Throwable[threads.length];
+        for (int i = 0; i < threads.length; ++i) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < count; ++j) {
+                            TestEntity entity = n % 2 == 0 ? new TestEntity() : new TestEntityDerived();
+                            entity.setUuid(UUID.randomUUID());
+                            cont.putEntity(entity);
+                            Assert.assertSame(entity, cont.getEntity(TestEntity.class, entity.getUuid()));
+                            Assert.assertTrue(cont.getEntities(TestEntity.class).contains(entity));
+                        }
+                    } catch (Throwable t) {
+                        failures[n] = t;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Throwable failure : failures) {
+            Assert.assertNull(failure);
+        }
+        Assert.assertEquals(threads.length * count, cont.size(TestEntity.class));
+        Assert.assertEquals(threads.length * count, cont.getEntities(TestEntity.class).size());
+        Assert.assertEquals(threads.length * count, cont.keySet(TestEntity.class).size());
+    }
 }
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import java.util.UUID;
+
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.TestEntityBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Measures the cost of moving entities between two large parent entities and of
+ * listing the children of a large parent entity. With the child index the cost of
+ * moving an entity should not depend on the number of children of the parents.
+ * <p>
+ * The number of children of the largest parent can be changed with the system property
+ * <tt>skalli.benchmark.entities</tt>.
+ */
+@SuppressWarnings("nls")
+public class EntityRelationsBenchmark extends BenchmarkBase {
+
+    private static final int ENTITIES = getParameter("entities", 20000);
+
+    @Test
+    public void benchmarkReparent() throws Exception {
+        for (int count = 1000; count <= ENTITIES; count *= 2) {
+            measure(count);
+        }
+    }
+
+    private void measure(int count) {
+        XStreamPersistenceComponent p = new XStreamPersistenceComponent();
+        p.registerEntityClass(TestEntityBase.class);
+        TestEntityBase parent1 = new TestEntityBase(UUID.randomUUID());
+        TestEntityBase parent2 = new TestEntityBase(UUID.randomUUID());
+        p.updateCache(parent1);
+        p.updateCache(parent2);
+
+        TestEntityBase[] entities = new TestEntityBase[count];
+        long start = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            entities[i] = new TestEntityBase(UUID.randomUUID(), parent1.getUuid());
+            p.adjustEntityRelations(TestEntityBase.class, null, entities[i]);
+            p.updateCache(entities[i]);
+        }
+        long insert = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            TestEntityBase moved = new TestEntityBase(entities[i].getUuid(), parent2.getUuid());
+            p.adjustEntityRelations(TestEntityBase.class, entities[i], moved);
+            p.updateCache(moved);
+            entities[i] = moved;
+        }
+        long reparent = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        Assert.assertEquals(count, parent2.getChildren().size());
+        long list = System.nanoTime() - start;
+
+        report(count + " children: insert " + insert / count + " ns, reparent "
+                + reparent / count + " ns per entity, listing " + list / 1000L + " us");
+    }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.skalli.core.storage.FileStorageComponent;
+import org.eclipse.skalli.core.storage.TemporaryFileStorage;
+import org.eclipse.skalli.services.entity.EntityService;
+import org.eclipse.skalli.services.extension.ExtensionService;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.BundleManager;
+import org.eclipse.skalli.testutil.HashMapStorageService;
+import org.eclipse.skalli.testutil.TestExtensibleEntityBase;
+import org.eclipse.skalli.testutil.TestExtensibleEntityEntityService;
+import org.eclipse.skalli.testutil.TestExtensibleEntityExtensionService;
+import org.eclipse.skalli.testutil.TestExtension;
+import org.eclipse.skalli.testutil.TestUUIDs;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Compares the time to the first request (i.e. loading of all entities of a given type)
+ * of a persistence service without a snapshot (cold start) and with a snapshot written by
+ * a previous instance (warm start).
+ * <p>
+ * The number of generated entities can be changed with the system property
+ * <tt>skalli.benchmark.entities</tt>.
+ */
+@SuppressWarnings("nls")
+public class ModelSnapshotBenchmark extends BenchmarkBase {
+
+    private static final int ENTITIES = getParameter("entities", 20000);
+    private static final String CATEGORY = TestExtensibleEntityBase.class.getSimpleName();
+
+    private File tmpDir;
+    private File snapshotDir;
+    private FileStorageComponent storageService;
+
+    private List<ServiceRegistration<?>> serviceRegistrations = new ArrayList<ServiceRegistration<?>>();
+
+    @Before
+    public void setUp() throws Exception {
+        serviceRegistrations.add(BundleManager.registerService(ExtensionService.class,
+                new TestExtensibleEntityExtensionService(), null));
+        serviceRegistrations.add(BundleManager.registerService(EntityService.class,
+                new TestExtensibleEntityEntityService(0), null));
+        tmpDir = TestUtils.createTempDir("ModelSnapshotBenchmark");
+        snapshotDir = new File(tmpDir, "snapshots");
+        storageService = new TemporaryFileStorage(new File(tmpDir, "storage"));
+
+        // persist one entity and clone it with different uuids
+        HashMapStorageService templateStorage = new HashMapStorageService();
+        TestExtensibleEntityBase entity = new TestExtensibleEntityBase(TestUUIDs.TEST_UUIDS[0]);
+        TestExtension ext = new TestExtension();
+        ext.setStr("ModelSnapshotBenchmark");
+        ext.addItem("a");
+        ext.addItem("b");
+        entity.addExtension(ext);
+        new XStreamPersistenceComponent(templateStorage).persist(TestExtensibleEntityBase.class, entity, "hugo");
+        String template = IOUtils.toString(templateStorage.read(CATEGORY, TestUUIDs.TEST_UUIDS[0].toString()), "UTF-8");
+        for (int i = 0; i < ENTITIES; ++i) {
+            String uuid = UUID.randomUUID().toString();
+            storageService.write(CATEGORY, uuid, IOUtils.toInputStream(
+                    template.replace(TestUUIDs.TEST_UUIDS[0].toString(), uuid), "UTF-8"));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (ServiceRegistration<?> serviceRegistration : serviceRegistrations) {
+            serviceRegistration.unregister();
+        }
+        if (tmpDir != null) {
+            FileUtils.forceDelete(tmpDir);
+        }
+    }
+
+    @Test
+    public void benchmarkWarmRestart() throws Exception {
+        // warm up class loading and JIT
+        newPersistenceService(null).getEntities(TestExtensibleEntityBase.class);
+
+        XStreamPersistenceComponent coldService = newPersistenceService(snapshotDir);
+        long start = System.currentTimeMillis();
+        int coldSize = coldService.getEntities(TestExtensibleEntityBase.class).size();
+        long coldTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        coldService.writeSnapshots();
+        long snapshotTime = System.currentTimeMillis() - start;
+
+        XStreamPersistenceComponent warmService = newPersistenceService(snapshotDir);
+        start = System.currentTimeMillis();
+        int warmSize = warmService.getEntities(TestExtensibleEntityBase.class).size();
+        long warmTime = System.currentTimeMillis() - start;
+
+        assertEquals(ENTITIES, coldSize);
+        assertEquals(ENTITIES, warmSize);
+        report(ENTITIES + " entities: cold start " + coldTime + " ms, warm start " + warmTime
+                + " ms (speedup " + String.format("%.2f", (double) coldTime / Math.max(1L, warmTime))
+                + "), writing the snapshot took " + snapshotTime + " ms");
+    }
+
+    private XStreamPersistenceComponent newPersistenceService(File snapshotDir) {
+        XStreamPersistenceComponent persistenceService = new XStreamPersistenceComponent(storageService);
+        persistenceService.setSnapshotDirectory(snapshotDir);
+        return persistenceService;
+    }
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.skalli.core.storage.FileStorageComponent;
+import org.eclipse.skalli.core.storage.TemporaryFileStorage;
+import org.eclipse.skalli.services.entity.EntityService;
+import org.eclipse.skalli.services.extension.ExtensionService;
+import org.eclipse.skalli.testutil.BundleManager;
+import org.eclipse.skalli.testutil.TestExtensibleEntityBase;
+import org.eclipse.skalli.testutil.TestExtensibleEntityEntityService;
+import org.eclipse.skalli.testutil.TestExtensibleEntityExtensionService;
+import org.eclipse.skalli.testutil.TestExtension;
+import org.eclipse.skalli.testutil.TestUUIDs;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceRegistration;
+
+import com.thoughtworks.xstream.converters.Converter;
+
+@SuppressWarnings("nls")
+public class ModelSnapshotTest {
+
+    private static final int MODEL_VERSION = 43;
+    private static final String CATEGORY = TestExtensibleEntityBase.class.getSimpleName();
+
+    private File tmpDir;
+    private File snapshotFile;
+    private FileStorageComponent storageService;
+    private TestExtensibleEntityEntityService entityService;
+
+    private List<ServiceRegistration<?>> serviceRegistrations = new ArrayList<ServiceRegistration<?>>();
+
+    @Before
+    public void setup() throws Exception {
+        tmpDir = TestUtils.createTempDir("ModelSnapshotTest");
+        snapshotFile = new File(tmpDir, "snapshots/" + CATEGORY + ".snapshot");
+        storageService = new TemporaryFileStorage(new File(tmpDir, "storage"));
+        entityService = new TestExtensibleEntityEntityService(MODEL_VERSION);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (ServiceRegistration<?> serviceRegistration : serviceRegistrations) {
+            serviceRegistration.unregister();
+        }
+        if (tmpDir != null) {
+            FileUtils.forceDelete(tmpDir);
+        }
+    }
+
+    @Test
+    public void testRestoreFromSnapshot() throws Exception {
+        XStreamPersistence xp = new XStreamPersistence(storageService);
+        for (int i = 0; i < 3; ++i) {
+            xp.saveEntity(entityService, newEntity(i, "stored"), "hugo", getAliases(), getConverters());
+        }
+        List<TestExtensibleEntityBase> loadedEntities = load(xp, null);
+        assertEquals(3, loadedEntities.size());
+        assertEquals(3, xp.getFingerprints(CATEGORY).size());
+
+        // change the entities in memory only: a snapshot entry of an unchanged
+        // blob must be preferred over the blob itself
+        Map<String, TestExtensibleEntityBase> expected = new HashMap<String, TestExtensibleEntityBase>();
+        for (TestExtensibleEntityBase entity : loadedEntities) {
+            entity.getExtension(TestExtension.class).setStr("snapshot");
+            expected.put(entity.getUuid().toString(), entity);
+        }
+        assertEquals(3, xp.writeSnapshot(snapshotFile, entityService, loadedEntities, getSignature(MODEL_VERSION),
+                XStreamPersistenceLoadBenchmark.getClassLoaders(), getAliases(), getConverters()));
+
+        // change one of the entities in storage
+        TestExtensibleEntityBase changedEntity = load(xp, null).get(0);
+        changedEntity.getExtension(TestExtension.class).setStr("changed");
+        xp.saveEntity(entityService, changedEntity, "homer", getAliases(), getConverters());
+
+        ModelSnapshot snapshot = ModelSnapshot.read(snapshotFile, MODEL_VERSION, getSignature(MODEL_VERSION));
+        assertNotNull(snapshot);
+        assertEquals(3, snapshot.size());
+        List<TestExtensibleEntityBase> restoredEntities = load(xp, snapshot);
+        assertEquals(3, restoredEntities.size());
+        for (TestExtensibleEntityBase entity : restoredEntities) {
+            TestExtension ext = entity.getExtension(TestExtension.class);
+            assertNotNull(ext);
+            assertSame(entity, ext.getExtensibleEntity());
+            if (entity.getUuid().equals(changedEntity.getUuid())) {
+                assertEquals("changed", ext.getStr());
+                assertEquals("homer", entity.getLastModifiedBy());
+            } else {
+                TestExtensibleEntityBase expectedEntity = expected.get(entity.getUuid().toString());
+                assertEquals("snapshot", ext.getStr());
+                assertEquals(expectedEntity.getLastModified(), entity.getLastModified());
+                assertEquals("hugo", entity.getLastModifiedBy());
+                assertEquals(expectedEntity.getExtension(TestExtension.class).getLastModified(), ext.getLastModified());
+                assertEquals("hugo", ext.getLastModifiedBy());
+            }
+        }
+    }
+
+    @Test
+    public void testSavedEntitiesNotInSnapshot() throws Exception {
+        XStreamPersistence xp = new XStreamPersistence(storageService);
+        xp.saveEntity(entityService, newEntity(0, "stored"), "hugo", getAliases(), getConverters());
+        xp.saveEntity(entityService, newEntity(1, "stored"), "hugo", getAliases(), getConverters());
+        List<TestExtensibleEntityBase> loadedEntities = load(xp, null);
+        xp.saveEntity(entityService, loadedEntities.get(0), "homer", getAliases(), getConverters());
+        assertEquals(1, xp.writeSnapshot(snapshotFile, entityService, loadedEntities, getSignature(MODEL_VERSION),
+                XStreamPersistenceLoadBenchmark.getClassLoaders(), getAliases(), getConverters()));
+    }
+
+    @Test
+    public void testSnapshotIgnoredIfModelChanged() throws Exception {
+        XStreamPersistence xp = new XStreamPersistence(storageService);
+        xp.saveEntity(entityService, newEntity(0, "stored"), "hugo", getAliases(), getConverters());
+        List<TestExtensibleEntityBase> loadedEntities = load(xp, null);
+        xp.writeSnapshot(snapshotFile, entityService, loadedEntities, getSignature(MODEL_VERSION),
+                XStreamPersistenceLoadBenchmark.getClassLoaders(), getAliases(), getConverters());
+
+        assertNotNull(ModelSnapshot.read(snapshotFile, MODEL_VERSION, getSignature(MODEL_VERSION)));
+        assertNull(ModelSnapshot.read(snapshotFile, MODEL_VERSION + 1, getSignature(MODEL_VERSION + 1)));
+        assertNull(ModelSnapshot.read(snapshotFile, MODEL_VERSION, getSignature(MODEL_VERSION + 1)));
+        assertNull(ModelSnapshot.read(snapshotFile, MODEL_VERSION,
+                ModelSnapshot.signatureOf(MODEL_VERSION, new HashMap<String, Class<?>>(), getConverters(), null)));
+    }
+
+    @Test
+    public void testMissingOrCorruptSnapshot() throws Exception {
+        assertNull(ModelSnapshot.read(snapshotFile, MODEL_VERSION, getSignature(MODEL_VERSION)));
+
+        XStreamPersistence xp = new XStreamPersistence(storageService);
+        xp.saveEntity(entityService, newEntity(0, "stored"), "hugo", getAliases(), getConverters());
+        List<TestExtensibleEntityBase> loadedEntities = load(xp, null);
+        xp.writeSnapshot(snapshotFile, entityService, loadedEntities, getSignature(MODEL_VERSION),
+                XStreamPersistenceLoadBenchmark.getClassLoaders(), getAliases(), getConverters());
+        byte[] bytes = FileUtils.readFileToByteArray(snapshotFile);
+        byte[] truncated = new byte[bytes.length / 2];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        FileUtils.writeByteArrayToFile(snapshotFile, truncated);
+        assertNull(ModelSnapshot.read(snapshotFile, MODEL_VERSION, getSignature(MODEL_VERSION)));
+    }
+
+    @Test
+    public void testWarmRestart() throws Exception {
+        serviceRegistrations.add(BundleManager.registerService(ExtensionService.class,
+                new TestExtensibleEntityExtensionService(), null));
+        serviceRegistrations.add(BundleManager.registerService(EntityService.class,
+                new TestExtensibleEntityEntityService(0), null));
+
+        XStreamPersistenceComponent persistenceService = new XStreamPersistenceComponent(storageService);
+        TestExtensibleEntityBase parent = newEntity(0, "parent");
+        persistenceService.persist(TestExtensibleEntityBase.class, parent, "hugo");
+        TestExtensibleEntityBase child = newEntity(1, "child");
+        child.setParentEntityId(parent.getUuid());
+        persistenceService.persist(TestExtensibleEntityBase.class, child, "hugo");
+        TestExtensibleEntityBase deletedEntity = newEntity(2, "deleted");
+        deletedEntity.setDeleted(true);
+        persistenceService.persist(TestExtensibleEntityBase.class, deletedEntity, "hugo");
+
+        // cold start: no snapshot yet
+        XStreamPersistenceComponent coldService = new XStreamPersistenceComponent(storageService);
+        coldService.setSnapshotDirectory(snapshotFile.getParentFile());
+        List<TestExtensibleEntityBase> coldEntities = coldService.getEntities(TestExtensibleEntityBase.class);
+        assertEquals(2, coldEntities.size());
+        coldService.writeSnapshots();
+        assertTrue(snapshotFile.exists());
+
+        // warm start: all entities restored from the snapshot
+        XStreamPersistenceComponent warmService = new XStreamPersistenceComponent(storageService);
+        warmService.setSnapshotDirectory(snapshotFile.getParentFile());
+        assertEquals(2, warmService.getEntities(TestExtensibleEntityBase.class).size());
+        assertEquals(1, warmService.getDeletedEntities(TestExtensibleEntityBase.class).size());
+        for (TestExtensibleEntityBase coldEntity : coldEntities) {
+            TestExtensibleEntityBase warmEntity = warmService.getEntity(TestExtensibleEntityBase.class,
+                    coldEntity.getUuid());
+            assertNotNull(warmEntity);
+            assertEquals(coldEntity.getLastModified(), warmEntity.getLastModified());
+            assertEquals(coldEntity.getLastModifiedBy(), warmEntity.getLastModifiedBy());
+            assertEquals(coldEntity.getParentEntityId(), warmEntity.getParentEntityId());
+            assertEquals(coldEntity.getExtension(TestExtension.class).getStr(),
+                    warmEntity.getExtension(TestExtension.class).getStr());
+        }
+        TestExtensibleEntityBase warmParent = warmService.getEntity(TestExtensibleEntityBase.class, parent.getUuid());
+        TestExtensibleEntityBase warmChild = warmService.getEntity(TestExtensibleEntityBase.class, child.getUuid());
+        assertSame(warmParent, warmChild.getParentEntity());
+        assertSame(warmChild, warmParent.getFirstChild());
+    }
+
+    private List<TestExtensibleEntityBase> load(XStreamPersistence xp, ModelSnapshot snapshot) throws Exception {
+        return xp.loadEntities(entityService, XStreamPersistenceLoadBenchmark.getClassLoaders(), null,
+                getAliases(), getConverters(), snapshot);
+    }
+
+    private static TestExtensibleEntityBase newEntity(int i, String str) {
+        TestExtensibleEntityBase entity = new TestExtensibleEntityBase(TestUUIDs.TEST_UUIDS[i]);
+        TestExtension ext = new TestExtension();
+        ext.setStr(str);
+        entity.addExtension(ext);
+        return entity;
+    }
+
+    private static String getSignature(int modelVersion) {
+        return ModelSnapshot.signatureOf(modelVersion, getAliases(), getConverters(), null);
+    }
+
+    private static Map<String, Class<?>> getAliases() {
+        return XStreamPersistenceLoadBenchmark.getAliases();
+    }
+
+    private static Set<Converter> getConverters() {
+        return XStreamPersistenceLoadBenchmark.getConverters();
+    }
+}
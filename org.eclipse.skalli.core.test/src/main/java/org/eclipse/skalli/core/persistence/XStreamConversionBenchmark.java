@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.skalli.commons.XMLUtils;
+import org.eclipse.skalli.core.xstream.IgnoreUnknownElementsXStream;
+import org.eclipse.skalli.model.EntityBase;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.TestExtensibleEntityBase;
+import org.eclipse.skalli.testutil.TestExtension;
+import org.eclipse.skalli.testutil.TestExtension1;
+import org.eclipse.skalli.testutil.TestUUIDs;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+
+/**
+ * Compares CPU time and allocated bytes per conversion of the direct DOM conversion
+ * in {@link XStreamPersistence} with the former round trip through a string.
+ * <p>
+ * The number of iterations can be changed with the system property
+ * <tt>skalli.benchmark.iterations</tt>. Allocated bytes are only reported if the JVM supports
+ * thread allocation measurement.
+ */
+@SuppressWarnings("nls")
+public class XStreamConversionBenchmark extends BenchmarkBase {
+
+    private static final int ITERATIONS = getParameter("iterations", 5000);
+
+    private interface Conversion {
+        void run() throws Exception;
+    }
+
+    private final Map<String, Class<?>> aliases = XStreamPersistenceLoadBenchmark.getAliases();
+    private final Set<Converter> converters = XStreamPersistenceLoadBenchmark.getConverters();
+    private final Set<ClassLoader> classLoaders = XStreamPersistenceLoadBenchmark.getClassLoaders();
+
+    @Test
+    public void benchmarkLoad() throws Exception {
+        final Document doc = XStreamPersistence.entityToDom(newEntity(), aliases, converters);
+        measure("load (string round trip)", new Conversion() {
+            @Override
+            public void run() throws Exception {
+                String xml = XMLUtils.documentToString(doc);
+                XStream xstream = IgnoreUnknownElementsXStream.getXStreamInstance(converters, classLoaders, aliases);
+                assertEquals(TestUUIDs.TEST_UUIDS[0], ((EntityBase) xstream.fromXML(xml)).getUuid());
+            }
+        });
+        measure("load (direct DOM)", new Conversion() {
+            @Override
+            public void run() throws Exception {
+                EntityBase entity = XStreamPersistence.domToEntity(classLoaders, aliases, converters, doc);
+                assertEquals(TestUUIDs.TEST_UUIDS[0], entity.getUuid());
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkSave() throws Exception {
+        final TestExtensibleEntityBase entity = newEntity();
+        measure("save (string round trip)", new Conversion() {
+            @Override
+            public void run() throws Exception {
+                XStream xstream = IgnoreUnknownElementsXStream.getXStreamInstance(converters, null, aliases);
+                XMLUtils.documentFromString(xstream.toXML(entity));
+            }
+        });
+        measure("save (direct DOM)", new Conversion() {
+            @Override
+            public void run() throws Exception {
+                XStreamPersistence.entityToDom(entity, aliases, converters);
+            }
+        });
+    }
+
+    private void measure(String name, Conversion conversion) throws Exception {
+        // warm up class loading and JIT
+        for (int i = 0; i < ITERATIONS / 10; ++i) {
+            conversion.run();
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long bytesBefore = getAllocatedBytes(threadBean);
+        long cpuBefore = threadBean.getCurrentThreadCpuTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            conversion.run();
+        }
+        long cpu = threadBean.getCurrentThreadCpuTime() - cpuBefore;
+        long bytes = getAllocatedBytes(threadBean) - bytesBefore;
+        report(name + ": " + (cpu / ITERATIONS / 1000) + " us CPU per conversion"
+                + (bytesBefore >= 0 ? ", " + (bytes / ITERATIONS) + " bytes allocated per conversion" : ""));
+    }
+
+    // com.sun.management.ThreadMXBean is not available on all platforms
+    private static long getAllocatedBytes(ThreadMXBean threadBean) {
+        try {
+            Method method = threadBean.getClass().getMethod("getThreadAllocatedBytes", long.class);
+            method.setAccessible(true);
+            return (Long) method.invoke(threadBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1L;
+        }
+    }
+
+    private static TestExtensibleEntityBase newEntity() {
+        TestExtensibleEntityBase entity = new TestExtensibleEntityBase(TestUUIDs.TEST_UUIDS[0]);
+        TestExtension ext = new TestExtension();
+        ext.setStr("XStreamConversionBenchmark");
+        for (int i = 0; i < 20; ++i) {
+            ext.addItem("item" + i);
+        }
+        entity.addExtension(ext);
+        entity.addExtension(new TestExtension1());
+        return entity;
+    }
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.skalli.core.storage.TemporaryFileStorage;
+import org.eclipse.skalli.model.EntityBase;
+import org.eclipse.skalli.services.entity.EntityService;
+import org.eclipse.skalli.services.extension.ExtensionService;
+import org.eclipse.skalli.testutil.BundleManager;
+import org.eclipse.skalli.testutil.TestExtensibleEntityBase;
+import org.eclipse.skalli.testutil.TestExtensibleEntityEntityService;
+import org.eclipse.skalli.testutil.TestExtensibleEntityExtensionService;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Persists entities concurrently from several threads and checks that neither
+ * updates nor parent/child relations get lost. Each thread owns a set of entities,
+ * which it repeatedly moves between a few shared parent entities, so that threads
+ * compete for the siblings chains of the same parents.
+ */
+@SuppressWarnings("nls")
+public class XStreamPersistenceComponentStressTest {
+
+    private static final int THREADS = 8;
+    private static final int PARENTS = 4;
+    private static final int CHILDREN_PER_THREAD = 3;
+    private static final int ITERATIONS = 20;
+
+    private File tmpDir;
+    private XStreamPersistenceComponent persistenceService;
+    private List<ServiceRegistration<?>> serviceRegistrations = new ArrayList<ServiceRegistration<?>>();
+
+    @Before
+    public void setup() throws Exception {
+        serviceRegistrations.add(BundleManager.registerService(ExtensionService.class,
+                new TestExtensibleEntityExtensionService(), null));
+        serviceRegistrations.add(BundleManager.registerService(EntityService.class,
+                new TestExtensibleEntityEntityService(0), null));
+        tmpDir = TestUtils.createTempDir("XStreamPersistenceComponentStressTest");
+        persistenceService = new XStreamPersistenceComponent(new TemporaryFileStorage(tmpDir));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (ServiceRegistration<?> serviceRegistration : serviceRegistrations) {
+            serviceRegistration.unregister();
+        }
+        if (tmpDir != null) {
+            FileUtils.forceDelete(tmpDir);
+        }
+    }
+
+    @Test
+    public void testConcurrentPersist() throws Exception {
+        final UUID[] parentIds = new UUID[PARENTS];
+        for (int i = 0; i < PARENTS; ++i) {
+            TestExtensibleEntityBase parent = new TestExtensibleEntityBase(UUID.randomUUID());
+            persistenceService.persist(TestExtensibleEntityBase.class, parent, "anonymous");
+            parentIds[i] = parent.getUuid();
+        }
+
+        final UUID[][] childIds = new UUID[THREADS][CHILDREN_PER_THREAD];
+        final UUID[][] lastParentIds = new UUID[THREADS][CHILDREN_PER_THREAD];
+        final Throwable[] failures = new Throwable[THREADS];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; ++i) {
+            final int n = i;
+            for (int j = 0; j < CHILDREN_PER_THREAD; ++j) {
+                childIds[n][j] = UUID.randomUUID();
+            }
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int k = 0; k < ITERATIONS; ++k) {
+                            for (int j = 0; j < CHILDREN_PER_THREAD; ++j) {
+                                // always persist a fresh instance, like the UI does
+                                TestExtensibleEntityBase child = new TestExtensibleEntityBase(childIds[n][j]);
+                                UUID parentId = parentIds[(n + j + k) % PARENTS];
+                                child.setParentEntityId(parentId);
+                                persistenceService.persist(TestExtensibleEntityBase.class, child, "anonymous");
+                                lastParentIds[n][j] = parentId;
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures[n] = t;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Throwable failure : failures) {
+            Assert.assertNull(String.valueOf(failure), failure);
+        }
+
+        // no lost updates: cache and storage reflect the last change of each child
+        Set<UUID> expectedChildren = new HashSet<UUID>();
+        for (int i = 0; i < THREADS; ++i) {
+            for (int j = 0; j < CHILDREN_PER_THREAD; ++j) {
+                UUID childId = childIds[i][j];
+                expectedChildren.add(childId);
+                TestExtensibleEntityBase cached = persistenceService.getEntity(TestExtensibleEntityBase.class, childId);
+                Assert.assertNotNull(cached);
+                Assert.assertEquals(lastParentIds[i][j], cached.getParentEntityId());
+                Assert.assertEquals(lastParentIds[i][j], cached.getParentEntity().getUuid());
+                TestExtensibleEntityBase loaded = persistenceService.loadEntity(TestExtensibleEntityBase.class, childId);
+                Assert.assertNotNull(loaded);
+                Assert.assertEquals(lastParentIds[i][j], loaded.getParentEntityId());
+            }
+        }
+
+        // no lost relations: each child appears exactly once in the siblings chain of its parent
+        Set<UUID> actualChildren = new HashSet<UUID>();
+        for (UUID parentId : parentIds) {
+            TestExtensibleEntityBase parent = persistenceService.getEntity(TestExtensibleEntityBase.class, parentId);
+            for (EntityBase child : parent.getChildren()) {
+                Assert.assertTrue(child.getUuid() + " is child of more than one parent",
+                        actualChildren.add(child.getUuid()));
+                Assert.assertEquals(parentId, child.getParentEntityId());
+                Assert.assertSame(child,
+                        persistenceService.getEntity(TestExtensibleEntityBase.class, child.getUuid()));
+            }
+        }
+        Assert.assertEquals(expectedChildren, actualChildren);
+    }
+}
@@ -12,18 +12,30 @@ package org.eclipse.skalli.core.persistence;
 
 import static org.eclipse.skalli.testutil.StorageKey.keyOf;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.eclipse.skalli.commons.CollectionUtils;
 import org.eclipse.skalli.commons.XMLUtils;
+import org.eclipse.skalli.core.persistence.XStreamPersistenceComponent.Verification;
+import org.eclipse.skalli.core.storage.TemporaryFileStorage;
 import org.eclipse.skalli.model.EntityBase;
 import org.eclipse.skalli.model.ExtensibleEntityBase;
 import org.eclipse.skalli.model.ExtensionEntityBase;
 import org.eclipse.skalli.services.entity.EntityService;
 import org.eclipse.skalli.services.extension.ExtensionService;
+import org.eclipse.skalli.services.persistence.StorageConsumer;
 import org.eclipse.skalli.testutil.AssertUtils;
 import org.eclipse.skalli.testutil.BundleManager;
 import org.eclipse.skalli.testutil.HashMapStorageService;
@@ -34,6 +46,7 @@ import org.eclipse.skalli.testutil.TestExtensibleEntityExtensionService;
 import org.eclipse.skalli.testutil.TestExtension;
 import org.eclipse.skalli.testutil.TestExtension1;
 import org.eclipse.skalli.testutil.TestUUIDs;
+import org.eclipse.skalli.testutil.TestUtils;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -187,6 +200,193 @@ public class XStreamPersistenceComponentTest {
         persistenceService.persist(entity.getClass(), entity, "anonymous");
     }
 
+    @Test
+    public void testPersistVerification() throws Exception {
+        for (Verification verification : Verification.values()) {
+            XStreamPersistenceComponent p = new XStreamPersistenceComponent(new HashMapStorageService());
+            p.setVerification(verification);
+            List<TestExtensibleEntityBase> expectedEntities = createTestEntityHierarchy();
+            for (ExtensibleEntityBase entity : expectedEntities) {
+                p.persist(entity.getClass(), entity, "anonymous");
+            }
+            Assert.assertEquals(3, p.size(TestExtensibleEntityBase.class));
+            Assert.assertEquals(2, p.getDeletedEntities(TestExtensibleEntityBase.class).size());
+        }
+    }
+
+    @Test
+    public void testPersistCorruptedBlob() throws Exception {
+        TestExtensibleEntityBase entity = createTestEntityHierarchy().get(0);
+
+        XStreamPersistenceComponent p = new XStreamPersistenceComponent(new CorruptingStorageService());
+        try {
+            p.persist(TestExtensibleEntityBase.class, entity, "anonymous");
+            Assert.fail("RuntimeException expected");
+        } catch (RuntimeException e) {
+            // expected, since the checksum does not match
+        }
+        Assert.assertNull(p.getCachedEntity(TestExtensibleEntityBase.class, entity.getUuid()));
+
+        // without verification the storage is trusted
+        p = new XStreamPersistenceComponent(new CorruptingStorageService());
+        p.setVerification(Verification.NONE);
+        p.persist(TestExtensibleEntityBase.class, entity, "anonymous");
+        Assert.assertNotNull(p.getCachedEntity(TestExtensibleEntityBase.class, entity.getUuid()));
+    }
+
+    @Test
+    public void testIncrementalRefresh() throws Exception {
+        for (ExtensibleEntityBase entity : createTestEntityHierarchy()) {
+            persistenceService.persist(entity.getClass(), entity, "anonymous");
+        }
+        TestExtensibleEntityBase parentParent = getEntity(persistenceService, TestUUIDs.TEST_UUIDS[2]);
+        TestExtensibleEntityBase parent = getEntity(persistenceService, TestUUIDs.TEST_UUIDS[1]);
+        TestExtensibleEntityBase base = getEntity(persistenceService, TestUUIDs.TEST_UUIDS[0]);
+
+        // change the storage behind the back of the persistence service
+        XStreamPersistenceComponent other = new XStreamPersistenceComponent(hashMapStorageService);
+        TestExtensibleEntityBase changed = getEntity(other, TestUUIDs.TEST_UUIDS[0]);
+        changed.getExtension(TestExtension.class).setStr("changed");
+        other.persist(TestExtensibleEntityBase.class, changed, "anonymous");
+        TestExtensibleEntityBase added = new TestExtensibleEntityBase(TestUUIDs.TEST_UUIDS[5]);
+        added.setParentEntityId(TestUUIDs.TEST_UUIDS[2]);
+        other.persist(TestExtensibleEntityBase.class, added, "anonymous");
+
+        persistenceService.refreshAll();
+
+        // unchanged entities are kept
+        Assert.assertSame(parentParent, getEntity(persistenceService, TestUUIDs.TEST_UUIDS[2]));
+        Assert.assertSame(parent, getEntity(persistenceService, TestUUIDs.TEST_UUIDS[1]));
+        Assert.assertEquals(4, persistenceService.size(TestExtensibleEntityBase.class));
+        Assert.assertEquals(2, persistenceService.getDeletedEntities(TestExtensibleEntityBase.class).size());
+
+        // changed entities are reloaded and rewired
+        TestExtensibleEntityBase refreshed = getEntity(persistenceService, TestUUIDs.TEST_UUIDS[0]);
+        Assert.assertNotSame(base, refreshed);
+        Assert.assertEquals("changed", refreshed.getExtension(TestExtension.class).getStr());
+        Assert.assertSame(parent, refreshed.getParentEntity());
+        assertSiblingChain(parent, refreshed);
+
+        // added entities are loaded and wired
+        TestExtensibleEntityBase refreshedAdded = getEntity(persistenceService, TestUUIDs.TEST_UUIDS[5]);
+        Assert.assertNotNull(refreshedAdded);
+        assertSiblingChain(parentParent, parent, refreshedAdded);
+
+        // refreshing again without changes in storage does nothing
+        persistenceService.refreshAll();
+        Assert.assertSame(refreshed, getEntity(persistenceService, TestUUIDs.TEST_UUIDS[0]));
+        Assert.assertSame(refreshedAdded, getEntity(persistenceService, TestUUIDs.TEST_UUIDS[5]));
+    }
+
+    @Test
+    public void testRefreshRemovedParent() throws Exception {
+        final Set<String> removedKeys = new HashSet<String>();
+        HashMapStorageService storage = new HashMapStorageService() {
+            @Override
+            public synchronized void readAll(String category, final StorageConsumer consumer) throws IOException {
+                super.readAll(category, new StorageConsumer() {
+                    @Override
+                    public void consume(String category, String key, long lastModified, InputStream blob)
+                            throws IOException {
+                        if (!removedKeys.contains(key)) {
+                            consumer.consume(category, key, lastModified, blob);
+                        }
+                    }
+                });
+            }
+        };
+        XStreamPersistenceComponent p = new XStreamPersistenceComponent(storage);
+        for (ExtensibleEntityBase entity : createTestEntityHierarchy()) {
+            p.persist(entity.getClass(), entity, "anonymous");
+        }
+        TestExtensibleEntityBase parentParent = getEntity(p, TestUUIDs.TEST_UUIDS[2]);
+        TestExtensibleEntityBase base = getEntity(p, TestUUIDs.TEST_UUIDS[0]);
+
+        // the parent disappears from storage, e.g. because an older backup has been restored
+        removedKeys.add(TestUUIDs.TEST_UUIDS[1].toString());
+        p.refreshAll();
+
+        Assert.assertNull(getEntity(p, TestUUIDs.TEST_UUIDS[1]));
+        Assert.assertSame(base, getEntity(p, TestUUIDs.TEST_UUIDS[0]));
+        Assert.assertNull(base.getParentEntity());
+        Assert.assertNull(base.getNextSibling());
+        assertSiblingChain(parentParent);
+    }
+
+    @Test
+    public void testJournaledRefresh() throws Exception {
+        File storageBase = TestUtils.createTempDir("XStreamPersistenceComponentTest.Journal");
+        try {
+            // two instances sharing the same storage directory
+            CountingFileStorage storage = new CountingFileStorage(storageBase);
+            XStreamPersistenceComponent p = new XStreamPersistenceComponent(storage);
+            XStreamPersistenceComponent other = new XStreamPersistenceComponent(new TemporaryFileStorage(storageBase));
+            for (ExtensibleEntityBase entity : createTestEntityHierarchy()) {
+                p.persist(entity.getClass(), entity, "anonymous");
+            }
+            TestExtensibleEntityBase parentParent = getEntity(p, TestUUIDs.TEST_UUIDS[2]);
+            TestExtensibleEntityBase parent = getEntity(p, TestUUIDs.TEST_UUIDS[1]);
+
+            TestExtensibleEntityBase changed = getEntity(other, TestUUIDs.TEST_UUIDS[0]);
+            changed.getExtension(TestExtension.class).setStr("changed");
+            other.persist(TestExtensibleEntityBase.class, changed, "anonymous");
+            TestExtensibleEntityBase added = new TestExtensibleEntityBase(TestUUIDs.TEST_UUIDS[5]);
+            added.setParentEntityId(TestUUIDs.TEST_UUIDS[2]);
+            other.persist(TestExtensibleEntityBase.class, added, "anonymous");
+
+            // only the entities written by the other instance are read
+            storage.readKeys.clear();
+            int readAllCount = storage.readAllCount;
+            p.refreshAll();
+            Assert.assertEquals(readAllCount, storage.readAllCount);
+            AssertUtils.assertEqualsAnyOrder("readKeys",
+                    CollectionUtils.asSet(TestUUIDs.TEST_UUIDS[0].toString(), TestUUIDs.TEST_UUIDS[5].toString()),
+                    storage.readKeys);
+
+            Assert.assertSame(parentParent, getEntity(p, TestUUIDs.TEST_UUIDS[2]));
+            Assert.assertSame(parent, getEntity(p, TestUUIDs.TEST_UUIDS[1]));
+            TestExtensibleEntityBase refreshed = getEntity(p, TestUUIDs.TEST_UUIDS[0]);
+            Assert.assertEquals("changed", refreshed.getExtension(TestExtension.class).getStr());
+            Assert.assertSame(parent, refreshed.getParentEntity());
+            assertSiblingChain(parentParent, parent, getEntity(p, TestUUIDs.TEST_UUIDS[5]));
+
+            // entities written by the instance itself are not read again
+            storage.readKeys.clear();
+            refreshed.getExtension(TestExtension.class).setStr("changed again");
+            p.persist(TestExtensibleEntityBase.class, refreshed, "anonymous");
+            p.refreshAll();
+            Assert.assertTrue(storage.readKeys.isEmpty());
+
+            // and the other instance catches up as well
+            other.refreshAll();
+            Assert.assertEquals("changed again",
+                    getEntity(other, TestUUIDs.TEST_UUIDS[0]).getExtension(TestExtension.class).getStr());
+        } finally {
+            FileUtils.forceDelete(storageBase);
+        }
+    }
+
+    private static class CountingFileStorage extends TemporaryFileStorage {
+        final List<String> readKeys = new ArrayList<String>();
+        int readAllCount;
+
+        CountingFileStorage(File storageBase) {
+            super(storageBase);
+        }
+
+        @Override
+        public void readMany(String category, Collection<String> keys, StorageConsumer consumer) throws IOException {
+            readKeys.addAll(keys);
+            super.readMany(category, keys, consumer);
+        }
+
+        @Override
+        public void readAll(String category, StorageConsumer consumer) throws IOException {
+            ++readAllCount;
+            super.readAll(category, consumer);
+        }
+    }
+
     @Test
     public void testResolveEntityRelations() throws Exception {
         XStreamPersistenceComponent p = new XStreamPersistenceComponent();
@@ -482,6 +682,63 @@ public class XStreamPersistenceComponentTest {
         assertSiblingChain(parent1);
     }
 
+    @Test
+    public void testReparentManyEntities() throws Exception {
+        XStreamPersistenceComponent p = new XStreamPersistenceComponent();
+        p.registerEntityClass(TestEntityBase.class);
+        TestEntityBase parent3 = new TestEntityBase(TestUUIDs.TEST_UUIDS[10]);
+        updateCache(p, parent1, parent3);
+
+        int count = 5000;
+        List<EntityBase> expected1 = new ArrayList<EntityBase>();
+        List<EntityBase> expected3 = new ArrayList<EntityBase>();
+        for (int i = 0; i < count; ++i) {
+            TestEntityBase entity = new TestEntityBase(UUID.randomUUID(), parent1.getUuid());
+            p.adjustEntityRelations(TestEntityBase.class, null, entity);
+            p.updateCache(entity);
+            expected1.add(entity);
+        }
+        assertSiblingChain(parent1, expected1.toArray(new EntityBase[count]));
+
+        // move every second entity to parent3, and replace the others with new instances
+        for (int i = 0; i < count; ++i) {
+            EntityBase oldEntity = expected1.get(i);
+            UUID parentId = i % 2 == 0 ? parent3.getUuid() : parent1.getUuid();
+            TestEntityBase newEntity = new TestEntityBase(oldEntity.getUuid(), parentId);
+            p.adjustEntityRelations(TestEntityBase.class, oldEntity, newEntity);
+            p.updateCache(newEntity);
+            if (i % 2 == 0) {
+                expected3.add(newEntity);
+            } else {
+                expected1.set(i, newEntity);
+            }
+        }
+        expected1.removeAll(expected3);
+        assertSiblingChain(parent1, expected1.toArray(new EntityBase[expected1.size()]));
+        assertSiblingChain(parent3, expected3.toArray(new EntityBase[expected3.size()]));
+
+        // move them all back in reverse order
+        for (int i = expected3.size() - 1; i >= 0; --i) {
+            EntityBase oldEntity = expected3.get(i);
+            TestEntityBase newEntity = new TestEntityBase(oldEntity.getUuid(), parent1.getUuid());
+            p.adjustEntityRelations(TestEntityBase.class, oldEntity, newEntity);
+            p.updateCache(newEntity);
+            expected1.add(newEntity);
+        }
+        assertSiblingChain(parent1, expected1.toArray(new EntityBase[expected1.size()]));
+        assertSiblingChain(parent3);
+        Assert.assertEquals(count, parent1.getChildren().size());
+    }
+
+    // stores only the first half of each blob
+    private static class CorruptingStorageService extends HashMapStorageService {
+        @Override
+        public void write(String category, String id, InputStream blob) throws IOException {
+            byte[] bytes = IOUtils.toByteArray(blob);
+            super.write(category, id, new ByteArrayInputStream(bytes, 0, bytes.length / 2));
+        }
+    }
+
     private List<TestExtensibleEntityBase> createTestEntityHierarchy()
             throws Exception {
         List<TestExtensibleEntityBase> entities = new LinkedList<TestExtensibleEntityBase>();
@@ -539,6 +796,10 @@ public class XStreamPersistenceComponentTest {
         return ext;
     }
 
+    private TestExtensibleEntityBase getEntity(XStreamPersistenceComponent p, UUID uuid) {
+        return p.getEntity(TestExtensibleEntityBase.class, uuid);
+    }
+
     private void updateCache(XStreamPersistenceComponent p, EntityBase...entities) {
         for (EntityBase entity: entities) {
             p.updateCache(entity);
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.skalli.core.storage.TemporaryFileStorage;
+import org.eclipse.skalli.services.entity.EntityService;
+import org.eclipse.skalli.services.extension.ExtensionService;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.BundleManager;
+import org.eclipse.skalli.testutil.TestExtensibleEntityBase;
+import org.eclipse.skalli.testutil.TestExtensibleEntityEntityService;
+import org.eclipse.skalli.testutil.TestExtensibleEntityExtensionService;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Compares the throughput of saving independent entities with a single thread
+ * and with several concurrent threads.
+ * <p>
+ * The number of saves per thread can be changed with the system property
+ * <tt>skalli.benchmark.iterations</tt>, the number of concurrent threads with
+ * <tt>skalli.benchmark.threads</tt>.
+ */
+@SuppressWarnings("nls")
+public class XStreamPersistenceConcurrencyBenchmark extends BenchmarkBase {
+
+    private static final int ITERATIONS = getParameter("iterations", 200);
+    private static final int THREADS = getParameter("threads", 8);
+
+    private File tmpDir;
+    private List<ServiceRegistration<?>> serviceRegistrations = new ArrayList<ServiceRegistration<?>>();
+
+    @Before
+    public void setup() throws Exception {
+        serviceRegistrations.add(BundleManager.registerService(ExtensionService.class,
+                new TestExtensibleEntityExtensionService(), null));
+        serviceRegistrations.add(BundleManager.registerService(EntityService.class,
+                new TestExtensibleEntityEntityService(0), null));
+        tmpDir = TestUtils.createTempDir("XStreamPersistenceConcurrencyBenchmark");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (ServiceRegistration<?> serviceRegistration : serviceRegistrations) {
+            serviceRegistration.unregister();
+        }
+        if (tmpDir != null) {
+            FileUtils.forceDelete(tmpDir);
+        }
+    }
+
+    @Test
+    public void benchmarkPersist() throws Exception {
+        for (int threads : new int[] { 1, THREADS }) {
+            XStreamPersistenceComponent persistenceService = new XStreamPersistenceComponent(
+                    new TemporaryFileStorage(new File(tmpDir, "threads" + threads)));
+            long millis = measure(persistenceService, threads);
+            report(threads + " threads: " + (threads * ITERATIONS * 1000L / millis) + " saves/s");
+        }
+    }
+
+    private long measure(final XStreamPersistenceComponent persistenceService, int threads) throws Exception {
+        Thread[] writers = new Thread[threads];
+        final Throwable[] failures = new Throwable[threads];
+        for (int i = 0; i < threads; ++i) {
+            final int n = i;
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        UUID uuid = UUID.randomUUID();
+                        for (int j = 0; j < ITERATIONS; ++j) {
+                            persistenceService.persist(TestExtensibleEntityBase.class,
+                                    new TestExtensibleEntityBase(uuid), "anonymous");
+                        }
+                    } catch (Throwable t) {
+                        failures[n] = t;
+                    }
+                }
+            };
+        }
+        long start = System.currentTimeMillis();
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        long millis = Math.max(1L, System.currentTimeMillis() - start);
+        for (Throwable failure : failures) {
+            Assert.assertNull(failure);
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.skalli.core.storage.TemporaryFileStorage;
+import org.eclipse.skalli.services.entity.EntityService;
+import org.eclipse.skalli.services.extension.ExtensionService;
+import org.eclipse.skalli.services.persistence.StorageChange;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.BundleManager;
+import org.eclipse.skalli.testutil.TestExtensibleEntityBase;
+import org.eclipse.skalli.testutil.TestExtensibleEntityEntityService;
+import org.eclipse.skalli.testutil.TestExtensibleEntityExtensionService;
+import org.eclipse.skalli.testutil.TestExtension;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Measures how long it takes until a change persisted by one instance becomes visible
+ * in another instance sharing the same storage directory, which polls for changes with
+ * {@link XStreamPersistenceComponent#refreshAll()}. The catch-up based on the journal of the
+ * storage is compared with a full comparison of all blobs in storage.
+ * <p>
+ * The number of entities in storage and the number of measured changes can be changed with the
+ * system properties <tt>skalli.benchmark.entities</tt> and <tt>skalli.benchmark.iterations</tt>.
+ */
+@SuppressWarnings("nls")
+public class XStreamPersistenceJournalBenchmark extends BenchmarkBase {
+
+    private static final int ENTITIES = getParameter("entities", 5000);
+    private static final int ITERATIONS = getParameter("iterations", 50);
+
+    private File tmpDir;
+    private List<ServiceRegistration<?>> serviceRegistrations = new ArrayList<ServiceRegistration<?>>();
+
+    private static class UnjournaledFileStorage extends TemporaryFileStorage {
+        UnjournaledFileStorage(File storageBase) {
+            super(storageBase);
+        }
+
+        @Override
+        public List<StorageChange> getChanges(long sequence) {
+            return null;
+        }
+    }
+
+    @Before
+    public void setup() throws Exception {
+        serviceRegistrations.add(BundleManager.registerService(ExtensionService.class,
+                new TestExtensibleEntityExtensionService(), null));
+        serviceRegistrations.add(BundleManager.registerService(EntityService.class,
+                new TestExtensibleEntityEntityService(0), null));
+        tmpDir = TestUtils.createTempDir("XStreamPersistenceJournalBenchmark");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (ServiceRegistration<?> serviceRegistration : serviceRegistrations) {
+            serviceRegistration.unregister();
+        }
+        if (tmpDir != null) {
+            FileUtils.forceDelete(tmpDir);
+        }
+    }
+
+    @Test
+    public void benchmarkConvergence() throws Exception {
+        XStreamPersistenceComponent writer = new XStreamPersistenceComponent(new TemporaryFileStorage(tmpDir));
+        List<UUID> uuids = new ArrayList<UUID>();
+        for (int i = 0; i < ENTITIES; ++i) {
+            TestExtensibleEntityBase entity = newEntity(UUID.randomUUID(), "initial");
+            writer.persist(TestExtensibleEntityBase.class, entity, "hugo");
+            uuids.add(entity.getUuid());
+        }
+        measure("journal", writer, new XStreamPersistenceComponent(new TemporaryFileStorage(tmpDir)), uuids);
+        measure("full comparison", writer, new XStreamPersistenceComponent(new UnjournaledFileStorage(tmpDir)), uuids);
+    }
+
+    private void measure(String label, XStreamPersistenceComponent writer, XStreamPersistenceComponent reader,
+            List<UUID> uuids) {
+        // load the model
+        reader.size(TestExtensibleEntityBase.class);
+        long total = 0L;
+        long max = 0L;
+        for (int i = 0; i < ITERATIONS; ++i) {
+            UUID uuid = uuids.get(i * uuids.size() / ITERATIONS);
+            String value = label + " " + i;
+            writer.persist(TestExtensibleEntityBase.class, newEntity(uuid, value), "hugo");
+            long start = System.nanoTime();
+            while (!value.equals(reader.getEntity(TestExtensibleEntityBase.class, uuid)
+                    .getExtension(TestExtension.class).getStr())) {
+                reader.refreshAll();
+            }
+            long latency = System.nanoTime() - start;
+            total += latency;
+            max = Math.max(max, latency);
+        }
+        report(label + ": average convergence latency " + total / ITERATIONS / 1000L
+                + " us, maximum " + max / 1000L + " us (" + uuids.size() + " entities)");
+    }
+
+    private TestExtensibleEntityBase newEntity(UUID uuid, String str) {
+        TestExtensibleEntityBase entity = new TestExtensibleEntityBase(uuid);
+        TestExtension extension = new TestExtension();
+        extension.setStr(str);
+        for (int i = 0; i < 20; ++i) {
+            extension.addItem("item " + i);
+        }
+        entity.addExtension(extension);
+        return entity;
+    }
+}
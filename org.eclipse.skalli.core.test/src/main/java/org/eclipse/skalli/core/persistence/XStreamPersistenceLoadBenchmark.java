@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.skalli.commons.CollectionUtils;
+import org.eclipse.skalli.commons.UUIDListConverter;
+import org.eclipse.skalli.core.storage.FileStorageComponent;
+import org.eclipse.skalli.core.storage.TemporaryFileStorage;
+import org.eclipse.skalli.core.xstream.ExtensionsMapConverter;
+import org.eclipse.skalli.core.xstream.NoopConverter;
+import org.eclipse.skalli.services.persistence.StorageService;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.HashMapStorageService;
+import org.eclipse.skalli.testutil.TestExtensibleEntityBase;
+import org.eclipse.skalli.testutil.TestExtensibleEntityEntityService;
+import org.eclipse.skalli.testutil.TestExtension;
+import org.eclipse.skalli.testutil.TestExtension1;
+import org.eclipse.skalli.testutil.TestUUIDs;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thoughtworks.xstream.converters.Converter;
+
+/**
+ * Compares the wall-clock time of loading a synthetic storage directory
+ * sequentially and with a pool of worker threads.
+ * <p>
+ * The number of generated entities can be changed with the system property
+ * <tt>skalli.benchmark.entities</tt>.
+ */
+@SuppressWarnings("nls")
+public class XStreamPersistenceLoadBenchmark extends BenchmarkBase {
+
+    private static final int ENTITIES = getParameter("entities", 20000);
+    private static final int MODEL_VERSION = 43;
+    private static final String CATEGORY = TestExtensibleEntityBase.class.getSimpleName();
+
+    private File storageBase;
+    private FileStorageComponent storageService;
+    private TestExtensibleEntityEntityService entityService;
+
+    @Before
+    public void setUp() throws Exception {
+        storageBase = TestUtils.createTempDir("XStreamPersistenceLoadBenchmark");
+        storageService = new TemporaryFileStorage(storageBase);
+        entityService = new TestExtensibleEntityEntityService(MODEL_VERSION);
+        generateEntities(storageService, entityService, ENTITIES);
+    }
+
+    /**
+     * Renders one entity and writes the given number of copies with random uuids
+     * to the given storage service.
+     */
+    static void generateEntities(StorageService storageService, TestExtensibleEntityEntityService entityService,
+            int count) throws Exception {
+        HashMapStorageService templateStorage = new HashMapStorageService();
+        TestExtensibleEntityBase entity = new TestExtensibleEntityBase(TestUUIDs.TEST_UUIDS[0]);
+        TestExtension ext = new TestExtension();
+        ext.setStr("XStreamPersistenceLoadBenchmark");
+        ext.addItem("a");
+        ext.addItem("b");
+        entity.addExtension(ext);
+        entity.addExtension(new TestExtension1());
+        new XStreamPersistence(templateStorage).saveEntity(entityService, entity, "hugo",
+                getAliases(), getConverters());
+        String template = IOUtils.toString(templateStorage.read(CATEGORY, TestUUIDs.TEST_UUIDS[0].toString()), "UTF-8");
+        for (int i = 0; i < count; ++i) {
+            String uuid = UUID.randomUUID().toString();
+            storageService.write(CATEGORY, uuid, IOUtils.toInputStream(
+                    template.replace(TestUUIDs.TEST_UUIDS[0].toString(), uuid), "UTF-8"));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (storageBase != null) {
+            FileUtils.forceDelete(storageBase);
+        }
+    }
+
+    @Test
+    public void benchmarkLoadEntities() throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        XStreamPersistence xp = new XStreamPersistence(storageService);
+
+        // warm up class loading and JIT
+        xp.setLoadThreads(threads);
+        load(xp);
+
+        xp.setLoadThreads(1);
+        long start = System.currentTimeMillis();
+        List<TestExtensibleEntityBase> sequential = load(xp);
+        long sequentialTime = System.currentTimeMillis() - start;
+
+        xp.setLoadThreads(threads);
+        start = System.currentTimeMillis();
+        List<TestExtensibleEntityBase> parallel = load(xp);
+        long parallelTime = System.currentTimeMillis() - start;
+
+        assertEquals(ENTITIES, sequential.size());
+        assertEquals(ENTITIES, parallel.size());
+        for (int i = 0; i < ENTITIES; ++i) {
+            assertEquals(sequential.get(i).getUuid(), parallel.get(i).getUuid());
+        }
+        report(ENTITIES + " entities loaded sequentially in " + sequentialTime + " ms, with "
+                + threads + " worker threads in " + parallelTime + " ms (speedup "
+                + String.format("%.2f", (double) sequentialTime / Math.max(1L, parallelTime)) + ")");
+    }
+
+    private List<TestExtensibleEntityBase> load(XStreamPersistence xp) throws Exception {
+        return xp.loadEntities(entityService, getClassLoaders(), null, getAliases(), getConverters());
+    }
+
+    static Map<String, Class<?>> getAliases() {
+        Map<String, Class<?>> aliases = new HashMap<String, Class<?>>();
+        aliases.put("ext1", TestExtension.class);
+        aliases.put("ext2", TestExtension1.class);
+        return aliases;
+    }
+
+    static Set<Converter> getConverters() {
+        return CollectionUtils.asSet(new NoopConverter(), new UUIDListConverter(), new ExtensionsMapConverter());
+    }
+
+    static Set<ClassLoader> getClassLoaders() {
+        Set<ClassLoader> classLoaders = new HashSet<ClassLoader>();
+        classLoaders.add(TestExtensibleEntityBase.class.getClassLoader());
+        classLoaders.add(TestExtension.class.getClassLoader());
+        classLoaders.add(TestExtension1.class.getClassLoader());
+        return classLoaders;
+    }
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.eclipse.skalli.services.entity.EntityService;
+import org.eclipse.skalli.services.extension.ExtensionService;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.BundleManager;
+import org.eclipse.skalli.testutil.HashMapStorageService;
+import org.eclipse.skalli.testutil.TestExtensibleEntityBase;
+import org.eclipse.skalli.testutil.TestExtensibleEntityEntityService;
+import org.eclipse.skalli.testutil.TestExtensibleEntityExtensionService;
+import org.eclipse.skalli.testutil.TestExtension;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Compares the time of a full reload of all entities with an incremental refresh
+ * after 1% of the entities have been changed in storage.
+ * <p>
+ * The number of entities can be changed with the system property
+ * <tt>skalli.benchmark.entities</tt>.
+ */
+@SuppressWarnings("nls")
+public class XStreamPersistenceRefreshBenchmark extends BenchmarkBase {
+
+    private static final int ENTITIES = getParameter("entities", 10000);
+
+    private List<ServiceRegistration<?>> serviceRegistrations = new ArrayList<ServiceRegistration<?>>();
+
+    @Before
+    public void setup() throws Exception {
+        serviceRegistrations.add(BundleManager.registerService(ExtensionService.class,
+                new TestExtensibleEntityExtensionService(), null));
+        serviceRegistrations.add(BundleManager.registerService(EntityService.class,
+                new TestExtensibleEntityEntityService(0), null));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (ServiceRegistration<?> serviceRegistration : serviceRegistrations) {
+            serviceRegistration.unregister();
+        }
+    }
+
+    @Test
+    public void benchmarkRefresh() throws Exception {
+        HashMapStorageService storage = new HashMapStorageService();
+        XStreamPersistenceComponent persistenceService = new XStreamPersistenceComponent(storage);
+        List<UUID> uuids = new ArrayList<UUID>();
+        for (int i = 0; i < ENTITIES; ++i) {
+            TestExtensibleEntityBase entity = newEntity(UUID.randomUUID(), "initial");
+            persistenceService.persist(TestExtensibleEntityBase.class, entity, "hugo");
+            uuids.add(entity.getUuid());
+        }
+
+        long start = System.currentTimeMillis();
+        persistenceService.reloadAll();
+        report("full reload: " + (System.currentTimeMillis() - start) + " ms");
+
+        // change 1% of the entities behind the back of the persistence service
+        XStreamPersistenceComponent other = new XStreamPersistenceComponent(storage);
+        for (int i = 0; i < ENTITIES; i += 100) {
+            other.persist(TestExtensibleEntityBase.class, newEntity(uuids.get(i), "changed"), "homer");
+        }
+
+        start = System.currentTimeMillis();
+        persistenceService.refreshAll();
+        report("incremental refresh: " + (System.currentTimeMillis() - start) + " ms");
+
+        TestExtensibleEntityBase changed = persistenceService.getEntity(TestExtensibleEntityBase.class, uuids.get(0));
+        Assert.assertEquals("changed", changed.getExtension(TestExtension.class).getStr());
+        Assert.assertEquals(ENTITIES, persistenceService.size(TestExtensibleEntityBase.class));
+    }
+
+    private TestExtensibleEntityBase newEntity(UUID uuid, String str) {
+        TestExtensibleEntityBase entity = new TestExtensibleEntityBase(uuid);
+        TestExtension extension = new TestExtension();
+        extension.setStr(str);
+        for (int i = 0; i < 20; ++i) {
+            extension.addItem("item " + i);
+        }
+        entity.addExtension(extension);
+        return entity;
+    }
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.skalli.commons.CollectionUtils;
+import org.eclipse.skalli.commons.UUIDListConverter;
+import org.eclipse.skalli.core.storage.FileStorageComponent;
+import org.eclipse.skalli.core.storage.TemporaryFileStorage;
+import org.eclipse.skalli.core.xstream.ExtensionsMapConverter;
+import org.eclipse.skalli.core.xstream.NoopConverter;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.TestExtensibleEntityBase;
+import org.eclipse.skalli.testutil.TestExtensibleEntityEntityService;
+import org.eclipse.skalli.testutil.TestExtension;
+import org.eclipse.skalli.testutil.TestExtension1;
+import org.eclipse.skalli.testutil.TestUUIDs;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thoughtworks.xstream.converters.Converter;
+
+/**
+ * Compares the latency of saving a large entity, if unchanged entities are detected by
+ * comparing {@link ContentHash content hashes}, with the latency of saving it, if the stored
+ * document has to be read and compared with {@link XMLDiff}.
+ * <p>
+ * The number of measured saves and the number of items of the entity can be changed with the system
+ * properties <tt>skalli.benchmark.iterations</tt> and <tt>skalli.benchmark.entities</tt>.
+ */
+@SuppressWarnings("nls")
+public class XStreamPersistenceSaveBenchmark extends BenchmarkBase {
+
+    private static final int ITERATIONS = getParameter("iterations", 500);
+    private static final int ITEMS = getParameter("entities", 1000);
+
+    private File tmpDir;
+
+    @Before
+    public void setup() throws Exception {
+        tmpDir = TestUtils.createTempDir("XStreamPersistenceSaveBenchmark");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (tmpDir != null) {
+            FileUtils.forceDelete(tmpDir);
+        }
+    }
+
+    @Test
+    public void benchmarkSave() throws Exception {
+        FileStorageComponent storage = new TemporaryFileStorage(tmpDir);
+        TestExtensibleEntityEntityService entityService = new TestExtensibleEntityEntityService(0);
+        Map<String, Class<?>> aliases = new HashMap<String, Class<?>>();
+        aliases.put("ext1", TestExtension.class);
+        aliases.put("ext2", TestExtension1.class);
+        Set<Converter> converters = CollectionUtils.asSet(new NoopConverter(), new UUIDListConverter(),
+                new ExtensionsMapConverter());
+        TestExtensibleEntityBase entity = newEntity();
+        XStreamPersistence xp = new XStreamPersistence(storage);
+        xp.saveEntity(entityService, entity, "hugo", aliases, converters);
+
+        for (int round = 0; round < 2; ++round) {
+            // a new instance does not know the content hashes of the stored document
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; ++i) {
+                new XStreamPersistence(storage).saveEntity(entityService, entity, "hugo", aliases, converters);
+            }
+            long diffTime = (System.nanoTime() - start) / ITERATIONS / 1000L;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; ++i) {
+                xp.saveEntity(entityService, entity, "hugo", aliases, converters);
+            }
+            long hashTime = (System.nanoTime() - start) / ITERATIONS / 1000L;
+
+            // the first round warms up
+            if (round > 0) {
+                report("unchanged entity with " + ITEMS + " items: read and diff "
+                        + diffTime + " us per save, content hash " + hashTime + " us per save");
+            }
+        }
+    }
+
+    private TestExtensibleEntityBase newEntity() {
+        TestExtensibleEntityBase entity = new TestExtensibleEntityBase(TestUUIDs.TEST_UUIDS[0]);
+        TestExtension extension = new TestExtension();
+        extension.setStr("value");
+        for (int i = 0; i < ITEMS; ++i) {
+            extension.addItem("item " + i);
+        }
+        entity.addExtension(extension);
+        entity.addExtension(new TestExtension1());
+        return entity;
+    }
+}
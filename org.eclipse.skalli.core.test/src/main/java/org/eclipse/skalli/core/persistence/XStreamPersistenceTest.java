@@ -14,6 +14,10 @@ import static org.eclipse.skalli.testutil.StorageKey.keyOf;
 import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
@@ -22,18 +26,26 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.xml.bind.DatatypeConverter;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.easymock.EasyMock;
 import org.eclipse.skalli.commons.CollectionUtils;
+import org.eclipse.skalli.commons.StripedLock;
 import org.eclipse.skalli.commons.UUIDListConverter;
 import org.eclipse.skalli.commons.XMLUtils;
 import org.eclipse.skalli.core.xstream.ExtensionsMapConverter;
 import org.eclipse.skalli.core.xstream.NoopConverter;
 import org.eclipse.skalli.model.EntityBase;
 import org.eclipse.skalli.services.extension.DataMigration;
+import org.eclipse.skalli.services.persistence.StorageService;
+import org.eclipse.skalli.services.persistence.StorageUpgrade;
 import org.eclipse.skalli.testutil.HashMapStorageService;
 import org.eclipse.skalli.testutil.StorageKey;
 import org.eclipse.skalli.testutil.TestExtensibleEntityBase;
@@ -91,6 +103,10 @@ public class XStreamPersistenceTest {
             super(new HashMapStorageService());
         }
 
+        public TestXStreamPersistence(HashMapStorageService storageService) {
+            super(storageService);
+        }
+
         private static StorageKey getStorageKey(TestExtensibleEntityBase entity) {
             return keyOf(TestExtensibleEntityBase.class.getSimpleName(),
                     entity.getUuid().toString());
@@ -173,6 +189,168 @@ public class XStreamPersistenceTest {
                 lastModifiedExt2, TEXT1 + " is now updated", false);
     }
 
+    @Test
+    public void testLoadEntitiesParallel() throws Exception {
+        TestExtensibleEntityEntityService entityService =
+                new TestExtensibleEntityEntityService(CURRENT_MODEL_VERSION);
+        Map<String, Class<?>> aliases = getAliases();
+        Set<Converter> converters = getConverters();
+        Set<ClassLoader> entityClassLoaders = getTestExtensibleEntityBaseClassLodades();
+
+        TestXStreamPersistence xp = new TestXStreamPersistence();
+        for (int i = 0; i < 100; ++i) {
+            TestExtensibleEntityBase entity = new TestExtensibleEntityBase(UUID.randomUUID());
+            TestExtension ext = new TestExtension();
+            ext.setStr(TEXT1 + i);
+            entity.addExtension(ext);
+            xp.saveEntity(entityService, entity, USER0, aliases, converters);
+        }
+
+        xp.setLoadThreads(1);
+        List<TestExtensibleEntityBase> sequential = xp.loadEntities(entityService,
+                entityClassLoaders, null, aliases, converters);
+        xp.setLoadThreads(4);
+        List<TestExtensibleEntityBase> parallel = xp.loadEntities(entityService,
+                entityClassLoaders, null, aliases, converters);
+
+        assertEquals(100, sequential.size());
+        assertEquals(sequential.size(), parallel.size());
+        for (int i = 0; i < sequential.size(); ++i) {
+            TestExtensibleEntityBase expected = sequential.get(i);
+            TestExtensibleEntityBase actual = parallel.get(i);
+            assertEquals(expected.getUuid(), actual.getUuid());
+            assertEquals(USER0, actual.getLastModifiedBy());
+            assertEquals(expected.getExtension(TestExtension.class).getStr(),
+                    actual.getExtension(TestExtension.class).getStr());
+        }
+    }
+
+    @Test
+    public void testSaveUnchangedEntity() throws Exception {
+        TestExtensibleEntityBase entity = getExtensibleEntity();
+        entity.getExtension(TestExtension.class).setStr(TEXT1);
+        entity.getExtension(TestExtension.class).addItem(" ");
+        TestExtensibleEntityEntityService entityService =
+                new TestExtensibleEntityEntityService(CURRENT_MODEL_VERSION);
+        Map<String, Class<?>> aliases = getAliases();
+        Set<Converter> converters = getConverters();
+
+        TestXStreamPersistence xp = new TestXStreamPersistence();
+        xp.saveEntity(entityService, entity, USER0, aliases, converters);
+        Document savedDoc = xp.getDocumentFromHashMap(entity);
+        String lastModified = xp.getLastModifiedAttribute(savedDoc.getDocumentElement());
+        String lastModifiedExt1 = xp.getLastModifiedAttribute(xp.getExtensionsByAlias(savedDoc, aliases).get(ALIAS_EXT1));
+
+        // saving the same entity again must neither change the lastModified
+        // attributes nor the content of the stored document
+        Thread.sleep(10);
+        xp.saveEntity(entityService, entity, USER1, aliases, converters);
+        Document resavedDoc = xp.getDocumentFromHashMap(entity);
+        assertEquals(lastModified, xp.getLastModifiedAttribute(resavedDoc.getDocumentElement()));
+        assertEquals(USER0, xp.getLastModifiedByAttribute(resavedDoc.getDocumentElement()));
+        assertEquals(lastModifiedExt1, xp.getLastModifiedAttribute(xp.getExtensionsByAlias(resavedDoc, aliases).get(ALIAS_EXT1)));
+
+        TestExtensibleEntityBase loadedEntity = xp.loadEntity(entityService, entity.getUuid().toString(),
+                getTestExtensibleEntityBaseClassLodades(), null, aliases, converters);
+        TestExtension loadedExt = loadedEntity.getExtension(TestExtension.class);
+        assertEquals(TEXT1, loadedExt.getStr());
+        assertEquals(Collections.singletonList(" "), loadedExt.getItems());
+    }
+
+    @Test
+    public void testSaveWithContentHashes() throws Exception {
+        TestExtensibleEntityBase entity = getExtensibleEntity();
+        entity.getExtension(TestExtension.class).setStr(TEXT1);
+        TestExtensibleEntityEntityService entityService =
+                new TestExtensibleEntityEntityService(CURRENT_MODEL_VERSION);
+        Map<String, Class<?>> aliases = getAliases();
+        Set<Converter> converters = getConverters();
+        String category = TestExtensibleEntityBase.class.getSimpleName();
+        String key = entity.getUuid().toString();
+        final int[] reads = new int[1];
+        TestXStreamPersistence xp = new TestXStreamPersistence(new HashMapStorageService() {
+            @Override
+            public synchronized InputStream read(String category, String id) throws IOException {
+                ++reads[0];
+                return super.read(category, id);
+            }
+        });
+
+        xp.saveEntity(entityService, entity, USER0, aliases, converters);
+        assertEquals(1, reads[0]);
+        assertNotNull(xp.getContentHash(category, key));
+        Document savedDoc = xp.getDocumentFromHashMap(entity);
+        String lastModified = xp.getLastModifiedAttribute(savedDoc.getDocumentElement());
+        String lastModifiedExt2 = xp.getLastModifiedAttribute(
+                xp.getExtensionsByAlias(savedDoc, aliases).get(ALIAS_EXT2));
+
+        // unchanged entities are detected without reading the stored document
+        Thread.sleep(10);
+        xp.saveEntity(entityService, entity, USER1, aliases, converters);
+        assertEquals(1, reads[0]);
+        Document resavedDoc = xp.getDocumentFromHashMap(entity);
+        assertEquals(lastModified, xp.getLastModifiedAttribute(resavedDoc.getDocumentElement()));
+        assertEquals(USER0, xp.getLastModifiedByAttribute(resavedDoc.getDocumentElement()));
+
+        // changed extensions get new attributes, unchanged extensions keep theirs
+        entity.getExtension(TestExtension.class).setStr(MODIFIED_VALUE);
+        xp.saveEntity(entityService, entity, USER1, aliases, converters);
+        assertEquals(1, reads[0]);
+        Document changedDoc = xp.getDocumentFromHashMap(entity);
+        SortedMap<String, Element> extensions = xp.getExtensionsByAlias(changedDoc, aliases);
+        assertFalse(lastModified.equals(xp.getLastModifiedAttribute(changedDoc.getDocumentElement())));
+        assertEquals(USER1, xp.getLastModifiedByAttribute(changedDoc.getDocumentElement()));
+        assertEquals(USER1, xp.getLastModifiedByAttribute(extensions.get(ALIAS_EXT1)));
+        assertEquals(lastModifiedExt2, xp.getLastModifiedAttribute(extensions.get(ALIAS_EXT2)));
+        assertEquals(USER0, xp.getLastModifiedByAttribute(extensions.get(ALIAS_EXT2)));
+
+        // the content hashes of loaded entities are known, too
+        TestXStreamPersistence loadingXp = new TestXStreamPersistence((HashMapStorageService) xp.storageService);
+        loadingXp.loadEntities(entityService, getTestExtensibleEntityBaseClassLodades(), null, aliases, converters);
+        int readsBeforeSave = reads[0];
+        loadingXp.saveEntity(entityService, entity, USER0, aliases, converters);
+        assertEquals(readsBeforeSave, reads[0]);
+        assertEquals(USER1, xp.getLastModifiedByAttribute(xp.getDocumentFromHashMap(entity).getDocumentElement()));
+
+        // content hashes are replaced, if the entity has been changed in storage
+        byte[] changedBlob = XML_WITH_VERSION.getBytes("UTF-8");
+        ((HashMapStorageService) xp.storageService).asMap().put(keyOf(category, key), changedBlob);
+        loadingXp.loadChangedEntities(entityService, getTestExtensibleEntityBaseClassLodades(), null, aliases,
+                converters);
+        assertEquals(DigestUtils.md5Hex(changedBlob), loadingXp.getContentHash(category, key).getChecksum());
+    }
+
+    @Test
+    public void testEntityToDomToEntity() throws Exception {
+        TestExtensibleEntityBase entity = getExtensibleEntity();
+        entity.getExtension(TestExtension.class).setStr(TEXT1);
+        entity.getExtension(TestExtension.class).addItem("a");
+        entity.setParentEntityId(TestUUIDs.TEST_UUIDS[1]);
+
+        Document doc = XStreamPersistence.entityToDom(entity, getAliases(), getConverters());
+        assertNotNull(doc.getDocumentElement());
+        EntityBase result = XStreamPersistence.domToEntity(getTestExtensibleEntityBaseClassLodades(),
+                getAliases(), getConverters(), doc);
+        assertTrue(result instanceof TestExtensibleEntityBase);
+        TestExtensibleEntityBase loadedEntity = (TestExtensibleEntityBase) result;
+        assertEquals(entity.getUuid(), loadedEntity.getUuid());
+        assertEquals(entity.getParentEntityId(), loadedEntity.getParentEntityId());
+        assertEquals(TEXT1, loadedEntity.getExtension(TestExtension.class).getStr());
+        assertEquals(Collections.singletonList("a"), loadedEntity.getExtension(TestExtension.class).getItems());
+        assertNotNull(loadedEntity.getExtension(TestExtension1.class));
+    }
+
+    @Test
+    public void testRemoveIndentation() throws Exception {
+        Document doc = XMLUtils.documentFromString("<a>\n  <b> </b>\n  <c>x</c>\n  <d>\n    <e/>\n  </d>\n</a>");
+        XStreamPersistence.removeIndentation(doc.getDocumentElement());
+        Element a = doc.getDocumentElement();
+        assertEquals(3, a.getChildNodes().getLength());
+        assertEquals(" ", a.getChildNodes().item(0).getTextContent());
+        assertEquals("x", a.getChildNodes().item(1).getTextContent());
+        assertEquals(1, a.getChildNodes().item(2).getChildNodes().getLength());
+    }
+
     @Test
     public void testPreProcessXML() throws Exception {
         XStreamPersistence xp = new TestXStreamPersistence();
@@ -189,6 +367,163 @@ public class XStreamPersistenceTest {
         EasyMock.verify(mockMigration);
     }
 
+    @Test
+    public void testUpgradeEntity() throws Exception {
+        TestExtensibleEntityBase entity = getExtensibleEntity();
+        entity.getExtension(TestExtension.class).setStr(TEXT1);
+        Map<String, Class<?>> aliases = getAliases();
+        Set<Converter> converters = getConverters();
+        Set<ClassLoader> entityClassLoaders = getTestExtensibleEntityBaseClassLodades();
+        String key = entity.getUuid().toString();
+        String category = TestExtensibleEntityBase.class.getSimpleName();
+
+        // store the entity with the previous model version
+        TestXStreamPersistence xp = new TestXStreamPersistence();
+        xp.saveEntity(new TestExtensibleEntityEntityService(42), entity, USER0, aliases, converters);
+        Document savedDoc = xp.getDocumentFromHashMap(entity);
+        String lastModified = xp.getLastModifiedAttribute(savedDoc.getDocumentElement());
+
+        // the migration runs when the entity is loaded and once more when
+        // the entity is upgraded, but not when it is loaded again afterwards
+        TestExtensibleEntityEntityService entityService =
+                new TestExtensibleEntityEntityService(CURRENT_MODEL_VERSION);
+        DataMigration mockMigration = getMigrationMock();
+        mockMigration.migrate(EasyMock.isA(Document.class));
+        EasyMock.expectLastCall();
+        EasyMock.replay(mockMigration);
+        Set<DataMigration> migrations = Collections.singleton(mockMigration);
+        xp.loadEntities(entityService, entityClassLoaders, migrations, aliases, converters);
+        assertEquals(Collections.singleton(key), xp.getOutdatedKeys(category));
+
+        assertTrue(xp.upgradeEntity(entityService, key, migrations, aliases));
+        assertTrue(xp.getOutdatedKeys(category).isEmpty());
+        Document upgradedDoc = xp.getDocumentFromHashMap(entity);
+        assertEquals(CURRENT_MODEL_VERSION, xp.getVersionAttribute(upgradedDoc));
+        assertEquals(lastModified, xp.getLastModifiedAttribute(upgradedDoc.getDocumentElement()));
+        assertEquals(USER0, xp.getLastModifiedByAttribute(upgradedDoc.getDocumentElement()));
+
+        // upgraded entities are neither migrated nor upgraded again
+        assertFalse(xp.upgradeEntity(entityService, key, migrations, aliases));
+        List<TestExtensibleEntityBase> loadedEntities = xp.loadEntities(entityService,
+                entityClassLoaders, migrations, aliases, converters);
+        assertEquals(1, loadedEntities.size());
+        assertEquals(TEXT1, loadedEntities.get(0).getExtension(TestExtension.class).getStr());
+        assertEquals(lastModified, loadedEntities.get(0).getLastModified());
+        assertTrue(xp.getOutdatedKeys(category).isEmpty());
+        EasyMock.verify(mockMigration);
+    }
+
+    @Test
+    public void testUpgradeChangedEntity() throws Exception {
+        TestExtensibleEntityBase entity = getExtensibleEntity();
+        Map<String, Class<?>> aliases = getAliases();
+        Set<Converter> converters = getConverters();
+        String key = entity.getUuid().toString();
+        String category = TestExtensibleEntityBase.class.getSimpleName();
+
+        TestXStreamPersistence xp = new TestXStreamPersistence();
+        xp.saveEntity(new TestExtensibleEntityEntityService(42), entity, USER0, aliases, converters);
+        TestExtensibleEntityEntityService entityService =
+                new TestExtensibleEntityEntityService(CURRENT_MODEL_VERSION);
+        xp.loadEntities(entityService, getTestExtensibleEntityBaseClassLodades(), null, aliases, converters);
+        assertEquals(Collections.singleton(key), xp.getOutdatedKeys(category));
+
+        // another instance changed the blob in the meantime
+        byte[] changedBlob = XML_WITH_VERSION.getBytes("UTF-8");
+        ((HashMapStorageService) xp.storageService).asMap().put(keyOf(category, key), changedBlob);
+        assertFalse(xp.upgradeEntity(entityService, key, null, aliases));
+        assertTrue(xp.getOutdatedKeys(category).isEmpty());
+        assertEquals(XML_WITH_VERSION, new String(xp.getContentFromHashMap(entity), "UTF-8"));
+    }
+
+    @Test
+    public void testUpgradeEntities() throws Exception {
+        Map<String, Class<?>> aliases = getAliases();
+        Set<Converter> converters = getConverters();
+        Set<ClassLoader> entityClassLoaders = getTestExtensibleEntityBaseClassLodades();
+        String category = TestExtensibleEntityBase.class.getSimpleName();
+
+        TestXStreamPersistence xp = new TestXStreamPersistence();
+        TestExtensibleEntityEntityService oldEntityService = new TestExtensibleEntityEntityService(42);
+        TestExtensibleEntityEntityService entityService =
+                new TestExtensibleEntityEntityService(CURRENT_MODEL_VERSION);
+        TestExtensibleEntityBase[] entities = new TestExtensibleEntityBase[4];
+        for (int i = 0; i < entities.length; ++i) {
+            entities[i] = new TestExtensibleEntityBase(TestUUIDs.TEST_UUIDS[i]);
+            TestExtension ext = new TestExtension();
+            ext.setStr(TEXT1 + i);
+            entities[i].addExtension(ext);
+            xp.saveEntity(i == 0 ? entityService : oldEntityService, entities[i], USER0, aliases, converters);
+        }
+        // an outdated blob that does not match its key
+        HashMapStorageService storage = (HashMapStorageService) xp.storageService;
+        byte[] mismatch = storage.asMap().get(keyOf(category, TestUUIDs.TEST_UUIDS[3].toString()));
+        storage.asMap().put(keyOf(category, TestUUIDs.TEST_UUIDS[4].toString()), mismatch);
+
+        StorageUpgrade upgrade = xp.upgradeEntities(entityService, 2, entityClassLoaders, null,
+                aliases, converters);
+        assertEquals(category, upgrade.getCategory());
+        assertEquals(CURRENT_MODEL_VERSION, upgrade.getModelVersion());
+        assertEquals(5, upgrade.getTotal());
+        assertEquals(3, upgrade.getUpgraded());
+        assertEquals(1, upgrade.getUpToDate());
+        assertEquals(Collections.singleton(TestUUIDs.TEST_UUIDS[4].toString()), upgrade.getErrors().keySet());
+        assertTrue(Arrays.equals(mismatch, storage.asMap().get(keyOf(category, TestUUIDs.TEST_UUIDS[4].toString()))));
+
+        for (int i = 0; i < entities.length; ++i) {
+            Document doc = xp.getDocumentFromHashMap(entities[i]);
+            assertEquals(CURRENT_MODEL_VERSION, xp.getVersionAttribute(doc));
+            assertEquals(USER0, xp.getLastModifiedByAttribute(doc.getDocumentElement()));
+            TestExtensibleEntityBase loadedEntity = xp.loadEntity(entityService, entities[i].getUuid().toString(),
+                    entityClassLoaders, null, aliases, converters);
+            assertEquals(TEXT1 + i, loadedEntity.getExtension(TestExtension.class).getStr());
+        }
+    }
+
+    @Test
+    public void testUpgradeEntitiesSkipsConcurrentlySavedEntities() throws Exception {
+        Map<String, Class<?>> aliases = getAliases();
+        Set<Converter> converters = getConverters();
+        final String category = TestExtensibleEntityBase.class.getSimpleName();
+
+        TestXStreamPersistence xp = new TestXStreamPersistence();
+        TestExtensibleEntityEntityService oldEntityService = new TestExtensibleEntityEntityService(42);
+        TestExtensibleEntityEntityService entityService =
+                new TestExtensibleEntityEntityService(CURRENT_MODEL_VERSION);
+        for (int i = 0; i < 2; ++i) {
+            TestExtensibleEntityBase entity = new TestExtensibleEntityBase(TestUUIDs.TEST_UUIDS[i]);
+            entity.addExtension(new TestExtension());
+            xp.saveEntity(oldEntityService, entity, USER0, aliases, converters);
+        }
+
+        // an entity is saved after it has been read, but before the upgraded blobs are written
+        final StorageService storage = xp.storageService;
+        final String savedKey = TestUUIDs.TEST_UUIDS[1].toString();
+        final byte[] savedBlob = XML_WITH_VERSION.getBytes("UTF-8");
+        StripedLock locks = new StripedLock(4);
+        Lock sharedLock = new ReentrantLock() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void lock() {
+                try {
+                    storage.write(category, savedKey, new ByteArrayInputStream(savedBlob));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                super.lock();
+            }
+        };
+        StorageUpgrade upgrade = xp.upgradeEntities(entityService, 2, getTestExtensibleEntityBaseClassLodades(),
+                null, aliases, converters, locks, sharedLock);
+        assertEquals(2, upgrade.getTotal());
+        assertEquals(1, upgrade.getUpgraded());
+        assertTrue(upgrade.getErrors().isEmpty());
+        assertTrue(Arrays.equals(savedBlob, IOUtils.toByteArray(storage.read(category, savedKey))));
+        Document doc = XMLUtils.documentFromStream(storage.read(category, TestUUIDs.TEST_UUIDS[0].toString()));
+        assertEquals(CURRENT_MODEL_VERSION, xp.getVersionAttribute(doc));
+    }
+
     @Test
     public void testPostProcessEntity() throws Exception {
         Document doc = XMLUtils.documentFromString(XML_WITH_EXTENSIONS);
@@ -445,7 +780,24 @@ public class XStreamPersistenceTest {
             String[] expectedExtLastModified, String[] expectedExtLastModifiedBy) throws Exception {
         XStreamPersistence xp = new TestXStreamPersistence();
         Map<String, Class<?>> aliases = getAliases();
+
+        // the comparison of content hashes must yield the same attributes as the comparison of documents
+        Document newDocCopy = (Document) newDoc.cloneNode(true);
+        ContentHash oldContent = ContentHash.of(null, oldDoc, aliases);
         xp.postProcessXML(newDoc, oldDoc, aliases, userId, CURRENT_MODEL_VERSION);
+        assertPostProcessedAttributes(newDoc, expectedGlobalLastModified, expectedGlobalLastModifiedBy,
+                expectedAliases, expectedExtLastModified, expectedExtLastModifiedBy);
+        xp.postProcessXML(newDocCopy, ContentHash.of(null, newDocCopy, aliases), oldContent, aliases, userId,
+                CURRENT_MODEL_VERSION);
+        assertPostProcessedAttributes(newDocCopy, expectedGlobalLastModified, expectedGlobalLastModifiedBy,
+                expectedAliases, expectedExtLastModified, expectedExtLastModifiedBy);
+    }
+
+    private void assertPostProcessedAttributes(Document newDoc, String expectedGlobalLastModified,
+            String expectedGlobalLastModifiedBy, String[] expectedAliases, String[] expectedExtLastModified,
+            String[] expectedExtLastModifiedBy) throws Exception {
+        XStreamPersistence xp = new TestXStreamPersistence();
+        Map<String, Class<?>> aliases = getAliases();
         Element documentElement = newDoc.getDocumentElement();
         assertLastModifiedTime(expectedGlobalLastModified, xp.getLastModifiedAttribute(documentElement));
         assertEquals(expectedGlobalLastModifiedBy, xp.getLastModifiedByAttribute(documentElement));
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.skalli.core.storage.FileStorageComponent;
+import org.eclipse.skalli.core.storage.TemporaryFileStorage;
+import org.eclipse.skalli.services.extension.DataMigration;
+import org.eclipse.skalli.services.extension.DataMigrationBase;
+import org.eclipse.skalli.services.extension.MigrationException;
+import org.eclipse.skalli.services.persistence.StorageUpgrade;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.TestExtensibleEntityBase;
+import org.eclipse.skalli.testutil.TestExtensibleEntityEntityService;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Compares the time to load a synthetic storage directory with outdated entities
+ * before and after the outdated entities have been upgraded to the current model version,
+ * i.e. the startup time of an old installation with and without persisted migrations.
+ * Furthermore compares the offline upgrade of the storage with the migration of the
+ * entities while loading.
+ * <p>
+ * The number of generated entities can be changed with the system property
+ * <tt>skalli.benchmark.entities</tt>, the number of migration steps with
+ * <tt>skalli.benchmark.migrations</tt>.
+ */
+@SuppressWarnings("nls")
+public class XStreamPersistenceUpgradeBenchmark extends BenchmarkBase {
+
+    private static final int ENTITIES = getParameter("entities", 20000);
+    private static final int MIGRATIONS = getParameter("migrations", 10);
+    private static final int MODEL_VERSION = 43;
+    private static final String CATEGORY = TestExtensibleEntityBase.class.getSimpleName();
+
+    // touches every element of the document, like migrations renaming or moving elements do
+    private static class TestMigration extends DataMigrationBase {
+        public TestMigration(int fromVersion) {
+            super(TestExtensibleEntityBase.class, fromVersion);
+        }
+
+        @Override
+        public boolean handlesType(String entityClassName) {
+            return true;
+        }
+
+        @Override
+        public void migrate(Document doc) throws MigrationException {
+            NodeList elements = doc.getElementsByTagName("*");
+            for (int i = 0; i < elements.getLength(); ++i) {
+                Element element = (Element) elements.item(i);
+                element.setAttribute("migrated", Integer.toString(fromVersion));
+                element.removeAttribute("migrated");
+            }
+        }
+    }
+
+    private File storageBase;
+    private FileStorageComponent storageService;
+    private TestExtensibleEntityEntityService entityService;
+    private Set<DataMigration> migrations;
+
+    @Before
+    public void setUp() throws Exception {
+        storageBase = TestUtils.createTempDir("XStreamPersistenceUpgradeBenchmark");
+        storageService = new TemporaryFileStorage(storageBase);
+        entityService = new TestExtensibleEntityEntityService(MODEL_VERSION);
+        XStreamPersistenceLoadBenchmark.generateEntities(storageService,
+                new TestExtensibleEntityEntityService(MODEL_VERSION - MIGRATIONS), ENTITIES);
+        migrations = new HashSet<DataMigration>();
+        for (int i = MODEL_VERSION - MIGRATIONS; i < MODEL_VERSION; ++i) {
+            migrations.add(new TestMigration(i));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (storageBase != null) {
+            FileUtils.forceDelete(storageBase);
+        }
+    }
+
+    @Test
+    public void benchmarkUpgrade() throws Exception {
+        // warm up class loading and JIT
+        load(new XStreamPersistence(storageService));
+
+        XStreamPersistence xp = new XStreamPersistence(storageService);
+        long start = System.currentTimeMillis();
+        assertEquals(ENTITIES, load(xp).size());
+        long outdatedTime = System.currentTimeMillis() - start;
+        Set<String> outdatedKeys = xp.getOutdatedKeys(CATEGORY);
+        assertEquals(ENTITIES, outdatedKeys.size());
+
+        start = System.currentTimeMillis();
+        for (String key : outdatedKeys) {
+            xp.upgradeEntity(entityService, key, migrations, XStreamPersistenceLoadBenchmark.getAliases());
+        }
+        long upgradeTime = System.currentTimeMillis() - start;
+
+        // next start
+        xp = new XStreamPersistence(storageService);
+        start = System.currentTimeMillis();
+        assertEquals(ENTITIES, load(xp).size());
+        long upgradedTime = System.currentTimeMillis() - start;
+        assertEquals(0, xp.getOutdatedKeys(CATEGORY).size());
+
+        report(ENTITIES + " entities with " + MIGRATIONS + " pending migrations loaded in "
+                + outdatedTime + " ms, upgraded in " + upgradeTime + " ms, loaded after upgrade in "
+                + upgradedTime + " ms");
+    }
+
+    @Test
+    public void benchmarkOfflineUpgrade() throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        // warm up class loading and JIT
+        load(new XStreamPersistence(storageService));
+
+        XStreamPersistence xp = new XStreamPersistence(storageService);
+        xp.setLoadThreads(threads);
+        long start = System.currentTimeMillis();
+        assertEquals(ENTITIES, load(xp).size());
+        long bootTime = System.currentTimeMillis() - start;
+        assertEquals(ENTITIES, xp.getOutdatedKeys(CATEGORY).size());
+
+        StorageUpgrade upgrade = xp.upgradeEntities(entityService, threads,
+                XStreamPersistenceLoadBenchmark.getClassLoaders(), migrations,
+                XStreamPersistenceLoadBenchmark.getAliases(), XStreamPersistenceLoadBenchmark.getConverters());
+        assertEquals(ENTITIES, upgrade.getUpgraded());
+        assertEquals(0, upgrade.getErrors().size());
+
+        xp = new XStreamPersistence(storageService);
+        xp.setLoadThreads(threads);
+        start = System.currentTimeMillis();
+        assertEquals(ENTITIES, load(xp).size());
+        long upgradedBootTime = System.currentTimeMillis() - start;
+        assertEquals(0, xp.getOutdatedKeys(CATEGORY).size());
+
+        report(ENTITIES + " entities with " + MIGRATIONS + " pending migrations loaded with "
+                + threads + " worker threads in " + bootTime + " ms, upgraded offline with " + threads
+                + " threads in " + upgrade.getDuration() + " ms (" + upgrade.getThroughput()
+                + " entities/s including validation), loaded after upgrade in " + upgradedBootTime + " ms");
+    }
+
+    private List<TestExtensibleEntityBase> load(XStreamPersistence xp) throws Exception {
+        return xp.loadEntities(entityService, XStreamPersistenceLoadBenchmark.getClassLoaders(), migrations,
+                XStreamPersistenceLoadBenchmark.getAliases(), XStreamPersistenceLoadBenchmark.getConverters());
+    }
+}
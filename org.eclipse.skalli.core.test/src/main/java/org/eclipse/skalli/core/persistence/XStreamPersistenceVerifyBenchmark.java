@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.skalli.core.persistence.XStreamPersistenceComponent.Verification;
+import org.eclipse.skalli.core.storage.TemporaryFileStorage;
+import org.eclipse.skalli.services.entity.EntityService;
+import org.eclipse.skalli.services.extension.ExtensionService;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.BundleManager;
+import org.eclipse.skalli.testutil.TestExtensibleEntityBase;
+import org.eclipse.skalli.testutil.TestExtensibleEntityEntityService;
+import org.eclipse.skalli.testutil.TestExtensibleEntityExtensionService;
+import org.eclipse.skalli.testutil.TestExtension;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Compares the latency of persisting an entity with the different ways of verifying
+ * that the entity has been saved successfully.
+ * <p>
+ * The number of measured saves can be changed with the system property
+ * <tt>skalli.benchmark.iterations</tt>.
+ */
+@SuppressWarnings("nls")
+public class XStreamPersistenceVerifyBenchmark extends BenchmarkBase {
+
+    private static final int ITERATIONS = getParameter("iterations", 500);
+
+    private File tmpDir;
+    private List<ServiceRegistration<?>> serviceRegistrations = new ArrayList<ServiceRegistration<?>>();
+
+    @Before
+    public void setup() throws Exception {
+        serviceRegistrations.add(BundleManager.registerService(ExtensionService.class,
+                new TestExtensibleEntityExtensionService(), null));
+        serviceRegistrations.add(BundleManager.registerService(EntityService.class,
+                new TestExtensibleEntityEntityService(0), null));
+        tmpDir = TestUtils.createTempDir("XStreamPersistenceVerifyBenchmark");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (ServiceRegistration<?> serviceRegistration : serviceRegistrations) {
+            serviceRegistration.unregister();
+        }
+        if (tmpDir != null) {
+            FileUtils.forceDelete(tmpDir);
+        }
+    }
+
+    @Test
+    public void benchmarkPersist() throws Exception {
+        for (Verification verification : Verification.values()) {
+            XStreamPersistenceComponent persistenceService = new XStreamPersistenceComponent(
+                    new TemporaryFileStorage(new File(tmpDir, verification.name())));
+            persistenceService.setVerification(verification);
+            UUID uuid = UUID.randomUUID();
+            // warm up
+            for (int i = 0; i < ITERATIONS / 10; ++i) {
+                persistenceService.persist(TestExtensibleEntityBase.class, newEntity(uuid, i), "hugo");
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; ++i) {
+                persistenceService.persist(TestExtensibleEntityBase.class, newEntity(uuid, i), "hugo");
+            }
+            report(verification + ": " + (System.nanoTime() - start) / ITERATIONS / 1000L
+                    + " us per persist");
+        }
+    }
+
+    private TestExtensibleEntityBase newEntity(UUID uuid, int n) {
+        TestExtensibleEntityBase entity = new TestExtensibleEntityBase(uuid);
+        TestExtension extension = new TestExtension();
+        extension.setStr("value " + n);
+        for (int i = 0; i < 50; ++i) {
+            extension.addItem("item " + i);
+        }
+        entity.addExtension(extension);
+        return entity;
+    }
+}
@@ -187,6 +187,27 @@ public class BackupQueryTest {
         Assert.assertEquals(now, query.getTo());
     }
 
+    @Test
+    public void testSinceQuery() throws Exception {
+        long now = System.currentTimeMillis();
+        BackupQuery query = new BackupQuery(getParams("-2d", "-1d", null), now);
+        Assert.assertFalse(query.isIncremental());
+        Assert.assertEquals(-1L, query.getSince());
+
+        // incremental backups ignore the time range
+        Map<String, String> params = getParams("-2d", "-1d", null);
+        params.put(BackupQuery.PARAM_SINCE, "4711");
+        query = new BackupQuery(params, now);
+        Assert.assertTrue(query.isIncremental());
+        Assert.assertEquals(4711L, query.getSince());
+        Assert.assertEquals(0, query.getFrom());
+        Assert.assertEquals(0, query.getTo());
+
+        params.put(BackupQuery.PARAM_SINCE, "hugo");
+        query = new BackupQuery(params, now);
+        Assert.assertFalse(query.isIncremental());
+    }
+
     @Test
     public void testFromToNow() throws Exception {
         Calendar cal = Calendar.getInstance();
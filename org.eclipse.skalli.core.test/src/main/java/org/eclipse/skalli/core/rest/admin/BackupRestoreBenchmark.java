@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.rest.admin;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.skalli.commons.CollectionUtils;
+import org.eclipse.skalli.core.storage.FileStorageComponent;
+import org.eclipse.skalli.core.storage.TemporaryFileStorage;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.HashMapStorageService;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares restoring a generated backup into a file storage in a temporary directory
+ * sequentially, i.e. the way backups were restored before, with the restore pipeline
+ * of {@link BackupRestore} with one and with several writer threads. Each entity
+ * in the backup has one history entry.
+ * <p>
+ * The number of entities and threads can be changed with the system properties
+ * <tt>skalli.benchmark.entities</tt> and <tt>skalli.benchmark.threads</tt>.
+ */
+@SuppressWarnings("nls")
+public class BackupRestoreBenchmark extends BenchmarkBase {
+
+    private static final int ENTITIES = getParameter("entities", 20000);
+    private static final int THREADS = getParameter("threads", 4);
+    private static final int BATCH_SIZE = 100;
+
+    private static final Set<String> CATEGORIES = CollectionUtils.asSet("Project", "History");
+
+    private File storageBase;
+
+    @Before
+    public void setup() throws Exception {
+        storageBase = TestUtils.createTempDir("BackupRestoreBenchmark");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (storageBase != null) {
+            FileUtils.forceDelete(storageBase);
+        }
+    }
+
+    @Test
+    public void benchmarkRestore() throws Exception {
+        byte[] content = ("<project>" + StringUtils.repeat("x", 4096) + "</project>").getBytes("UTF-8");
+        HashMapStorageService source = new HashMapStorageService();
+        for (int i = 0; i < ENTITIES; ++i) {
+            String key = UUID.randomUUID().toString();
+            source.writeToArchive("Project", key, 1000L, new ByteArrayInputStream(content));
+            source.write("Project", key, new ByteArrayInputStream(content));
+        }
+
+        long start = System.currentTimeMillis();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ProjectBackupResource.ZipOutputRepresentation(source, CATEGORIES, 0L, 0L, null, null).write(out);
+        long backup = Math.max(1L, System.currentTimeMillis() - start);
+        byte[] zip = out.toByteArray();
+
+        FileStorageComponent storage = new TemporaryFileStorage(new File(storageBase, "sequential"));
+        start = System.currentTimeMillis();
+        restoreSequentially(storage, zip);
+        long sequential = Math.max(1L, System.currentTimeMillis() - start);
+        assertEquals(ENTITIES, storage.keys("Project").size());
+
+        long single = measure(new File(storageBase, "single"), zip, 1);
+        long parallel = measure(new File(storageBase, "parallel"), zip, THREADS);
+
+        report("backup of " + ENTITIES + " entities ("
+                + zip.length / 1024 + " KB) created in " + backup + " ms, restored in " + sequential
+                + " ms sequentially, in " + single + " ms with 1 thread (speedup "
+                + (sequential * 100 / single) / 100.0 + "), in " + parallel + " ms with " + THREADS
+                + " threads (speedup " + (sequential * 100 / parallel) / 100.0 + ")");
+    }
+
+    private long measure(File directory, byte[] zip, int threads) throws Exception {
+        FileStorageComponent storage = new TemporaryFileStorage(directory);
+        long start = System.currentTimeMillis();
+        BackupRestore restore = new BackupRestore(storage, threads, BATCH_SIZE);
+        assertTrue(restore.restore(new ByteArrayInputStream(zip), CATEGORIES));
+        long duration = Math.max(1L, System.currentTimeMillis() - start);
+        assertEquals(ENTITIES, restore.getCountItems());
+        assertEquals(ENTITIES, restore.getCountHistoryItems());
+        assertEquals(ENTITIES, storage.keys("Project").size());
+        return duration;
+    }
+
+    // decodes and stores the entries in the calling thread
+    private static void restoreSequentially(FileStorageComponent storage, byte[] zip) throws Exception {
+        Map<String, InputStream> batch = new HashMap<String, InputStream>();
+        ZipInputStream zipStream = new ZipInputStream(new ByteArrayInputStream(zip));
+        try {
+            ZipEntry entry = zipStream.getNextEntry();
+            while (entry != null) {
+                String name = StringUtils.substringBetween(entry.getName(), "/", ".xml");
+                String[] nameParts = StringUtils.split(name, '_');
+                if (nameParts.length == 1) {
+                    batch.put(name, new ByteArrayInputStream(IOUtils.toByteArray(zipStream)));
+                    if (batch.size() >= BATCH_SIZE) {
+                        storage.writeAll("Project", batch);
+                        batch.clear();
+                    }
+                } else {
+                    storage.writeToArchive("Project", nameParts[0], Long.parseLong(nameParts[1]), zipStream);
+                }
+                zipStream.closeEntry();
+                entry = zipStream.getNextEntry();
+            }
+            storage.writeAll("Project", batch);
+        } finally {
+            IOUtils.closeQuietly(zipStream);
+        }
+    }
+}
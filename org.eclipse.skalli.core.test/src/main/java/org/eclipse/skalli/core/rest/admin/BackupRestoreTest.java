@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.rest.admin;
+
+import static org.eclipse.skalli.testutil.StorageKey.keyOf;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.skalli.commons.CollectionUtils;
+import org.eclipse.skalli.core.storage.FileStorageComponent;
+import org.eclipse.skalli.core.storage.TemporaryFileStorage;
+import org.eclipse.skalli.services.persistence.StorageChange;
+import org.eclipse.skalli.services.persistence.StorageConsumer;
+import org.eclipse.skalli.services.persistence.StorageService;
+import org.eclipse.skalli.testutil.HashMapStorageService;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.Test;
+
+@SuppressWarnings("nls")
+public class BackupRestoreTest {
+
+    private static final int PROJECTS = 250;
+    private static final int HISTORY = 3;
+
+    private static class FailingStorageService extends HashMapStorageService {
+        @Override
+        public void writeAll(String category, Map<String, InputStream> blobs) throws IOException {
+            throw new IOException("failed to write " + category);
+        }
+    }
+
+    @Test
+    public void testBackupRestore() throws Exception {
+        HashMapStorageService source = createSource();
+        byte[] backup = backup(source, CollectionUtils.asSet("Project", "User", "History"));
+
+        HashMapStorageService destination = new HashMapStorageService();
+        BackupRestore restore = new BackupRestore(destination, 4, 10);
+        assertTrue(restore.restore(new ByteArrayInputStream(backup),
+                CollectionUtils.asSet("Project", "User", "History")));
+
+        assertEquals(PROJECTS + 1, restore.getCountItems());
+        assertEquals(PROJECTS * HISTORY, restore.getCountHistoryItems());
+        assertEquals(CollectionUtils.asSet("Project", "User"), restore.getRestoredCategories());
+        assertEquals(source.asMap().keySet(), destination.asMap().keySet());
+        for (String key : source.keys("Project")) {
+            assertArrayEquals(source.asMap().get(keyOf("Project", key)),
+                    destination.asMap().get(keyOf("Project", key)));
+            assertEquals(history(source, key), history(destination, key));
+        }
+    }
+
+    @Test
+    public void testRestoreWithoutHistory() throws Exception {
+        HashMapStorageService source = createSource();
+        byte[] backup = backup(source, CollectionUtils.asSet("Project", "User", "History"));
+
+        HashMapStorageService destination = new HashMapStorageService();
+        BackupRestore restore = new BackupRestore(destination, 2, 10);
+        assertTrue(restore.restore(new ByteArrayInputStream(backup), CollectionUtils.asSet("Project")));
+
+        assertEquals(PROJECTS, restore.getCountItems());
+        assertEquals(0, restore.getCountHistoryItems());
+        assertEquals(CollectionUtils.asSet("Project"), restore.getRestoredCategories());
+        assertEquals(PROJECTS, destination.keys("Project").size());
+        assertTrue(destination.keys("User").isEmpty());
+        for (String key : source.keys("Project")) {
+            assertTrue(history(destination, key).isEmpty());
+        }
+    }
+
+    @Test
+    public void testRestoreLongHistory() throws Exception {
+        HashMapStorageService source = new HashMapStorageService();
+        String key = UUID.randomUUID().toString();
+        for (int n = 0; n < 100; ++n) {
+            source.writeToArchive("Project", key, 1000L + n, toStream(key + ":" + n));
+        }
+        source.write("Project", key, toStream(key));
+        byte[] backup = backup(source, CollectionUtils.asSet("Project", "History"));
+
+        // the history is split between many batches, which still must be archived in order
+        HashMapStorageService destination = new HashMapStorageService();
+        BackupRestore restore = new BackupRestore(destination, 4, 3);
+        assertTrue(restore.restore(new ByteArrayInputStream(backup), CollectionUtils.asSet("Project", "History")));
+        assertEquals(100, restore.getCountHistoryItems());
+        assertEquals(history(source, key), history(destination, key));
+    }
+
+    @Test
+    public void testRestoreFailed() throws Exception {
+        byte[] backup = backup(createSource(), CollectionUtils.asSet("Project"));
+        BackupRestore restore = new BackupRestore(new FailingStorageService(), 2, 10);
+        assertFalse(restore.restore(new ByteArrayInputStream(backup), CollectionUtils.asSet("Project")));
+        assertEquals(0, restore.getCountItems());
+        assertTrue(restore.getRestoredCategories().isEmpty());
+    }
+
+    @Test
+    public void testIncrementalBackups() throws Exception {
+        File storageBase = TestUtils.createTempDir("BackupRestoreTest");
+        try {
+            FileStorageComponent source = new TemporaryFileStorage(storageBase);
+            Set<String> categories = CollectionUtils.asSet("Project", "User", "History");
+            List<String> keys = new ArrayList<String>();
+            for (int i = 0; i < 20; ++i) {
+                String key = UUID.randomUUID().toString();
+                source.write("Project", key, toStream(key + ":0"));
+                keys.add(key);
+            }
+            long sequence = source.getLastSequence();
+            byte[] full = backup(source, categories, -1L);
+
+            // modify some projects and add new ones
+            for (int i = 0; i < 5; ++i) {
+                update(source, keys.get(i), ":1");
+                String key = UUID.randomUUID().toString();
+                source.write("Project", key, toStream(key + ":0"));
+                keys.add(key);
+            }
+            long sequence1 = source.getLastSequence();
+            byte[] incremental1 = backup(source, categories, sequence);
+
+            // modify a project twice, another one once, and add a user
+            update(source, keys.get(0), ":2");
+            update(source, keys.get(0), ":3");
+            update(source, keys.get(10), ":1");
+            source.write("User", "homer", toStream("homer"));
+            byte[] incremental2 = backup(source, categories, sequence1);
+
+            assertEquals(21, countEntries(full));
+            assertEquals(16, countEntries(incremental1));
+            assertEquals(7, countEntries(incremental2));
+
+            HashMapStorageService destination = new HashMapStorageService();
+            BackupInfo previous = null;
+            for (byte[] backup : Arrays.asList(full, incremental1, incremental2)) {
+                BackupRestore restore = new BackupRestore(destination, 2, 3);
+                BackupInfo info = restore.open(new ByteArrayInputStream(backup));
+                assertTrue(previous == null ? !info.isIncremental() : info.continues(previous));
+                assertTrue(restore.restore(categories));
+                previous = BackupInfo.loadRestored(destination);
+                assertEquals(info.getSequence(), previous.getSequence());
+            }
+
+            for (String category : Arrays.asList("Project", "User")) {
+                assertEquals(new HashSet<String>(source.keys(category)),
+                        new HashSet<String>(destination.keys(category)));
+                for (String key : source.keys(category)) {
+                    assertEquals(IOUtils.toString(source.read(category, key), "UTF-8"),
+                            IOUtils.toString(destination.read(category, key), "UTF-8"));
+                    assertEquals(history(source, category, key), history(destination, category, key));
+                }
+            }
+
+            // incrementals must be restored in order
+            BackupRestore restore = new BackupRestore(new HashMapStorageService(), 2, 3);
+            BackupInfo info = restore.open(new ByteArrayInputStream(incremental2));
+            restore.close();
+            assertFalse(info.continues(BackupInfo.read(new ByteArrayInputStream(propertiesOf(full)))));
+        } finally {
+            FileUtils.forceDelete(storageBase);
+        }
+    }
+
+    private static void update(StorageService storageService, String key, String suffix) throws Exception {
+        storageService.archive("Project", key);
+        storageService.write("Project", key, toStream(key + suffix));
+    }
+
+    private static HashMapStorageService createSource() throws Exception {
+        HashMapStorageService source = new HashMapStorageService();
+        for (int i = 0; i < PROJECTS; ++i) {
+            String key = UUID.randomUUID().toString();
+            for (int n = 0; n < HISTORY; ++n) {
+                source.writeToArchive("Project", key, 1000L + n, toStream(key + ":" + n));
+            }
+            source.write("Project", key, toStream(key));
+        }
+        source.write("User", "homer", toStream("homer"));
+        return source;
+    }
+
+    // creates a backup the way ProjectBackupResource does
+    private static byte[] backup(FileStorageComponent storageService, Set<String> categories, long since)
+            throws Exception {
+        BackupInfo info = new BackupInfo(since, storageService.getLastSequence());
+        List<StorageChange> changes = since >= 0 ? storageService.getChanges(since) : null;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ProjectBackupResource.ZipOutputRepresentation(storageService, categories, 0L, 0L, info, changes)
+                .write(out);
+        return out.toByteArray();
+    }
+
+    private static int countEntries(byte[] backup) throws Exception {
+        int count = 0;
+        ZipInputStream zipStream = new ZipInputStream(new ByteArrayInputStream(backup));
+        try {
+            for (ZipEntry entry = zipStream.getNextEntry(); entry != null; entry = zipStream.getNextEntry()) {
+                ++count;
+            }
+        } finally {
+            zipStream.close();
+        }
+        return count;
+    }
+
+    private static byte[] propertiesOf(byte[] backup) throws Exception {
+        ZipInputStream zipStream = new ZipInputStream(new ByteArrayInputStream(backup));
+        try {
+            ZipEntry entry = zipStream.getNextEntry();
+            assertEquals(BackupInfo.ENTRY_NAME, entry.getName());
+            return IOUtils.toByteArray(zipStream);
+        } finally {
+            zipStream.close();
+        }
+    }
+
+    private static byte[] backup(StorageService storageService, Set<String> categories) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ProjectBackupResource.ZipOutputRepresentation(storageService, categories, 0L, 0L, null, null).write(out);
+        return out.toByteArray();
+    }
+
+    private static List<String> history(StorageService storageService, String key) throws Exception {
+        return history(storageService, "Project", key);
+    }
+
+    private static List<String> history(StorageService storageService, String category, String key)
+            throws Exception {
+        final List<String> history = new ArrayList<String>();
+        storageService.readFromArchive(category, key, new StorageConsumer() {
+            @Override
+            public void consume(String category, String key, long lastModified, InputStream blob)
+                    throws IOException {
+                history.add(lastModified + ":" + IOUtils.toString(blob, "UTF-8"));
+            }
+        });
+        return history;
+    }
+
+    private static InputStream toStream(String s) throws Exception {
+        return new ByteArrayInputStream(s.getBytes("UTF-8"));
+    }
+}
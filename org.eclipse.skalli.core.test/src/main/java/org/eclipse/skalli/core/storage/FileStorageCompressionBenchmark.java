@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.skalli.core.storage.FileStorageComponent.SyncMode;
+import org.eclipse.skalli.services.persistence.StorageConsumer;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the disk usage and the time to read all entities of a generated data set
+ * for uncompressed and compressed entity files.
+ * <p>
+ * The page cache is dropped before reading, if the benchmark runs as root on Linux,
+ * so that the read times reflect a startup with a cold cache. Otherwise the read times
+ * are measured with a warm cache, which is reported in the output.
+ * <p>
+ * The number of entities can be changed with the system property
+ * <tt>skalli.benchmark.entities</tt>.
+ */
+@SuppressWarnings("nls")
+public class FileStorageCompressionBenchmark extends BenchmarkBase {
+
+    private static final int ENTITIES = getParameter("entities", 20000);
+    private static final int BATCH_SIZE = 100;
+
+    // typical allocation unit of file systems
+    private static final long BLOCK_SIZE = 4096L;
+
+    private File storageBase;
+
+    @Before
+    public void setup() throws Exception {
+        storageBase = TestUtils.createTempDir("FileStorageCompressionBenchmark");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (storageBase != null) {
+            FileUtils.forceDelete(storageBase);
+        }
+    }
+
+    @Test
+    public void benchmarkCompression() throws Exception {
+        for (boolean compress : new boolean[] { false, true }) {
+            String name = compress ? "compressed" : "plain";
+            FileStorageComponent storage = new FileStorageComponent(new File(storageBase, name), SyncMode.NONE, 0L);
+            storage.setCompress(compress);
+            Random random = new Random(4711);
+            Map<String, InputStream> batch = new HashMap<String, InputStream>();
+            for (int i = 0; i < ENTITIES; ++i) {
+                batch.put(UUID.randomUUID().toString(), IOUtils.toInputStream(newEntity(random), "UTF-8"));
+                if (batch.size() == BATCH_SIZE) {
+                    storage.writeAll("project", batch);
+                    batch.clear();
+                }
+            }
+            storage.writeAll("project", batch);
+
+            long size = 0L;
+            long allocated = 0L;
+            @SuppressWarnings("unchecked")
+            Collection<File> files = FileUtils.listFiles(new File(storageBase, name + "/project"),
+                    new String[] { "xml" }, false);
+            for (File file : files) {
+                size += file.length();
+                allocated += (file.length() + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            }
+
+            boolean cold = dropPageCache();
+            final long[] bytes = new long[1];
+            long start = System.currentTimeMillis();
+            storage.readAll("project", new StorageConsumer() {
+                @Override
+                public void consume(String category, String key, long lastModified, InputStream blob)
+                        throws IOException {
+                    bytes[0] += IOUtils.toByteArray(blob).length;
+                }
+            });
+            long read = System.currentTimeMillis() - start;
+
+            Assert.assertEquals(ENTITIES, files.size());
+            report(name + ": " + ENTITIES + " entities, " + size / 1024L + " KB ("
+                    + allocated / 1024L + " KB allocated), reading " + bytes[0] / 1024L + " KB of content took "
+                    + read + " ms with " + (cold ? "cold" : "warm") + " cache");
+        }
+    }
+
+    private static boolean dropPageCache() {
+        File dropCaches = new File("/proc/sys/vm/drop_caches");
+        if (!dropCaches.canWrite()) {
+            return false;
+        }
+        FileOutputStream out = null;
+        try {
+            Runtime.getRuntime().exec("sync").waitFor();
+            out = new FileOutputStream(dropCaches);
+            out.write('3');
+            out.close();
+            return true;
+        } catch (Exception e) {
+            return false;
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    // generates an entity resembling a project with a varying number of members and extensions
+    private static String newEntity(Random random) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<entity-project version=\"42\" modifiedBy=\"homer\"");
+        sb.append(" lastModified=\"2014-03-17T10:42:00.000+01:00\">");
+        sb.append("<uuid>").append(UUID.randomUUID()).append("</uuid>");
+        sb.append("<deleted>false</deleted>");
+        sb.append("<parentEntityId>").append(UUID.randomUUID()).append("</parentEntityId>");
+        sb.append("<projectId>technology.skalli.project").append(random.nextInt(100000)).append("</projectId>");
+        sb.append("<name>Project ").append(random.nextInt(100000)).append("</name>");
+        sb.append("<description>");
+        for (int i = 0; i < 20 + random.nextInt(200); ++i) {
+            sb.append("word").append(random.nextInt(500)).append(' ');
+        }
+        sb.append("</description><extensions>");
+        for (int i = 0; i < 3 + random.nextInt(8); ++i) {
+            sb.append("<entry><string>org.eclipse.skalli.model.ext.Extension").append(i).append("</string>");
+            sb.append("<extension inherited=\"false\"><uuid>").append(UUID.randomUUID()).append("</uuid>");
+            for (int j = 0; j < random.nextInt(10); ++j) {
+                sb.append("<member><userID>user").append(random.nextInt(1000)).append("</userID></member>");
+            }
+            sb.append("<url>https://git.example.org/r/project").append(random.nextInt(100000)).append(".git</url>");
+            sb.append("</extension></entry>");
+        }
+        sb.append("</extensions></entity-project>");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.skalli.core.storage.FileStorageComponent.SyncMode;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that writes of the file storage never leave partially written entities behind.
+ * <p>
+ * A writer thread is frozen at various points in the middle of a write, and the state
+ * of the storage directory is inspected, i.e. exactly the state a crash of the process
+ * at that moment would leave behind. Then the storage is "restarted" by creating
+ * a new storage component on the same directory.
+ */
+@SuppressWarnings("nls")
+public class FileStorageCrashTest {
+
+    private static final String CATEGORY = "crash";
+    private static final String KEY = "5856b08a-0f87-4d91-b007-ac367ced247d";
+    private static final int SIZE = 256 * 1024;
+
+    private File storageBase;
+    private byte[] oldContent;
+    private byte[] newContent;
+
+    @Before
+    public void setup() throws Exception {
+        storageBase = TestUtils.createTempDir("FileStorageCrashTest");
+        oldContent = new byte[SIZE];
+        Arrays.fill(oldContent, (byte) 'a');
+        newContent = new byte[SIZE];
+        Arrays.fill(newContent, (byte) 'b');
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (storageBase != null) {
+            FileUtils.forceDelete(storageBase);
+        }
+    }
+
+    @Test
+    public void testKillDuringWrite() throws Exception {
+        for (SyncMode syncMode : SyncMode.values()) {
+            for (int killAt : new int[] { 0, 1, SIZE / 2, SIZE - 1, SIZE }) {
+                assertNoTornFiles(syncMode, killAt);
+            }
+        }
+    }
+
+    @Test
+    public void testKillDuringReplace() throws Exception {
+        FileStorageComponent storage = new FileStorageComponent(storageBase, SyncMode.GROUP, 0L);
+        storage.write(CATEGORY, KEY, new ByteArrayInputStream(oldContent));
+        File dir = new File(storageBase, CATEGORY);
+        File file = new File(dir, KEY + ".xml");
+        File newFile = new File(dir, KEY + ".xml.new");
+
+        // on platforms that cannot rename over existing files, the completely written
+        // file is marked as new before the old file is deleted; a crash before the deletion...
+        FileUtils.writeByteArrayToFile(newFile, newContent);
+        FileStorageComponent restarted = new FileStorageComponent(storageBase, SyncMode.GROUP, 0L);
+        restarted.recoverInterruptedWrites();
+        assertContent(restarted, newContent);
+        Assert.assertEquals(1, dir.list().length);
+
+        // ...or between the deletion and the final rename must not lose the entity
+        FileUtils.writeByteArrayToFile(newFile, oldContent);
+        Assert.assertTrue(file.delete());
+        restarted = new FileStorageComponent(storageBase, SyncMode.GROUP, 0L);
+        restarted.recoverInterruptedWrites();
+        assertContent(restarted, oldContent);
+        Assert.assertEquals(Arrays.asList(KEY), restarted.keys(CATEGORY));
+        Assert.assertEquals(1, dir.list().length);
+    }
+
+    @Test
+    public void testDeleteOnlyOwnTemporaryFiles() throws Exception {
+        FileStorageComponent storage = new FileStorageComponent(storageBase, SyncMode.GROUP, 0L);
+        storage.write(CATEGORY, KEY, new ByteArrayInputStream(oldContent));
+        File dir = new File(storageBase, CATEGORY);
+        FileUtils.writeByteArrayToFile(new File(dir, KEY + ".1234567890.tmp"), newContent);
+        File foreignFile = new File(dir, "foreign.tmp");
+        FileUtils.writeByteArrayToFile(foreignFile, newContent);
+        File nestedFile = new File(dir, "nested/" + KEY + ".1234567890.tmp");
+        FileUtils.writeByteArrayToFile(nestedFile, newContent);
+
+        storage.recoverInterruptedWrites();
+        assertContent(storage, oldContent);
+        Assert.assertTrue(foreignFile.exists());
+        Assert.assertTrue(nestedFile.exists());
+        Assert.assertEquals(3, dir.list().length);
+    }
+
+    @Test
+    public void testFailedWrite() throws Exception {
+        FileStorageComponent storage = new FileStorageComponent(storageBase, SyncMode.GROUP, 0L);
+        storage.write(CATEGORY, KEY, new ByteArrayInputStream(oldContent));
+        try {
+            storage.write(CATEGORY, KEY, new FailingInputStream(newContent, SIZE / 2));
+            Assert.fail("IOException expected");
+        } catch (IOException e) {
+            // expected
+        }
+        assertContent(storage, oldContent);
+        Assert.assertEquals(1, new File(storageBase, CATEGORY).list().length);
+    }
+
+    @Test
+    public void testFailedBatchWrite() throws Exception {
+        FileStorageComponent storage = new FileStorageComponent(storageBase, SyncMode.GROUP, 0L);
+        storage.write(CATEGORY, KEY, new ByteArrayInputStream(oldContent));
+        Map<String, InputStream> blobs = new LinkedHashMap<String, InputStream>();
+        blobs.put("other", new ByteArrayInputStream(newContent));
+        blobs.put(KEY, new FailingInputStream(newContent, SIZE / 2));
+        try {
+            storage.writeAll(CATEGORY, blobs);
+            Assert.fail("IOException expected");
+        } catch (IOException e) {
+            // expected
+        }
+        assertContent(storage, oldContent);
+        Assert.assertEquals(Arrays.asList(KEY), storage.keys(CATEGORY));
+        Assert.assertEquals(1, new File(storageBase, CATEGORY).list().length);
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        final FileStorageComponent storage = new FileStorageComponent(storageBase, SyncMode.GROUP, 1L);
+        Thread[] threads = new Thread[8];
+        final IOException[] failures = new IOException[threads.length];
+        for (int i = 0; i < threads.length; ++i) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 10; ++j) {
+                            byte[] content = n % 2 == 0 ? oldContent : newContent;
+                            storage.write(CATEGORY, KEY, new ByteArrayInputStream(content));
+                        }
+                    } catch (IOException e) {
+                        failures[n] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (IOException failure : failures) {
+            Assert.assertNull(failure);
+        }
+        byte[] content = IOUtils.toByteArray(storage.read(CATEGORY, KEY));
+        Assert.assertTrue(Arrays.equals(oldContent, content) || Arrays.equals(newContent, content));
+        Assert.assertEquals(1, new File(storageBase, CATEGORY).list().length);
+    }
+
+    private void assertNoTornFiles(SyncMode syncMode, int killAt) throws Exception {
+        final FileStorageComponent storage = new FileStorageComponent(storageBase, syncMode, 0L);
+        storage.write(CATEGORY, KEY, new ByteArrayInputStream(oldContent));
+
+        final BlockingInputStream blob = new BlockingInputStream(newContent, killAt);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    storage.write(CATEGORY, KEY, blob);
+                } catch (IOException e) {
+                    // expected, since the stream is aborted below
+                }
+            }
+        };
+        writer.start();
+        Assert.assertTrue(blob.blocked.await(10, TimeUnit.SECONDS));
+
+        // this is what a crash would leave behind: the old content must still be there
+        FileStorageComponent restarted = new FileStorageComponent(storageBase, syncMode, 0L);
+        assertContent(restarted, oldContent);
+        Assert.assertEquals(Arrays.asList(KEY), restarted.keys(CATEGORY));
+
+        // the restarted storage removes the remains of the interrupted write
+        restarted.recoverInterruptedWrites();
+        Assert.assertEquals(1, new File(storageBase, CATEGORY).list().length);
+        assertContent(restarted, oldContent);
+
+        blob.abort.countDown();
+        writer.join();
+    }
+
+    private void assertContent(FileStorageComponent storage, byte[] expected) throws Exception {
+        InputStream in = storage.read(CATEGORY, KEY);
+        try {
+            Assert.assertTrue(Arrays.equals(expected, IOUtils.toByteArray(in)));
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Delivers the given content up to a certain position, then blocks until
+     * aborted and fails.
+     */
+    private static class BlockingInputStream extends InputStream {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch abort = new CountDownLatch(1);
+        private final byte[] content;
+        private final int blockAt;
+        private int pos;
+
+        BlockingInputStream(byte[] content, int blockAt) {
+            this.content = content;
+            this.blockAt = blockAt;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos == blockAt) {
+                blocked.countDown();
+                try {
+                    abort.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("killed");
+            }
+            int n = Math.min(len, blockAt - pos);
+            System.arraycopy(content, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    private static class FailingInputStream extends InputStream {
+        private final byte[] content;
+        private final int failAt;
+        private int pos;
+
+        FailingInputStream(byte[] content, int failAt) {
+            this.content = content;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos >= failAt) {
+                throw new IOException("failed");
+            }
+            return content[pos++] & 0xff;
+        }
+    }
+}
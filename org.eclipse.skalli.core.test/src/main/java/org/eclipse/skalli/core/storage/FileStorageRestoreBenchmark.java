@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.skalli.core.storage.FileStorageComponent.SyncMode;
+import org.eclipse.skalli.services.persistence.StorageService;
+import org.eclipse.skalli.testutil.StorageServiceBenchmarkBase;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Compares restoring entities into a temporary directory with single and with batch writes.
+ */
+@SuppressWarnings("nls")
+public class FileStorageRestoreBenchmark extends StorageServiceBenchmarkBase {
+
+    private File storageBase;
+
+    @Before
+    public void setup() throws Exception {
+        storageBase = TestUtils.createTempDir("FileStorageRestoreBenchmark");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (storageBase != null) {
+            FileUtils.forceDelete(storageBase);
+        }
+    }
+
+    @Override
+    protected StorageService getStorageService() throws Exception {
+        return new FileStorageComponent(storageBase, SyncMode.GROUP, 0L);
+    }
+}
@@ -11,13 +11,28 @@
 package org.eclipse.skalli.core.storage;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.skalli.services.persistence.StorageChange;
+import org.eclipse.skalli.services.persistence.StorageConsumer;
 import org.eclipse.skalli.services.persistence.StorageService;
 import org.eclipse.skalli.testutil.StorageServiceTestBase;
 import org.eclipse.skalli.testutil.TestUtils;
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Test;
 
 @SuppressWarnings("nls")
 public class FileStorageServiceTest extends StorageServiceTestBase {
@@ -41,4 +56,148 @@ public class FileStorageServiceTest extends StorageServiceTestBase {
         return new FileStorageComponent(storageBase);
     }
 
+    @Test
+    public void testCompactArchive() throws Exception {
+        FileStorageComponent storage = new FileStorageComponent(storageBase);
+        Assert.assertEquals(0, storage.compactArchive("unknown", 1, 0L, true));
+        for (int i = 0; i < 5; ++i) {
+            storage.writeToArchive("compact", "a", i, IOUtils.toInputStream("content " + i / 2));
+        }
+        Assert.assertEquals(3, storage.compactArchive("compact", 2, 0L, true));
+
+        final List<String> contents = new ArrayList<String>();
+        new FileStorageComponent(storageBase).readFromArchive("compact", "a", new StorageConsumer() {
+            @Override
+            public void consume(String category, String key, long lastModified, InputStream blob)
+                    throws IOException {
+                contents.add(IOUtils.toString(blob));
+            }
+        });
+        Assert.assertEquals(Arrays.asList("content 1", "content 2"), contents);
+    }
+
+    @Test
+    public void testCompressedFiles() throws Exception {
+        String content = "<entity>" + StringUtils.repeat("<item>some repeated text</item>", 100) + "</entity>";
+        FileStorageComponent storage = new FileStorageComponent(storageBase);
+        storage.write("compressed", "plain", IOUtils.toInputStream(content, "UTF-8"));
+        storage.setCompress(true);
+        storage.write("compressed", "gzipped", IOUtils.toInputStream(content, "UTF-8"));
+        Map<String, InputStream> blobs = new LinkedHashMap<String, InputStream>();
+        blobs.put("batch", IOUtils.toInputStream(content, "UTF-8"));
+        storage.writeAll("compressed", blobs);
+
+        File plainFile = new File(storageBase, "compressed/plain.xml");
+        File gzippedFile = new File(storageBase, "compressed/gzipped.xml");
+        Assert.assertEquals(content, FileUtils.readFileToString(plainFile, "UTF-8"));
+        byte[] gzipped = FileUtils.readFileToByteArray(gzippedFile);
+        Assert.assertEquals(0x1f, gzipped[0] & 0xff);
+        Assert.assertEquals(0x8b, gzipped[1] & 0xff);
+        Assert.assertTrue(gzipped.length * 10 < content.length());
+        Assert.assertEquals(gzipped.length, new File(storageBase, "compressed/batch.xml").length());
+
+        // compressed and uncompressed files are read the same way, regardless of the setting
+        for (boolean compress : new boolean[] { true, false }) {
+            storage.setCompress(compress);
+            final Map<String, String> contents = new LinkedHashMap<String, String>();
+            storage.readAll("compressed", new StorageConsumer() {
+                @Override
+                public void consume(String category, String key, long lastModified, InputStream blob)
+                        throws IOException {
+                    contents.put(key, IOUtils.toString(blob, "UTF-8"));
+                }
+            });
+            Assert.assertEquals(3, contents.size());
+            for (String key : Arrays.asList("plain", "gzipped", "batch")) {
+                Assert.assertEquals(content, contents.get(key));
+                Assert.assertEquals(content, IOUtils.toString(storage.read("compressed", key), "UTF-8"));
+            }
+        }
+
+        // the history and the journal record the uncompressed content
+        storage.archive("compressed", "gzipped");
+        final List<String> archived = new ArrayList<String>();
+        storage.readFromArchive("compressed", "gzipped", new StorageConsumer() {
+            @Override
+            public void consume(String category, String key, long lastModified, InputStream blob)
+                    throws IOException {
+                archived.add(IOUtils.toString(blob, "UTF-8"));
+            }
+        });
+        Assert.assertEquals(Arrays.asList(content), archived);
+        for (StorageChange change : storage.getChanges(0L)) {
+            Assert.assertEquals(DigestUtils.md5Hex(content), change.getDigest());
+        }
+    }
+
+    @Test
+    public void testJournal() throws Exception {
+        FileStorageComponent storage = new FileStorageComponent(storageBase);
+        Assert.assertEquals(0L, storage.getLastSequence());
+        Assert.assertTrue(storage.getChanges(0L).isEmpty());
+
+        storage.write("journal", "a", IOUtils.toInputStream("content a"));
+        long sequence = storage.getLastSequence();
+        storage.archive("journal", "a");
+        Map<String, InputStream> blobs = new LinkedHashMap<String, InputStream>();
+        blobs.put("b", IOUtils.toInputStream("content b"));
+        blobs.put("c", IOUtils.toInputStream("content c"));
+        storage.writeAll("journal", blobs);
+
+        // another instance on the same directory sees the same journal
+        List<StorageChange> changes = new FileStorageComponent(storageBase).getChanges(sequence);
+        Assert.assertEquals(3, changes.size());
+        assertChange(StorageChange.Type.ARCHIVE, "a", "content a", changes.get(0));
+        assertChange(StorageChange.Type.WRITE, "b", "content b", changes.get(1));
+        assertChange(StorageChange.Type.WRITE, "c", "content c", changes.get(2));
+        Assert.assertTrue(changes.get(0).getSequence() > sequence);
+        Assert.assertTrue(changes.get(1).getSequence() > changes.get(0).getSequence());
+        Assert.assertEquals(storage.getLastSequence(), changes.get(2).getSequence());
+
+        Assert.assertEquals(4, storage.getChanges(0L).size());
+        Assert.assertTrue(storage.getChanges(storage.getLastSequence()).isEmpty());
+        Assert.assertNull(storage.getChanges(storage.getLastSequence() + 1L));
+        Assert.assertNull(storage.getChanges(sequence - 1L));
+    }
+
+    @Test
+    public void testPruneJournal() throws Exception {
+        ChangeJournal journal = new ChangeJournal(storageBase, 1024L);
+        List<Long> sequences = new ArrayList<Long>();
+        for (int i = 0; i < 100; ++i) {
+            long sequence = journal.append(StorageChange.Type.WRITE, "journal",
+                    Collections.singletonMap("key" + i, DigestUtils.md5Hex("content " + i)));
+            if (i > 0) {
+                Assert.assertTrue(sequence > sequences.get(i - 1));
+            }
+            sequences.add(sequence);
+            Assert.assertEquals(sequence, journal.getLastSequence());
+        }
+        Assert.assertTrue(new File(storageBase, ChangeJournal.JOURNAL_FILE).length() <= 1024L);
+
+        // the oldest changes have been pruned
+        Assert.assertNull(journal.getChanges(0L));
+        Assert.assertNull(journal.getChanges(sequences.get(50)));
+
+        // the sequence numbers of the retained changes are unchanged, also for other instances
+        ChangeJournal other = new ChangeJournal(storageBase, 1024L);
+        Assert.assertEquals(sequences.get(99).longValue(), other.getLastSequence());
+        List<StorageChange> changes = other.getChanges(sequences.get(95));
+        Assert.assertEquals(4, changes.size());
+        for (int i = 0; i < 4; ++i) {
+            Assert.assertEquals("key" + (96 + i), changes.get(i).getKey());
+            Assert.assertEquals(sequences.get(96 + i).longValue(), changes.get(i).getSequence());
+            Assert.assertEquals(DigestUtils.md5Hex("content " + (96 + i)), changes.get(i).getDigest());
+        }
+        Assert.assertTrue(other.getChanges(sequences.get(99)).isEmpty());
+        Assert.assertNull(other.getChanges(sequences.get(95) + 1L));
+        Assert.assertNull(other.getChanges(sequences.get(99) + 1L));
+    }
+
+    private static void assertChange(StorageChange.Type type, String key, String content, StorageChange change) {
+        Assert.assertEquals(type, change.getType());
+        Assert.assertEquals("journal", change.getCategory());
+        Assert.assertEquals(key, change.getKey());
+        Assert.assertEquals(DigestUtils.md5Hex(content), change.getDigest());
+    }
 }
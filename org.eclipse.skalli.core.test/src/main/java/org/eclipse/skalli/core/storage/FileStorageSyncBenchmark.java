@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.skalli.core.storage.FileStorageComponent.SyncMode;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the write throughput of the file storage without explicit synchronization,
+ * with synchronization of each individual write, and with group commit.
+ * <p>
+ * The number of writes per thread can be changed with the system property
+ * <tt>skalli.benchmark.iterations</tt>, the number of concurrent writers with
+ * <tt>skalli.benchmark.threads</tt>, and the group commit window in milliseconds with
+ * <tt>skalli.benchmark.syncWindow</tt>.
+ */
+@SuppressWarnings("nls")
+public class FileStorageSyncBenchmark extends BenchmarkBase {
+
+    private static final int ITERATIONS = getParameter("iterations", 100);
+    private static final int THREADS = getParameter("threads", 16);
+    private static final long SYNC_WINDOW = getParameter("syncWindow", 0L);
+
+    private File tmpDir;
+    private byte[] content;
+
+    @Before
+    public void setup() throws Exception {
+        tmpDir = TestUtils.createTempDir("FileStorageSyncBenchmark");
+        content = ("<entity>" + StringUtils.repeat("x", 4096) + "</entity>").getBytes("UTF-8");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (tmpDir != null) {
+            FileUtils.forceDelete(tmpDir);
+        }
+    }
+
+    @Test
+    public void benchmarkWrite() throws Exception {
+        for (SyncMode syncMode : SyncMode.values()) {
+            for (int threads : new int[] { 1, THREADS }) {
+                File storageBase = new File(tmpDir, syncMode.name() + threads);
+                long millis = measure(new FileStorageComponent(storageBase, syncMode, SYNC_WINDOW), threads);
+                report(syncMode + ", " + threads + " threads: " + (threads * ITERATIONS * 1000L / millis)
+                        + " writes/s");
+            }
+        }
+    }
+
+    private long measure(final FileStorageComponent storage, int threads) throws Exception {
+        final String category = "benchmark";
+        final String[] keys = new String[ITERATIONS];
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = UUID.randomUUID().toString();
+        }
+        Thread[] writers = new Thread[threads];
+        final IOException[] failures = new IOException[threads];
+        for (int i = 0; i < threads; ++i) {
+            final int n = i;
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (String key : keys) {
+                            storage.write(category, key + n, new ByteArrayInputStream(content));
+                        }
+                    } catch (IOException e) {
+                        failures[n] = e;
+                    }
+                }
+            };
+        }
+        long start = System.currentTimeMillis();
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        long millis = Math.max(1L, System.currentTimeMillis() - start);
+        for (IOException failure : failures) {
+            Assert.assertNull(failure);
+        }
+        return millis;
+    }
+}
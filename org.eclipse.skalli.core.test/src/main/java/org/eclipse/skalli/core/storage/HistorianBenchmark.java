@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.skalli.core.storage.Historian.HistoryEntry;
+import org.eclipse.skalli.core.storage.Historian.HistoryIterator;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures the cost of archiving an entity and of retrieving the history of an entity
+ * with a small and with a large synthetic history file. With the history index both
+ * should be independent of the size of the history file, apart from the initial
+ * rebuild of the index. Furthermore measures disk footprint and full scan time
+ * of a synthetic history before and after compaction.
+ * <p>
+ * The size of the large history file in MB can be changed with the system property
+ * <tt>skalli.benchmark.historySize</tt>, the number of measured operations with
+ * <tt>skalli.benchmark.iterations</tt>.
+ */
+@SuppressWarnings("nls")
+public class HistorianBenchmark extends BenchmarkBase {
+
+    private static final int HISTORY_SIZE_MB = getParameter("historySize", 300);
+    private static final int ITERATIONS = getParameter("iterations", 200);
+    private static final int ENTRY_SIZE = 8 * 1024;
+    private static final String ID = "e4d78581-08da-4f04-8a85-a7b7b9bf7b00";
+
+    private File tmpDir;
+    private String content;
+
+    @Before
+    public void setup() throws Exception {
+        tmpDir = TestUtils.createTempDir("HistorianBenchmark");
+        content = "<entity>" + StringUtils.repeat("x", ENTRY_SIZE - 17) + "</entity>";
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (tmpDir != null) {
+            FileUtils.forceDelete(tmpDir);
+        }
+    }
+
+    @Test
+    public void benchmarkHistory() throws Exception {
+        long[] small = measure(new File(tmpDir, "small"), 1);
+        long[] large = measure(new File(tmpDir, "large"), HISTORY_SIZE_MB);
+        report("archive: " + small[0] + " us (1 MB history), " + large[0] + " us ("
+                + HISTORY_SIZE_MB + " MB history)");
+        report("history lookup: " + small[1] + " us (1 MB history), " + large[1] + " us ("
+                + HISTORY_SIZE_MB + " MB history)");
+    }
+
+    @Test
+    public void benchmarkCompaction() throws Exception {
+        File dir = new File(tmpDir, "compaction");
+        Assert.assertTrue(dir.mkdirs());
+        generateVersionedHistory(new File(dir, ".history"), HISTORY_SIZE_MB);
+        report("before compaction: " + measureScan(dir));
+
+        long start = System.nanoTime();
+        int dropped = new Historian(dir).compact(10, 0L, true);
+        report("compaction: " + dropped + " entries dropped in "
+                + (System.nanoTime() - start) / 1000000L + " ms");
+        report("after compaction: " + measureScan(dir));
+    }
+
+    /**
+     * Measures disk footprint and the time for a full scan of the history
+     * including the rebuild of the index.
+     */
+    private String measureScan(File dir) throws Exception {
+        long size = 0;
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(".idx")) {
+                FileUtils.forceDelete(file);
+            } else {
+                size += file.length();
+            }
+        }
+        long start = System.nanoTime();
+        int count = 0;
+        HistoryIterator it = new Historian(dir).getHistory(null);
+        try {
+            while (it.hasNext()) {
+                it.next();
+                ++count;
+            }
+        } finally {
+            it.close();
+        }
+        return count + " entries, " + size / (1024L * 1024L) + " MB, full scan "
+                + (System.nanoTime() - start) / 1000000L + " ms";
+    }
+
+    private long[] measure(File dir, int sizeMB) throws Exception {
+        Assert.assertTrue(dir.mkdirs());
+        generateHistory(new File(dir, ".history"), sizeMB);
+
+        Historian historian = new Historian(dir);
+        long start = System.nanoTime();
+        Assert.assertEquals(ID + ":0", historian.getNextEntryName(ID));
+        report("index rebuild (" + sizeMB + " MB history): "
+                + (System.nanoTime() - start) / 1000000L + " ms");
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            historian.historize(ID, i, IOUtils.toInputStream(content, "UTF-8"));
+        }
+        long archive = (System.nanoTime() - start) / ITERATIONS / 1000L;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            HistoryIterator it = historian.getHistory(ID);
+            try {
+                HistoryEntry last = null;
+                while (it.hasNext()) {
+                    last = it.next();
+                }
+                Assert.assertEquals(ITERATIONS - 1, last.getVersion());
+            } finally {
+                it.close();
+            }
+        }
+        long lookup = (System.nanoTime() - start) / ITERATIONS / 1000L;
+        return new long[] { archive, lookup };
+    }
+
+    /**
+     * Generates a history of 1000 entities with many versions each, of which
+     * only every third version differs from its predecessor.
+     */
+    private void generateVersionedHistory(File historyFile, int sizeMB) throws Exception {
+        String[] ids = new String[1000];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = UUID.randomUUID().toString();
+        }
+        long remaining = sizeMB * 1024L * 1024L;
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(historyFile), 64 * 1024);
+            for (int version = 0; remaining > 0; ++version) {
+                for (int i = 0; i < ids.length && remaining > 0; ++i) {
+                    byte[] contentBytes = (content + (version / 3)).getBytes("UTF-8");
+                    String header = ids[i] + ":" + version + ":" + contentBytes.length + ":" + version;
+                    out.write((header + "\r\n").getBytes("UTF-8"));
+                    out.write(contentBytes);
+                    out.write("\r\n".getBytes("UTF-8"));
+                    remaining -= header.length() + contentBytes.length + 4;
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private void generateHistory(File historyFile, int sizeMB) throws Exception {
+        byte[] contentBytes = content.getBytes("UTF-8");
+        long remaining = sizeMB * 1024L * 1024L;
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(historyFile), 64 * 1024);
+            while (remaining > 0) {
+                String header = UUID.randomUUID() + ":0:" + contentBytes.length + ":" + System.currentTimeMillis();
+                out.write((header + "\r\n").getBytes("UTF-8"));
+                out.write(contentBytes);
+                out.write("\r\n".getBytes("UTF-8"));
+                remaining -= header.length() + contentBytes.length + 4;
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+}
@@ -11,8 +11,13 @@
 package org.eclipse.skalli.core.storage;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.eclipse.skalli.core.storage.Historian.HistoryEntry;
 import org.eclipse.skalli.core.storage.Historian.HistoryIterator;
 import org.eclipse.skalli.testutil.TestUtils;
@@ -73,6 +78,367 @@ public class HistorianTest {
         assertHistoryEntries(h, "blubb", 1);
     }
 
+    @Test
+    public void testHistorizeMultiLineContent() throws Exception {
+        String content1 = "<entity xmlns:ns=\"http://example.org\">\r\n  <ns:a>1:2:3</ns:a>\r\n</entity>";
+        String content2 = "\r\n\r\nbla:0:12:4711\r\n";
+        Historian h = new Historian(tmpDir);
+        h.historize("a", 1L, IOUtils.toInputStream(content1, "UTF-8"));
+        h.historize("b", 2L, IOUtils.toInputStream(content2, "UTF-8"));
+        h.historize("a", 3L, IOUtils.toInputStream(content2, "UTF-8"));
+
+        // check both the in-memory index and a fresh one loaded from the index file
+        for (Historian historian : Arrays.asList(h, new Historian(tmpDir))) {
+            List<HistoryEntry> entries = getHistoryEntries(historian, "a");
+            Assert.assertEquals(2, entries.size());
+            assertHistoryEntry(entries.get(0), "a", content1, 0, 1L);
+            assertHistoryEntry(entries.get(1), "a", content2, 1, 3L);
+            entries = getHistoryEntries(historian, "b");
+            Assert.assertEquals(1, entries.size());
+            assertHistoryEntry(entries.get(0), "b", content2, 0, 2L);
+            Assert.assertEquals(3, getHistoryEntries(historian, null).size());
+            Assert.assertEquals(0, getHistoryEntries(historian, "c").size());
+        }
+    }
+
+    @Test
+    public void testGetNextEntryName() throws Exception {
+        Historian h = new Historian(tmpDir);
+        Assert.assertEquals("bla:0", h.getNextEntryName("bla"));
+        h.historize(fileOrig);
+        h.historize(fileOrig);
+        h.historize(fileOther);
+        Assert.assertEquals("bla:2", h.getNextEntryName("bla"));
+        Assert.assertEquals("blubb:1", h.getNextEntryName("blubb"));
+        // ids that are prefixes of other ids must not be counted
+        Assert.assertEquals("bl:0", h.getNextEntryName("bl"));
+    }
+
+    @Test
+    public void testRebuildMissingIndex() throws Exception {
+        Historian h = new Historian(tmpDir);
+        h.historize(fileOrig);
+        h.historize(fileOther);
+        h.historize(fileOrig);
+        File indexFile = new File(tmpDir, ".history.idx");
+        Assert.assertTrue(indexFile.exists());
+        String index = FileUtils.readFileToString(indexFile);
+        Assert.assertTrue(indexFile.delete());
+
+        h = new Historian(tmpDir);
+        assertHistoryEntries(h, "bla", 2);
+        assertHistoryEntries(h, "blubb", 1);
+        Assert.assertEquals(index, FileUtils.readFileToString(indexFile));
+    }
+
+    @Test
+    public void testRebuildStaleIndex() throws Exception {
+        Historian h = new Historian(tmpDir);
+        h.historize(fileOrig);
+        File indexFile = new File(tmpDir, ".history.idx");
+        String index = FileUtils.readFileToString(indexFile);
+
+        // another historian appends to the history file; the first one must notice
+        Historian other = new Historian(tmpDir);
+        other.historize(fileOrig);
+        other.historize(fileOther);
+        assertHistoryEntries(h, "bla", 2);
+        assertHistoryEntries(h, "blubb", 1);
+
+        // index file lagging behind the history file, e.g. due to a crash
+        FileUtils.writeStringToFile(indexFile, index);
+        h = new Historian(tmpDir);
+        Assert.assertEquals("bla:2", h.getNextEntryName("bla"));
+        assertHistoryEntries(h, 3);
+    }
+
+    @Test
+    public void testTruncateIncompleteEntry() throws Exception {
+        Historian h = new Historian(tmpDir);
+        h.historize(fileOrig);
+        long length = fileHistory.length();
+        FileUtils.writeStringToFile(fileHistory, FileUtils.readFileToString(fileHistory) + "bla:1:12:4711\r\nTEST");
+
+        h = new Historian(tmpDir);
+        assertHistoryEntries(h, "bla", 1);
+        Assert.assertEquals(length, fileHistory.length());
+        h.historize(fileOrig);
+        assertHistoryEntries(h, "bla", 2);
+    }
+
+    @Test
+    public void testSkipCorruptEntry() throws Exception {
+        Historian h = new Historian(tmpDir);
+        h.historize(fileOrig);
+        h.historize(fileOther);
+        h.historize(fileOrig);
+        long length = fileHistory.length();
+
+        // destroy the header of the entry in the middle and force a rebuild of the index
+        String history = FileUtils.readFileToString(fileHistory);
+        Assert.assertEquals(1, StringUtils.countMatches(history, "blubb:0:"));
+        FileUtils.writeStringToFile(fileHistory, history.replace("blubb:0:", "#######:"));
+        Assert.assertTrue(new File(tmpDir, ".history.idx").delete());
+
+        h = new Historian(tmpDir);
+        assertHistoryEntries(h, "bla", 2);
+        assertHistoryEntries(h, "blubb", 0);
+        Assert.assertEquals(length, fileHistory.length());
+        h.historize(fileOrig);
+        assertHistoryEntries(new Historian(tmpDir), "bla", 3);
+    }
+
+    @Test
+    public void testSegmentRolloverBySize() throws Exception {
+        // each entry exceeds the maximum segment size, so that every entry starts a new segment
+        Historian h = new Historian(tmpDir, 20L, 0L);
+        for (int i = 0; i < 5; ++i) {
+            h.historize(i % 2 == 0 ? fileOrig : fileOther);
+        }
+        Assert.assertEquals(5, h.getSegmentCount());
+        Assert.assertTrue(fileHistory.exists());
+        Assert.assertTrue(new File(tmpDir, ".history.4").exists());
+        Assert.assertTrue(new File(tmpDir, ".history.4.idx").exists());
+        Assert.assertTrue(new File(tmpDir, ".history.manifest").exists());
+
+        h = new Historian(tmpDir, 20L, 0L);
+        assertHistoryEntries(h, 5);
+        assertHistoryEntries(h, "bla", 3);
+        assertHistoryEntries(h, "blubb", 2);
+        Assert.assertEquals("bla:3", h.getNextEntryName("bla"));
+    }
+
+    @Test
+    public void testSegmentRolloverByAge() throws Exception {
+        Historian h = new Historian(tmpDir, 0L, 1L);
+        h.historize(fileOrig);
+        Thread.sleep(10L);
+        h.historize(fileOrig);
+        Assert.assertEquals(2, h.getSegmentCount());
+        assertHistoryEntries(new Historian(tmpDir), "bla", 2);
+    }
+
+    @Test
+    public void testMissingManifest() throws Exception {
+        Historian h = new Historian(tmpDir, 20L, 0L);
+        for (int i = 0; i < 3; ++i) {
+            h.historize(fileOrig);
+        }
+        Assert.assertTrue(new File(tmpDir, ".history.manifest").delete());
+        Assert.assertTrue(new File(tmpDir, ".history.1.idx").delete());
+
+        h = new Historian(tmpDir, 20L, 0L);
+        Assert.assertEquals(3, h.getSegmentCount());
+        List<HistoryEntry> entries = getHistoryEntries(h, "bla");
+        Assert.assertEquals(3, entries.size());
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertEquals(i, entries.get(i).getVersion());
+        }
+    }
+
+    @Test
+    public void testCompactMaxVersions() throws Exception {
+        Historian h = new Historian(tmpDir, 100L, 0L);
+        for (int i = 0; i < 10; ++i) {
+            h.historize("a", i, IOUtils.toInputStream("content " + i, "UTF-8"));
+            h.historize("b", i, IOUtils.toInputStream("content " + i, "UTF-8"));
+        }
+        h.historize("c", 4711L, IOUtils.toInputStream("content", "UTF-8"));
+        Assert.assertEquals(0, h.compact(0, 0L, false));
+        Assert.assertEquals(16, h.compact(2, 0L, false));
+
+        for (Historian historian : Arrays.asList(h, new Historian(tmpDir, 100L, 0L))) {
+            List<HistoryEntry> entries = getHistoryEntries(historian, "a");
+            Assert.assertEquals(2, entries.size());
+            assertHistoryEntry(entries.get(0), "a", "content 8", 8, 8L);
+            assertHistoryEntry(entries.get(1), "a", "content 9", 9, 9L);
+            Assert.assertEquals(2, getHistoryEntries(historian, "b").size());
+            Assert.assertEquals(1, getHistoryEntries(historian, "c").size());
+            Assert.assertEquals(5, getHistoryEntries(historian, null).size());
+        }
+        Assert.assertFalse(fileHistory.exists());
+
+        // versions continue after the compacted history
+        h.historize("a", 10L, IOUtils.toInputStream("content 10", "UTF-8"));
+        Assert.assertEquals("a:11", h.getNextEntryName("a"));
+    }
+
+    @Test
+    public void testCompactMaxAge() throws Exception {
+        long now = System.currentTimeMillis();
+        Historian h = new Historian(tmpDir);
+        h.historize("a", now - 10000L, IOUtils.toInputStream("old", "UTF-8"));
+        h.historize("a", now, IOUtils.toInputStream("new", "UTF-8"));
+        h.historize("b", now - 10000L, IOUtils.toInputStream("old", "UTF-8"));
+        Assert.assertEquals(2, h.compact(0, 5000L, false));
+        List<HistoryEntry> entries = getHistoryEntries(h, "a");
+        Assert.assertEquals(1, entries.size());
+        assertHistoryEntry(entries.get(0), "a", "new", 1, now);
+        Assert.assertEquals(0, getHistoryEntries(h, "b").size());
+    }
+
+    @Test
+    public void testCompactCollapseUnchanged() throws Exception {
+        Historian h = new Historian(tmpDir);
+        String[] contents = { "x", "x", "y", "x", "x", "x", "z" };
+        for (int i = 0; i < contents.length; ++i) {
+            h.historize("a", i, IOUtils.toInputStream(contents[i], "UTF-8"));
+            h.historize("b", i, IOUtils.toInputStream("b", "UTF-8"));
+        }
+        Assert.assertEquals(9, h.compact(0, 0L, true));
+        List<HistoryEntry> entries = getHistoryEntries(h, "a");
+        Assert.assertEquals(4, entries.size());
+        assertHistoryEntry(entries.get(0), "a", "x", 0, 0L);
+        assertHistoryEntry(entries.get(1), "a", "y", 2, 2L);
+        assertHistoryEntry(entries.get(2), "a", "x", 3, 3L);
+        assertHistoryEntry(entries.get(3), "a", "z", 6, 6L);
+        Assert.assertEquals(1, getHistoryEntries(h, "b").size());
+
+        // collapse first, then apply the retention to the remaining versions
+        Assert.assertEquals(2, h.compact(2, 0L, true));
+        entries = getHistoryEntries(h, "a");
+        Assert.assertEquals(2, entries.size());
+        assertHistoryEntry(entries.get(0), "a", "x", 3, 3L);
+        assertHistoryEntry(entries.get(1), "a", "z", 6, 6L);
+    }
+
+    @Test
+    public void testCompactRemovesOrphanedSegments() throws Exception {
+        Historian h = new Historian(tmpDir);
+        h.historize(fileOrig);
+        h.historize(fileOrig);
+        // left over from an interrupted compaction
+        File orphan = new File(tmpDir, ".history.7");
+        File orphanIndex = new File(tmpDir, ".history.7.idx");
+        FileUtils.writeStringToFile(orphan, "bla:0:12:4711\r\nTEST CONTENT\r\n");
+        FileUtils.writeStringToFile(orphanIndex, "");
+
+        h = new Historian(tmpDir);
+        assertHistoryEntries(h, "bla", 2);
+        Assert.assertEquals(1, h.compact(1, 0L, false));
+        Assert.assertFalse(orphan.exists());
+        Assert.assertFalse(orphanIndex.exists());
+        assertHistoryEntries(new Historian(tmpDir), "bla", 1);
+    }
+
+    @Test
+    public void testDeltaEncoding() throws Exception {
+        Historian h = new Historian(tmpDir, 0L, 0L, 5);
+        Historian full = new Historian(new File(tmpDir, "full"), 0L, 0L, 1);
+        List<String> versions = newEditSequence(23);
+        for (int i = 0; i < versions.size(); ++i) {
+            h.historize("a", i, IOUtils.toInputStream(versions.get(i), "UTF-8"));
+            h.historize("b", i, IOUtils.toInputStream("b" + i, "UTF-8"));
+            full.historize("a", i, IOUtils.toInputStream(versions.get(i), "UTF-8"));
+        }
+        // deltas are a small fraction of full versions
+        long size = fileHistory.length();
+        long fullSize = new File(tmpDir, "full/.history").length();
+        Assert.assertTrue(size + " vs " + fullSize, size * 3 < fullSize);
+
+        // at most snapshotInterval-1 deltas have to be applied to reconstruct a version
+        Assert.assertEquals(4, getMaxDeltaChain(new File(tmpDir, ".history.idx"), "a"));
+        Assert.assertEquals(0, getMaxDeltaChain(new File(tmpDir, "full/.history.idx"), "a"));
+
+        assertHistoryEntries(h, "a", versions);
+        assertHistoryEntries(new Historian(tmpDir), "a", versions);
+        Assert.assertTrue(new File(tmpDir, ".history.idx").delete());
+        assertHistoryEntries(new Historian(tmpDir), "a", versions);
+    }
+
+    @Test
+    public void testCompactDeltaEncoded() throws Exception {
+        Historian h = new Historian(tmpDir, 0L, 0L, 5);
+        List<String> versions = newEditSequence(12);
+        for (int i = 0; i < versions.size(); ++i) {
+            h.historize("a", i, IOUtils.toInputStream(versions.get(i), "UTF-8"));
+        }
+        // drops the full versions the remaining deltas are based on
+        Assert.assertEquals(9, h.compact(3, 0L, false));
+        assertHistoryEntries(h, "a", versions.subList(9, 12));
+        assertHistoryEntries(new Historian(tmpDir), "a", versions.subList(9, 12));
+
+        // full versions of an older history are converted to deltas
+        File other = new File(tmpDir, "other");
+        Historian full = new Historian(other, 0L, 0L, 1);
+        for (int i = 0; i < versions.size(); ++i) {
+            full.historize("a", i, IOUtils.toInputStream(versions.get(i), "UTF-8"));
+        }
+        long fullSize = new File(other, ".history").length();
+        h = new Historian(other, 0L, 0L, 5);
+        Assert.assertEquals(1, h.compact(11, 0L, false));
+        Assert.assertTrue(new File(other, ".history.1").length() * 3 < fullSize);
+        Assert.assertEquals(4, getMaxDeltaChain(new File(other, ".history.1.idx"), "a"));
+        assertHistoryEntries(new Historian(other), "a", versions.subList(1, 12));
+    }
+
+    // a sequence of versions of a document, each one with a few small edits of its predecessor
+    private List<String> newEditSequence(int count) {
+        List<String> items = new ArrayList<String>();
+        for (int i = 0; i < 80; ++i) {
+            items.add("<item><name>item " + i + "</name><value>" + i * 31 + "</value></item>");
+        }
+        List<String> versions = new ArrayList<String>();
+        for (int v = 0; v < count; ++v) {
+            items.set((v * 7) % items.size(), "<item><name>changed " + v + "</name></item>");
+            if (v % 3 == 0) {
+                items.add("<item><name>added " + v + "</name></item>");
+            }
+            if (v % 4 == 0) {
+                items.remove(v % items.size());
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append("<entity><description>version ").append(v).append("</description><items>");
+            for (String item : items) {
+                sb.append(item);
+            }
+            sb.append("</items></entity>");
+            versions.add(sb.toString());
+        }
+        return versions;
+    }
+
+    // longest run of consecutive delta entries of the given entity in an index file
+    private int getMaxDeltaChain(File indexFile, String id) throws Exception {
+        int max = 0;
+        int run = 0;
+        for (String line : FileUtils.readLines(indexFile, "UTF-8")) {
+            if (line.startsWith(id + ":")) {
+                run = line.endsWith(":d") ? run + 1 : 0;
+                max = Math.max(max, run);
+            }
+        }
+        return max;
+    }
+
+    private void assertHistoryEntries(Historian h, String id, List<String> contents) throws Exception {
+        List<HistoryEntry> entries = getHistoryEntries(h, id);
+        Assert.assertEquals(contents.size(), entries.size());
+        for (int i = 0; i < contents.size(); ++i) {
+            Assert.assertEquals(contents.get(i), entries.get(i).getContent());
+        }
+    }
+
+    private List<HistoryEntry> getHistoryEntries(Historian h, String id) throws Exception {
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        HistoryIterator it = h.getHistory(id);
+        try {
+            while (it.hasNext()) {
+                entries.add(it.next());
+            }
+        } finally {
+            it.close();
+        }
+        return entries;
+    }
+
+    private void assertHistoryEntry(HistoryEntry entry, String id, String content, int version, long timestamp) {
+        Assert.assertEquals(id, entry.getId());
+        Assert.assertEquals(content, entry.getContent());
+        Assert.assertEquals(version, entry.getVersion());
+        Assert.assertEquals(timestamp, entry.getTimestamp());
+    }
+
     private void assertHistoryEntries(Historian h, int size) throws Exception {
         int i = 0;
         HistoryIterator it = null;
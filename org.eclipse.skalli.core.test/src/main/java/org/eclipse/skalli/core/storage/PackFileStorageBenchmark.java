@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.skalli.core.storage.FileStorageComponent.SyncMode;
+import org.eclipse.skalli.services.persistence.StorageConsumer;
+import org.eclipse.skalli.services.persistence.StorageService;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the write throughput and the time to load all entities of a category
+ * for the file storage and the pack file storage.
+ * <p>
+ * Entities are written in batches, like the storage copy command does, and then
+ * updated one by one, like the persistence service does. Finally all entities are
+ * read with <code>readAll</code>, like during startup.
+ * <p>
+ * The number of entities can be changed with the system property
+ * <tt>skalli.benchmark.entities</tt>.
+ */
+@SuppressWarnings("nls")
+public class PackFileStorageBenchmark extends BenchmarkBase {
+
+    private static final int ENTITIES = getParameter("entities", 20000);
+    private static final int UPDATES = getParameter("updates", 2000);
+    private static final int BATCH_SIZE = 100;
+
+    private File storageBase;
+
+    @Before
+    public void setup() throws Exception {
+        storageBase = TestUtils.createTempDir("PackFileStorageBenchmark");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (storageBase != null) {
+            FileUtils.forceDelete(storageBase);
+        }
+    }
+
+    @Test
+    public void benchmarkFileStorage() throws Exception {
+        FileStorageComponent storage = new FileStorageComponent(new File(storageBase, "file"), SyncMode.NONE, 0L);
+        run("file", storage);
+    }
+
+    @Test
+    public void benchmarkPackFileStorage() throws Exception {
+        PackFileStorageComponent storage = new PackFileStorageComponent(new File(storageBase, "pack"));
+        try {
+            run("pack", storage);
+        } finally {
+            storage.close();
+        }
+    }
+
+    private void run(String name, StorageService storage) throws Exception {
+        Random random = new Random(4711);
+        List<String> keys = new ArrayList<String>(ENTITIES);
+        Map<String, InputStream> batch = new HashMap<String, InputStream>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < ENTITIES; ++i) {
+            String key = UUID.randomUUID().toString();
+            keys.add(key);
+            batch.put(key, IOUtils.toInputStream(newEntity(random, key), "UTF-8"));
+            if (batch.size() == BATCH_SIZE) {
+                storage.writeAll("project", batch);
+                batch.clear();
+            }
+        }
+        storage.writeAll("project", batch);
+        long writeAll = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i < UPDATES; ++i) {
+            String key = keys.get(random.nextInt(keys.size()));
+            storage.write("project", key, IOUtils.toInputStream(newEntity(random, key), "UTF-8"));
+        }
+        long write = System.currentTimeMillis() - start;
+
+        final int[] count = new int[1];
+        start = System.currentTimeMillis();
+        storage.readAll("project", new StorageConsumer() {
+            @Override
+            public void consume(String category, String key, long lastModified, InputStream blob)
+                    throws IOException {
+                IOUtils.toByteArray(blob);
+                ++count[0];
+            }
+        });
+        long readAll = System.currentTimeMillis() - start;
+
+        Assert.assertEquals(ENTITIES, count[0]);
+        report(name + ": writeAll of " + ENTITIES + " entities took " + writeAll + " ms ("
+                + ENTITIES * 1000L / Math.max(1L, writeAll) + " entities/s), " + UPDATES + " single writes took "
+                + write + " ms (" + UPDATES * 1000L / Math.max(1L, write) + " writes/s), readAll took "
+                + readAll + " ms");
+    }
+
+    // generates an entity resembling a project with a varying number of members
+    private static String newEntity(Random random, String key) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<entity-project version=\"42\" modifiedBy=\"homer\">");
+        sb.append("<uuid>").append(key).append("</uuid>");
+        sb.append("<projectId>technology.skalli.project").append(random.nextInt(100000)).append("</projectId>");
+        sb.append("<description>");
+        for (int i = 0; i < 20 + random.nextInt(200); ++i) {
+            sb.append("word").append(random.nextInt(500)).append(' ');
+        }
+        sb.append("</description>");
+        for (int i = 0; i < random.nextInt(20); ++i) {
+            sb.append("<member><userID>user").append(random.nextInt(1000)).append("</userID></member>");
+        }
+        sb.append("</entity-project>");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.skalli.services.persistence.StorageChange;
+import org.eclipse.skalli.services.persistence.StorageConsumer;
+import org.eclipse.skalli.services.persistence.StorageService;
+import org.eclipse.skalli.testutil.StorageServiceTestBase;
+import org.eclipse.skalli.testutil.TestUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("nls")
+public class PackFileStorageServiceTest extends StorageServiceTestBase {
+
+    private File storageBase;
+    private List<PackFileStorageComponent> storages = new ArrayList<PackFileStorageComponent>();
+
+    @Before
+    public void setUp() throws Exception {
+        storageBase = TestUtils.createTempDir("PackFileStorageServiceTest.Storage");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (PackFileStorageComponent storage : storages) {
+            storage.close();
+        }
+        if (storageBase != null) {
+            FileUtils.forceDelete(storageBase);
+        }
+    }
+
+    @Override
+    protected StorageService getStorageService() throws Exception {
+        return newStorage();
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        PackFileStorageComponent storage = newStorage();
+        for (int i = 0; i < 10; ++i) {
+            storage.write("reopen", "key" + i % 3, IOUtils.toInputStream("content " + i, "UTF-8"));
+        }
+        storage.close();
+
+        storage = newStorage();
+        Assert.assertEquals(3, storage.keys("reopen").size());
+        Assert.assertEquals("content 9", IOUtils.toString(storage.read("reopen", "key0"), "UTF-8"));
+        Assert.assertEquals("content 7", IOUtils.toString(storage.read("reopen", "key1"), "UTF-8"));
+        Assert.assertEquals("content 8", IOUtils.toString(storage.read("reopen", "key2"), "UTF-8"));
+    }
+
+    @Test
+    public void testJournal() throws Exception {
+        PackFileStorageComponent storage = newStorage();
+        Assert.assertEquals(0L, storage.getLastSequence());
+        storage.write("journal", "a", IOUtils.toInputStream("content a", "UTF-8"));
+        long sequence = storage.getLastSequence();
+        storage.archive("journal", "a");
+        Map<String, InputStream> blobs = new LinkedHashMap<String, InputStream>();
+        blobs.put("b", IOUtils.toInputStream("content b", "UTF-8"));
+        blobs.put("c", IOUtils.toInputStream("content c", "UTF-8"));
+        storage.writeAll("journal", blobs);
+
+        List<StorageChange> changes = newStorage().getChanges(sequence);
+        Assert.assertEquals(3, changes.size());
+        assertChange(StorageChange.Type.ARCHIVE, "a", "content a", changes.get(0));
+        assertChange(StorageChange.Type.WRITE, "b", "content b", changes.get(1));
+        assertChange(StorageChange.Type.WRITE, "c", "content c", changes.get(2));
+        Assert.assertEquals(storage.getLastSequence(), changes.get(2).getSequence());
+        Assert.assertEquals(4, storage.getChanges(0L).size());
+    }
+
+    @Test
+    public void testTruncateIncompleteRecord() throws Exception {
+        PackFileStorageComponent storage = newStorage();
+        storage.write("truncate", "a", IOUtils.toInputStream("first", "UTF-8"));
+        File packFile = new File(storageBase, "truncate/" + PackFile.PACK_FILE);
+        long length = packFile.length();
+        storage.write("truncate", "b", IOUtils.toInputStream("second", "UTF-8"));
+        storage.close();
+
+        // cut off the last record in the middle, e.g. due to a crash
+        RandomAccessFile raf = new RandomAccessFile(packFile, "rw");
+        try {
+            raf.setLength(packFile.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        storage = newStorage();
+        Assert.assertEquals(1, storage.keys("truncate").size());
+        Assert.assertEquals("first", IOUtils.toString(storage.read("truncate", "a"), "UTF-8"));
+        Assert.assertNull(storage.read("truncate", "b"));
+        Assert.assertEquals(length, packFile.length());
+        storage.write("truncate", "b", IOUtils.toInputStream("again", "UTF-8"));
+        Assert.assertEquals("again", IOUtils.toString(storage.read("truncate", "b"), "UTF-8"));
+    }
+
+    @Test
+    public void testSkipCorruptRecord() throws Exception {
+        PackFileStorageComponent storage = newStorage();
+        storage.write("corrupt", "b", IOUtils.toInputStream("old", "UTF-8"));
+        storage.write("corrupt", "a", IOUtils.toInputStream("first", "UTF-8"));
+        File packFile = new File(storageBase, "corrupt/" + PackFile.PACK_FILE);
+        long offset = packFile.length();
+        storage.write("corrupt", "b", IOUtils.toInputStream("new", "UTF-8"));
+        storage.write("corrupt", "c", IOUtils.toInputStream("last", "UTF-8"));
+        storage.close();
+        long length = packFile.length();
+
+        // corrupt the content of the record in the middle of the file
+        overwrite(packFile, offset + 21, "X");
+
+        storage = newStorage();
+        Assert.assertEquals("first", IOUtils.toString(storage.read("corrupt", "a"), "UTF-8"));
+        Assert.assertEquals("old", IOUtils.toString(storage.read("corrupt", "b"), "UTF-8"));
+        Assert.assertEquals("last", IOUtils.toString(storage.read("corrupt", "c"), "UTF-8"));
+        Assert.assertEquals(length, packFile.length());
+
+        // and destroy its header
+        storage.close();
+        overwrite(packFile, offset, "XXXXXXXX");
+        storage = newStorage();
+        Assert.assertEquals("old", IOUtils.toString(storage.read("corrupt", "b"), "UTF-8"));
+        Assert.assertEquals("last", IOUtils.toString(storage.read("corrupt", "c"), "UTF-8"));
+        Assert.assertEquals(length, packFile.length());
+    }
+
+    @Test
+    public void testTruncateTornRecord() throws Exception {
+        PackFileStorageComponent storage = newStorage();
+        storage.write("torn", "a", IOUtils.toInputStream("first", "UTF-8"));
+        File packFile = new File(storageBase, "torn/" + PackFile.PACK_FILE);
+        long length = packFile.length();
+        storage.write("torn", "a", IOUtils.toInputStream("second", "UTF-8"));
+        storage.close();
+
+        // the last record has a valid header, but its content has not been written completely
+        overwrite(packFile, length + 21, "XXX");
+
+        storage = newStorage();
+        Assert.assertEquals("first", IOUtils.toString(storage.read("torn", "a"), "UTF-8"));
+        Assert.assertEquals(length, packFile.length());
+    }
+
+    @Test
+    public void testRecoverInterruptedCompaction() throws Exception {
+        PackFileStorageComponent storage = newStorage();
+        for (int i = 0; i < 10; ++i) {
+            storage.write("compact", "key" + i, IOUtils.toInputStream("content " + i, "UTF-8"));
+        }
+        storage.close();
+        File dir = new File(storageBase, "compact");
+
+        // a previous version deleted the pack file before renaming its compacted copy
+        Assert.assertTrue(new File(dir, PackFile.PACK_FILE).renameTo(new File(dir, PackFile.PACK_FILE + ".tmp")));
+        Assert.assertTrue(PackFile.exists(dir));
+        assertContents(newStorage(), 0);
+        Assert.assertEquals(PackFile.PACK_FILE, PackFile.getFile(dir).getName());
+
+        // a crash left an incomplete next generation behind
+        FileUtils.writeStringToFile(new File(dir, PackFile.PACK_FILE + ".1.tmp"), "incomplete", "UTF-8");
+        assertContents(newStorage(), 0);
+        Assert.assertEquals(1, dir.listFiles().length);
+
+        // a crash prevented the deletion of the previous generation
+        FileUtils.copyFile(new File(dir, PackFile.PACK_FILE), new File(dir, PackFile.PACK_FILE + ".1"));
+        FileUtils.writeStringToFile(new File(dir, PackFile.PACK_FILE), "outdated", "UTF-8");
+        assertContents(newStorage(), 0);
+        Assert.assertEquals(1, dir.listFiles().length);
+        Assert.assertEquals(PackFile.PACK_FILE + ".1", PackFile.getFile(dir).getName());
+    }
+
+    @Test
+    public void testCompactPack() throws Exception {
+        final PackFileStorageComponent storage = newStorage();
+        for (int i = 0; i < 100; ++i) {
+            storage.write("compact", "key" + i % 10, IOUtils.toInputStream("content " + i, "UTF-8"));
+        }
+        long length = PackFile.getFile(new File(storageBase, "compact")).length();
+
+        // writes proceed while the pack file is compacted
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Void> writes = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 100; i < 200; ++i) {
+                        storage.write("compact", "key" + i % 10, IOUtils.toInputStream("content " + i, "UTF-8"));
+                    }
+                    return null;
+                }
+            });
+            Assert.assertTrue(storage.compactPack("compact") > 0);
+            writes.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        storage.compactPack("compact");
+        File[] files = new File(storageBase, "compact").listFiles();
+        Assert.assertEquals(1, files.length);
+        Assert.assertEquals(PackFile.PACK_FILE + ".2", files[0].getName());
+        Assert.assertTrue(files[0].length() * 5 < length);
+        assertContents(storage, 190);
+        storage.close();
+        assertContents(newStorage(), 190);
+    }
+
+    @Test
+    public void testMigrateFromFileStorage() throws Exception {
+        // the same batched readMany and writeAll calls as the storage copy command
+        FileStorageComponent source = new FileStorageComponent(new File(storageBase, "files"));
+        Map<String, InputStream> blobs = new HashMap<String, InputStream>();
+        for (int i = 0; i < 10; ++i) {
+            blobs.put("key" + i, IOUtils.toInputStream("content " + (180 + i), "UTF-8"));
+        }
+        source.writeAll("migrate", blobs);
+
+        PackFileStorageComponent destination = newStorage();
+        final Map<String, InputStream> copied = new HashMap<String, InputStream>();
+        source.readMany("migrate", source.keys("migrate"), new StorageConsumer() {
+            @Override
+            public void consume(String category, String key, long lastModified, InputStream blob)
+                    throws IOException {
+                copied.put(key, new ByteArrayInputStream(IOUtils.toByteArray(blob)));
+            }
+        });
+        destination.writeAll("migrate", copied);
+        Assert.assertEquals(10, destination.keys("migrate").size());
+        for (int i = 0; i < 10; ++i) {
+            Assert.assertEquals("content " + (180 + i),
+                    IOUtils.toString(destination.read("migrate", "key" + i), "UTF-8"));
+        }
+    }
+
+    private void assertContents(PackFileStorageComponent storage, int first) throws Exception {
+        final Map<String, String> contents = new HashMap<String, String>();
+        storage.readAll("compact", new StorageConsumer() {
+            @Override
+            public void consume(String category, String key, long lastModified, InputStream blob)
+                    throws IOException {
+                contents.put(key, IOUtils.toString(blob, "UTF-8"));
+            }
+        });
+        Assert.assertEquals(10, contents.size());
+        for (int i = 0; i < 10; ++i) {
+            Assert.assertEquals("content " + (first + i), contents.get("key" + i));
+        }
+    }
+
+    private static void assertChange(StorageChange.Type type, String key, String content, StorageChange change) {
+        Assert.assertEquals(type, change.getType());
+        Assert.assertEquals("journal", change.getCategory());
+        Assert.assertEquals(key, change.getKey());
+        Assert.assertEquals(DigestUtils.md5Hex(content), change.getDigest());
+    }
+
+    private static void overwrite(File file, long position, String s) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            raf.write(s.getBytes("UTF-8"));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private PackFileStorageComponent newStorage() {
+        PackFileStorageComponent storage = new PackFileStorageComponent(storageBase);
+        storages.add(storage);
+        return storage;
+    }
+}
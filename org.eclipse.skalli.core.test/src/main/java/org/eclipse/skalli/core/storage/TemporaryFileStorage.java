@@ -0,0 +1,25 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage;
+
+import java.io.File;
+
+/**
+ * File storage in a given, usually temporary, directory for tests in other packages
+ * of this fragment, since the respective constructor of {@link FileStorageComponent}
+ * is package protected.
+ */
+public class TemporaryFileStorage extends FileStorageComponent {
+
+    public TemporaryFileStorage(File storageBase) {
+        super(storageBase);
+    }
+}
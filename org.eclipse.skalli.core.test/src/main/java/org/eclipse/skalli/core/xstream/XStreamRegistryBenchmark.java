@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.xstream;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.skalli.commons.CollectionUtils;
+import org.eclipse.skalli.commons.UUIDListConverter;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.TestExtensibleEntityBase;
+import org.eclipse.skalli.testutil.TestExtension;
+import org.eclipse.skalli.testutil.TestExtension1;
+import org.junit.Test;
+
+import com.thoughtworks.xstream.converters.Converter;
+
+/**
+ * Compares the cost of constructing a new XStream instance per call with the
+ * cost of retrieving a cached instance from the {@link XStreamRegistry}.
+ * <p>
+ * The number of iterations can be changed with the system property
+ * <tt>skalli.benchmark.iterations</tt>.
+ */
+@SuppressWarnings("nls")
+public class XStreamRegistryBenchmark extends BenchmarkBase {
+
+    private static final int ITERATIONS = getParameter("iterations", 2000);
+
+    @Test
+    public void benchmarkGetXStream() {
+        Map<String, Class<?>> aliases = new HashMap<String, Class<?>>();
+        aliases.put("ext1", TestExtension.class);
+        aliases.put("ext2", TestExtension1.class);
+        Set<ClassLoader> classLoaders = new HashSet<ClassLoader>();
+        classLoaders.add(TestExtensibleEntityBase.class.getClassLoader());
+        classLoaders.add(TestExtension.class.getClassLoader());
+
+        // warm up class loading and JIT
+        for (int i = 0; i < ITERATIONS / 10; ++i) {
+            IgnoreUnknownElementsXStream.getXStreamInstance(getConverters(), classLoaders, aliases);
+            XStreamRegistry.getXStream(getConverters(), classLoaders, aliases);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            IgnoreUnknownElementsXStream.getXStreamInstance(getConverters(), classLoaders, aliases);
+        }
+        long constructionTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            XStreamRegistry.getXStream(getConverters(), classLoaders, aliases);
+        }
+        long registryTime = System.nanoTime() - start;
+
+        report("new XStream per call: " + (constructionTime / ITERATIONS / 1000) + " us, "
+                + "XStreamRegistry: " + (registryTime / ITERATIONS / 1000) + " us per call");
+        XStreamRegistry.invalidate();
+    }
+
+    private static Set<Converter> getConverters() {
+        return CollectionUtils.asSet(new NoopConverter(), new UUIDListConverter(), new ExtensionsMapConverter());
+    }
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.xstream;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.skalli.commons.CollectionUtils;
+import org.eclipse.skalli.commons.UUIDListConverter;
+import org.eclipse.skalli.testutil.TestExtension;
+import org.eclipse.skalli.testutil.TestExtension1;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+
+@SuppressWarnings("nls")
+public class XStreamRegistryTest {
+
+    @Before
+    public void setup() {
+        XStreamRegistry.invalidate();
+    }
+
+    @After
+    public void tearDown() {
+        XStreamRegistry.invalidate();
+    }
+
+    @Test
+    public void testSameConfiguration() {
+        Set<ClassLoader> classLoaders = Collections.singleton(TestExtension.class.getClassLoader());
+        XStream xstream = XStreamRegistry.getXStream(getConverters(), classLoaders, getAliases());
+        Assert.assertNotNull(xstream);
+        Assert.assertTrue(xstream instanceof IgnoreUnknownElementsXStream);
+
+        // new instances of the same converters, class loaders and aliases
+        Set<ClassLoader> otherClassLoaders = Collections.singleton(TestExtension.class.getClassLoader());
+        Assert.assertSame(xstream, XStreamRegistry.getXStream(getConverters(), otherClassLoaders, getAliases()));
+        Assert.assertEquals(1, XStreamRegistry.size());
+    }
+
+    @Test
+    public void testDifferentConfigurations() {
+        XStream xstream = XStreamRegistry.getXStream(getConverters(), null, getAliases());
+        Map<String, Class<?>> otherAliases = getAliases();
+        otherAliases.put("ext2", TestExtension.class);
+        Assert.assertNotSame(xstream, XStreamRegistry.getXStream(getConverters(), null, otherAliases));
+        Assert.assertNotSame(xstream, XStreamRegistry.getXStream(
+                CollectionUtils.asSet(new NoopConverter()), null, getAliases()));
+        Assert.assertNotSame(xstream, XStreamRegistry.getXStream(getConverters(),
+                Collections.singleton(TestExtension.class.getClassLoader()), getAliases()));
+        Assert.assertNotSame(xstream, XStreamRegistry.getXStream(null, null, null));
+        Assert.assertEquals(5, XStreamRegistry.size());
+    }
+
+    @Test
+    public void testInvalidate() {
+        XStream xstream = XStreamRegistry.getXStream(getConverters(), null, getAliases());
+        XStreamRegistry.invalidate();
+        Assert.assertEquals(0, XStreamRegistry.size());
+        Assert.assertNotSame(xstream, XStreamRegistry.getXStream(getConverters(), null, getAliases()));
+    }
+
+    @Test
+    public void testAliasesApplied() {
+        XStream xstream = XStreamRegistry.getXStream(getConverters(), null, getAliases());
+        Assert.assertTrue(xstream.toXML(new TestExtension1()).startsWith("<ext2"));
+    }
+
+    private static Map<String, Class<?>> getAliases() {
+        Map<String, Class<?>> aliases = new HashMap<String, Class<?>>();
+        aliases.put("ext1", TestExtension.class);
+        aliases.put("ext2", TestExtension1.class);
+        return aliases;
+    }
+
+    private static Set<Converter> getConverters() {
+        return CollectionUtils.asSet(new NoopConverter(), new UUIDListConverter(), new ExtensionsMapConverter());
+    }
+}
@@ -57,6 +57,10 @@ public class ConfigurationComponent implements ConfigurationService {
     private static Map<Class<?>, Object> configCache =
             new ConcurrentHashMap<Class<?>, Object>();
 
+    // XStream instances are expensive to create but thread-safe once configured
+    private Map<Class<?>, XStream> xstreams =
+            new ConcurrentHashMap<Class<?>, XStream>();
+
     public ConfigurationComponent() {
         storageServiceClassName = BundleProperties.getProperty(
                 BundleProperties.PROPERTY_STORAGE_SERVICE, FileStorageComponent.class.getName());
@@ -110,6 +114,7 @@ public class ConfigurationComponent implements ConfigurationService {
         byConfigClass.put(configSection.getConfigClass(), configSection);
         byStorageKey.put(configSection.getStorageKey(), configSection);
         configCache.remove(configSection.getConfigClass());
+        xstreams.remove(configSection.getConfigClass());
         notifyCustomizationChanged(configSection);
         LOG.info(MessageFormat.format("bindConfigSection({0})", configSection)); //$NON-NLS-1$
     }
@@ -119,6 +124,7 @@ public class ConfigurationComponent implements ConfigurationService {
         byConfigClass.remove(configSection.getConfigClass());
         byStorageKey.remove(configSection.getStorageKey());
         configCache.remove(configSection.getConfigClass());
+        xstreams.remove(configSection.getConfigClass());
         notifyCustomizationChanged(configSection);
     }
 
@@ -224,10 +230,14 @@ public class ConfigurationComponent implements ConfigurationService {
     }
 
     private XStream getXStream(Class<?> customizationClass) {
-        XStream xstream = new XStream();
-        ClassLoader classLoader = customizationClass.getClassLoader();
-        if (classLoader != null) {
-            xstream.setClassLoader(new CompositeEntityClassLoader(Collections.singleton(classLoader)));
+        XStream xstream = xstreams.get(customizationClass);
+        if (xstream == null) {
+            xstream = new XStream();
+            ClassLoader classLoader = customizationClass.getClassLoader();
+            if (classLoader != null) {
+                xstream.setClassLoader(new CompositeEntityClassLoader(Collections.singleton(classLoader)));
+            }
+            xstreams.put(customizationClass, xstream);
         }
         return xstream;
     }
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.skalli.model.EntityBase;
+
+/**
+ * Index of the children of parent entities, which maintains the
+ * {@link EntityBase#getFirstChild() first child} and {@link EntityBase#getNextSibling() next sibling}
+ * pointers of entities.
+ * <p>
+ * For each parent the index keeps a doubly linked list of its children and a map from child
+ * identifiers to list nodes, so that children can be inserted, replaced and removed in constant time
+ * instead of walking the siblings chain. The order of the siblings chain is the order in which
+ * children have been inserted; replacing a child keeps its position.
+ * <p>
+ * The index is safe for concurrent modification of the children of different parents.
+ * Modifications of the children of the same parent must be serialized by the caller.
+ */
+class ChildIndex {
+
+    private static class Node {
+        EntityBase entity;
+        Node prev;
+        Node next;
+
+        Node(EntityBase entity) {
+            this.entity = entity;
+        }
+    }
+
+    private static class Children {
+        final Map<UUID, Node> nodes = new HashMap<UUID, Node>();
+        Node head;
+        Node tail;
+    }
+
+    private final ConcurrentMap<UUID, Children> index = new ConcurrentHashMap<UUID, Children>();
+
+    /**
+     * Inserts the given child into the children of the given parent. If there already is
+     * a child with the same identifier, that child is replaced with the given instance.
+     * Otherwise the child is appended to the end of the siblings chain.
+     *
+     * @param parentEntity  the parent entity, never <code>null</code>.
+     * @param entity  the child entity to insert or replace, never <code>null</code>.
+     */
+    void insert(EntityBase parentEntity, EntityBase entity) {
+        Children children = index.get(parentEntity.getUuid());
+        if (children == null) {
+            children = new Children();
+            Children existing = index.putIfAbsent(parentEntity.getUuid(), children);
+            if (existing != null) {
+                children = existing;
+            }
+        }
+        Node node = children.nodes.get(entity.getUuid());
+        if (node == null) {
+            node = new Node(entity);
+            node.prev = children.tail;
+            if (children.tail != null) {
+                children.tail.next = node;
+            } else {
+                children.head = node;
+            }
+            children.tail = node;
+            children.nodes.put(entity.getUuid(), node);
+        } else {
+            node.entity = entity;
+        }
+        link(parentEntity, node.prev, entity);
+        entity.setNextSibling(node.next != null ? node.next.entity : null);
+    }
+
+    /**
+     * Removes the child with the same identifier as the given entity from the children
+     * of the given parent. If there is no such child, this method does nothing.
+     *
+     * @param parentEntity  the parent entity, never <code>null</code>.
+     * @param entity  the child entity to remove, never <code>null</code>.
+     */
+    void remove(EntityBase parentEntity, EntityBase entity) {
+        Children children = index.get(parentEntity.getUuid());
+        if (children == null) {
+            return;
+        }
+        Node node = children.nodes.remove(entity.getUuid());
+        if (node == null) {
+            return;
+        }
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            children.head = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        } else {
+            children.tail = node.prev;
+        }
+        link(parentEntity, node.prev, node.next != null ? node.next.entity : null);
+        node.entity.setNextSibling(null);
+        if (children.nodes.isEmpty()) {
+            index.remove(parentEntity.getUuid());
+        }
+    }
+
+    /**
+     * Returns the number of children of the given parent.
+     */
+    int size(UUID parentId) {
+        Children children = index.get(parentId);
+        return children != null ? children.nodes.size() : 0;
+    }
+
+    /**
+     * Removes the children of the given parents from the index.
+     */
+    void clear(Collection<UUID> parentIds) {
+        for (UUID parentId : parentIds) {
+            index.remove(parentId);
+        }
+    }
+
+    /**
+     * Removes all entries from the index.
+     */
+    void clear() {
+        index.clear();
+    }
+
+    // points the predecessor of a child, or the parent if the child is the first child, to the given entity
+    private static void link(EntityBase parentEntity, Node prev, EntityBase entity) {
+        if (prev != null) {
+            prev.entity.setNextSibling(entity);
+        } else {
+            parentEntity.setFirstChild(entity);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.skalli.services.extension.MigrationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Canonical hashes of the content of an entity document and its extensions, which allow
+ * to decide whether an entity has been changed without reading the stored document and
+ * comparing it with {@link XMLDiff}.
+ * <p>
+ * The hash of an element covers element names and text content only, which is all that
+ * XStream writes. Like <code>XMLDiff</code> it disregards attributes (in particular the
+ * volatile <tt>lastModified</tt>, <tt>modifiedBy</tt> and <tt>version</tt> attributes),
+ * the indentation of elements with child elements, and the order of sibling elements
+ * with different names. The order of sibling elements with the same name, e.g. the items
+ * of a collection, is relevant.
+ * <p>
+ * Instances additionally carry the <tt>lastModified</tt> and <tt>modifiedBy</tt> attributes
+ * of the entity and its extensions, and the checksum of the stored blob they have been
+ * computed from.
+ */
+class ContentHash {
+
+    private static final String ALGORITHM = "MD5"; //$NON-NLS-1$
+    private static final String ENCODING = "UTF-8"; //$NON-NLS-1$
+
+    // sorts elements by name, but keeps the order of elements with the same name
+    private static final Comparator<Element> BY_NAME = new Comparator<Element>() {
+        @Override
+        public int compare(Element e1, Element e2) {
+            return e1.getNodeName().compareTo(e2.getNodeName());
+        }
+    };
+
+    private final String checksum;
+    private final String hash;
+    private final String lastModified;
+    private final String lastModifiedBy;
+    private final Map<String, String[]> extensions;
+
+    private ContentHash(String checksum, String hash, String lastModified, String lastModifiedBy,
+            Map<String, String[]> extensions) {
+        this.checksum = checksum;
+        this.hash = hash;
+        this.lastModified = lastModified;
+        this.lastModifiedBy = lastModifiedBy;
+        this.extensions = extensions;
+    }
+
+    /**
+     * Computes the hashes of the given entity document and its extensions.
+     *
+     * @param checksum  the MD5 checksum of the blob the document has been read from
+     * or will be written to, or <code>null</code>.
+     * @param doc  the entity document.
+     * @param aliases  the aliases of the extensions.
+     */
+    static ContentHash of(String checksum, Document doc, Map<String, Class<?>> aliases)
+            throws MigrationException {
+        Element docElement = doc.getDocumentElement();
+        Map<String, Element> extensionElements = XStreamPersistence.getExtensionsByAlias(doc, aliases);
+        Map<Element, String> extensionHashes = new IdentityHashMap<Element, String>();
+        for (Element extensionElement : extensionElements.values()) {
+            extensionHashes.put(extensionElement, null);
+        }
+        MessageDigest digest = newDigest();
+        String hash = hexOf(digest(docElement, digest, extensionHashes));
+        Map<String, String[]> extensions = new HashMap<String, String[]>();
+        for (Map.Entry<String, Element> entry : extensionElements.entrySet()) {
+            Element extensionElement = entry.getValue();
+            String extensionHash = extensionHashes.get(extensionElement);
+            if (extensionHash == null) {
+                // not a descendant of the document element
+                extensionHash = hexOf(digest(extensionElement, digest, null));
+            }
+            extensions.put(entry.getKey(), new String[] { extensionHash,
+                    XStreamPersistence.getLastModifiedAttribute(extensionElement),
+                    XStreamPersistence.getLastModifiedByAttribute(extensionElement) });
+        }
+        return new ContentHash(checksum, hash, XStreamPersistence.getLastModifiedAttribute(docElement),
+                XStreamPersistence.getLastModifiedByAttribute(docElement), extensions);
+    }
+
+    /**
+     * Returns a copy of these hashes with the given checksum and the <tt>lastModified</tt> and
+     * <tt>modifiedBy</tt> attributes of the given document. Since hashes disregard attributes,
+     * this allows to compute the hashes of a document before its attributes are post-processed.
+     */
+    ContentHash withAttributesOf(String checksum, Document doc, Map<String, Class<?>> aliases)
+            throws MigrationException {
+        Element docElement = doc.getDocumentElement();
+        Map<String, String[]> updatedExtensions = new HashMap<String, String[]>();
+        for (Map.Entry<String, Element> entry : XStreamPersistence.getExtensionsByAlias(doc, aliases).entrySet()) {
+            Element extensionElement = entry.getValue();
+            updatedExtensions.put(entry.getKey(), new String[] { getExtensionHash(entry.getKey()),
+                    XStreamPersistence.getLastModifiedAttribute(extensionElement),
+                    XStreamPersistence.getLastModifiedByAttribute(extensionElement) });
+        }
+        return new ContentHash(checksum, hash, XStreamPersistence.getLastModifiedAttribute(docElement),
+                XStreamPersistence.getLastModifiedByAttribute(docElement), updatedExtensions);
+    }
+
+    /**
+     * Returns the canonical hash of the given element.
+     */
+    static String hash(Element element) {
+        return hexOf(digest(element, newDigest(), null));
+    }
+
+    /**
+     * Returns the checksum of the blob from which the hashes have been computed,
+     * or <code>null</code>.
+     */
+    String getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Returns the hash of the entity document.
+     */
+    String getHash() {
+        return hash;
+    }
+
+    String getLastModified() {
+        return lastModified;
+    }
+
+    String getLastModifiedBy() {
+        return lastModifiedBy;
+    }
+
+    /**
+     * Returns the hash of the extension with the given alias, or <code>null</code>
+     * if the entity has no such extension.
+     */
+    String getExtensionHash(String alias) {
+        String[] extension = extensions.get(alias);
+        return extension != null ? extension[0] : null;
+    }
+
+    String getExtensionLastModified(String alias) {
+        String[] extension = extensions.get(alias);
+        return extension != null ? extension[1] : null;
+    }
+
+    String getExtensionLastModifiedBy(String alias) {
+        String[] extension = extensions.get(alias);
+        return extension != null ? extension[2] : null;
+    }
+
+    private static byte[] digest(Element element, MessageDigest digest, Map<Element, String> recorded) {
+        List<Element> children = new ArrayList<Element>();
+        StringBuilder text = new StringBuilder();
+        NodeList nodes = element.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); ++i) {
+            Node node = nodes.item(i);
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                children.add((Element) node);
+            } else if (node.getNodeType() == Node.TEXT_NODE) {
+                text.append(node.getNodeValue());
+            }
+        }
+        // hash the children first, since the digest is reused
+        List<byte[]> childDigests = new ArrayList<byte[]>(children.size());
+        if (children.size() > 0) {
+            Collections.sort(children, BY_NAME);
+            for (Element child : children) {
+                childDigests.add(digest(child, digest, recorded));
+            }
+        }
+        digest.reset();
+        update(digest, element.getNodeName());
+        if (children.isEmpty()) {
+            digest.update((byte) 0);
+            update(digest, text.toString());
+        } else {
+            digest.update((byte) 1);
+            if (StringUtils.isNotBlank(text.toString())) {
+                update(digest, text.toString());
+            }
+            digest.update((byte) 0);
+            for (byte[] childDigest : childDigests) {
+                digest.update(childDigest);
+            }
+        }
+        byte[] result = digest.digest();
+        if (recorded != null && recorded.containsKey(element)) {
+            recorded.put(element, hexOf(result));
+        }
+        return result;
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        try {
+            digest.update(s.getBytes(ENCODING));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hexOf(byte[] bytes) {
+        return new String(Hex.encodeHex(bytes));
+    }
+}
@@ -12,6 +12,7 @@ package org.eclipse.skalli.core.persistence;
 
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -19,31 +20,81 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.eclipse.skalli.model.EntityBase;
 import org.eclipse.skalli.model.EntityFilter;
 
 /**
- * Most trivial implementation of an in-memory cache for all kind of entities.
+ * Thread-safe in-memory cache for all kind of entities.
  * <p>
  * For any given entity class, there is a separate cache that can store
  * instances of the entity class alongside with instances of derived classes.
  * Note however, that the accessor methods of this class should be used
  * with the base class as parameter only, otherwise these accessors likely
  * will fail with {@link ClassCastException class cast exceptions}.
+ * <p>
+ * Read operations do not lock. The mapping of entity classes to the registered
+ * base classes is calculated only once per entity class. Bulk reads return immutable
+ * snapshots of the cached entities, which are created only once after each modification.
+ * Modifications of different entity classes do not block each other.
  */
 class EntityCache {
 
-    private final Map<Class<? extends EntityBase>, Map<UUID, EntityBase>> cache =
-            new HashMap<Class<? extends EntityBase>, Map<UUID, EntityBase>>(0);
+    /**
+     * The entities of a registered entity class.
+     */
+    private static class Bucket {
+        final Class<? extends EntityBase> entityClass;
+        final ConcurrentMap<UUID, EntityBase> entities = new ConcurrentHashMap<UUID, EntityBase>();
+
+        // incremented after each modification of the entities; writes guarded by this
+        volatile int modCount;
+
+        // immutable list of entities, valid if its modCount matches the modCount of the bucket
+        volatile Snapshot snapshot;
+
+        Bucket(Class<? extends EntityBase> entityClass) {
+            this.entityClass = entityClass;
+        }
+    }
+
+    private static class Snapshot {
+        final int modCount;
+        final List<EntityBase> entities;
+
+        Snapshot(int modCount, List<EntityBase> entities) {
+            this.modCount = modCount;
+            this.entities = entities;
+        }
+    }
+
+    /**
+     * The registered entity classes. Registering a new entity class replaces the registry,
+     * so that the class mapping calculated for the previous registry is discarded.
+     */
+    private static class Registry {
+        final Map<Class<? extends EntityBase>, Bucket> buckets;
+        final ConcurrentMap<Class<?>, Class<? extends EntityBase>> mapping =
+                new ConcurrentHashMap<Class<?>, Class<? extends EntityBase>>();
+
+        Registry(Map<Class<? extends EntityBase>, Bucket> buckets) {
+            this.buckets = buckets;
+        }
+    }
+
+    // writes guarded by this
+    private volatile Registry registry =
+            new Registry(Collections.<Class<? extends EntityBase>, Bucket>emptyMap());
 
     /**
      * Checks if the given entity class has been registered with this cache before.
      *
      * @param entityClass  the class of the entity to check.
      */
-    synchronized <T extends EntityBase> boolean isRegistered(Class<T> entityClass) {
-        return cache.get(mapEntityType(entityClass)) != null;
+    <T extends EntityBase> boolean isRegistered(Class<T> entityClass) {
+        return getBucket(entityClass) != null;
     }
 
     /**
@@ -55,13 +106,14 @@ class EntityCache {
      * entity class) has already been registered before.
      */
     synchronized <T extends EntityBase> void registerEntityClass(Class<T> entityClass) {
-        Map<UUID, EntityBase> entityMap = cache.get(mapEntityType(entityClass));
-        if (entityMap != null) {
+        if (getBucket(entityClass) != null) {
             throw new IllegalArgumentException(MessageFormat.format(
                     "Entity type \"{0}\" already registered", entityClass.getName()));
         }
-        entityMap = new HashMap<UUID, EntityBase>(0);
-        cache.put(entityClass, entityMap);
+        Map<Class<? extends EntityBase>, Bucket> buckets =
+                new HashMap<Class<? extends EntityBase>, Bucket>(registry.buckets);
+        buckets.put(entityClass, new Bucket(entityClass));
+        registry = new Registry(Collections.unmodifiableMap(buckets));
     }
 
     /**
@@ -71,13 +123,24 @@ class EntityCache {
      *
      * @return  a base class of the given entity class, or the entity class itself.
      */
-    synchronized <T extends EntityBase> Class<? extends EntityBase> mapEntityType(Class<T> entityClass) {
-        for (Class<? extends EntityBase> knownEntityClass: cache.keySet()) {
-            if (knownEntityClass.isAssignableFrom(entityClass)) {
-                return knownEntityClass;
+    <T extends EntityBase> Class<? extends EntityBase> mapEntityType(Class<T> entityClass) {
+        return mapEntityType(registry, entityClass);
+    }
+
+    private static Class<? extends EntityBase> mapEntityType(Registry registry,
+            Class<? extends EntityBase> entityClass) {
+        Class<? extends EntityBase> mappedClass = registry.mapping.get(entityClass);
+        if (mappedClass == null) {
+            mappedClass = entityClass;
+            for (Class<? extends EntityBase> knownEntityClass : registry.buckets.keySet()) {
+                if (knownEntityClass.isAssignableFrom(entityClass)) {
+                    mappedClass = knownEntityClass;
+                    break;
+                }
             }
+            registry.mapping.put(entityClass, mappedClass);
         }
-        return entityClass;
+        return mappedClass;
     }
 
     /**
@@ -85,9 +148,9 @@ class EntityCache {
      *
      * @param entityClass  the class of the entity.
      */
-    synchronized <T extends EntityBase> int size(Class<T> entityClass) {
-        Map<UUID, EntityBase> entityMap = cache.get(mapEntityType(entityClass));
-        return entityMap != null ? entityMap.size() : 0;
+    <T extends EntityBase> int size(Class<T> entityClass) {
+        Bucket bucket = getBucket(entityClass);
+        return bucket != null ? bucket.entities.size() : 0;
     }
 
     /**
@@ -98,16 +161,19 @@ class EntityCache {
      * @throws IllegalStateException  if the entity class has not
      * yet been {@link #registerEntityClass(Class) registered}.
      */
-    synchronized void putEntity(EntityBase entity) {
+    void putEntity(EntityBase entity) {
         if (entity == null) {
             return;
         }
-        Map<UUID, EntityBase> entityMap = cache.get(mapEntityType(entity.getClass()));
-        if (entityMap == null) {
+        Bucket bucket = getBucket(entity.getClass());
+        if (bucket == null) {
             throw new IllegalStateException(MessageFormat.format(
                     "Entity type \"{0}\" has not been registered", entity.getClass().getName()));
         }
-        entityMap.put(entity.getUuid(), entity);
+        synchronized (bucket) {
+            bucket.entities.put(entity.getUuid(), entity);
+            ++bucket.modCount;
+        }
     }
 
     /**
@@ -116,13 +182,17 @@ class EntityCache {
      *
      * @param entity  the entity to remove.
      */
-    synchronized void removeEntity(EntityBase entity) {
+    void removeEntity(EntityBase entity) {
         if (entity == null) {
             return;
         }
-        Map<UUID, EntityBase> entityMap = cache.get(mapEntityType(entity.getClass()));
-        if (entityMap != null) {
-            entityMap.remove(entity.getUuid());
+        Bucket bucket = getBucket(entity.getClass());
+        if (bucket != null) {
+            synchronized (bucket) {
+                if (bucket.entities.remove(entity.getUuid()) != null) {
+                    ++bucket.modCount;
+                }
+            }
         }
     }
 
@@ -139,9 +209,9 @@ class EntityCache {
      * @throws ClassCastException  if the resulting cache entry cannot be
      * {@link Class#cast(Object) cast} to the requested <code>entityClass</code>.
      */
-    synchronized <T extends EntityBase> T getEntity(Class<T> entityClass, UUID uuid) {
-        Map<UUID, EntityBase> entityMap = cache.get(mapEntityType(entityClass));
-        return entityMap != null ? entityClass.cast(entityMap.get(uuid)) : null;
+    <T extends EntityBase> T getEntity(Class<T> entityClass, UUID uuid) {
+        Bucket bucket = getBucket(entityClass);
+        return bucket != null && uuid != null ? entityClass.cast(bucket.entities.get(uuid)) : null;
     }
 
     /**
@@ -156,10 +226,10 @@ class EntityCache {
      * @throws ClassCastException  if a cache entry cannot be
      * {@link Class#cast(Object) cast} to the requested <code>entityClass</code>.
      */
-    synchronized <T extends EntityBase> T getEntity(Class<T> entityClass, EntityFilter<T> filter) {
-        Map<UUID, EntityBase> entityMap = cache.get(mapEntityType(entityClass));
-        if (entityMap != null && entityMap.size() > 0) {
-            for (EntityBase value : entityMap.values()) {
+    <T extends EntityBase> T getEntity(Class<T> entityClass, EntityFilter<T> filter) {
+        Bucket bucket = getBucket(entityClass);
+        if (bucket != null) {
+            for (EntityBase value : getSnapshot(bucket)) {
                 T entity = entityClass.cast(value);
                 if (filter.accept(entityClass, entity)) {
                     return entity;
@@ -174,21 +244,26 @@ class EntityCache {
      *
      * @param <T> a type derived from <code>EntityBase</code>.
      * @param entityClass  the class of the entity.
-     * @return all entities of the given type, or an empty list.
+     * @return an immutable snapshot of all entities of the given type, or an empty list.
      *
      * @throws ClassCastException  if a cache entry cannot be
      * {@link Class#cast(Object) cast} to the requested <code>entityClass</code>.
      */
-    synchronized <T extends EntityBase> List<T> getEntities(Class<T> entityClass) {
-        Map<UUID, EntityBase> entityMap = cache.get(mapEntityType(entityClass));
-        if (entityMap == null || entityMap.isEmpty()) {
+    @SuppressWarnings("unchecked")
+    <T extends EntityBase> List<T> getEntities(Class<T> entityClass) {
+        Bucket bucket = getBucket(entityClass);
+        if (bucket == null) {
             return Collections.emptyList();
         }
-        ArrayList<T> result = new ArrayList<T>();
-        for (EntityBase value : entityMap.values()) {
-            result.add(entityClass.cast(value));
+        List<EntityBase> snapshot = getSnapshot(bucket);
+        if (!entityClass.isAssignableFrom(bucket.entityClass)) {
+            // the entities of the bucket are instances of a base class of the requested class,
+            // so check that all of them can be cast to the requested class
+            for (EntityBase value : snapshot) {
+                entityClass.cast(value);
+            }
         }
-        return result;
+        return (List<T>) snapshot;
     }
 
     /**
@@ -205,11 +280,11 @@ class EntityCache {
      * @throws ClassCastException  if a cache entry cannot be
      * {@link Class#cast(Object) cast} to the requested <code>entityClass</code>.
      */
-    synchronized <T extends EntityBase> List<T> getEntities(Class<T> entityClass, EntityFilter<T> filter) {
+    <T extends EntityBase> List<T> getEntities(Class<T> entityClass, EntityFilter<T> filter) {
         ArrayList<T> result = new ArrayList<T>();
-        Map<UUID, EntityBase> entityMap = cache.get(mapEntityType(entityClass));
-        if (entityMap != null && entityMap.size() > 0) {
-            for (EntityBase value : entityMap.values()) {
+        Bucket bucket = getBucket(entityClass);
+        if (bucket != null) {
+            for (EntityBase value : getSnapshot(bucket)) {
                 T entity = entityClass.cast(value);
                 if (filter == null || filter.accept(entityClass, entity)) {
                     result.add(entity);
@@ -231,13 +306,13 @@ class EntityCache {
      * @throws ClassCastException  if a cache entry cannot be
      * {@link Class#cast(Object) cast} to the requested <code>entityClass</code>.
      */
-    synchronized <T extends EntityBase> List<T> getEntities(Class<T> entityClass, Collection<UUID> uuids) {
+    <T extends EntityBase> List<T> getEntities(Class<T> entityClass, Collection<UUID> uuids) {
         ArrayList<T> result = new ArrayList<T>();
         if (uuids != null && uuids.size() > 0) {
-            Map<UUID, EntityBase> entityMap = cache.get(mapEntityType(entityClass));
-            if (entityMap != null && entityMap.size() > 0) {
+            Bucket bucket = getBucket(entityClass);
+            if (bucket != null) {
                 for (UUID uuid : uuids) {
-                    T targetEntity = entityClass.cast(entityMap.get(uuid));
+                    T targetEntity = uuid != null ? entityClass.cast(bucket.entities.get(uuid)) : null;
                     if (targetEntity != null) {
                         result.add(targetEntity);
                     }
@@ -252,31 +327,31 @@ class EntityCache {
      *
      * @param entityClass  the class of the entity.
      *
-     * @return a set of unique identifiers, or an empty set.
+     * @return an unmodifiable set of unique identifiers, or an empty set.
      */
-    synchronized <T extends EntityBase> Set<UUID> keySet(Class<T> entityClass) {
-        Map<UUID, EntityBase> entityMap = cache.get(mapEntityType(entityClass));
-        if (entityMap == null || entityMap.isEmpty()) {
+    <T extends EntityBase> Set<UUID> keySet(Class<T> entityClass) {
+        Bucket bucket = getBucket(entityClass);
+        if (bucket == null) {
             return Collections.emptySet();
         }
-        return entityMap.keySet();
+        return Collections.unmodifiableSet(bucket.entities.keySet());
     }
 
     /**
      * Returns the entity classes managed by this cache.
      *
-     * @return a set of entity classes, or an empty set.
+     * @return an unmodifiable set of entity classes, or an empty set.
      */
-    synchronized Set<Class<? extends EntityBase>> getEntityTypes() {
-        return cache.keySet();
+    Set<Class<? extends EntityBase>> getEntityTypes() {
+        return registry.buckets.keySet();
     }
 
     /**
      * Clears the entity cache.
      */
-    synchronized void clearAll() {
-        for (Map<UUID, EntityBase> entityMap: cache.values()) {
-            entityMap.clear();
+    void clearAll() {
+        for (Bucket bucket : registry.buckets.values()) {
+            clear(bucket);
         }
     }
 
@@ -284,10 +359,36 @@ class EntityCache {
      * Clears the entity cache for the given class of entities.
      * @param entityClass  the class of the entities.
      */
-    synchronized <T extends EntityBase> void clearAll(Class<T> entityClass) {
-        Map<UUID, EntityBase> entityMap = cache.get(mapEntityType(entityClass));
-        if (entityMap != null) {
-            entityMap.clear();
+    <T extends EntityBase> void clearAll(Class<T> entityClass) {
+        Bucket bucket = getBucket(entityClass);
+        if (bucket != null) {
+            clear(bucket);
+        }
+    }
+
+    private Bucket getBucket(Class<? extends EntityBase> entityClass) {
+        Registry current = registry;
+        return current.buckets.get(mapEntityType(current, entityClass));
+    }
+
+    private static void clear(Bucket bucket) {
+        synchronized (bucket) {
+            bucket.entities.clear();
+            ++bucket.modCount;
+        }
+    }
+
+    private static List<EntityBase> getSnapshot(Bucket bucket) {
+        // read the modification count before the entities, so that a snapshot
+        // never claims to contain modifications it might have missed
+        int modCount = bucket.modCount;
+        Snapshot snapshot = bucket.snapshot;
+        if (snapshot == null || snapshot.modCount != modCount) {
+            List<EntityBase> entities = Collections.unmodifiableList(
+                    Arrays.asList(bucket.entities.values().toArray(new EntityBase[0])));
+            snapshot = new Snapshot(modCount, entities);
+            bucket.snapshot = snapshot;
         }
+        return snapshot.entities;
     }
 }
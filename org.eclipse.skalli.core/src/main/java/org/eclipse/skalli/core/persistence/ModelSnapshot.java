@@ -0,0 +1,383 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.skalli.model.EntityBase;
+import org.eclipse.skalli.model.ExtensibleEntityBase;
+import org.eclipse.skalli.model.ExtensionEntityBase;
+import org.eclipse.skalli.services.extension.DataMigration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.XStreamException;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.io.binary.BinaryStreamReader;
+import com.thoughtworks.xstream.io.binary.BinaryStreamWriter;
+
+/**
+ * Binary snapshot of the entities of a certain category as they have been loaded
+ * from storage.
+ * <p>
+ * Each entry of a snapshot carries the {@link Fingerprint fingerprint} (last modification
+ * timestamp and checksum) of the blob from which the entity had been created, the entity itself
+ * in XStream's binary format and the transient <tt>lastModified</tt>/<tt>lastModifiedBy</tt>
+ * attributes of the entity and its extensions. An entry may replace the parsing, migration and
+ * conversion of a blob only if the fingerprint of the blob in storage still matches.
+ * <p>
+ * A snapshot as a whole is discarded if its format version or signature does not match,
+ * i.e. if the model version of the entity, aliases, converters or data migrations have
+ * been changed since the snapshot has been written.
+ */
+class ModelSnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ModelSnapshot.class);
+
+    private static final int MAGIC = 0x534B534E; // "SKSN"
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Fingerprint of a blob in storage.
+     */
+    static class Fingerprint {
+        private final long lastModified;
+        private final String checksum;
+
+        Fingerprint(long lastModified, String checksum) {
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        String getChecksum() {
+            return checksum;
+        }
+
+        static Fingerprint of(long lastModified, byte[] blob) {
+            return new Fingerprint(lastModified, DigestUtils.md5Hex(blob));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (lastModified ^ (lastModified >>> 32)) + checksum.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint other = (Fingerprint) obj;
+            return lastModified == other.lastModified && checksum.equals(other.checksum);
+        }
+
+        @Override
+        public String toString() {
+            return checksum + "@" + lastModified; //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Entry of a snapshot.
+     */
+    static class Entry {
+        private final Fingerprint fingerprint;
+        private final String lastModified;
+        private final String lastModifiedBy;
+        private final Map<String, String[]> extensions;
+        private final byte[] blob;
+
+        Entry(Fingerprint fingerprint, String lastModified, String lastModifiedBy,
+                Map<String, String[]> extensions, byte[] blob) {
+            this.fingerprint = fingerprint;
+            this.lastModified = lastModified;
+            this.lastModifiedBy = lastModifiedBy;
+            this.extensions = extensions;
+            this.blob = blob;
+        }
+
+        Fingerprint getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * Restores the entity stored in this entry.
+         *
+         * @param xstream  the XStream instance to use for unmarshalling. Must be
+         * configured with the same aliases, converters and class loaders that had been used
+         * when the snapshot had been written.
+         *
+         * @return the restored entity, or <code>null</code> if the entity could not be
+         * unmarshalled, e.g. because a class is no longer available.
+         */
+        EntityBase restore(XStream xstream) {
+            EntityBase entity;
+            try {
+                entity = (EntityBase) xstream.unmarshal(new BinaryStreamReader(new ByteArrayInputStream(blob)));
+            } catch (XStreamException e) {
+                LOG.warn("Failed to restore entity from snapshot", e);
+                return null;
+            } catch (ClassCastException e) {
+                LOG.warn("Failed to restore entity from snapshot", e);
+                return null;
+            }
+            // restore transient back references of extensions
+            EntityHelper.normalize(entity);
+            entity.setLastModified(lastModified);
+            entity.setLastModifiedBy(lastModifiedBy);
+            if (entity instanceof ExtensibleEntityBase) {
+                for (ExtensionEntityBase extension : ((ExtensibleEntityBase) entity).getAllExtensions()) {
+                    String[] attributes = extensions.get(extension.getClass().getName());
+                    if (attributes != null) {
+                        extension.setLastModified(attributes[0]);
+                        extension.setLastModifiedBy(attributes[1]);
+                    }
+                }
+            }
+            return entity;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+
+    private ModelSnapshot(Map<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Returns the snapshot entry for the given key, but only if the fingerprint of
+     * the entry matches the given fingerprint.
+     *
+     * @param key  the key of the entity.
+     * @param fingerprint  the fingerprint of the blob currently in storage.
+     *
+     * @return  a matching entry, or <code>null</code>.
+     */
+    Entry getEntry(String key, Fingerprint fingerprint) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.getFingerprint().equals(fingerprint) ? entry : null;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Calculates the signature of a snapshot from the model version of the entity and
+     * the aliases, converters and data migrations that are applied when loading entities from
+     * storage. A snapshot can only be reused if none of these has been changed.
+     */
+    static String signatureOf(int modelVersion, Map<String, Class<?>> aliases, Set<Converter> converters,
+            Set<DataMigration> migrations) {
+        Set<String> parts = new TreeSet<String>();
+        if (aliases != null) {
+            for (Map.Entry<String, Class<?>> alias : aliases.entrySet()) {
+                parts.add("alias:" + alias.getKey() + "=" + alias.getValue().getName()); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+        }
+        if (converters != null) {
+            for (Converter converter : converters) {
+                parts.add("converter:" + converter.getClass().getName()); //$NON-NLS-1$
+            }
+        }
+        if (migrations != null) {
+            for (DataMigration migration : migrations) {
+                parts.add("migration:" + migration.getClass().getName() + "@" + migration.getFromVersion()); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(modelVersion);
+        for (String part : parts) {
+            sb.append(';').append(part);
+        }
+        return DigestUtils.md5Hex(sb.toString());
+    }
+
+    /**
+     * Reads a snapshot from the given file.
+     *
+     * @param file  the snapshot file.
+     * @param modelVersion  the current model version of the entities.
+     * @param signature  the expected signature of the snapshot, see
+     * {@link #signatureOf(int, Map, Set, Set)}.
+     *
+     * @return the snapshot, or <code>null</code> if there is no such file, or
+     * the snapshot is outdated or corrupt.
+     */
+    static ModelSnapshot read(File file, int modelVersion, String signature) {
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                LOG.info(MessageFormat.format("Ignoring snapshot {0}: unknown format", file.getAbsolutePath()));
+                return null;
+            }
+            if (in.readInt() != modelVersion || !signature.equals(in.readUTF())) {
+                LOG.info(MessageFormat.format("Ignoring snapshot {0}: model has been changed", file.getAbsolutePath()));
+                return null;
+            }
+            int size = in.readInt();
+            Map<String, Entry> entries = new HashMap<String, Entry>(size);
+            for (int i = 0; i < size; ++i) {
+                String key = in.readUTF();
+                Fingerprint fingerprint = new Fingerprint(in.readLong(), in.readUTF());
+                String lastModified = readString(in);
+                String lastModifiedBy = readString(in);
+                int extensionCount = in.readInt();
+                Map<String, String[]> extensions = new HashMap<String, String[]>(extensionCount);
+                for (int j = 0; j < extensionCount; ++j) {
+                    extensions.put(in.readUTF(), new String[] { readString(in), readString(in) });
+                }
+                byte[] blob = new byte[in.readInt()];
+                in.readFully(blob);
+                entries.put(key, new Entry(fingerprint, lastModified, lastModifiedBy, extensions, blob));
+            }
+            return new ModelSnapshot(entries);
+        } catch (IOException e) {
+            LOG.warn(MessageFormat.format("Ignoring snapshot {0}: file is corrupt", file.getAbsolutePath()), e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the given entities. Entities for which no fingerprint is
+     * available, e.g. entities that have been changed since they had been loaded from storage,
+     * are not included in the snapshot.
+     * <p>
+     * The snapshot is written to a temporary file first, which then replaces the given file.
+     *
+     * @param file  the snapshot file.
+     * @param modelVersion  the current model version of the entities.
+     * @param signature  the signature of the snapshot, see {@link #signatureOf(int, Map, Set, Set)}.
+     * @param entities  the entities to write.
+     * @param fingerprints  the fingerprints of the blobs from which the entities had been
+     * loaded, by entity key.
+     * @param xstream  the XStream instance to use for marshalling.
+     *
+     * @return the number of entities written to the snapshot.
+     *
+     * @throws IOException  if writing the snapshot failed.
+     */
+    static int write(File file, int modelVersion, String signature, Collection<? extends EntityBase> entities,
+            Map<String, Fingerprint> fingerprints, XStream xstream) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        File tmpFile = new File(dir, file.getName() + ".tmp"); //$NON-NLS-1$
+        int count = 0;
+        DataOutputStream out = null;
+        boolean success = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(modelVersion);
+            out.writeUTF(signature);
+            int size = 0;
+            for (EntityBase entity : entities) {
+                if (fingerprints.containsKey(entity.getUuid().toString())) {
+                    ++size;
+                }
+            }
+            out.writeInt(size);
+            ByteArrayOutputStream blob = new ByteArrayOutputStream();
+            for (EntityBase entity : entities) {
+                String key = entity.getUuid().toString();
+                Fingerprint fingerprint = fingerprints.get(key);
+                if (fingerprint == null) {
+                    continue;
+                }
+                blob.reset();
+                BinaryStreamWriter writer = new BinaryStreamWriter(blob);
+                xstream.marshal(entity, writer);
+                writer.flush();
+
+                out.writeUTF(key);
+                out.writeLong(fingerprint.getLastModified());
+                out.writeUTF(fingerprint.getChecksum());
+                writeString(out, entity.getLastModified());
+                writeString(out, entity.getLastModifiedBy());
+                if (entity instanceof ExtensibleEntityBase) {
+                    Collection<ExtensionEntityBase> extensions = ((ExtensibleEntityBase) entity).getAllExtensions();
+                    out.writeInt(extensions.size());
+                    for (ExtensionEntityBase extension : extensions) {
+                        out.writeUTF(extension.getClass().getName());
+                        writeString(out, extension.getLastModified());
+                        writeString(out, extension.getLastModifiedBy());
+                    }
+                } else {
+                    out.writeInt(0);
+                }
+                out.writeInt(blob.size());
+                blob.writeTo(out);
+                ++count;
+            }
+            // flush the buffered content explicitly, so that a failure is not swallowed
+            // and an incomplete snapshot never replaces the previous one
+            out.close();
+            success = true;
+        } catch (XStreamException e) {
+            throw new IOException(MessageFormat.format("Failed to write snapshot {0}", file.getAbsolutePath()), e);
+        } finally {
+            IOUtils.closeQuietly(out);
+            if (!success) {
+                tmpFile.delete();
+            }
+        }
+        if (file.exists() && !file.delete() || !tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException(MessageFormat.format("Failed to replace snapshot {0}", file.getAbsolutePath()));
+        }
+        return count;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+}
@@ -10,12 +10,18 @@
  *******************************************************************************/
 package org.eclipse.skalli.core.persistence;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -24,24 +30,46 @@ import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TimeZone;
 import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 import javax.xml.bind.DatatypeConverter;
 import javax.xml.transform.TransformerException;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.eclipse.skalli.commons.StripedLock;
 import org.eclipse.skalli.commons.XMLUtils;
-import org.eclipse.skalli.core.xstream.IgnoreUnknownElementsXStream;
+import org.eclipse.skalli.core.persistence.ModelSnapshot.Fingerprint;
+import org.eclipse.skalli.core.xstream.XStreamRegistry;
 import org.eclipse.skalli.model.EntityBase;
 import org.eclipse.skalli.model.ExtensibleEntityBase;
 import org.eclipse.skalli.model.ExtensionEntityBase;
 import org.eclipse.skalli.model.Historized;
 import org.eclipse.skalli.model.Issuer;
+import org.eclipse.skalli.services.BundleProperties;
 import org.eclipse.skalli.services.entity.EntityService;
 import org.eclipse.skalli.services.extension.DataMigration;
 import org.eclipse.skalli.services.extension.MigrationException;
 import org.eclipse.skalli.services.extension.MigrationUtils;
+import org.eclipse.skalli.services.persistence.JournaledStorage;
+import org.eclipse.skalli.services.persistence.StorageChange;
 import org.eclipse.skalli.services.persistence.StorageConsumer;
 import org.eclipse.skalli.services.persistence.StorageService;
+import org.eclipse.skalli.services.persistence.StorageUpgrade;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
@@ -52,6 +80,8 @@ import org.w3c.dom.NodeList;
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.XStreamException;
 import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.io.xml.DomReader;
+import com.thoughtworks.xstream.io.xml.DomWriter;
 
 /**
  * Helper class for the conversion of entities to XML documents.
@@ -66,6 +96,22 @@ public class XStreamPersistence implements Issuer {
 
     private static final Logger LOG = LoggerFactory.getLogger(XStreamPersistence.class);
 
+    /**
+     * Name of the property that defines the number of worker threads used for the
+     * conversion of entities in {@link #loadEntities(EntityService, Set, Set, Map, Set)}
+     * (<tt>{@value}</tt>). By default, as many worker threads as there are processors
+     * available are used. A value of <tt>1</tt> loads all entities sequentially
+     * on the calling thread.
+     */
+    public static final String PROPERTY_LOAD_THREADS = "skalli.persistence.loadThreads"; //$NON-NLS-1$
+
+    // number of pending conversion tasks per worker thread, before the reader
+    // thread is forced to convert entities itself
+    private static final int QUEUED_TASKS_PER_THREAD = 16;
+
+    // number of entities that are read and written with one batch operation by upgradeEntities()
+    private static final int UPGRADE_BATCH_SIZE = 100;
+
     private static class XStreamConsumer<T extends EntityBase> implements StorageConsumer {
 
         private final EntityService<T> entityService;
@@ -73,36 +119,176 @@ public class XStreamPersistence implements Issuer {
         private final Set<DataMigration> migrations;
         private final Map<String, Class<?>> aliases;
         private final Set<Converter> converters;
+        private final ExecutorService executor;
+        private final ModelSnapshot snapshot;
+        private final XStream snapshotXStream;
+        private final Map<String, Fingerprint> fingerprints;
+        private final Map<String, ContentHash> contentHashes;
+        private final AtomicInteger restored = new AtomicInteger();
+        private final AtomicLong migrationTime = new AtomicLong();
+        private final Set<String> outdatedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
         private List<T> loadEntities = new ArrayList<T>();
+        private List<Future<T>> pendingEntities = new ArrayList<Future<T>>();
 
         public XStreamConsumer(EntityService<T> entityService, Set<ClassLoader> classLoaders,
                 Set<DataMigration> migrations, Map<String, Class<?>> aliases, Set<Converter> converters) {
+            this(entityService, classLoaders, migrations, aliases, converters, null, null, null, null);
+        }
+
+        /**
+         * Creates a consumer that delegates the parsing, migration and conversion
+         * of entities to the given executor, while the storage service keeps on
+         * reading the next items. If no executor is specified, entities are
+         * converted on the thread that calls {@link #consume(String, String, long, InputStream)}.
+         * <p>
+         * If a snapshot is specified, entities are restored from the snapshot instead,
+         * provided that the fingerprint of the blob in storage matches the fingerprint
+         * of the corresponding snapshot entry. The fingerprints of all consumed blobs are
+         * collected in the given <code>fingerprints</code> map, if specified. Likewise, the
+         * {@link ContentHash content hashes} of all parsed blobs are collected in the given
+         * <code>contentHashes</code> map, if specified.
+         */
+        public XStreamConsumer(EntityService<T> entityService, Set<ClassLoader> classLoaders,
+                Set<DataMigration> migrations, Map<String, Class<?>> aliases, Set<Converter> converters,
+                ExecutorService executor, ModelSnapshot snapshot, Map<String, Fingerprint> fingerprints,
+                Map<String, ContentHash> contentHashes) {
             this.entityService = entityService;
             this.classLoaders = classLoaders;
             this.migrations = migrations;
             this.aliases = aliases;
             this.converters = converters;
+            this.executor = executor;
+            this.snapshot = snapshot;
+            this.snapshotXStream = snapshot != null ?
+                    XStreamRegistry.getXStream(converters, classLoaders, aliases) : null;
+            this.fingerprints = fingerprints;
+            this.contentHashes = contentHashes;
+        }
+
+        /**
+         * Returns the number of entities that have been restored from a snapshot.
+         */
+        public int getRestoredCount() {
+            return restored.get();
+        }
+
+        /**
+         * Returns the keys of the entities that have been stored with an older model version
+         * and therefore had to be migrated while loading.
+         */
+        public Set<String> getOutdatedKeys() {
+            return outdatedKeys;
         }
 
-        public List<T> getLoadedEntities() {
+        /**
+         * Returns the accumulated time in milliseconds spent for the migration of outdated entities.
+         * If entities are converted concurrently, this is the sum of the migration times of all
+         * worker threads.
+         */
+        public long getMigrationTime() {
+            return TimeUnit.NANOSECONDS.toMillis(migrationTime.get());
+        }
+
+        /**
+         * Returns the loaded entities in the order in which the storage service
+         * provided them. If entities are converted concurrently, this method waits
+         * until all pending conversions have been finished.
+         *
+         * @throws IOException  if the conversion of an entity failed.
+         */
+        public List<T> getLoadedEntities() throws IOException {
+            try {
+                for (Future<T> pendingEntity : pendingEntities) {
+                    T entity = pendingEntity.get();
+                    if (entity != null) {
+                        loadEntities.add(entity);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for entities to be loaded", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            } finally {
+                pendingEntities.clear();
+            }
             return loadEntities;
         }
 
         @Override
-        public void consume(String category, String key, long lastModified, InputStream stream)
+        public void consume(final String category, final String key, long lastModified, InputStream stream)
                 throws IOException {
+            if (executor == null && snapshot == null && fingerprints == null && contentHashes == null) {
+                T entity = toEntity(category, key, stream, null);
+                if (entity != null) {
+                    loadEntities.add(entity);
+                }
+                return;
+            }
+            // read the blob on the calling thread, since storage services
+            // are free to close the stream after this method returned
+            final byte[] blob = IOUtils.toByteArray(stream);
+            final Fingerprint fingerprint = Fingerprint.of(lastModified, blob);
+            if (fingerprints != null) {
+                fingerprints.put(key, fingerprint);
+            }
+            if (executor == null) {
+                T entity = toEntity(category, key, fingerprint, blob);
+                if (entity != null) {
+                    loadEntities.add(entity);
+                }
+                return;
+            }
+            pendingEntities.add(executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws IOException {
+                    return toEntity(category, key, fingerprint, blob);
+                }
+            }));
+        }
+
+        private T toEntity(String category, String key, Fingerprint fingerprint, byte[] blob) throws IOException {
+            if (snapshot != null) {
+                ModelSnapshot.Entry entry = snapshot.getEntry(key, fingerprint);
+                if (entry != null) {
+                    EntityBase entity = entry.restore(snapshotXStream);
+                    if (entityService.getEntityClass().isInstance(entity)) {
+                        restored.incrementAndGet();
+                        return entityService.getEntityClass().cast(entity);
+                    }
+                }
+            }
+            return toEntity(category, key, new ByteArrayInputStream(blob), fingerprint.getChecksum());
+        }
+
+        private T toEntity(String category, String key, InputStream stream, String checksum) throws IOException {
             try {
                 Document doc = XMLUtils.documentFromStream(stream);
-                preProcessXML(doc, migrations, aliases, entityService.getModelVersion());
+                if (contentHashes != null && checksum != null) {
+                    // hash the stored document, before it is migrated
+                    contentHashes.put(key, ContentHash.of(checksum, doc, aliases));
+                }
+                int modelVersion = entityService.getModelVersion();
+                if (getVersionAttribute(doc) < modelVersion) {
+                    long start = System.nanoTime();
+                    preProcessXML(doc, migrations, aliases, modelVersion);
+                    migrationTime.addAndGet(System.nanoTime() - start);
+                    outdatedKeys.add(key);
+                }
                 mapInheritedExtensions(doc, byAlias(aliases));
 
                 EntityBase entity = domToEntity(classLoaders, aliases, converters, doc);
                 if (entity != null) {
                     postProcessEntity(doc, entity, aliases);
-                    loadEntities.add(entityService.getEntityClass().cast(entity));
                     LOG.info(MessageFormat.format("Loaded entity {0}", entity.getUuid()));
+                    return entityService.getEntityClass().cast(entity);
                 }
+                return null;
             } catch (Exception e) {
                 throw new IOException(MessageFormat.format(
                         "Failed to process entity {0} of type {1}", key, category), e);
@@ -110,10 +296,88 @@ public class XStreamPersistence implements Issuer {
         }
     }
 
+    /**
+     * Entities that have been changed or removed in storage, see
+     * {@link XStreamPersistence#loadChangedEntities(EntityService, Set, Set, Map, Set)} and
+     * {@link XStreamPersistence#loadJournaledEntities(EntityService, long, Set, Set, Map, Set)}.
+     */
+    static class Changes<T extends EntityBase> {
+        private final List<T> changedEntities;
+        private final Set<String> removedKeys;
+        private final long sequence;
+
+        Changes(List<T> changedEntities, Set<String> removedKeys) {
+            this(changedEntities, removedKeys, -1L);
+        }
+
+        Changes(List<T> changedEntities, Set<String> removedKeys, long sequence) {
+            this.changedEntities = changedEntities;
+            this.removedKeys = removedKeys;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Returns the entities that have been added or changed in storage,
+         * in the order in which the storage service provided them.
+         */
+        List<T> getChangedEntities() {
+            return changedEntities;
+        }
+
+        /**
+         * Returns the keys of the entities that have been removed from storage.
+         */
+        Set<String> getRemovedKeys() {
+            return removedKeys;
+        }
+
+        /**
+         * Returns the sequence number of the last change in the journal of the storage
+         * that has been taken into account, or <tt>-1</tt> if the changes have not been
+         * determined from the journal.
+         */
+        long getSequence() {
+            return sequence;
+        }
+    }
+
     StorageService storageService;
 
+    private int loadThreads;
+
+    // fingerprints of the blobs from which the entities have been loaded
+    // with loadEntities(), by category and key
+    private final ConcurrentHashMap<String, Map<String, Fingerprint>> fingerprints =
+            new ConcurrentHashMap<String, Map<String, Fingerprint>>();
+
+    // checksums of the blobs of all loaded or saved entities, by category and key
+    private final ConcurrentHashMap<String, Map<String, String>> checksums =
+            new ConcurrentHashMap<String, Map<String, String>>();
+
+    // keys of loaded entities that are stored with an older model version, by category
+    private final ConcurrentHashMap<String, Set<String>> outdatedKeys =
+            new ConcurrentHashMap<String, Set<String>>();
+
+    // content hashes of the stored documents of all loaded or saved entities, by category and key
+    private final ConcurrentHashMap<String, Map<String, ContentHash>> contentHashes =
+            new ConcurrentHashMap<String, Map<String, ContentHash>>();
+
     public XStreamPersistence(StorageService storageService) {
         this.storageService = storageService;
+        this.loadThreads = NumberUtils.toInt(BundleProperties.getProperty(PROPERTY_LOAD_THREADS),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Sets the number of worker threads for loading of entities.
+     * <p>
+     * This method is package protected for testing purposes.
+     *
+     * @param loadThreads  the number of worker threads, or <tt>1</tt> if
+     * entities should be loaded sequentially.
+     */
+    void setLoadThreads(int loadThreads) {
+        this.loadThreads = loadThreads;
     }
 
     public <T extends EntityBase> T loadEntity(EntityService<T> entityService, String key, Set<ClassLoader> classLoaders,
@@ -135,20 +399,625 @@ public class XStreamPersistence implements Issuer {
     public <T extends EntityBase> List<T> loadEntities(EntityService<T> entityService, Set<ClassLoader> classLoaders,
             Set<DataMigration> migrations, Map<String, Class<?>> aliases, Set<Converter> converters)
             throws IOException {
+        return loadEntities(entityService, classLoaders, migrations, aliases, converters, null);
+    }
+
+    /**
+     * Loads all entities of a given type from storage. Entities for which the given snapshot
+     * has a matching entry are restored from the snapshot, all others are parsed, migrated and
+     * converted from their XML representation.
+     *
+     * @param snapshot  a snapshot of previously loaded entities, or <code>null</code>.
+     */
+    <T extends EntityBase> List<T> loadEntities(EntityService<T> entityService, Set<ClassLoader> classLoaders,
+            Set<DataMigration> migrations, Map<String, Class<?>> aliases, Set<Converter> converters,
+            ModelSnapshot snapshot) throws IOException {
         // Read all entities with one request to the storage service
         // instead of one by one. This will improve the startup time
-        // considerably.
-        XStreamConsumer<T> consumer = new XStreamConsumer<T>(entityService, classLoaders, migrations, aliases, converters);
-        storageService.readAll(entityService.getEntityClass().getSimpleName(), consumer);
-        return consumer.getLoadedEntities();
+        // considerably. Parsing, migration and conversion of the entities
+        // is delegated to a pool of worker threads, while the storage
+        // service keeps on reading.
+        String category = entityService.getEntityClass().getSimpleName();
+        Map<String, Fingerprint> loadedFingerprints = new ConcurrentHashMap<String, Fingerprint>();
+        ExecutorService executor = loadThreads > 1 ? newLoadExecutor(loadThreads) : null;
+        try {
+            Map<String, ContentHash> categoryContentHashes = getContentHashes(category);
+            XStreamConsumer<T> consumer = new XStreamConsumer<T>(entityService, classLoaders, migrations,
+                    aliases, converters, executor, snapshot, loadedFingerprints, categoryContentHashes);
+            storageService.readAll(category, consumer);
+            List<T> loadedEntities = consumer.getLoadedEntities();
+            fingerprints.put(category, loadedFingerprints);
+            checksums.put(category, checksumsOf(loadedFingerprints));
+            categoryContentHashes.keySet().retainAll(loadedFingerprints.keySet());
+            Set<String> outdated = getOutdatedKeySet(category);
+            outdated.clear();
+            outdated.addAll(consumer.getOutdatedKeys());
+            LOG.info(MessageFormat.format("Migrated {0} outdated entities of type {1} in {2} ms",
+                    consumer.getOutdatedKeys().size(), category, consumer.getMigrationTime()));
+            if (snapshot != null) {
+                LOG.info(MessageFormat.format("Restored {0} of {1} entities of type {2} from snapshot",
+                        consumer.getRestoredCount(), loadedEntities.size(), category));
+            }
+            return loadedEntities;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Determines the entities of the given type that have been added, changed or removed in storage
+     * since they have been loaded with {@link #loadEntities(EntityService, Set, Set, Map, Set, ModelSnapshot)}
+     * or saved with {@link #saveEntity(EntityService, EntityBase, String, Map, Set)}, and loads the
+     * added and changed entities. The blobs of all entities are read and compared by checksum, but
+     * only blobs with a different checksum are parsed, migrated and converted.
+     *
+     * @return  the added and changed entities, and the keys of the removed entities.
+     */
+    <T extends EntityBase> Changes<T> loadChangedEntities(EntityService<T> entityService,
+            Set<ClassLoader> classLoaders, Set<DataMigration> migrations, Map<String, Class<?>> aliases,
+            Set<Converter> converters) throws IOException {
+        String category = entityService.getEntityClass().getSimpleName();
+        Map<String, String> knownChecksums = getChecksums(category);
+        Map<String, Fingerprint> loadedFingerprints = new ConcurrentHashMap<String, Fingerprint>();
+        ExecutorService executor = loadThreads > 1 ? newLoadExecutor(loadThreads) : null;
+        try {
+            Map<String, ContentHash> categoryContentHashes = getContentHashes(category);
+            XStreamConsumer<T> consumer = new XStreamConsumer<T>(entityService, classLoaders, migrations,
+                    aliases, converters, executor, null, null, categoryContentHashes);
+            storageService.readAll(category, changedBlobs(knownChecksums, loadedFingerprints, consumer));
+            List<T> changedEntities = consumer.getLoadedEntities();
+            Set<String> removedKeys = new HashSet<String>(knownChecksums.keySet());
+            removedKeys.removeAll(loadedFingerprints.keySet());
+            fingerprints.put(category, loadedFingerprints);
+            checksums.put(category, checksumsOf(loadedFingerprints));
+            categoryContentHashes.keySet().retainAll(loadedFingerprints.keySet());
+            Set<String> outdated = getOutdatedKeySet(category);
+            outdated.retainAll(loadedFingerprints.keySet());
+            updateOutdatedKeys(outdated, changedEntities, consumer.getOutdatedKeys());
+            return new Changes<T>(changedEntities, removedKeys);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Returns the sequence number of the most recent change in the journal of the storage,
+     * or <tt>-1</tt> if the storage does not record a journal of changes. Callers should determine
+     * the sequence number before loading entities and pass it to
+     * {@link #loadJournaledEntities(EntityService, long, Set, Set, Map, Set)} later.
+     */
+    long getLastSequence() throws IOException {
+        if (storageService instanceof JournaledStorage) {
+            return ((JournaledStorage) storageService).getLastSequence();
+        }
+        return -1L;
+    }
+
+    /**
+     * Determines the entities of the given type that have been written to storage after the
+     * change with the given sequence number according to the journal of the storage, and loads
+     * those entities whose blobs differ from the blobs that have been loaded or saved before.
+     * In contrast to {@link #loadChangedEntities(EntityService, Set, Set, Map, Set)} only the blobs
+     * of changed entities are read, and entities written by this instance are not read at all,
+     * since the journal already provides the checksums of the written blobs.
+     *
+     * @param sequence  the sequence number of the last change that has already been taken into account.
+     *
+     * @return  the added and changed entities, and the keys of the removed entities, or
+     * <code>null</code> if the storage does not record a journal of changes, or the journal
+     * does not cover the given sequence number.
+     */
+    <T extends EntityBase> Changes<T> loadJournaledEntities(EntityService<T> entityService, long sequence,
+            Set<ClassLoader> classLoaders, Set<DataMigration> migrations, Map<String, Class<?>> aliases,
+            Set<Converter> converters) throws IOException {
+        if (!(storageService instanceof JournaledStorage) || sequence < 0L) {
+            return null;
+        }
+        List<StorageChange> journal = ((JournaledStorage) storageService).getChanges(sequence);
+        if (journal == null) {
+            return null;
+        }
+        String category = entityService.getEntityClass().getSimpleName();
+        Map<String, String> knownChecksums = getChecksums(category);
+
+        // only the most recent write of a key is relevant
+        long lastSequence = sequence;
+        Map<String, String> digests = new LinkedHashMap<String, String>();
+        for (StorageChange change : journal) {
+            lastSequence = change.getSequence();
+            if (change.getType() == StorageChange.Type.WRITE && category.equals(change.getCategory())) {
+                digests.remove(change.getKey());
+                digests.put(change.getKey(), change.getDigest());
+            }
+        }
+        List<String> changedKeys = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : digests.entrySet()) {
+            if (!entry.getValue().equals(knownChecksums.get(entry.getKey()))) {
+                changedKeys.add(entry.getKey());
+            }
+        }
+        if (changedKeys.isEmpty()) {
+            return new Changes<T>(Collections.<T>emptyList(), Collections.<String>emptySet(), lastSequence);
+        }
+
+        Map<String, Fingerprint> loadedFingerprints = new ConcurrentHashMap<String, Fingerprint>();
+        Map<String, ContentHash> categoryContentHashes = getContentHashes(category);
+        XStreamConsumer<T> consumer = new XStreamConsumer<T>(entityService, classLoaders, migrations,
+                aliases, converters, null, null, null, categoryContentHashes);
+        storageService.readMany(category, changedKeys, changedBlobs(knownChecksums, loadedFingerprints, consumer));
+        List<T> changedEntities = consumer.getLoadedEntities();
+        Set<String> removedKeys = new HashSet<String>();
+        for (String key : changedKeys) {
+            if (!loadedFingerprints.containsKey(key) && knownChecksums.remove(key) != null) {
+                removedKeys.add(key);
+            }
+        }
+        Map<String, Fingerprint> categoryFingerprints = fingerprints.get(category);
+        if (categoryFingerprints != null) {
+            categoryFingerprints.keySet().removeAll(removedKeys);
+            categoryFingerprints.putAll(loadedFingerprints);
+        }
+        categoryContentHashes.keySet().removeAll(removedKeys);
+        for (Map.Entry<String, Fingerprint> entry : loadedFingerprints.entrySet()) {
+            knownChecksums.put(entry.getKey(), entry.getValue().getChecksum());
+        }
+        Set<String> outdated = getOutdatedKeySet(category);
+        outdated.removeAll(removedKeys);
+        updateOutdatedKeys(outdated, changedEntities, consumer.getOutdatedKeys());
+        return new Changes<T>(changedEntities, removedKeys, lastSequence);
+    }
+
+    /**
+     * Returns a storage consumer that records the fingerprints of all provided blobs,
+     * but passes only blobs with unknown checksums on to the given consumer.
+     */
+    private static StorageConsumer changedBlobs(final Map<String, String> knownChecksums,
+            final Map<String, Fingerprint> loadedFingerprints, final StorageConsumer consumer) {
+        return new StorageConsumer() {
+            @Override
+            public void consume(String category, String key, long lastModified, InputStream blob)
+                    throws IOException {
+                byte[] bytes = IOUtils.toByteArray(blob);
+                Fingerprint fingerprint = Fingerprint.of(lastModified, bytes);
+                loadedFingerprints.put(key, fingerprint);
+                if (!fingerprint.getChecksum().equals(knownChecksums.get(key))) {
+                    consumer.consume(category, key, lastModified, new ByteArrayInputStream(bytes));
+                }
+            }
+        };
+    }
+
+    private Map<String, String> getChecksums(String category) {
+        Map<String, String> result = checksums.get(category);
+        if (result == null) {
+            result = new ConcurrentHashMap<String, String>();
+            Map<String, String> existing = checksums.putIfAbsent(category, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    private Map<String, ContentHash> getContentHashes(String category) {
+        Map<String, ContentHash> result = contentHashes.get(category);
+        if (result == null) {
+            result = new ConcurrentHashMap<String, ContentHash>();
+            Map<String, ContentHash> existing = contentHashes.putIfAbsent(category, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the content hashes of the stored document of the given entity, provided that they
+     * have been computed from the blob this instance assumes to be in storage, i.e. the blob that has
+     * been loaded or saved most recently.
+     * <p>
+     * This method is package protected for testing purposes.
+     *
+     * @return  the content hashes, or <code>null</code> if the entity has neither been loaded
+     * nor saved, or has been changed in storage in the meantime.
+     */
+    ContentHash getContentHash(String category, String key) {
+        ContentHash contentHash = getContentHashes(category).get(key);
+        if (contentHash == null || !contentHash.getChecksum().equals(getChecksums(category).get(key))) {
+            return null;
+        }
+        return contentHash;
+    }
+
+    private Set<String> getOutdatedKeySet(String category) {
+        Set<String> result = outdatedKeys.get(category);
+        if (result == null) {
+            result = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            Set<String> existing = outdatedKeys.putIfAbsent(category, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    // changed entities are outdated only if they had to be migrated again
+    private static void updateOutdatedKeys(Set<String> outdated, List<? extends EntityBase> changedEntities,
+            Set<String> changedOutdatedKeys) {
+        for (EntityBase changedEntity : changedEntities) {
+            outdated.remove(changedEntity.getUuid().toString());
+        }
+        outdated.addAll(changedOutdatedKeys);
+    }
+
+    /**
+     * Returns the keys of the loaded entities of the given category that are stored with
+     * an older model version, i.e. that are migrated each time they are loaded, until they
+     * are either saved or {@link #upgradeEntity(EntityService, String, Set, Map) upgraded}.
+     *
+     * @param category  the category of the entities.
+     *
+     * @return  a copy of the set of outdated keys, or an empty set.
+     */
+    Set<String> getOutdatedKeys(String category) {
+        Set<String> result = outdatedKeys.get(category);
+        return result != null ? new HashSet<String>(result) : Collections.<String>emptySet();
+    }
+
+    /**
+     * Migrates the stored blob of an outdated entity to the current model version and writes
+     * it back to storage, so that the migration is not repeated each time the entity is loaded.
+     * In contrast to {@link #saveEntity(EntityService, EntityBase, String, Map, Set)} the entity
+     * is not archived and its <tt>lastModified</tt> and <tt>modifiedBy</tt> attributes are
+     * preserved, since the content of the entity does not change.
+     * <p>
+     * The blob is only rewritten if it still matches the blob from which the entity has been
+     * loaded. Callers must ensure that the entity is not saved concurrently.
+     *
+     * @return  <code>true</code>, if the entity has been rewritten, <code>false</code> if the
+     * entity no longer exists, has been changed in storage in the meantime, or is already stored
+     * with the current model version.
+     * @throws IOException  if the blob could not be read, migrated or written.
+     */
+    boolean upgradeEntity(EntityService<?> entityService, String key, Set<DataMigration> migrations,
+            Map<String, Class<?>> aliases) throws IOException {
+        String category = entityService.getEntityClass().getSimpleName();
+        Set<String> outdated = getOutdatedKeySet(category);
+        InputStream stream = storageService.read(category, key);
+        if (stream == null) {
+            outdated.remove(key);
+            return false;
+        }
+        byte[] oldBlob;
+        try {
+            oldBlob = IOUtils.toByteArray(stream);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+        if (!DigestUtils.md5Hex(oldBlob).equals(getChecksums(category).get(key))) {
+            // changed in storage; the next refresh will determine whether it is still outdated
+            outdated.remove(key);
+            return false;
+        }
+
+        Document doc = migrateBlob(category, key, oldBlob, entityService.getModelVersion(), migrations, aliases);
+        if (doc == null) {
+            outdated.remove(key);
+            return false;
+        }
+        byte[] blob = toBlob(category, key, doc);
+        storageService.write(category, key, new ByteArrayInputStream(blob));
+        getChecksums(category).put(key, DigestUtils.md5Hex(blob));
+        Map<String, Fingerprint> categoryFingerprints = fingerprints.get(category);
+        if (categoryFingerprints != null) {
+            categoryFingerprints.remove(key);
+        }
+        outdated.remove(key);
+        return true;
+    }
+
+    /**
+     * Migrates all entities of the given type that are stored with an older model version to the
+     * current model version and writes them back to storage. Entities are read and written in batches,
+     * while the migration and validation of the entities of a batch is distributed to a pool of worker
+     * threads. Migrated entities are validated by unmarshalling them, marshalling the resulting entity
+     * again and checking that this yields the same document as marshalling the re-unmarshalled entity.
+     * Entities that fail to migrate or to validate are not written. Neither are entities archived,
+     * nor are their <tt>lastModified</tt> and <tt>modifiedBy</tt> attributes changed.
+     * <p>
+     * This method must not be called for a storage that is written concurrently,
+     * see {@link #upgradeEntities(EntityService, int, Set, Set, Map, Set, StripedLock, Lock)}.
+     *
+     * @param threads  the number of worker threads.
+     *
+     * @return  the result of the upgrade.
+     * @throws IOException  if the storage could not be read or written.
+     */
+    <T extends EntityBase> StorageUpgrade upgradeEntities(EntityService<T> entityService, int threads,
+            Set<ClassLoader> classLoaders, Set<DataMigration> migrations, Map<String, Class<?>> aliases,
+            Set<Converter> converters) throws IOException {
+        return upgradeEntities(entityService, threads, classLoaders, migrations, aliases, converters, null, null);
+    }
+
+    /**
+     * Migrates all entities of the given type like
+     * {@link #upgradeEntities(EntityService, int, Set, Set, Map, Set)}, but takes the same locks
+     * as threads saving entities concurrently. The migrated entities of a batch are written while
+     * the given shared lock and the locks of all entities of the batch are held. Entities that have
+     * been changed in storage since they have been read are skipped, since they have been saved with
+     * the current model version anyway.
+     *
+     * @param locks  the locks of the entities, by {@link UUID}, or <code>null</code>.
+     * @param sharedLock  a lock that is held while a batch is written, or <code>null</code>.
+     */
+    <T extends EntityBase> StorageUpgrade upgradeEntities(final EntityService<T> entityService, int threads,
+            final Set<ClassLoader> classLoaders, final Set<DataMigration> migrations,
+            final Map<String, Class<?>> aliases, final Set<Converter> converters, StripedLock locks,
+            Lock sharedLock) throws IOException {
+        long start = System.currentTimeMillis();
+        final String category = entityService.getEntityClass().getSimpleName();
+        List<String> keys = storageService.keys(category);
+        Map<String, String> errors = new TreeMap<String, String>();
+        int upgraded = 0;
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            for (int from = 0; from < keys.size(); from += UPGRADE_BATCH_SIZE) {
+                List<String> batch = keys.subList(from, Math.min(from + UPGRADE_BATCH_SIZE, keys.size()));
+                final Map<String, Future<byte[]>> pending = new LinkedHashMap<String, Future<byte[]>>();
+                final Map<String, String> readChecksums = new HashMap<String, String>();
+                storageService.readMany(category, batch, new StorageConsumer() {
+                    @Override
+                    public void consume(String category, final String key, long lastModified, InputStream blob)
+                            throws IOException {
+                        final byte[] bytes = IOUtils.toByteArray(blob);
+                        readChecksums.put(key, DigestUtils.md5Hex(bytes));
+                        pending.put(key, executor.submit(new Callable<byte[]>() {
+                            @Override
+                            public byte[] call() throws IOException {
+                                return upgradeBlob(entityService, key, bytes, classLoaders, migrations,
+                                        aliases, converters);
+                            }
+                        }));
+                    }
+                });
+                Map<String, byte[]> blobs = new HashMap<String, byte[]>();
+                for (Map.Entry<String, Future<byte[]>> entry : pending.entrySet()) {
+                    try {
+                        byte[] blob = entry.getValue().get();
+                        if (blob != null) {
+                            blobs.put(entry.getKey(), blob);
+                        }
+                    } catch (ExecutionException e) {
+                        errors.put(entry.getKey(), e.getCause().getMessage());
+                        LOG.warn(MessageFormat.format("Failed to upgrade entity {0} of type {1}",
+                                entry.getKey(), category), e.getCause());
+                    }
+                }
+                if (!blobs.isEmpty()) {
+                    upgraded += writeUpgraded(category, blobs, readChecksums, locks, sharedLock);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for entities to be upgraded", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        StorageUpgrade result = new StorageUpgrade(category, entityService.getModelVersion(), keys.size(),
+                upgraded, errors, System.currentTimeMillis() - start);
+        LOG.info(MessageFormat.format(
+                "Upgraded {0} of {1} entities of type {2} to model version {3} in {4} ms ({5} failed)",
+                result.getUpgraded(), result.getTotal(), category, result.getModelVersion(),
+                result.getDuration(), errors.size()));
+        return result;
+    }
+
+    /**
+     * Writes the given upgraded blobs, unless the respective entities have been changed in storage
+     * since they have been read.
+     *
+     * @return  the number of written blobs.
+     */
+    private int writeUpgraded(String category, Map<String, byte[]> blobs, Map<String, String> readChecksums,
+            StripedLock locks, Lock sharedLock) throws IOException {
+        if (sharedLock != null) {
+            sharedLock.lock();
+        }
+        try {
+            List<Lock> acquiredLocks = Collections.emptyList();
+            if (locks != null) {
+                List<UUID> uuids = new ArrayList<UUID>(blobs.size());
+                for (String key : blobs.keySet()) {
+                    uuids.add(UUID.fromString(key));
+                }
+                acquiredLocks = locks.lockAll(uuids.toArray());
+            }
+            try {
+                final Map<String, String> currentChecksums = new HashMap<String, String>();
+                storageService.readMany(category, blobs.keySet(), new StorageConsumer() {
+                    @Override
+                    public void consume(String category, String key, long lastModified, InputStream blob)
+                            throws IOException {
+                        currentChecksums.put(key, DigestUtils.md5Hex(IOUtils.toByteArray(blob)));
+                    }
+                });
+                Map<String, InputStream> unchanged = new HashMap<String, InputStream>();
+                for (Map.Entry<String, byte[]> entry : blobs.entrySet()) {
+                    String key = entry.getKey();
+                    if (readChecksums.get(key).equals(currentChecksums.get(key))) {
+                        unchanged.put(key, new ByteArrayInputStream(entry.getValue()));
+                    } else {
+                        LOG.info(MessageFormat.format(
+                                "Entity {0} of type {1} has been changed in the meantime and is not upgraded",
+                                key, category));
+                    }
+                }
+                storageService.writeAll(category, unchanged);
+                Set<String> outdated = getOutdatedKeySet(category);
+                Map<String, Fingerprint> categoryFingerprints = fingerprints.get(category);
+                for (String key : unchanged.keySet()) {
+                    getChecksums(category).put(key, DigestUtils.md5Hex(blobs.get(key)));
+                    if (categoryFingerprints != null) {
+                        categoryFingerprints.remove(key);
+                    }
+                    outdated.remove(key);
+                }
+                return unchanged.size();
+            } finally {
+                StripedLock.unlockAll(acquiredLocks);
+            }
+        } finally {
+            if (sharedLock != null) {
+                sharedLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Migrates and validates the given blob.
+     *
+     * @return  the migrated blob, or <code>null</code> if the blob already has the current model version.
+     * @throws IOException  if the blob could not be migrated or does not pass the validation.
+     */
+    static byte[] upgradeBlob(EntityService<?> entityService, String key, byte[] blob,
+            Set<ClassLoader> classLoaders, Set<DataMigration> migrations, Map<String, Class<?>> aliases,
+            Set<Converter> converters) throws IOException {
+        String category = entityService.getEntityClass().getSimpleName();
+        Document doc = migrateBlob(category, key, blob, entityService.getModelVersion(), migrations, aliases);
+        if (doc == null) {
+            return null;
+        }
+
+        // the stored document refers to inherited extensions by alias
+        Document copy = (Document) doc.cloneNode(true);
+        try {
+            mapInheritedExtensions(copy, byAlias(aliases));
+        } catch (MigrationException e) {
+            throw new IOException(e);
+        }
+        EntityBase entity = domToEntity(classLoaders, aliases, converters, copy);
+        if (!entityService.getEntityClass().isInstance(entity) || !key.equals(String.valueOf(entity.getUuid()))) {
+            throw new IOException(MessageFormat.format(
+                    "Migrated entity {0} cannot be converted to an entity of type {1}", key, category));
+        }
+        Document marshalled = entityToDom(entity, aliases, converters);
+        EntityBase unmarshalled = domToEntity(classLoaders, aliases, converters, marshalled);
+        if (unmarshalled == null || !XMLDiff.identical(marshalled.getDocumentElement(),
+                entityToDom(unmarshalled, aliases, converters).getDocumentElement())) {
+            throw new IOException(MessageFormat.format(
+                    "Migrated entity {0} of type {1} does not round-trip through XStream", key, category));
+        }
+        return toBlob(category, key, doc);
+    }
+
+    /**
+     * Parses the given blob and migrates it to the given model version.
+     *
+     * @return  the migrated document, or <code>null</code> if the blob already has the given model version.
+     */
+    private static Document migrateBlob(String category, String key, byte[] blob, int modelVersion,
+            Set<DataMigration> migrations, Map<String, Class<?>> aliases) throws IOException {
+        try {
+            Document doc = XMLUtils.documentFromStream(new ByteArrayInputStream(blob));
+            if (getVersionAttribute(doc) >= modelVersion) {
+                return null;
+            }
+            preProcessXML(doc, migrations, aliases, modelVersion);
+            doc.getDocumentElement().removeAttribute(TAG_VERSION);
+            setVersionAttribute(doc, modelVersion);
+            return doc;
+        } catch (Exception e) {
+            throw new IOException(MessageFormat.format(
+                    "Failed to migrate entity {0} of type {1}", key, category), e);
+        }
+    }
+
+    private static byte[] toBlob(String category, String key, Document doc) throws IOException {
+        try {
+            return IOUtils.toByteArray(XMLUtils.documentToStream(doc));
+        } catch (TransformerException e) {
+            throw new IOException(MessageFormat.format(
+                    "Failed to transform entity {0} of type {1} to XML", key, category), e);
+        }
+    }
+
+    private static Map<String, String> checksumsOf(Map<String, Fingerprint> fingerprints) {
+        Map<String, String> result = new ConcurrentHashMap<String, String>();
+        for (Map.Entry<String, Fingerprint> entry : fingerprints.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getChecksum());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the fingerprints of the blobs from which the entities of the given category
+     * have been loaded with {@link #loadEntities(EntityService, Set, Set, Map, Set, ModelSnapshot)}.
+     * Entities that have been saved in the meantime have no fingerprint.
+     *
+     * @param category  the category of the entities.
+     *
+     * @return  a map of fingerprints by entity key, or an empty map.
+     */
+    Map<String, Fingerprint> getFingerprints(String category) {
+        Map<String, Fingerprint> result = fingerprints.get(category);
+        return result != null ? Collections.unmodifiableMap(result) : Collections.<String, Fingerprint>emptyMap();
+    }
+
+    /**
+     * Writes a snapshot of the given entities to the given file.
+     *
+     * @return  the number of entities written to the snapshot.
+     *
+     * @see ModelSnapshot#write(File, int, String, Collection, Map, XStream)
+     */
+    int writeSnapshot(File file, EntityService<?> entityService, Collection<? extends EntityBase> entities,
+            String signature, Set<ClassLoader> classLoaders, Map<String, Class<?>> aliases, Set<Converter> converters)
+            throws IOException {
+        XStream xstream = XStreamRegistry.getXStream(converters, classLoaders, aliases);
+        return ModelSnapshot.write(file, entityService.getModelVersion(), signature, entities,
+                getFingerprints(entityService.getEntityClass().getSimpleName()), xstream);
     }
 
-    public void saveEntity(EntityService<?> entityService, EntityBase entity, String userId,
+    /**
+     * Creates a bounded pool of worker threads. If all workers are busy and the queue
+     * of pending tasks is full, the submitting thread converts the next entity on its own
+     * instead of reading further items from storage. This limits the number of blobs
+     * that are kept in memory while waiting for conversion.
+     */
+    private static ExecutorService newLoadExecutor(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QUEUED_TASKS_PER_THREAD),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Converts the given entity to XML and writes it to the storage.
+     * <p>
+     * The <tt>lastModified</tt> and <tt>modifiedBy</tt> attributes of the entity and its extensions
+     * are only updated, if their content has changed. If the {@link ContentHash content hashes} of
+     * the stored document are known from a previous load or save, the decision is based on the hashes.
+     * Otherwise the stored document is read and compared with the new document.
+     *
+     * @return  the MD5 checksum of the written blob, which can be passed to
+     * {@link #verifyEntity(Class, String, String)} to check that the entity
+     * has been written successfully.
+     */
+    public String saveEntity(EntityService<?> entityService, EntityBase entity, String userId,
             Map<String, Class<?>> aliases, Set<Converter> converters) throws MigrationException, IOException {
         Class<? extends EntityBase> entityClass = entity.getClass();
         String category = entityClass.getSimpleName();
         String key = entity.getUuid().toString();
 
+        // the entity no longer matches the blob it had been loaded from
+        Map<String, Fingerprint> categoryFingerprints = fingerprints.get(category);
+        if (categoryFingerprints != null) {
+            categoryFingerprints.remove(key);
+        }
+
         if (entityClass.isAnnotationPresent(Historized.class)) {
             storageService.archive(category, key);
         }
@@ -156,17 +1025,58 @@ public class XStreamPersistence implements Issuer {
         Document newDoc = entityToDom(entity, aliases, converters);
         mapInheritedExtensions(newDoc, byClassNames(aliases));
 
-        Document oldDoc = entityToDom(entityClass, entity.getUuid().toString());
-        postProcessXML(newDoc, oldDoc, aliases, userId, entityService.getModelVersion());
+        ContentHash newContent = ContentHash.of(null, newDoc, aliases);
+        ContentHash oldContent = getContentHash(category, key);
+        if (oldContent != null) {
+            postProcessXML(newDoc, newContent, oldContent, aliases, userId, entityService.getModelVersion());
+        } else {
+            Document oldDoc = entityToDom(entityClass, key);
+            if (oldDoc != null) {
+                // the new document has been marshalled without indentation
+                removeIndentation(oldDoc.getDocumentElement());
+            }
+            postProcessXML(newDoc, oldDoc, aliases, userId, entityService.getModelVersion());
+        }
 
-        InputStream is;
+        byte[] blob;
         try {
-            is = XMLUtils.documentToStream(newDoc);
+            blob = IOUtils.toByteArray(XMLUtils.documentToStream(newDoc));
         } catch (TransformerException e) {
             throw new IOException(MessageFormat.format("Failed to transform entity {0} to XML", entity), e);
         }
 
-        storageService.write(category, key, is);
+        storageService.write(category, key, new ByteArrayInputStream(blob));
+        String checksum = DigestUtils.md5Hex(blob);
+        getChecksums(category).put(key, checksum);
+        getContentHashes(category).put(key, newContent.withAttributesOf(checksum, newDoc, aliases));
+        getOutdatedKeySet(category).remove(key);
+        return checksum;
+    }
+
+    /**
+     * Checks that the blob stored for the given entity matches the given checksum.
+     * In contrast to {@link #loadEntity(EntityService, String, Set, Set, Map, Set)}
+     * this method only reads the raw blob, but does not parse, migrate or convert it.
+     *
+     * @param entityClass  the class of the entity.
+     * @param key  the key of the entity.
+     * @param checksum  the MD5 checksum returned by
+     * {@link #saveEntity(EntityService, EntityBase, String, Map, Set)}.
+     *
+     * @return  <code>true</code>, if the blob exists and matches the checksum.
+     * @throws IOException  if the blob could not be read.
+     */
+    public boolean verifyEntity(Class<? extends EntityBase> entityClass, String key, String checksum)
+            throws IOException {
+        InputStream blob = storageService.read(entityClass.getSimpleName(), key);
+        if (blob == null) {
+            return false;
+        }
+        try {
+            return DigestUtils.md5Hex(blob).equals(checksum);
+        } finally {
+            IOUtils.closeQuietly(blob);
+        }
     }
 
     static void preProcessXML(Document doc, Set<DataMigration> migrations, Map<String, Class<?>> aliases, int modelVersion)
@@ -196,6 +1106,31 @@ public class XStreamPersistence implements Issuer {
         setVersionAttribute(newDoc, modelVersion);
     }
 
+    /**
+     * Same as {@link #postProcessXML(Document, Document, Map, String, int)}, but compares the
+     * {@link ContentHash content hashes} of the new and the stored document instead of the
+     * documents themselves.
+     *
+     * @param newContent  the content hashes of the new document.
+     * @param oldContent  the content hashes of the stored document.
+     */
+    static void postProcessXML(Document newDoc, ContentHash newContent, ContentHash oldContent,
+            Map<String, Class<?>> aliases, String userId, int modelVersion) throws MigrationException {
+        Element newDocElement = newDoc.getDocumentElement();
+        boolean identical = newContent.getHash().equals(oldContent.getHash());
+        setLastModifiedAttributes(newDocElement, identical ? oldContent.getLastModified() : null,
+                identical ? oldContent.getLastModifiedBy() : null, userId);
+
+        SortedMap<String, Element> newExts = getExtensionsByAlias(newDoc, aliases);
+        for (String alias : newExts.keySet()) {
+            boolean unchanged = identical
+                    || newContent.getExtensionHash(alias).equals(oldContent.getExtensionHash(alias));
+            setLastModifiedAttributes(newExts.get(alias), unchanged ? oldContent.getExtensionLastModified(alias) : null,
+                    unchanged ? oldContent.getExtensionLastModifiedBy(alias) : null, userId);
+        }
+        setVersionAttribute(newDoc, modelVersion);
+    }
+
     static void postProcessEntity(Document doc, EntityBase entity, Map<String, Class<?>> aliases)
             throws MigrationException {
         EntityHelper.normalize(entity);
@@ -264,13 +1199,17 @@ public class XStreamPersistence implements Issuer {
     }
 
     static  void setLastModifiedAttributes(Element newElement, Element oldElement, String userId) {
-        String lastModified = oldElement != null? getLastModifiedAttribute(oldElement) : null;
+        setLastModifiedAttributes(newElement, oldElement != null? getLastModifiedAttribute(oldElement) : null,
+                oldElement != null? getLastModifiedByAttribute(oldElement) : null, userId);
+    }
+
+    static void setLastModifiedAttributes(Element newElement, String lastModified, String lastModifiedBy,
+            String userId) {
         if (lastModified != null) {
             setLastModifiedAttribute(newElement, lastModified);
         } else {
             setLastModifiedAttribute(newElement);
         }
-        String lastModifiedBy = oldElement != null? getLastModifiedByAttribute(oldElement) : null;
         if (lastModifiedBy != null) {
             setLastModifiedByAttribute(newElement, lastModifiedBy);
         } else{
@@ -353,37 +1292,78 @@ public class XStreamPersistence implements Issuer {
     }
 
 
-    private static EntityBase domToEntity(Set<ClassLoader> entityClassLoaders, Map<String, Class<?>> aliases,
-            Set<Converter> converters, Document doc) throws IOException {
-        String xml = null;
-        try {
-            xml = XMLUtils.documentToString(doc);
-        } catch (TransformerException e) {
-            throw new IOException("Failed to transform XML to entity", e);
+    /**
+     * Removes whitespace-only text nodes from elements that have child elements, i.e. the
+     * indentation of a document that has been read from storage. XStream never writes mixed content,
+     * so the text of leaf elements is left untouched, even if it consists of whitespace only.
+     */
+    static void removeIndentation(Element element) {
+        boolean hasChildElements = false;
+        NodeList nodes = element.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); ++i) {
+            if (nodes.item(i).getNodeType() == Node.ELEMENT_NODE) {
+                hasChildElements = true;
+                break;
+            }
+        }
+        if (!hasChildElements) {
+            return;
         }
-        XStream xstream = IgnoreUnknownElementsXStream.getXStreamInstance(converters, entityClassLoaders, aliases);
+        Node next = element.getFirstChild();
+        while (next != null) {
+            Node node = next;
+            next = node.getNextSibling();
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                removeIndentation((Element) node);
+            } else if (node.getNodeType() == Node.TEXT_NODE && StringUtils.isBlank(node.getNodeValue())) {
+                element.removeChild(node);
+            }
+        }
+    }
+
+    /**
+     * Unmarshals an entity directly from the given document.
+     * <p>
+     * This method is package protected for testing purposes.
+     */
+    static EntityBase domToEntity(Set<ClassLoader> entityClassLoaders, Map<String, Class<?>> aliases,
+            Set<Converter> converters, Document doc) {
+        XStream xstream = XStreamRegistry.getXStream(converters, entityClassLoaders, aliases);
         EntityBase entity = null;
         try {
-             entity = (EntityBase) xstream.fromXML(xml);
+             entity = (EntityBase) xstream.unmarshal(new DomReader(doc));
         } catch (XStreamException e) {
-            LOG.warn(MessageFormat.format("Failed to convert XML document to entity: {0}", xml), e);
+            LOG.warn(MessageFormat.format("Failed to convert XML document to entity: {0}", asString(doc)), e);
         }
         return entity;
     }
 
-    private static Document entityToDom(EntityBase entity, Map<String, Class<?>> aliases, Set<Converter> converters)
+    /**
+     * Marshals an entity directly into a new document.
+     * <p>
+     * This method is package protected for testing purposes.
+     */
+    static Document entityToDom(EntityBase entity, Map<String, Class<?>> aliases, Set<Converter> converters)
             throws IOException {
         Document newDoc = null;
         try {
-            XStream xstream = IgnoreUnknownElementsXStream.getXStreamInstance(converters, null, aliases);
-            String xml = xstream.toXML(entity);
-            newDoc = XMLUtils.documentFromString(xml);
+            XStream xstream = XStreamRegistry.getXStream(converters, null, aliases);
+            newDoc = XMLUtils.newDocument();
+            xstream.marshal(entity, new DomWriter(newDoc));
         } catch (Exception e) {
             throw new IOException(MessageFormat.format("Failed to transform entity {0} to XML", entity), e);
         }
         return newDoc;
     }
 
+    private static String asString(Document doc) {
+        try {
+            return XMLUtils.documentToString(doc);
+        } catch (TransformerException e) {
+            return doc.toString();
+        }
+    }
+
     private Document entityToDom(Class<? extends EntityBase> entityClass, String key) throws IOException {
         InputStream stream = storageService.read(entityClass.getSimpleName(), key);
         if (stream == null) {
@@ -10,43 +10,131 @@
  *******************************************************************************/
 package org.eclipse.skalli.core.persistence;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.apache.commons.lang.BooleanUtils;
 import org.apache.commons.lang.StringUtils;
 import org.eclipse.skalli.commons.ComparatorUtils;
+import org.eclipse.skalli.commons.StripedLock;
+import org.eclipse.skalli.commons.ThreadPool;
+import org.eclipse.skalli.core.persistence.XStreamPersistence.Changes;
 import org.eclipse.skalli.core.storage.FileStorageComponent;
+import org.eclipse.skalli.core.xstream.XStreamRegistry;
 import org.eclipse.skalli.model.EntityBase;
 import org.eclipse.skalli.model.EntityFilter;
 import org.eclipse.skalli.services.BundleProperties;
 import org.eclipse.skalli.services.entity.EntityService;
 import org.eclipse.skalli.services.entity.EntityServices;
+import org.eclipse.skalli.services.extension.DataMigration;
+import org.eclipse.skalli.services.extension.ExtensionService;
 import org.eclipse.skalli.services.extension.MigrationException;
+import org.eclipse.skalli.services.persistence.JournaledStorage;
 import org.eclipse.skalli.services.persistence.PersistenceService;
 import org.eclipse.skalli.services.persistence.StorageService;
+import org.eclipse.skalli.services.persistence.StorageUpgrade;
+import org.eclipse.skalli.services.persistence.UpgradablePersistence;
 import org.osgi.service.component.ComponentConstants;
 import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.thoughtworks.xstream.converters.Converter;
+
 /**
  * Implementation of {@link PersistenceService} based on XStream.
  */
-public class XStreamPersistenceComponent extends PersistenceServiceBase implements PersistenceService {
+public class XStreamPersistenceComponent extends PersistenceServiceBase
+        implements PersistenceService, UpgradablePersistence {
 
     private static final Logger LOG = LoggerFactory.getLogger(XStreamPersistenceComponent.class);
     private static final Logger AUDIT_LOG = LoggerFactory.getLogger("audit"); //$NON-NLS-1$
 
+    /**
+     * Name of the property that enables or disables model snapshots (<tt>{@value}</tt>).
+     * If enabled, which is the default, a binary snapshot of the loaded entities is written
+     * to the directory <tt>snapshots</tt> in the working directory when the persistence
+     * service is deactivated. On the next start, all entities that have not been changed
+     * in storage in the meantime are restored from that snapshot instead of being parsed,
+     * migrated and converted again.
+     */
+    public static final String PROPERTY_SNAPSHOTS = "skalli.persistence.snapshots"; //$NON-NLS-1$
+
+    /**
+     * Name of the property that defines how the successful saving of an entity is verified:
+     * <ul>
+     * <li><tt>"none"</tt>: the storage service is trusted, i.e. an entity is considered
+     * saved if the storage service did not report an error</li>
+     * <li><tt>"checksum"</tt>: the saved blob is read back and compared with the checksum
+     * of the written blob, but not parsed (default)</li>
+     * <li><tt>"reload"</tt>: the saved entity is loaded again, i.e. parsed, migrated
+     * and converted. This is expensive and intended for diagnostic purposes only.</li>
+     * </ul>
+     */
+    public static final String PROPERTY_VERIFY = "skalli.persistence.verify"; //$NON-NLS-1$
+
+    /**
+     * Name of the property that enables or disables the upgrade of outdated entities
+     * (<tt>{@value}</tt>). If enabled, which is the default, entities that are stored with
+     * an older model version, and therefore are migrated each time they are loaded, are
+     * written back to storage at the current model version in the background, once all
+     * entities of their type have been loaded.
+     */
+    public static final String PROPERTY_UPGRADE = "skalli.persistence.upgrade"; //$NON-NLS-1$
+
+    static enum Verification {
+        NONE, CHECKSUM, RELOAD
+    }
+
+    private static final String SNAPSHOTS_DIR = "snapshots"; //$NON-NLS-1$
+    private static final String SNAPSHOT_EXTENSION = ".snapshot"; //$NON-NLS-1$
+
+    private static final int LOCK_STRIPES = 64;
+
+    // number of outdated entities upgraded before the refresh lock is released again
+    private static final int UPGRADE_BATCH_SIZE = 50;
+
     private final EntityCache cache = new EntityCache();
     private final EntityCache deleted = new EntityCache();
+    private final ChildIndex children = new ChildIndex();
+
+    // serializes persisting of the same entity and changes to the children of the same parent,
+    // while independent entities can be persisted in parallel
+    private final StripedLock locks = new StripedLock(LOCK_STRIPES);
+
+    // shared by persisting threads, exclusive while changes in storage are applied by a refresh
+    private final ReadWriteLock refreshLock = new ReentrantReadWriteLock();
+
+    // signatures of the aliases, converters and migrations with which the entities have been loaded
+    private final Map<Class<?>, String> signatures = new ConcurrentHashMap<Class<?>, String>();
+
+    // sequence numbers of the last changes in the journal of the storage that have been taken
+    // into account for the loaded entities; empty if the storage does not record a journal
+    private final Map<Class<?>, Long> sequences = new ConcurrentHashMap<Class<?>, Long>();
+
+    // entity classes for which an upgrade of outdated entities is currently running
+    private final Set<Class<?>> upgrading = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
 
     private XStreamPersistence xstreamPersistence;
     private String storageServiceClassName;
+    private File snapshotDir;
+    private Verification verification = Verification.CHECKSUM;
+    private boolean upgrade;
 
     protected void activate(ComponentContext context) {
         LOG.info(MessageFormat.format("[PersistenceService][xstream] {0} : activated",
@@ -54,9 +142,13 @@ public class XStreamPersistenceComponent extends PersistenceServiceBase implemen
     }
 
     protected void deactivate(ComponentContext context) {
+        writeSnapshots();
         xstreamPersistence = null;
         cache.clearAll();
         deleted.clearAll();
+        children.clear();
+        signatures.clear();
+        sequences.clear();
         LOG.info(MessageFormat.format("[PersistenceService][xstream] {0} : deactivated",
                 (String) context.getProperties().get(ComponentConstants.COMPONENT_NAME)));
     }
@@ -66,6 +158,9 @@ public class XStreamPersistenceComponent extends PersistenceServiceBase implemen
             xstreamPersistence = new XStreamPersistence(storageService);
             cache.clearAll();
             deleted.clearAll();
+            children.clear();
+            signatures.clear();
+            sequences.clear();
             LOG.info(MessageFormat.format("bindStorageService({0})", storageService)); //$NON-NLS-1$
         }
     }
@@ -76,9 +171,21 @@ public class XStreamPersistenceComponent extends PersistenceServiceBase implemen
             xstreamPersistence = null;
             cache.clearAll();
             deleted.clearAll();
+            children.clear();
+            signatures.clear();
+            sequences.clear();
         }
     }
 
+    protected void bindExtensionService(ExtensionService<?> extensionService) {
+        // cached XStream instances may refer to the class loaders and aliases of the extension
+        XStreamRegistry.invalidate();
+    }
+
+    protected void unbindExtensionService(ExtensionService<?> extensionService) {
+        XStreamRegistry.invalidate();
+    }
+
     /**
      * Creates a <code>XStreamPersistenceComponent</code> for the storage service specified
      * with the {@link BundleProperties#PROPERTY_STORAGE_SERVICE} bundle property.
@@ -86,6 +193,14 @@ public class XStreamPersistenceComponent extends PersistenceServiceBase implemen
     public XStreamPersistenceComponent() {
         storageServiceClassName = BundleProperties.getProperty(BundleProperties.PROPERTY_STORAGE_SERVICE,
                 FileStorageComponent.class.getName());
+        if (BooleanUtils.toBoolean(BundleProperties.getProperty(PROPERTY_SNAPSHOTS, "true"))) { //$NON-NLS-1$
+            String workdir = BundleProperties.getProperty(BundleProperties.PROPERTY_WORKDIR);
+            if (workdir != null) {
+                snapshotDir = new File(workdir, SNAPSHOTS_DIR);
+            }
+        }
+        verification = getVerification();
+        upgrade = BooleanUtils.toBoolean(BundleProperties.getProperty(PROPERTY_UPGRADE, "true")); //$NON-NLS-1$
     }
 
     /**
@@ -97,8 +212,35 @@ public class XStreamPersistenceComponent extends PersistenceServiceBase implemen
         xstreamPersistence = new XStreamPersistence(storageService);
     }
 
+    /**
+     * Sets the directory for model snapshots, or <code>null</code> to disable snapshots.
+     * <p>
+     * This method is package protected for testing purposes.
+     */
+    void setSnapshotDirectory(File snapshotDir) {
+        this.snapshotDir = snapshotDir;
+    }
+
+    /**
+     * Sets how the successful saving of entities is verified.
+     * <p>
+     * This method is package protected for testing purposes.
+     */
+    void setVerification(Verification verification) {
+        this.verification = verification;
+    }
+
+    /**
+     * Enables or disables the background upgrade of outdated entities after loading.
+     * <p>
+     * This method is package protected for testing purposes.
+     */
+    void setUpgrade(boolean upgrade) {
+        this.upgrade = upgrade;
+    }
+
     @Override
-    public synchronized <T extends EntityBase> void persist(Class<T> entityClass, EntityBase entity, String userId) {
+    public <T extends EntityBase> void persist(Class<T> entityClass, EntityBase entity, String userId) {
         if (entity == null) {
             throw new IllegalArgumentException("argument 'entity' must not be null");
         }
@@ -115,10 +257,45 @@ public class XStreamPersistenceComponent extends PersistenceServiceBase implemen
         loadModel(entityClass);
 
         // generate unique id
-        UUID entityId = entity.getUuid();
-        if (entityId == null) {
+        if (entity.getUuid() == null) {
             entity.setUuid(UUID.randomUUID());
         }
+        UUID entityId = entity.getUuid();
+
+        EntityService<?> entityService = EntityServices.getByEntityClass(entityClass);
+        if (entityService == null) {
+            LOG.warn(MessageFormat.format(
+                    "Cannot persist entity {0}:  No entity service registered for entities of type {1}",
+                    entity.getUuid(), entityClass.getName()));
+            return;
+        }
+
+        // lock the entity and the parents whose children might change; the old parent
+        // is known only from the cached entity, so retry if the cached entity has been
+        // replaced by a concurrent persist before the locks could be acquired
+        refreshLock.readLock().lock();
+        try {
+            while (true) {
+                EntityBase oldEntity = getCachedEntity(entityClass, entityId);
+                UUID oldParentId = oldEntity != null ? oldEntity.getParentEntityId() : null;
+                List<Lock> acquiredLocks = locks.lockAll(entityId, oldParentId, entity.getParentEntityId());
+                try {
+                    if (oldEntity == getCachedEntity(entityClass, entityId)) {
+                        persist(entityClass, entityService, oldEntity, entity, userId);
+                        return;
+                    }
+                } finally {
+                    StripedLock.unlockAll(acquiredLocks);
+                }
+            }
+        } finally {
+            refreshLock.readLock().unlock();
+        }
+    }
+
+    private <T extends EntityBase> void persist(Class<T> entityClass, EntityService<?> entityService,
+            EntityBase oldEntity, EntityBase entity, String userId) {
+        UUID entityId = entity.getUuid();
 
         // verify parent is known
         // TODO should be in EntitySeriviceImpl#validate
@@ -130,27 +307,20 @@ public class XStreamPersistenceComponent extends PersistenceServiceBase implemen
             }
         }
 
-        EntityService<?> entityService = EntityServices.getByEntityClass(entityClass);
-        if (entityService == null) {
-            LOG.warn(MessageFormat.format(
-                    "Cannot persist entity {0}:  No entity service registered for entities of type {1}",
-                    entity.getUuid(), entityClass.getName()));
-            return;
-        }
-
-        EntityBase oldEntity = getCachedEntity(entityClass, entityId);
+        boolean saved;
         try {
-            xstreamPersistence.saveEntity(entityService, entity, userId,
+            String checksum = xstreamPersistence.saveEntity(entityService, entity, userId,
                     getAliases(entityClass), getConverters(entityClass));
+            saved = verifyEntity(entityClass, entityId, checksum);
         } catch (IOException e) {
             throw new RuntimeException(e);
         } catch (MigrationException e) {
             throw new RuntimeException(e);
         }
 
-        // reload the entity to proof that is has been persisted successfully;
-        // if so, adjust the parent/child relations of entity and put it into the cache.
-        if (loadEntity(entityClass, entityId) != null) {
+        // if the entity has been persisted successfully,
+        // adjust the parent/child relations of entity and put it into the cache.
+        if (saved) {
             adjustEntityRelations(entityClass, oldEntity, entity);
             updateCache(entity);
             if (entity.isDeleted()) {
@@ -166,6 +336,18 @@ public class XStreamPersistenceComponent extends PersistenceServiceBase implemen
         }
     }
 
+    private <T extends EntityBase> boolean verifyEntity(Class<T> entityClass, UUID entityId, String checksum)
+            throws IOException {
+        switch (verification) {
+        case NONE:
+            return true;
+        case RELOAD:
+            return loadEntity(entityClass, entityId) != null;
+        default:
+            return xstreamPersistence.verifyEntity(entityClass, entityId.toString(), checksum);
+        }
+    }
+
     @Override
     public <T extends EntityBase> T loadEntity(Class<T> entityClass, UUID uuid) {
         if (xstreamPersistence == null) {
@@ -250,23 +432,221 @@ public class XStreamPersistenceComponent extends PersistenceServiceBase implemen
         return deleted.keySet(entityClass);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only entities that have been added, changed or removed in storage since they have been
+     * loaded or persisted are reloaded and rewired, see {@link #refreshEntities(Class)}.
+     * All other entities remain in the caches and can be read while the refresh is running.
+     * If the storage records a {@link JournaledStorage journal of changes}, this is cheap enough
+     * to be called periodically by instances that share their storage with other instances.
+     */
     @Override
     public <T extends EntityBase> void refresh(Class<T> entityClass) {
-        cache.clearAll(entityClass);
-        deleted.clearAll(entityClass);
-        loadModel(entityClass);
+        refreshLock.writeLock().lock();
+        try {
+            refreshEntities(entityClass);
+        } finally {
+            refreshLock.writeLock().unlock();
+        }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only entities that have been added, changed or removed in storage since they have been
+     * loaded or persisted are reloaded and rewired, see {@link #refreshEntities(Class)}.
+     * All other entities remain in the caches and can be read while the refresh is running.
+     * If the storage records a {@link JournaledStorage journal of changes}, this is cheap enough
+     * to be called periodically by instances that share their storage with other instances.
+     */
     @Override
     public void refreshAll() {
+        refreshLock.writeLock().lock();
+        try {
+            for (Class<? extends EntityBase> entityClass : getLoadedEntityTypes()) {
+                refreshEntities(entityClass);
+            }
+        } finally {
+            refreshLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Clears the caches and reloads all entities from storage.
+     * <p>
+     * This method is package protected for testing purposes.
+     */
+    void reloadAll() {
+        refreshLock.writeLock().lock();
+        try {
+            Set<Class<? extends EntityBase>> entityClasses = getLoadedEntityTypes();
+            cache.clearAll();
+            deleted.clearAll();
+            children.clear();
+            signatures.clear();
+            sequences.clear();
+            for (Class<? extends EntityBase> entityClass : entityClasses) {
+                loadModel(entityClass);
+            }
+        } finally {
+            refreshLock.writeLock().unlock();
+        }
+    }
+
+    private Set<Class<? extends EntityBase>> getLoadedEntityTypes() {
         Set<Class<? extends EntityBase>> entityClasses = new HashSet<Class<? extends EntityBase>>();
         entityClasses.addAll(cache.getEntityTypes());
         entityClasses.addAll(deleted.getEntityTypes());
-        cache.clearAll();
-        deleted.clearAll();
-        for (Class<? extends EntityBase> entityClass : entityClasses) {
+        return entityClasses;
+    }
+
+    /**
+     * Reloads the entities of a given class that have been added, changed or removed in storage
+     * since they have been loaded or persisted. Changes are detected by comparing the checksums
+     * of the blobs in storage with the checksums of the blobs from which the cached entities have
+     * been created. Changed entities replace the cached entities and their parent/child relations
+     * are adjusted as if they had been persisted. If the aliases, converters or migrations of the
+     * entity class have changed since the entities have been loaded, all entities are reloaded.
+     * <p>
+     * If the storage records a {@link JournaledStorage journal of changes}, only the entities
+     * written since the last refresh according to the journal are compared and read. Otherwise,
+     * or if the journal does not reach back far enough, the blobs of all entities are compared.
+     * <p>
+     * The caller must hold the write lock of {@link #refreshLock}.
+     * This method is package protected for testing purposes.
+     *
+     * @param entityClass  the class of the entities to refresh.
+     */
+    <T extends EntityBase> void refreshEntities(Class<T> entityClass) {
+        if (xstreamPersistence == null) {
+            LOG.warn(MessageFormat.format("Cannot refresh entities of type {0}: StorageService not available", entityClass));
+            return;
+        }
+        EntityService<T> entityService = EntityServices.getByEntityClass(entityClass);
+        if (entityService == null) {
+            LOG.warn(MessageFormat.format("No entity service registered for entities of type {0}", entityClass.getName()));
+            return;
+        }
+        Set<DataMigration> migrations = getMigrations(entityClass);
+        Map<String, Class<?>> aliases = getAliases(entityClass);
+        Set<Converter> converters = getConverters(entityClass);
+        String signature = ModelSnapshot.signatureOf(entityService.getModelVersion(), aliases, converters, migrations);
+        if (!signature.equals(signatures.get(entityClass))) {
+            // entities loaded from unchanged blobs might look different now
+            children.clear(cache.keySet(entityClass));
+            children.clear(deleted.keySet(entityClass));
+            cache.clearAll(entityClass);
+            deleted.clearAll(entityClass);
             loadModel(entityClass);
+            return;
         }
+
+        long start = System.currentTimeMillis();
+        Changes<T> changes = null;
+        try {
+            Long sequence = sequences.get(entityClass);
+            if (sequence != null) {
+                changes = xstreamPersistence.loadJournaledEntities(entityService, sequence,
+                        getClassLoaders(entityClass), migrations, aliases, converters);
+            }
+            if (changes != null) {
+                sequences.put(entityClass, changes.getSequence());
+            } else {
+                long lastSequence = getLastSequence();
+                changes = xstreamPersistence.loadChangedEntities(entityService,
+                        getClassLoaders(entityClass), migrations, aliases, converters);
+                setSequence(entityClass, lastSequence);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        Set<UUID> removedIds = new HashSet<UUID>();
+        for (String key : changes.getRemovedKeys()) {
+            EntityBase removedEntity = getCachedEntity(entityClass, UUID.fromString(key));
+            if (removedEntity != null) {
+                removeChildEntity(getParentEntity(entityClass, removedEntity), removedEntity);
+                cache.removeEntity(removedEntity);
+                deleted.removeEntity(removedEntity);
+                removedIds.add(removedEntity.getUuid());
+            }
+        }
+        if (!removedIds.isEmpty()) {
+            orphanChildren(entityClass, removedIds);
+        }
+        for (T changedEntity : parentsFirst(changes.getChangedEntities())) {
+            EntityBase oldEntity = getCachedEntity(entityClass, changedEntity.getUuid());
+            adjustEntityRelations(entityClass, oldEntity, changedEntity);
+            updateCache(changedEntity);
+        }
+        LOG.info(MessageFormat.format("Refreshed {0} changed and {1} removed entities of type {2} in {3} ms",
+                changes.getChangedEntities().size(), changes.getRemovedKeys().size(), entityClass.getName(),
+                System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Detaches the children of removed entities and resolves their parents again,
+     * which leaves them without parent as if they had been loaded without the removed entities.
+     * Deleted children of a non-deleted parent are not part of the siblings chain of the parent,
+     * therefore all cached entities of the given class are checked.
+     */
+    private <T extends EntityBase> void orphanChildren(Class<T> entityClass, Set<UUID> removedIds) {
+        children.clear(removedIds);
+        List<T> entities = new ArrayList<T>(cache.getEntities(entityClass));
+        entities.addAll(deleted.getEntities(entityClass));
+        for (T entity : entities) {
+            if (removedIds.contains(entity.getParentEntityId())) {
+                entity.setNextSibling(null);
+                resolveEntityRelations(entityClass, entity);
+            }
+        }
+    }
+
+    private long getLastSequence() {
+        try {
+            return xstreamPersistence.getLastSequence();
+        } catch (IOException e) {
+            LOG.warn(MessageFormat.format("Failed to read the journal of the storage: {0}", e.getMessage()));
+            return -1L;
+        }
+    }
+
+    private void setSequence(Class<?> entityClass, long sequence) {
+        if (sequence >= 0L) {
+            sequences.put(entityClass, sequence);
+        } else {
+            sequences.remove(entityClass);
+        }
+    }
+
+    /**
+     * Orders the given entities so that parents precede their children, so that
+     * the parent of an entity is already in the cache when the entity is added.
+     */
+    private static <T extends EntityBase> List<T> parentsFirst(List<T> entities) {
+        Map<UUID, T> entitiesById = new HashMap<UUID, T>();
+        for (T entity : entities) {
+            entitiesById.put(entity.getUuid(), entity);
+        }
+        List<T> result = new ArrayList<T>(entities.size());
+        Set<UUID> visited = new HashSet<UUID>();
+        for (T entity : entities) {
+            addParentsFirst(entity, entitiesById, visited, result);
+        }
+        return result;
+    }
+
+    private static <T extends EntityBase> void addParentsFirst(T entity, Map<UUID, T> entitiesById,
+            Set<UUID> visited, List<T> result) {
+        if (!visited.add(entity.getUuid())) {
+            return;
+        }
+        UUID parentId = entity.getParentEntityId();
+        T parent = parentId != null ? entitiesById.get(parentId) : null;
+        if (parent != null) {
+            addParentsFirst(parent, entitiesById, visited, result);
+        }
+        result.add(entity);
     }
 
     /**
@@ -296,18 +676,196 @@ public class XStreamPersistenceComponent extends PersistenceServiceBase implemen
         }
         registerEntityClass(entityClass);
 
+        long start = System.currentTimeMillis();
+        Set<DataMigration> migrations = getMigrations(entityClass);
+        Map<String, Class<?>> aliases = getAliases(entityClass);
+        Set<Converter> converters = getConverters(entityClass);
+        ModelSnapshot snapshot = null;
+        String signature = ModelSnapshot.signatureOf(entityService.getModelVersion(), aliases, converters, migrations);
+        if (snapshotDir != null) {
+            snapshot = ModelSnapshot.read(getSnapshotFile(entityClass), entityService.getModelVersion(), signature);
+        }
+        // changes recorded while the entities are loaded are applied again by the next refresh,
+        // which is harmless since unchanged entities are detected by their checksums
+        long sequence = getLastSequence();
         List<T> loadedEntities;
         try {
             loadedEntities = xstreamPersistence.loadEntities(entityService,
-                    getClassLoaders(entityClass), getMigrations(entityClass),
-                    getAliases(entityClass), getConverters(entityClass));
+                    getClassLoaders(entityClass), migrations, aliases, converters, snapshot);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
         for (EntityBase loadedEntity : loadedEntities) {
             updateCache(loadedEntity);
         }
-        resolveEntityRelations(entityClass);
+
+        // wire parent/child relations in one final pass in the order in which the
+        // storage provided the entities, independent of the order in which the
+        // worker threads finished their conversions
+        resolveEntityRelations(entityClass, loadedEntities);
+        signatures.put(entityClass, signature);
+        setSequence(entityClass, sequence);
+        LOG.info(MessageFormat.format("Loaded {0} entities of type {1} in {2} ms",
+                loadedEntities.size(), entityClass.getName(), System.currentTimeMillis() - start));
+        if (upgrade) {
+            scheduleUpgrade(entityClass);
+        }
+    }
+
+    private <T extends EntityBase> void scheduleUpgrade(final Class<T> entityClass) {
+        if (xstreamPersistence.getOutdatedKeys(entityClass.getSimpleName()).isEmpty()
+                || !upgrading.add(entityClass)) {
+            return;
+        }
+        ThreadPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                Thread thread = Thread.currentThread();
+                int priority = thread.getPriority();
+                thread.setPriority(Thread.MIN_PRIORITY);
+                try {
+                    upgradeEntities(entityClass);
+                } catch (RuntimeException e) {
+                    LOG.warn(MessageFormat.format("Failed to upgrade entities of type {0}", entityClass.getName()), e);
+                } finally {
+                    thread.setPriority(priority);
+                    upgrading.remove(entityClass);
+                }
+            }
+        });
+    }
+
+    @Override
+    public StorageUpgrade upgrade(StorageService storage, String category, int threads) throws IOException {
+        for (EntityService<?> entityService : EntityServices.getAll()) {
+            if (entityService.getEntityClass().getSimpleName().equals(category)) {
+                return upgrade(storage, entityService, threads);
+            }
+        }
+        throw new IllegalArgumentException(MessageFormat.format(
+                "No entity service registered for entities of type {0}", category));
+    }
+
+    private <T extends EntityBase> StorageUpgrade upgrade(StorageService storage, EntityService<T> entityService,
+            int threads) throws IOException {
+        Class<T> entityClass = entityService.getEntityClass();
+        XStreamPersistence persistence = xstreamPersistence;
+        if (persistence != null && persistence.storageService == storage) {
+            // entities might be persisted concurrently; take the same locks as persisting threads
+            return persistence.upgradeEntities(entityService, threads, getClassLoaders(entityClass),
+                    getMigrations(entityClass), getAliases(entityClass), getConverters(entityClass),
+                    locks, refreshLock.readLock());
+        }
+        return new XStreamPersistence(storage).upgradeEntities(entityService, threads, getClassLoaders(entityClass),
+                getMigrations(entityClass), getAliases(entityClass), getConverters(entityClass));
+    }
+
+    /**
+     * Writes all loaded entities of a given class that are stored with an older model version
+     * back to storage at the current model version, so that they need not be migrated again the
+     * next time they are loaded. Entities are upgraded in batches, and persisting threads and
+     * refreshes may proceed between batches. Entities that are persisted concurrently are skipped.
+     * <p>
+     * This method is package protected for testing purposes.
+     *
+     * @param entityClass  the class of the entities to upgrade.
+     *
+     * @return  the number of upgraded entities.
+     */
+    <T extends EntityBase> int upgradeEntities(Class<T> entityClass) {
+        XStreamPersistence persistence = xstreamPersistence;
+        EntityService<T> entityService = EntityServices.getByEntityClass(entityClass);
+        if (persistence == null || entityService == null) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        Set<DataMigration> migrations = getMigrations(entityClass);
+        Map<String, Class<?>> aliases = getAliases(entityClass);
+        List<String> keys = new ArrayList<String>(persistence.getOutdatedKeys(entityClass.getSimpleName()));
+        int upgraded = 0;
+        for (int from = 0; from < keys.size(); from += UPGRADE_BATCH_SIZE) {
+            refreshLock.readLock().lock();
+            try {
+                if (persistence != xstreamPersistence) {
+                    // storage service has been unbound or replaced in the meantime
+                    break;
+                }
+                for (String key : keys.subList(from, Math.min(from + UPGRADE_BATCH_SIZE, keys.size()))) {
+                    List<Lock> acquiredLocks = locks.lockAll(UUID.fromString(key));
+                    try {
+                        if (persistence.upgradeEntity(entityService, key, migrations, aliases)) {
+                            ++upgraded;
+                        }
+                    } catch (IOException e) {
+                        LOG.warn(MessageFormat.format("Failed to upgrade entity {0} of type {1}",
+                                key, entityClass.getName()), e);
+                    } finally {
+                        StripedLock.unlockAll(acquiredLocks);
+                    }
+                }
+            } finally {
+                refreshLock.readLock().unlock();
+            }
+        }
+        LOG.info(MessageFormat.format(
+                "Upgraded {0} of {1} outdated entities of type {2} to model version {3} in {4} ms",
+                upgraded, keys.size(), entityClass.getName(), entityService.getModelVersion(),
+                System.currentTimeMillis() - start));
+        return upgraded;
+    }
+
+    /**
+     * Writes snapshots of all entities in the caches, provided that snapshots
+     * are enabled.
+     * <p>
+     * This method is package protected for testing purposes.
+     */
+    void writeSnapshots() {
+        if (snapshotDir == null || xstreamPersistence == null) {
+            return;
+        }
+        for (Class<? extends EntityBase> entityClass : cache.getEntityTypes()) {
+            writeSnapshot(entityClass);
+        }
+    }
+
+    private <T extends EntityBase> void writeSnapshot(Class<T> entityClass) {
+        EntityService<T> entityService = EntityServices.getByEntityClass(entityClass);
+        if (entityService == null) {
+            return;
+        }
+        List<EntityBase> entities = new ArrayList<EntityBase>();
+        entities.addAll(cache.getEntities(entityClass));
+        entities.addAll(deleted.getEntities(entityClass));
+        Map<String, Class<?>> aliases = getAliases(entityClass);
+        Set<Converter> converters = getConverters(entityClass);
+        String signature = ModelSnapshot.signatureOf(entityService.getModelVersion(), aliases, converters,
+                getMigrations(entityClass));
+        File snapshotFile = getSnapshotFile(entityClass);
+        try {
+            int count = xstreamPersistence.writeSnapshot(snapshotFile, entityService, entities, signature,
+                    getClassLoaders(entityClass), aliases, converters);
+            LOG.info(MessageFormat.format("Wrote snapshot of {0} entities of type {1} to {2}",
+                    count, entityClass.getName(), snapshotFile.getAbsolutePath()));
+        } catch (IOException e) {
+            LOG.warn(MessageFormat.format("Failed to write snapshot of entities of type {0}",
+                    entityClass.getName()), e);
+        }
+    }
+
+    private File getSnapshotFile(Class<? extends EntityBase> entityClass) {
+        return new File(snapshotDir, entityClass.getSimpleName() + SNAPSHOT_EXTENSION);
+    }
+
+    private static Verification getVerification() {
+        String value = BundleProperties.getProperty(PROPERTY_VERIFY, Verification.CHECKSUM.name());
+        try {
+            return Verification.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            LOG.warn(MessageFormat.format("Invalid value ''{0}'' for property {1}, using ''checksum''",
+                    value, PROPERTY_VERIFY));
+            return Verification.CHECKSUM;
+        }
     }
 
     <T extends EntityBase> T getCachedEntity(Class<T> entityClass, UUID uuid) {
@@ -456,6 +1014,8 @@ public class XStreamPersistenceComponent extends PersistenceServiceBase implemen
      * replace the entity with the new value. Otherwise append the entity
      * to the end of the siblings chain. If the parent entity is <code>null</code>,
      * or parent and child have different deleted flags, the method does nothing.
+     * The siblings chain is maintained by a {@link ChildIndex}, so that the
+     * effort does not depend on the number of children of the parent.
      * <p>
      * This method is package protected for testing purposes.
      *
@@ -470,26 +1030,7 @@ public class XStreamPersistenceComponent extends PersistenceServiceBase implemen
         if (parentEntity.isDeleted() != entity.isDeleted()) {
             return;
         }
-        EntityBase next = parentEntity.getFirstChild();
-        if (next == null) {
-            parentEntity.setFirstChild(entity);
-            return;
-        }
-        EntityBase prev = null;
-        while (next != null) {
-            if (next.equals(entity)) {
-                if (prev != null) {
-                    prev.setNextSibling(entity);
-                } else {
-                    parentEntity.setFirstChild(entity);
-                }
-                entity.setNextSibling(next.getNextSibling());
-                return;
-            }
-            prev = next;
-            next = next.getNextSibling();
-        }
-        prev.setNextSibling(entity);
+        children.insert(parentEntity, entity);
     }
 
     /**
@@ -510,24 +1051,7 @@ public class XStreamPersistenceComponent extends PersistenceServiceBase implemen
         if (parentEntity == null) {
             return;
         }
-        EntityBase next = parentEntity.getFirstChild();
-        if (next == null) {
-            return;
-        }
-        EntityBase prev = null;
-        while (next != null) {
-            if (next.equals(entity)) {
-                if (prev != null) {
-                    prev.setNextSibling(next.getNextSibling());
-                } else {
-                    parentEntity.setFirstChild(next.getNextSibling());
-                }
-                next.setNextSibling(null);
-                return;
-            }
-            prev = next;
-            next = next.getNextSibling();
-        }
+        children.remove(parentEntity, entity);
     }
 
     /**
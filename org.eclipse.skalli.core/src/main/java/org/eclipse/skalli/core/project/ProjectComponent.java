@@ -152,7 +152,7 @@ public class ProjectComponent extends EntityServiceBase<Project> implements Proj
 
     @Override
     public List<Project> getProjects(Comparator<Project> c) {
-        List<Project> projects = getAll();
+        List<Project> projects = new ArrayList<Project>(getAll());
         if (c != null) {
             Collections.sort(projects, c);
         }
@@ -307,7 +307,7 @@ public class ProjectComponent extends EntityServiceBase<Project> implements Proj
 
     @Override
     public List<Project> getDeletedProjects(Comparator<Project> c) {
-        List<Project> projects = getDeletedProjects();
+        List<Project> projects = new ArrayList<Project>(getDeletedProjects());
         Collections.sort(projects, c);
         return projects;
     }
@@ -333,6 +333,12 @@ public class ProjectComponent extends EntityServiceBase<Project> implements Proj
         return rootProjects;
     }
 
+    @Override
+    protected Object[] getLockKeys(Project entity) {
+        // project identifiers must be unique, see validateProjectId
+        return new Object[] { entity.getProjectId() };
+    }
+
     @Override
     protected void validateEntity(Project entity) throws ValidationException {
         SortedSet<Issue> issues = validate(entity, Severity.FATAL);
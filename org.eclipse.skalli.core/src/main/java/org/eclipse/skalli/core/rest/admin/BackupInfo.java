@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.rest.admin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.MessageFormat;
+import java.util.Properties;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.eclipse.skalli.services.persistence.StorageService;
+
+/**
+ * Describes a backup created by {@link ProjectBackupResource}. The description is stored
+ * as first entry of the backup with the name {@link #ENTRY_NAME}.
+ * <p>
+ * If the storage of the backed up instance records a {@link org.eclipse.skalli.services.persistence.JournaledStorage
+ * journal of changes}, the description contains the sequence number of the journal at the time
+ * the backup has been started. An incremental backup exports the changes since the sequence number
+ * of a previous backup. A chain of incremental backups can be restored on top of a full backup,
+ * if each of them continues its predecessor, see {@link #continues(BackupInfo)}. The description
+ * of the last restored backup is therefore stored in the restored storage.
+ */
+class BackupInfo {
+
+    /** Name of the ZIP entry that contains the description of a backup. */
+    static final String ENTRY_NAME = "backup.properties"; //$NON-NLS-1$
+
+    // category and key of the description of the last restored backup in the storage
+    static final String CATEGORY = "Backup"; //$NON-NLS-1$
+    static final String KEY_RESTORED = "restored"; //$NON-NLS-1$
+
+    private static final String PROPERTY_SINCE = "since"; //$NON-NLS-1$
+    private static final String PROPERTY_SEQUENCE = "sequence"; //$NON-NLS-1$
+
+    private final long since;
+    private final long sequence;
+
+    /**
+     * Creates a backup description.
+     *
+     * @param since  the sequence number since which changes have been exported,
+     * or -1 for a full backup.
+     * @param sequence  the sequence number of the journal when the backup has been started,
+     * or -1 if the storage does not record a journal.
+     */
+    BackupInfo(long since, long sequence) {
+        this.since = since;
+        this.sequence = sequence;
+    }
+
+    long getSince() {
+        return since;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    boolean isIncremental() {
+        return since >= 0;
+    }
+
+    /**
+     * Returns <code>true</code> if this backup contains the changes since the given
+     * backup, i.e. if it can be restored on top of the given backup.
+     */
+    boolean continues(BackupInfo previous) {
+        return isIncremental() && previous != null && previous.getSequence() == since;
+    }
+
+    void write(OutputStream out) throws IOException {
+        Properties properties = new Properties();
+        if (since >= 0) {
+            properties.setProperty(PROPERTY_SINCE, Long.toString(since));
+        }
+        if (sequence >= 0) {
+            properties.setProperty(PROPERTY_SEQUENCE, Long.toString(sequence));
+        }
+        properties.store(out, null);
+    }
+
+    static BackupInfo read(InputStream in) throws IOException {
+        Properties properties = new Properties();
+        properties.load(in);
+        return new BackupInfo(NumberUtils.toLong(properties.getProperty(PROPERTY_SINCE), -1L),
+                NumberUtils.toLong(properties.getProperty(PROPERTY_SEQUENCE), -1L));
+    }
+
+    /**
+     * Loads the description of the last backup that has been restored into the given storage.
+     *
+     * @return the description, or <code>null</code> if no backup with description has been
+     * restored into the storage yet.
+     */
+    static BackupInfo loadRestored(StorageService storageService) throws IOException {
+        InputStream in = storageService.read(CATEGORY, KEY_RESTORED);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Stores this description as description of the last backup restored into the given storage.
+     */
+    void saveRestored(StorageService storageService) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out);
+        storageService.write(CATEGORY, KEY_RESTORED, new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Override
+    public String toString() {
+        return isIncremental()
+                ? MessageFormat.format("incremental backup #{0}..#{1}", //$NON-NLS-1$
+                        Long.toString(since), Long.toString(sequence))
+                : MessageFormat.format("full backup #{0}", Long.toString(sequence)); //$NON-NLS-1$
+    }
+}
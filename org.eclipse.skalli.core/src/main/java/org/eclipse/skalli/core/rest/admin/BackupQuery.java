@@ -30,12 +30,14 @@ public class BackupQuery {
     public static final String PARAM_INCLUDE = "include"; //$NON-NLS-1$
     public static final String PARAM_EXCLUDE = "exclude"; //$NON-NLS-1$
     public static final String PARAM_FILTERS = "filters"; //$NON-NLS-1$
+    public static final String PARAM_SINCE = "since"; //$NON-NLS-1$
 
     private String unitSymbols = "dDhHmM"; //$NON-NLS-1$
 
     private long period = 0;
     private long from = 0;
     private long to = 0;
+    private long since = -1;
     private Set<String> included;
     private Set<String> excluded;
     private Set<String> filters;
@@ -45,7 +47,8 @@ public class BackupQuery {
     }
 
     BackupQuery(Map<String, String> params, long now)  {
-        if (!params.containsKey(PARAM_ALL)) {
+        since = NumberUtils.toLong(params.get(PARAM_SINCE), -1L);
+        if (since < 0 && !params.containsKey(PARAM_ALL)) {
             period = Math.abs(getTimeInterval(params.get(PARAM_PERIOD)));
             from = parseDateTime(params.get(PARAM_FROM), now);
             to = parseDateTime(params.get(PARAM_TO), now);
@@ -64,7 +67,7 @@ public class BackupQuery {
             if (from > to) {
                 from = to;
             }
-        } else { // all
+        } else { // all or incremental
             from = 0;
             to = 0;
         }
@@ -126,6 +129,18 @@ public class BackupQuery {
         return to;
     }
 
+    /**
+     * Returns the sequence number of the storage journal since which changes should be
+     * exported with an incremental backup, or -1 if a full backup was requested.
+     */
+    public long getSince() {
+        return since;
+    }
+
+    public boolean isIncremental() {
+        return since >= 0;
+    }
+
     public void setFilter(String filter) {
         filters = CollectionUtils.asSet(filter);
     }
@@ -0,0 +1,320 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.rest.admin;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.eclipse.skalli.services.persistence.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Restores a backup created by {@link ProjectBackupResource} into a storage service.
+ * <p>
+ * The ZIP entries are decoded by the calling thread and collected in batches of limited size,
+ * which are handed over to a number of writer threads through a bounded queue per writer thread.
+ * Entities are stored with {@link StorageService#writeAll(String, Map) batch writes}, history entries
+ * with {@link StorageService#writeToArchive(String, String, long, InputStream) writeToArchive}.
+ * At most two batches per writer thread are queued, and at most one entity batch and one history
+ * batch per writer thread are being collected, so the memory consumption does not depend on the size
+ * of the backup. The history entries of an entity are always stored by the same writer thread,
+ * so that they are archived in the order of the backup, even if they are split between batches.
+ * <p>
+ * The restore stops as soon as a batch could not be stored.
+ */
+class BackupRestore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BackupRestore.class);
+
+    private static final String HISTORY = "History"; //$NON-NLS-1$
+
+    // marks the end of the batches for the writer threads
+    private static final Batch END_OF_BATCHES = new Batch(null, false);
+
+    private final StorageService storageService;
+    private final int threads;
+    private final int batchSize;
+
+    private ZipInputStream zipStream;
+    private ZipEntry nextEntry;
+    private BackupInfo info;
+
+    private final AtomicInteger countItems = new AtomicInteger();
+    private final AtomicInteger countHistoryItems = new AtomicInteger();
+    private final Set<String> restoredCategories = Collections.synchronizedSet(new HashSet<String>());
+    private volatile boolean failed;
+
+    /**
+     * Creates a restore.
+     *
+     * @param storageService  the storage to restore the backup into.
+     * @param threads  the number of writer threads.
+     * @param batchSize  the number of entries that are stored with one batch operation.
+     */
+    BackupRestore(StorageService storageService, int threads, int batchSize) {
+        this.storageService = storageService;
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Opens the given ZIP stream and reads the {@link BackupInfo description} of the backup.
+     *
+     * @return the description of the backup, or <code>null</code> if the backup has no description,
+     * e.g. because it has been created by an older version.
+     * @throws IOException  if the ZIP stream could not be read.
+     */
+    BackupInfo open(InputStream in) throws IOException {
+        zipStream = new ZipInputStream(in);
+        nextEntry = zipStream.getNextEntry();
+        if (nextEntry != null && BackupInfo.ENTRY_NAME.equals(nextEntry.getName())) {
+            info = BackupInfo.read(zipStream);
+            zipStream.closeEntry();
+            nextEntry = zipStream.getNextEntry();
+        }
+        return info;
+    }
+
+    /**
+     * Reads the given ZIP stream and stores its entries.
+     *
+     * @see #open(InputStream)
+     * @see #restore(Set)
+     */
+    boolean restore(InputStream in, Set<String> categories) throws IOException {
+        open(in);
+        return restore(categories);
+    }
+
+    /**
+     * Stores the entries of the {@link #open(InputStream) opened} ZIP stream. If all entries
+     * have been stored and the backup has a description, the description is stored as
+     * {@link BackupInfo#loadRestored(StorageService) last restored backup}. The ZIP stream
+     * is closed afterwards.
+     *
+     * @param categories  the categories to restore. Entries of other categories are skipped.
+     * History entries are restored only if this set contains the pseudo category <tt>"History"</tt>.
+     *
+     * @return <code>true</code>, if all entries have been stored, <code>false</code> if
+     * the restore stopped because a batch could not be stored.
+     * @throws IOException  if the ZIP stream could not be read.
+     */
+    boolean restore(Set<String> categories) throws IOException {
+        boolean withHistory = categories.contains(HISTORY);
+        List<BlockingQueue<Batch>> queues = new ArrayList<BlockingQueue<Batch>>(threads);
+        ExecutorService writers = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < threads; ++i) {
+                final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(2);
+                queues.add(queue);
+                writers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Batch batch = queue.take();
+                            while (batch != END_OF_BATCHES) {
+                                if (!failed) {
+                                    write(batch);
+                                }
+                                batch = queue.take();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+
+            // entity batches are distributed round-robin, history batches by key
+            Batch entities = null;
+            int nextWriter = 0;
+            Batch[] history = new Batch[threads];
+            ZipEntry entry = nextEntry;
+            while (entry != null && !failed) {
+                try {
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    String entryName = entry.getName().replace('\\', '/');
+                    String[] parts = StringUtils.split(entryName, '/');
+                    if (parts.length != 2) {
+                        LOG.info(MessageFormat.format("Restore: {0} is not recognized as entity key", entryName));
+                        continue;
+                    }
+                    String category = parts[0];
+                    String name = parts[1];
+                    if (name.endsWith(".xml")) { //$NON-NLS-1$
+                        name = name.substring(0, name.length() - 4);
+                    }
+                    String[] nameParts = StringUtils.split(name, '_');
+                    String key = nameParts[0];
+                    long timestamp = NumberUtils.toLong(nameParts.length == 2 ? nameParts[1] : null, -1L);
+
+                    // ensure that the category of the entry, i.e. the directory name,
+                    // is in the set of accepted categories
+                    if (!categories.contains(category)) {
+                        LOG.info(MessageFormat.format("Restore: Excluded {0} (category ''{1}'' not accepted)",
+                                key, category));
+                        continue;
+                    }
+                    if (timestamp < 0) {
+                        if (entities != null && (!category.equals(entities.category)
+                                || entities.size() >= batchSize)) {
+                            queues.get(nextWriter).put(entities);
+                            nextWriter = (nextWriter + 1) % threads;
+                            entities = null;
+                        }
+                        if (entities == null) {
+                            entities = new Batch(category, false);
+                        }
+                        entities.add(key, timestamp, IOUtils.toByteArray(zipStream));
+                    } else if (withHistory) {
+                        int writer = (key.hashCode() & Integer.MAX_VALUE) % threads;
+                        if (history[writer] != null && (!category.equals(history[writer].category)
+                                || history[writer].size() >= batchSize)) {
+                            queues.get(writer).put(history[writer]);
+                            history[writer] = null;
+                        }
+                        if (history[writer] == null) {
+                            history[writer] = new Batch(category, true);
+                        }
+                        history[writer].add(key, timestamp, IOUtils.toByteArray(zipStream));
+                    }
+                } finally {
+                    zipStream.closeEntry();
+                    entry = zipStream.getNextEntry();
+                }
+            }
+            if (entities != null) {
+                queues.get(nextWriter).put(entities);
+            }
+            for (int i = 0; i < threads; ++i) {
+                if (history[i] != null) {
+                    queues.get(i).put(history[i]);
+                }
+                queues.get(i).put(END_OF_BATCHES);
+            }
+            writers.shutdown();
+            while (!writers.awaitTermination(1L, TimeUnit.SECONDS)) {
+                // wait until all batches have been stored
+            }
+            if (!failed && info != null) {
+                info.saveRestored(storageService);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } finally {
+            writers.shutdownNow();
+            IOUtils.closeQuietly(zipStream);
+        }
+        return !failed;
+    }
+
+    /**
+     * Closes the ZIP stream, e.g. if the backup should not be restored after
+     * its description has been read.
+     */
+    void close() {
+        IOUtils.closeQuietly(zipStream);
+    }
+
+    /**
+     * Returns the number of restored entities.
+     */
+    int getCountItems() {
+        return countItems.get();
+    }
+
+    /**
+     * Returns the number of restored history entries.
+     */
+    int getCountHistoryItems() {
+        return countHistoryItems.get();
+    }
+
+    /**
+     * Returns the categories for which at least one entity or history entry has been restored.
+     */
+    Set<String> getRestoredCategories() {
+        return new HashSet<String>(restoredCategories);
+    }
+
+    private void write(Batch batch) {
+        try {
+            if (batch.history) {
+                for (int i = 0; i < batch.size(); ++i) {
+                    storageService.writeToArchive(batch.category, batch.keys.get(i), batch.timestamps.get(i),
+                            new ByteArrayInputStream(batch.contents.get(i)));
+                }
+                countHistoryItems.addAndGet(batch.size());
+            } else {
+                Map<String, InputStream> blobs = new LinkedHashMap<String, InputStream>();
+                for (int i = 0; i < batch.size(); ++i) {
+                    blobs.put(batch.keys.get(i), new ByteArrayInputStream(batch.contents.get(i)));
+                }
+                storageService.writeAll(batch.category, blobs);
+                countItems.addAndGet(batch.size());
+            }
+            restoredCategories.add(batch.category);
+        } catch (Exception e) {
+            failed = true;
+            String what = batch.history ? "history entries" : "entities"; //$NON-NLS-1$ //$NON-NLS-2$
+            LOG.error(MessageFormat.format("Failed to store {0} {1} of category {2}",
+                    batch.size(), what, batch.category), e);
+        }
+    }
+
+    private static class Batch {
+        final String category;
+        final boolean history;
+        final List<String> keys = new ArrayList<String>();
+        final List<Long> timestamps = new ArrayList<Long>();
+        final List<byte[]> contents = new ArrayList<byte[]>();
+
+        Batch(String category, boolean history) {
+            this.category = category;
+            this.history = history;
+        }
+
+        void add(String key, long timestamp, byte[] content) {
+            keys.add(key);
+            timestamps.add(timestamp);
+            contents.add(content);
+        }
+
+        int size() {
+            return keys.size();
+        }
+    }
+}
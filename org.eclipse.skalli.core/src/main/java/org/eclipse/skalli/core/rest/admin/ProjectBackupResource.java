@@ -10,32 +10,40 @@
  *******************************************************************************/
 package org.eclipse.skalli.core.rest.admin;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.NumberUtils;
 import org.eclipse.skalli.commons.CollectionUtils;
-import org.eclipse.skalli.commons.FormatUtils;
 import org.eclipse.skalli.commons.ThreadPool;
 import org.eclipse.skalli.core.storage.FileStorageComponent;
+import org.eclipse.skalli.model.EntityBase;
 import org.eclipse.skalli.services.BundleProperties;
 import org.eclipse.skalli.services.ServiceFilter;
 import org.eclipse.skalli.services.Services;
+import org.eclipse.skalli.services.entity.EntityService;
+import org.eclipse.skalli.services.entity.EntityServices;
 import org.eclipse.skalli.services.extension.rest.ResourceBase;
 import org.eclipse.skalli.services.permit.Permits;
+import org.eclipse.skalli.services.persistence.JournaledStorage;
 import org.eclipse.skalli.services.persistence.PersistenceService;
+import org.eclipse.skalli.services.persistence.StorageChange;
 import org.eclipse.skalli.services.persistence.StorageConsumer;
 import org.eclipse.skalli.services.persistence.StorageService;
 import org.restlet.data.Disposition;
@@ -57,6 +65,15 @@ public class ProjectBackupResource extends ResourceBase {
     private static final String ACTION_PARAM = "action"; //$NON-NLS-1$
     private static final String ACTION_OVERWRITE = "overwrite"; //$NON-NLS-1$
 
+    /**
+     * Name of the property that defines the number of threads storing entities
+     * during a restore. Default is the number of available processors.
+     */
+    public static final String PROPERTY_RESTORE_THREADS = "skalli.backup.restore.threads"; //$NON-NLS-1$
+
+    // number of entities that are read or stored with one batch operation
+    private static final int BATCH_SIZE = 100;
+
     // error codes for logging and error responses
     private static final String ID_PREFIX = "rest:api/admin/backup:"; //$NON-NLS-1$
     private static final String ERROR_ID_IO_ERROR = ID_PREFIX + "00"; //$NON-NLS-1$
@@ -64,6 +81,8 @@ public class ProjectBackupResource extends ResourceBase {
     private static final String ERROR_ID_FAILED_TO_RETRIEVE_KEYS = ID_PREFIX + "20"; //$NON-NLS-1$
     private static final String ERROR_ID_FAILED_TO_STORE = ID_PREFIX + "30"; //$NON-NLS-1$
     private static final String ERROR_ID_OVERWRITE_EXISTING_DATA = ID_PREFIX + "40"; //$NON-NLS-1$
+    private static final String ERROR_ID_BROKEN_CHAIN = ID_PREFIX + "50"; //$NON-NLS-1$
+    private static final String ERROR_ID_NO_JOURNAL = ID_PREFIX + "60"; //$NON-NLS-1$
 
     @SuppressWarnings("nls")
     private static final Set<String> CATEGORIES = CollectionUtils.asSet("customization", "Project", "Issues",
@@ -82,8 +101,33 @@ public class ProjectBackupResource extends ResourceBase {
 
         BackupQuery query = new BackupQuery(getQueryAttributes());
         Set<String> categories = getCategories(query);
+        BackupInfo info = new BackupInfo(-1L, -1L);
+        List<StorageChange> changes = null;
+        if (storageService instanceof JournaledStorage) {
+            JournaledStorage journal = (JournaledStorage) storageService;
+            try {
+                // determine the sequence before reading content, so that the next
+                // incremental backup does not miss changes made during this backup
+                long sequence = journal.getLastSequence();
+                if (query.isIncremental()) {
+                    changes = journal.getChanges(query.getSince());
+                    if (changes == null) {
+                        return createErrorRepresentation(Status.CLIENT_ERROR_PRECONDITION_FAILED,
+                                ERROR_ID_NO_JOURNAL, MessageFormat.format(
+                                        "The journal of the storage does not cover the changes since #{0}.\n" +
+                                        "Create a full backup instead.", Long.toString(query.getSince())));
+                    }
+                }
+                info = new BackupInfo(query.getSince(), sequence);
+            } catch (IOException e) {
+                return createIOErrorRepresentation(ERROR_ID_IO_ERROR, e);
+            }
+        } else if (query.isIncremental()) {
+            return createErrorRepresentation(Status.CLIENT_ERROR_PRECONDITION_FAILED, ERROR_ID_NO_JOURNAL,
+                    "Incremental backups require a storage that records a journal of changes");
+        }
         ZipOutputRepresentation zipRepresentation = new ZipOutputRepresentation(storageService, categories,
-                query.getFrom(), query.getTo());
+                query.getFrom(), query.getTo(), info, changes);
         Disposition disposition = new Disposition(Disposition.TYPE_ATTACHMENT);
         disposition.setFilename(FILE_NAME);
         zipRepresentation.setDisposition(disposition);
@@ -106,121 +150,90 @@ public class ProjectBackupResource extends ResourceBase {
         String action = getQueryAttribute(ACTION_PARAM);
         Set<String> categories = getCategories(query);
 
-        Set<String> accepted = new HashSet<String>();
-        Set<String> rejected = new HashSet<String>();
-        for (String category: CATEGORIES) {
-            if (categories.contains(category)) {
-                try {
-                    if (ACTION_OVERWRITE.equals(action) || storageService.keys(category).isEmpty()) {
-                        accepted.add(category);
-                    } else {
-                        rejected.add(category);
-                    }
-                } catch (IOException e) {
-                    LOG.error(MessageFormat.format("Failed to retrieve keys for category {0} ({1})",
-                            category, ERROR_ID_FAILED_TO_RETRIEVE_KEYS), e);
-                    return createErrorRepresentation(Status.SERVER_ERROR_INTERNAL, ERROR_ID_FAILED_TO_RETRIEVE_KEYS ,
-                            "Failed to store the attached backup resource");
-                }
-            }
-        }
-        if (rejected.size() > 0) {
-            return createErrorRepresentation(
-                    Status.CLIENT_ERROR_PRECONDITION_FAILED,
-                    ERROR_ID_OVERWRITE_EXISTING_DATA,
-                    MessageFormat.format(
-                            "Restore might overwrite existing data in the folling categories:\n{0}\n" +
-                            "Either exclude these categories from the restore with a \"exclude=<comma-separated-list>\" " +
-                            "parameter or enforce the restore with \"action=overwrite\".",
-                             CollectionUtils.toString(rejected, '\n')));
-        }
-        if (accepted.isEmpty()) {
-            setStatus(Status.SUCCESS_NO_CONTENT);
-            return null;
-        }
-        boolean withHistory = accepted.contains("History"); //$NON-NLS-1$
-
-        int countItems = 0;
-        int countHistoryItems = 0;
-        ZipInputStream zipStream = null;
+        BackupRestore restore = new BackupRestore(storageService, getRestoreThreads(), BATCH_SIZE);
+        long start = System.currentTimeMillis();
         try {
-            zipStream = new ZipInputStream(entity.getStream());
-            ZipEntry entry = zipStream.getNextEntry();
-            while (entry != null) {
-                try {
-                    if (!entry.isDirectory()) {
-                        String entryName = entry.getName().replace('\\', '/');
-                        String[] parts = StringUtils.split(entryName, '/');
-                        if (parts.length != 2) {
-                            LOG.info(MessageFormat.format("Restore: {0} is not recognized as entity key", entryName));
-                            continue;
-                        }
-                        String category = parts[0];
-                        String name = parts[1];
-                        if (name.endsWith(".xml")) { //$NON-NLS-1$
-                            name = name.substring(0, name.length() - 4);
-                        };
-                        String[] nameParts = StringUtils.split(name, '_');
-                        String key = nameParts[0];
-                        long timestamp = NumberUtils.toLong(nameParts.length == 2 ? nameParts[1] : null, -1L);
-
-                        // ensure that the category of the entry, i.e. the directory name,
-                        // is in the set of accepted categories
-                        if (accepted.contains(category)) {
-                            if (timestamp < 0) {
-                                try {
-                                    storageService.write(category, key, zipStream);
-                                    ++countItems;
-                                } catch (IOException e) {
-                                    LOG.error(MessageFormat.format(
-                                            "Failed to store entity with key {0} and category {1} ({2})",
-                                            key, category, ERROR_ID_FAILED_TO_STORE), e);
-                                    return createErrorRepresentation(Status.SERVER_ERROR_INTERNAL, ERROR_ID_FAILED_TO_STORE,
-                                            "Failed to store the attached backup");
-                                }
-                            } else if (withHistory) {
-                                try {
-                                    storageService.writeToArchive(category, key, timestamp, zipStream);
-                                    ++countHistoryItems;
-                                } catch (IOException e) {
-                                    LOG.error(MessageFormat.format(
-                                            "Failed to store history entry for timestamp {0} with key {1} and category {2} ({3})",
-                                            FormatUtils.formatUTCWithMillis(timestamp), key, category,
-                                            ERROR_ID_FAILED_TO_STORE), e);
-                                    return createErrorRepresentation(Status.SERVER_ERROR_INTERNAL,
-                                            ERROR_ID_FAILED_TO_STORE,
-                                            "Failed to store the attached backup");
-                                }
+            BackupInfo info = restore.open(entity.getStream());
+            Set<String> accepted = new HashSet<String>();
+            if (info != null && info.isIncremental()) {
+                // incremental backups are restored on top of the data of their predecessors
+                BackupInfo restored = BackupInfo.loadRestored(storageService);
+                if (!ACTION_OVERWRITE.equals(action) && !info.continues(restored)) {
+                    return createErrorRepresentation(
+                            Status.CLIENT_ERROR_PRECONDITION_FAILED,
+                            ERROR_ID_BROKEN_CHAIN,
+                            MessageFormat.format(
+                                    "The attached {0} does not continue the last restored backup ({1}).\n" +
+                                    "Restore the missing backups first or enforce the restore " +
+                                    "with \"action=overwrite\".",
+                                    info, restored != null ? restored : "none"));
+                }
+                accepted.addAll(CATEGORIES);
+                accepted.retainAll(categories);
+            } else {
+                Set<String> rejected = new HashSet<String>();
+                for (String category: CATEGORIES) {
+                    if (categories.contains(category)) {
+                        try {
+                            if (ACTION_OVERWRITE.equals(action) || storageService.keys(category).isEmpty()) {
+                                accepted.add(category);
+                            } else {
+                                rejected.add(category);
                             }
-                        } else {
-                            LOG.info(MessageFormat.format("Restore: Excluded {0} (category ''{1}'' not accepted)",
-                                    key, category));
+                        } catch (IOException e) {
+                            LOG.error(MessageFormat.format("Failed to retrieve keys for category {0} ({1})",
+                                    category, ERROR_ID_FAILED_TO_RETRIEVE_KEYS), e);
+                            return createErrorRepresentation(Status.SERVER_ERROR_INTERNAL,
+                                    ERROR_ID_FAILED_TO_RETRIEVE_KEYS, "Failed to store the attached backup resource");
                         }
                     }
-                } finally {
-                    zipStream.closeEntry();
-                    entry = zipStream.getNextEntry();
+                }
+                if (rejected.size() > 0) {
+                    return createErrorRepresentation(
+                            Status.CLIENT_ERROR_PRECONDITION_FAILED,
+                            ERROR_ID_OVERWRITE_EXISTING_DATA,
+                            MessageFormat.format(
+                                    "Restore might overwrite existing data in the folling categories:\n{0}\n" +
+                                    "Either exclude these categories from the restore with a " +
+                                    "\"exclude=<comma-separated-list>\" parameter or enforce the restore with \"action=overwrite\".",
+                                     CollectionUtils.toString(rejected, '\n')));
                 }
             }
+            if (accepted.isEmpty()) {
+                setStatus(Status.SUCCESS_NO_CONTENT);
+                return null;
+            }
+            if (!restore.restore(accepted)) {
+                return createErrorRepresentation(Status.SERVER_ERROR_INTERNAL, ERROR_ID_FAILED_TO_STORE,
+                        "Failed to store the attached backup");
+            }
         } catch (IOException e) {
             return createIOErrorRepresentation(ERROR_ID_IO_ERROR, e);
         } finally {
-            IOUtils.closeQuietly(zipStream);
+            restore.close();
         }
         if (LOG.isInfoEnabled()) {
-            LOG.info(MessageFormat.format("Restored {0} items and {1} history items", countItems, countHistoryItems));
+            LOG.info(MessageFormat.format("Restored {0} items and {1} history items in {2} ms",
+                    restore.getCountItems(), restore.getCountHistoryItems(), System.currentTimeMillis() - start));
         }
 
         // ensure that the persistence service attached to the storage
-        // refreshes all caches and reloads all entities --- do that
+        // refreshes the caches of the restored categories --- do that
         // in the background, otherwise we might run into timeouts
+        final Set<String> restoredCategories = restore.getRestoredCategories();
         ThreadPool.submit(new Runnable() {
             @Override
             public void run() {
                 PersistenceService persistenceService = Services.getService(PersistenceService.class);
                 if (persistenceService != null) {
-                    LOG.info("Refreshing all caches");
-                    persistenceService.refreshAll();
+                    for (EntityService<?> entityService : EntityServices.getAll()) {
+                        Class<? extends EntityBase> entityClass = entityService.getEntityClass();
+                        if (restoredCategories.contains(entityClass.getSimpleName())) {
+                            LOG.info(MessageFormat.format("Refreshing caches for entities of type {0}",
+                                    entityClass.getName()));
+                            persistenceService.refresh(entityClass);
+                        }
+                    }
                 }
             }
         });
@@ -229,6 +242,11 @@ public class ProjectBackupResource extends ResourceBase {
         return null;
     }
 
+    private int getRestoreThreads() {
+        int threads = NumberUtils.toInt(BundleProperties.getProperty(PROPERTY_RESTORE_THREADS), 0);
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
     /**
      * Start with a result set that contains all entries from CATEGORIES,
      * except if there is an include list; in this case start with an empty
@@ -259,23 +277,75 @@ public class ProjectBackupResource extends ResourceBase {
         return storageServices.size() > 0? storageServices.iterator().next() : null;
     }
 
-    private static class ZipOutputRepresentation extends OutputRepresentation {
-
-        private static final int BUFFER = 2048;
+    static class ZipOutputRepresentation extends OutputRepresentation {
 
         private final StorageService storageService;
         private final Set<String> categories;
         private final long startDate;
         private final long endDate;
         private final boolean withHistory;
+        private final BackupInfo info;
+
+        // keys of written entities and digests of archived versions by category,
+        // or null for a full backup
+        private final Map<String, Set<String>> writtenKeys;
+        private final Map<String, Map<String, List<String>>> archivedDigests;
 
-        public ZipOutputRepresentation(StorageService storageService, Set<String> categories, long startDate, long endDate) {
+        /**
+         * Creates a backup.
+         *
+         * @param storageService  the storage to back up.
+         * @param categories  the categories to back up, including the pseudo category <tt>"History"</tt>
+         * if archived versions should be backed up, too.
+         * @param startDate  the start of the time range of modifications to back up, or 0.
+         * @param endDate  the end of the time range of modifications to back up, or 0.
+         * @param info  the description of the backup.
+         * @param changes  the changes of the storage since the last backup for an incremental
+         * backup, or <code>null</code> for a full backup.
+         */
+        ZipOutputRepresentation(StorageService storageService, Set<String> categories, long startDate, long endDate,
+                BackupInfo info, List<StorageChange> changes) {
             super(MediaType.APPLICATION_ZIP);
             this.storageService = storageService;
             this.categories = categories;
             this.startDate = startDate;
             this.endDate = endDate;
             this.withHistory = categories.contains("History"); //$NON-NLS-1$
+            this.info = info;
+            if (changes != null) {
+                writtenKeys = new HashMap<String, Set<String>>();
+                archivedDigests = new HashMap<String, Map<String, List<String>>>();
+                for (StorageChange change : changes) {
+                    // ignore changes that happened after the backup started, the next
+                    // incremental backup will pick them up
+                    if (info.getSequence() >= 0 && change.getSequence() > info.getSequence()) {
+                        continue;
+                    }
+                    if (change.getType() == StorageChange.Type.WRITE) {
+                        Set<String> keys = writtenKeys.get(change.getCategory());
+                        if (keys == null) {
+                            keys = new LinkedHashSet<String>();
+                            writtenKeys.put(change.getCategory(), keys);
+                        }
+                        keys.add(change.getKey());
+                    } else {
+                        Map<String, List<String>> digests = archivedDigests.get(change.getCategory());
+                        if (digests == null) {
+                            digests = new HashMap<String, List<String>>();
+                            archivedDigests.put(change.getCategory(), digests);
+                        }
+                        List<String> keyDigests = digests.get(change.getKey());
+                        if (keyDigests == null) {
+                            keyDigests = new ArrayList<String>();
+                            digests.put(change.getKey(), keyDigests);
+                        }
+                        keyDigests.add(change.getDigest());
+                    }
+                }
+            } else {
+                writtenKeys = null;
+                archivedDigests = null;
+            }
         }
 
         @Override
@@ -283,9 +353,18 @@ public class ProjectBackupResource extends ResourceBase {
             ZipOutputStream zipStream = null;
             try {
                 zipStream = new ZipOutputStream(new BufferedOutputStream(out));
+                if (info != null) {
+                    zipStream.putNextEntry(new ZipEntry(BackupInfo.ENTRY_NAME));
+                    info.write(zipStream);
+                    zipStream.closeEntry();
+                }
                 for (String category: CATEGORIES) {
                     if (categories.contains(category)) {
-                        write(category, zipStream);
+                        if (writtenKeys != null) {
+                            writeChanges(category, zipStream);
+                        } else {
+                            write(category, zipStream);
+                        }
                     }
                 }
                 zipStream.flush();
@@ -295,26 +374,80 @@ public class ProjectBackupResource extends ResourceBase {
         }
 
         private void write(String category, ZipOutputStream target) throws IOException {
-            List<String> keys = storageService.keys(category);
-            for (String key: keys) {
-                write(category, key, target);
+            write(category, storageService.keys(category), withHistory, target);
+        }
+
+        private void write(String category, List<String> keys, boolean withHistory, final ZipOutputStream target)
+                throws IOException {
+            for (int from = 0; from < keys.size(); from += BATCH_SIZE) {
+                List<String> batch = keys.subList(from, Math.min(from + BATCH_SIZE, keys.size()));
+                storageService.readMany(category, batch, new StorageConsumer() {
+                    @Override
+                    public void consume(String category, String key, long lastModified, InputStream blob)
+                            throws IOException {
+                        if (inRange(lastModified)) {
+                            String entryName = MessageFormat.format("{0}/{1}.xml", category, key); //$NON-NLS-1$
+                            write(entryName, blob, target);
+                        }
+                    }
+                });
                 if (withHistory) {
-                    writeHistory(category, key, target);
+                    for (String key : batch) {
+                        writeHistory(category, key, target);
+                    }
+                }
+            }
+        }
+
+        private void writeChanges(String category, ZipOutputStream target) throws IOException {
+            Set<String> keys = writtenKeys.get(category);
+            if (keys != null) {
+                write(category, new ArrayList<String>(keys), false, target);
+            }
+            Map<String, List<String>> digests = archivedDigests.get(category);
+            if (withHistory && digests != null) {
+                for (Entry<String, List<String>> entry : digests.entrySet()) {
+                    writeArchived(category, entry.getKey(), entry.getValue(), target);
                 }
             }
         }
 
-        private void write(String category, String key, final ZipOutputStream target) throws IOException {
-            storageService.read(category, key, new StorageConsumer() {
+        /**
+         * Writes the archived versions of an entity that are recorded in the journal
+         * with the given digests. If some digests cannot be matched, e.g. because content
+         * has been re-encoded by the storage, the most recent unmatched versions are
+         * written instead.
+         */
+        private void writeArchived(String category, String key, List<String> digests, ZipOutputStream target)
+                throws IOException {
+            final List<Long> timestamps = new ArrayList<Long>();
+            final List<byte[]> contents = new ArrayList<byte[]>();
+            storageService.readFromArchive(category, key, new StorageConsumer() {
                 @Override
                 public void consume(String category, String key, long lastModified, InputStream blob)
                         throws IOException {
-                    if (inRange(lastModified)) {
-                        String entryName = MessageFormat.format("{0}/{1}.xml", category, key); //$NON-NLS-1$
-                        write(entryName, blob, target);
-                    }
+                    timestamps.add(lastModified);
+                    contents.add(IOUtils.toByteArray(blob));
                 }
             });
+            List<String> unmatched = new ArrayList<String>(digests);
+            boolean[] selected = new boolean[contents.size()];
+            for (int i = contents.size() - 1; i >= 0; --i) {
+                selected[i] = unmatched.remove(DigestUtils.md5Hex(contents.get(i)));
+            }
+            for (int i = contents.size() - 1; i >= 0 && !unmatched.isEmpty(); --i) {
+                if (!selected[i]) {
+                    selected[i] = true;
+                    unmatched.remove(0);
+                }
+            }
+            for (int i = 0; i < contents.size(); ++i) {
+                if (selected[i]) {
+                    String entryName = MessageFormat.format("{0}/{1}_{2}.xml", //$NON-NLS-1$
+                            category, key, Long.toString(timestamps.get(i)));
+                    write(entryName, new ByteArrayInputStream(contents.get(i)), target);
+                }
+            }
         }
 
         private void writeHistory(String category, String key, final ZipOutputStream target) throws IOException {
@@ -331,19 +464,14 @@ public class ProjectBackupResource extends ResourceBase {
             });
         }
 
+        // copies the blob directly into the ZIP stream without intermediate buffering
         private void write(String entryName, InputStream blob, ZipOutputStream target) throws IOException {
-            BufferedInputStream source = null;
             try {
-                source = new BufferedInputStream(blob, BUFFER);
-                ZipEntry entry = new ZipEntry(entryName);
-                target.putNextEntry(entry);
-                int count;
-                byte data[] = new byte[BUFFER];
-                while ((count = source.read(data, 0, BUFFER)) != -1) {
-                    target.write(data, 0, count);
-                }
+                target.putNextEntry(new ZipEntry(entryName));
+                IOUtils.copy(blob, target);
+                target.closeEntry();
             } finally {
-                IOUtils.closeQuietly(source);
+                IOUtils.closeQuietly(blob);
             }
         }
 
@@ -0,0 +1,404 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.skalli.services.persistence.StorageChange;
+import org.eclipse.skalli.services.persistence.StorageChange.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the changes of a file storage.
+ * <p>
+ * The journal is stored in the file <tt>.journal</tt> in the storage directory and
+ * consists of lines of the form <tt>type:category:key:digest</tt>. The sequence number
+ * of a change is the position of the end of its line in the journal file plus the number
+ * of bytes that have been pruned from the journal, so that the changes after a given
+ * sequence number can be read without scanning the journal from the beginning.
+ * <p>
+ * When the journal exceeds its maximum size, the oldest changes are pruned, so that only the
+ * most recent half of the journal is retained. The sequence number preceding the first retained
+ * change is stored in a header line of the form <tt>#base</tt>, so that sequence numbers
+ * keep increasing monotonically. Changes after a pruned sequence number are no longer available.
+ * <p>
+ * Appending to and reading from the journal is protected by a file lock on <tt>.journal.lock</tt>,
+ * so that several instances, even in different processes, can share the same storage directory,
+ * and the journal file can be replaced when it is pruned. Instances in the same process are
+ * serialized with a monitor per journal file, since file locks are held on behalf of the whole process.
+ * <p>
+ * The journal is not synchronized with the disk. Changes recorded shortly before a crash
+ * may be lost, in which case readers only detect them with a full comparison of the storage.
+ */
+class ChangeJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeJournal.class);
+
+    static final String JOURNAL_FILE = ".journal"; //$NON-NLS-1$
+
+    /** Default maximum size of the journal in bytes. */
+    static final long DEFAULT_MAX_SIZE = 16L * 1024L * 1024L;
+
+    private static final String LOCK_SUFFIX = ".lock"; //$NON-NLS-1$
+    private static final String TMP_SUFFIX = ".tmp"; //$NON-NLS-1$
+    private static final String UTF_8 = "UTF-8"; //$NON-NLS-1$
+    private static final char SEPARATOR = ':';
+    private static final byte LF = '\n';
+    private static final byte HEADER = '#';
+
+    // the header line is at most '#', 19 digits and LF
+    private static final int MAX_HEADER_SIZE = 21;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // one monitor per journal file shared by all instances in this process
+    private static final ConcurrentMap<String, Object> MONITORS = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Sequence number preceding the first change in the journal file, and
+     * position of the first change in the journal file.
+     */
+    private static class Header {
+        final long base;
+        final long start;
+
+        Header(long base, long start) {
+            this.base = base;
+            this.start = start;
+        }
+    }
+
+    private final File file;
+    private final File tmpFile;
+    private final File lockFile;
+    private final long maxSize;
+    private final Object monitor;
+
+    ChangeJournal(File storageBase) {
+        this(storageBase, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Creates a journal in the given directory.
+     *
+     * @param maxSize  the size in bytes above which the oldest changes are pruned,
+     * or zero if the journal should grow without limit.
+     */
+    ChangeJournal(File storageBase, long maxSize) {
+        this.file = new File(storageBase, JOURNAL_FILE);
+        this.tmpFile = new File(storageBase, JOURNAL_FILE + TMP_SUFFIX);
+        this.lockFile = new File(storageBase, JOURNAL_FILE + LOCK_SUFFIX);
+        this.maxSize = maxSize > 0L ? Math.max(maxSize, 2L * MAX_HEADER_SIZE) : 0L;
+        this.monitor = getMonitor(file);
+    }
+
+    /**
+     * Appends a change for each of the given keys to the journal.
+     *
+     * @param type  the kind of the changes.
+     * @param category  the category of the changed content.
+     * @param digests  map of keys to the MD5 digests of the respective content.
+     * @return the sequence number of the last appended change.
+     */
+    long append(Type type, String category, Map<String, String> digests) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : digests.entrySet()) {
+            sb.append(type.name()).append(SEPARATOR).append(category).append(SEPARATOR)
+                    .append(entry.getKey()).append(SEPARATOR).append(entry.getValue()).append((char) LF);
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(sb.toString().getBytes(UTF_8));
+        synchronized (monitor) {
+            file.getParentFile().mkdirs();
+            RandomAccessFile lockRaf = new RandomAccessFile(lockFile, "rw"); //$NON-NLS-1$
+            try {
+                FileLock lock = lockRaf.getChannel().lock();
+                try {
+                    restore();
+                    long sequence;
+                    Header header;
+                    long position;
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+                    try {
+                        FileChannel channel = raf.getChannel();
+                        header = readHeader(channel);
+                        position = channel.size();
+                        while (bytes.hasRemaining()) {
+                            position += channel.write(bytes, position);
+                        }
+                        sequence = header.base + position - header.start;
+                    } finally {
+                        raf.close();
+                    }
+                    if (maxSize > 0L && position > maxSize) {
+                        prune(header, position);
+                    }
+                    return sequence;
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockRaf.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the sequence number of the most recent change in the journal,
+     * or zero if the journal is empty.
+     */
+    long getLastSequence() throws IOException {
+        synchronized (monitor) {
+            if (!file.exists() && !tmpFile.exists()) {
+                return 0L;
+            }
+            RandomAccessFile lockRaf = new RandomAccessFile(lockFile, "rw"); //$NON-NLS-1$
+            try {
+                FileLock lock = lockRaf.getChannel().lock(0L, Long.MAX_VALUE, true);
+                try {
+                    if (!restore()) {
+                        return 0L;
+                    }
+                    RandomAccessFile raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+                    try {
+                        FileChannel channel = raf.getChannel();
+                        Header header = readHeader(channel);
+                        return header.base + Math.max(0L, channel.size() - header.start);
+                    } finally {
+                        raf.close();
+                    }
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockRaf.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the changes recorded after the change with the given sequence number,
+     * or <code>null</code> if the journal does not cover the given sequence number,
+     * e.g. because the changes after it have been pruned.
+     */
+    List<StorageChange> getChanges(long sequence) throws IOException {
+        synchronized (monitor) {
+            if (!file.exists() && !tmpFile.exists()) {
+                return sequence == 0L ? new ArrayList<StorageChange>() : null;
+            }
+            RandomAccessFile lockRaf = new RandomAccessFile(lockFile, "rw"); //$NON-NLS-1$
+            try {
+                FileLock lock = lockRaf.getChannel().lock(0L, Long.MAX_VALUE, true);
+                try {
+                    if (!restore()) {
+                        return sequence == 0L ? new ArrayList<StorageChange>() : null;
+                    }
+                    RandomAccessFile raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+                    try {
+                        return getChanges(raf.getChannel(), sequence);
+                    } finally {
+                        raf.close();
+                    }
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockRaf.close();
+            }
+        }
+    }
+
+    private List<StorageChange> getChanges(FileChannel channel, long sequence) throws IOException {
+        Header header = readHeader(channel);
+        long size = channel.size();
+        if (sequence < header.base || sequence > header.base + size - header.start) {
+            return null;
+        }
+        // a valid sequence number is either the base or the end of a line
+        long position = header.start + sequence - header.base;
+        if (sequence > header.base) {
+            ByteBuffer previous = ByteBuffer.allocate(1);
+            if (channel.read(previous, position - 1L) != 1 || previous.get(0) != LF) {
+                return null;
+            }
+        }
+        channel.position(position);
+        return parse(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE), sequence);
+    }
+
+    /**
+     * Parses the lines of the given stream.
+     *
+     * @param sequence  the sequence number preceding the first line.
+     */
+    private List<StorageChange> parse(InputStream in, long sequence) throws IOException {
+        List<StorageChange> changes = new ArrayList<StorageChange>();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long lineEnd = sequence;
+        int b;
+        while ((b = in.read()) >= 0) {
+            ++lineEnd;
+            if (b != LF) {
+                line.write(b);
+                continue;
+            }
+            StorageChange change = parseLine(line.toString(UTF_8), lineEnd);
+            if (change == null) {
+                return null;
+            }
+            changes.add(change);
+            line.reset();
+        }
+        return changes;
+    }
+
+    private StorageChange parseLine(String line, long lineEnd) {
+        String[] parts = StringUtils.split(line, SEPARATOR);
+        if (parts.length == 4) {
+            try {
+                return new StorageChange(Type.valueOf(parts[0]), parts[1], parts[2], lineEnd, parts[3]);
+            } catch (IllegalArgumentException e) {
+                // fall through
+            }
+        }
+        LOG.warn(MessageFormat.format("Invalid entry ''{0}'' in journal {1}", line, file.getAbsolutePath()));
+        return null;
+    }
+
+    /**
+     * Restores the journal from a pruned copy, if it has been deleted but not yet replaced
+     * by the copy, which can happen on platforms that cannot rename over existing files.
+     * The caller must hold the lock.
+     *
+     * @return <code>true</code>, if the journal exists.
+     */
+    private boolean restore() throws IOException {
+        if (file.exists()) {
+            return true;
+        }
+        if (!tmpFile.exists()) {
+            return false;
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException(MessageFormat.format("Failed to restore journal {0}", file.getAbsolutePath()));
+        }
+        LOG.warn(MessageFormat.format("Restored journal {0} from its pruned copy", file.getAbsolutePath()));
+        return true;
+    }
+
+    /**
+     * Reads the header line of the journal, if there is any. Journals that have never
+     * been pruned have no header.
+     */
+    private Header readHeader(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+            // continue until the buffer is filled or the end of the file is reached
+        }
+        if (buffer.position() == 0 || buffer.get(0) != HEADER) {
+            return new Header(0L, 0L);
+        }
+        for (int i = 1; i < buffer.position(); ++i) {
+            if (buffer.get(i) == LF) {
+                String base = new String(buffer.array(), 1, i - 1, UTF_8);
+                if (StringUtils.isNumeric(base) && base.length() > 0) {
+                    return new Header(Long.parseLong(base), i + 1L);
+                }
+                break;
+            }
+        }
+        throw new IOException(MessageFormat.format("Invalid header in journal {0}", file.getAbsolutePath()));
+    }
+
+    /**
+     * Prunes the oldest changes, so that only the most recent half of the journal is retained.
+     * The retained changes are written to a new journal file, which then replaces the journal.
+     * The caller must hold the exclusive lock.
+     */
+    private void prune(Header header, long size) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+        try {
+            FileChannel source = in.getChannel();
+            // retain whole lines only
+            long cut = Math.max(header.start, size - maxSize / 2);
+            InputStream stream = new BufferedInputStream(Channels.newInputStream(source.position(cut)), BUFFER_SIZE);
+            int b;
+            while (cut < size && (b = stream.read()) >= 0) {
+                ++cut;
+                if (b == LF) {
+                    break;
+                }
+            }
+            long base = header.base + cut - header.start;
+            RandomAccessFile out = new RandomAccessFile(tmpFile, "rw"); //$NON-NLS-1$
+            try {
+                out.setLength(0L);
+                FileChannel target = out.getChannel();
+                ByteBuffer headerLine = ByteBuffer.wrap(((char) HEADER + Long.toString(base) + (char) LF)
+                        .getBytes(UTF_8));
+                long position = 0L;
+                while (headerLine.hasRemaining()) {
+                    position += target.write(headerLine, position);
+                }
+                target.position(position);
+                long transferred = cut;
+                while (transferred < size) {
+                    transferred += source.transferTo(transferred, size - transferred, target);
+                }
+            } finally {
+                out.close();
+            }
+            LOG.info(MessageFormat.format("Pruned changes up to sequence number {0} from journal {1}",
+                    base, file.getAbsolutePath()));
+        } finally {
+            in.close();
+        }
+        // all readers and writers open the journal file only while holding the lock;
+        // if the journal has been deleted but not yet replaced, it is restored from the copy
+        if (!tmpFile.renameTo(file) && (!file.delete() || !tmpFile.renameTo(file))) {
+            throw new IOException(MessageFormat.format("Failed to replace journal {0}", file.getAbsolutePath()));
+        }
+    }
+
+    private static Object getMonitor(File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+        Object monitor = MONITORS.get(path);
+        if (monitor == null) {
+            monitor = new Object();
+            Object existing = MONITORS.putIfAbsent(path, monitor);
+            if (existing != null) {
+                monitor = existing;
+            }
+        }
+        return monitor;
+    }
+}
@@ -10,22 +10,49 @@
  *******************************************************************************/
 package org.eclipse.skalli.core.storage;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.BooleanUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.eclipse.skalli.commons.GroupCommit;
 import org.eclipse.skalli.core.storage.Historian.HistoryEntry;
 import org.eclipse.skalli.core.storage.Historian.HistoryIterator;
 import org.eclipse.skalli.services.BundleProperties;
+import org.eclipse.skalli.services.persistence.CompactableStorage;
+import org.eclipse.skalli.services.persistence.JournaledStorage;
+import org.eclipse.skalli.services.persistence.StorageChange;
+import org.eclipse.skalli.services.persistence.StorageChange.Type;
 import org.eclipse.skalli.services.persistence.StorageConsumer;
 import org.eclipse.skalli.services.persistence.StorageService;
 import org.osgi.service.component.ComponentConstants;
@@ -35,14 +62,106 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Implementation of a storage service based on a local file system.
+ * <p>
+ * All writes and archivings are recorded in a {@link ChangeJournal change journal}, so that
+ * several instances sharing the same storage directory can catch up with each other incrementally.
+ * <p>
+ * Optionally entities are stored gzip-compressed, see {@link #PROPERTY_COMPRESS}. Whether an entity
+ * file is compressed is detected per file from its first bytes, so that a storage directory may contain
+ * both compressed and uncompressed files, e.g. while existing entities are rewritten one by one.
+ * File names, change journal and history are the same for both formats.
  */
-public class FileStorageComponent implements StorageService {
+public class FileStorageComponent implements StorageService, CompactableStorage, JournaledStorage {
 
     private static final Logger LOG = LoggerFactory.getLogger(FileStorageComponent.class);
 
     private static final String STORAGE_BASE = "storage" + IOUtils.DIR_SEPARATOR; //$NON-NLS-1$
 
+    /**
+     * Name of the property that defines the maximum size of a history segment in MB.
+     * Zero means that the size of segments is not limited. Default is 32 MB.
+     */
+    public static final String PROPERTY_HISTORY_SEGMENT_SIZE = "skalli.storage.history.segmentSize"; //$NON-NLS-1$
+
+    /**
+     * Name of the property that defines the maximum age of a history segment in days.
+     * Zero means that the age of segments is not limited, which is the default.
+     */
+    public static final String PROPERTY_HISTORY_SEGMENT_AGE = "skalli.storage.history.segmentAge"; //$NON-NLS-1$
+
+    /**
+     * Name of the property that defines the number of versions of an entity between two versions
+     * that are stored in full in the history. All other versions are stored as deltas to their
+     * preceding version. A value of 1 means that all versions are stored in full. Default is 10.
+     */
+    public static final String PROPERTY_HISTORY_SNAPSHOT_INTERVAL = "skalli.storage.history.snapshotInterval"; //$NON-NLS-1$
+
+    /**
+     * Name of the property that defines the maximum size of the change journal in MB. When the journal
+     * exceeds this size, the oldest changes are pruned. Zero means that the size of the journal is not
+     * limited. Default is 16 MB.
+     */
+    public static final String PROPERTY_JOURNAL_SIZE = "skalli.storage.journal.maxSize"; //$NON-NLS-1$
+
+    /**
+     * Name of the property that defines how written entities are synchronized with the disk:
+     * <ul>
+     * <li><tt>"none"</tt>: entities are not synchronized explicitly, i.e. it is up to the
+     * operating system when the data reaches the disk</li>
+     * <li><tt>"sync"</tt>: each write is synchronized with the disk individually</li>
+     * <li><tt>"group"</tt>: concurrent writes are synchronized together (default)</li>
+     * </ul>
+     * In all modes entities are written to a temporary file first, which then is renamed,
+     * so that a crash never leaves a partially written entity behind.
+     */
+    public static final String PROPERTY_SYNC = "skalli.storage.file.sync"; //$NON-NLS-1$
+
+    /**
+     * Name of the property that defines in milliseconds how long a group commit waits
+     * for concurrent writes before synchronizing them with the disk. Default is zero,
+     * i.e. only writes that arrive while a previous group is being synchronized are grouped.
+     */
+    public static final String PROPERTY_SYNC_WINDOW = "skalli.storage.file.syncWindow"; //$NON-NLS-1$
+
+    /**
+     * Name of the property that defines whether entities are written gzip-compressed.
+     * Entity files are read regardless of whether they are compressed or not.
+     * Default is <code>false</code>.
+     */
+    public static final String PROPERTY_COMPRESS = "skalli.storage.file.compress"; //$NON-NLS-1$
+
+    static enum SyncMode {
+        NONE, SYNC, GROUP
+    }
+
+    private static final String TMP_SUFFIX = ".tmp"; //$NON-NLS-1$
+
+    // suffix of completely written files that are about to replace an entity
+    private static final String NEW_SUFFIX = ".new"; //$NON-NLS-1$
+
+    // names of the temporary files created by createTempFile(File, String)
+    private static final Pattern TMP_FILE_NAME = Pattern.compile(".+\\.\\d+\\.tmp"); //$NON-NLS-1$
+
+    // maximum number of files that are kept open during a batch write
+    private static final int BATCH_SIZE = 64;
+
+    // the magic number at the start of gzip-compressed files
+    private static final int GZIP_MAGIC_1 = 0x1f;
+    private static final int GZIP_MAGIC_2 = 0x8b;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final long MB = 1024L * 1024L;
+    private static final long DAY = 24L * 60L * 60L * 1000L;
+
     private final File storageBase;
+    private final SyncMode syncMode;
+    private final GroupCommit<FileDescriptor> groupCommit;
+    private final ChangeJournal journal;
+    private volatile boolean compress;
+
+    // one historian per category, so that the history index of a category is loaded only once
+    private final ConcurrentMap<String, Historian> historians = new ConcurrentHashMap<String, Historian>();
 
     /**
      * This constructor determines the storage directory by searching for the property <tt>"workdir"</tt>
@@ -51,17 +170,43 @@ public class FileStorageComponent implements StorageService {
      * directory is used.
      */
     public FileStorageComponent() {
-        this.storageBase = getDefaultStorageDirectory();
+        this(getDefaultStorageDirectory());
     }
 
     /**
      *  This constructor allows to specify the storage directory explicitly, e.g. for testing purposes.
      */
     FileStorageComponent(File storageBase) {
+        this(storageBase, getSyncMode(), NumberUtils.toLong(BundleProperties.getProperty(PROPERTY_SYNC_WINDOW), 0L));
+    }
+
+    FileStorageComponent(File storageBase, SyncMode syncMode, long syncWindow) {
         this.storageBase = storageBase;
+        this.syncMode = syncMode;
+        this.groupCommit = syncMode == SyncMode.GROUP ?
+                new GroupCommit<FileDescriptor>(new GroupCommit.Committer<FileDescriptor>() {
+                    @Override
+                    public void commit(List<FileDescriptor> items) throws IOException {
+                        for (FileDescriptor fd : items) {
+                            fd.sync();
+                        }
+                    }
+                }, syncWindow, 0) : null;
+        this.journal = newChangeJournal(storageBase);
+        this.compress = BooleanUtils.toBoolean(BundleProperties.getProperty(PROPERTY_COMPRESS));
+    }
+
+    /**
+     * Defines whether entities are written gzip-compressed.
+     * <p>
+     * This method is package protected for testing purposes.
+     */
+    void setCompress(boolean compress) {
+        this.compress = compress;
     }
 
     protected void activate(ComponentContext context) {
+        recoverInterruptedWrites();
         LOG.info(MessageFormat.format("[StorageService][file] {0} : activated",
                 (String) context.getProperties().get(ComponentConstants.COMPONENT_NAME)));
     }
@@ -72,41 +217,142 @@ public class FileStorageComponent implements StorageService {
     }
 
     @Override
-   public void write(String category, String key, InputStream blob) throws IOException {
+    public void write(String category, String key, InputStream blob) throws IOException {
         File file = getFile(category, key);
+        // write to a temporary file first and rename it afterwards, so that the
+        // entity is either completely written or not at all
+        File tmpFile = createTempFile(file.getParentFile(), key);
+        boolean success = false;
         FileOutputStream fos = null;
+        OutputStream out = null;
+        MessageDigest digest = newDigest();
         try {
-            fos = new FileOutputStream(file);
-            IOUtils.copy(blob, fos);
+            fos = new FileOutputStream(tmpFile);
+            out = copy(new DigestInputStream(blob, digest), fos);
+            sync(fos.getFD());
+            out.close();
+            rename(tmpFile, file);
+            success = true;
         } finally {
+            IOUtils.closeQuietly(out);
             IOUtils.closeQuietly(fos);
+            if (!success) {
+                FileUtils.deleteQuietly(tmpFile);
+            }
         }
         LOG.debug(getPath(category, key) + " successfully written to " + file.getAbsolutePath()); //$NON-NLS-1$
+        appendToJournal(Type.WRITE, category, Collections.singletonMap(key, toHex(digest)));
+    }
+
+    @Override
+    public void writeAll(String category, Map<String, InputStream> blobs) throws IOException {
+        List<Entry<String, InputStream>> entries = new ArrayList<Entry<String, InputStream>>(blobs.entrySet());
+        for (int from = 0; from < entries.size(); from += BATCH_SIZE) {
+            writeBatch(category, entries.subList(from, Math.min(from + BATCH_SIZE, entries.size())));
+        }
+    }
+
+    /**
+     * Writes all entries to temporary files first, then synchronizes them with the disk
+     * in one go and finally renames them. Compared to writing the entries one by one, this
+     * lets the operating system flush the files together instead of waiting for each
+     * file individually.
+     */
+    private void writeBatch(String category, List<Entry<String, InputStream>> entries) throws IOException {
+        File dir = getDirectory(category);
+        File[] tmpFiles = new File[entries.size()];
+        FileOutputStream[] streams = new FileOutputStream[entries.size()];
+        OutputStream[] outs = new OutputStream[entries.size()];
+        Map<String, String> digests = new LinkedHashMap<String, String>();
+        boolean success = false;
+        try {
+            for (int i = 0; i < tmpFiles.length; ++i) {
+                tmpFiles[i] = createTempFile(dir, entries.get(i).getKey());
+                streams[i] = new FileOutputStream(tmpFiles[i]);
+                MessageDigest digest = newDigest();
+                outs[i] = copy(new DigestInputStream(entries.get(i).getValue(), digest), streams[i]);
+                digests.put(entries.get(i).getKey(), toHex(digest));
+            }
+            if (syncMode != SyncMode.NONE) {
+                for (FileOutputStream fos : streams) {
+                    fos.getFD().sync();
+                }
+            }
+            for (int i = 0; i < tmpFiles.length; ++i) {
+                outs[i].close();
+                rename(tmpFiles[i], new File(dir, entries.get(i).getKey() + ".xml")); //$NON-NLS-1$
+                tmpFiles[i] = null;
+            }
+            success = true;
+        } finally {
+            for (int i = 0; i < tmpFiles.length; ++i) {
+                IOUtils.closeQuietly(outs[i]);
+                IOUtils.closeQuietly(streams[i]);
+                if (!success) {
+                    FileUtils.deleteQuietly(tmpFiles[i]);
+                }
+            }
+        }
+        LOG.debug(entries.size() + " entities of category " + category + " successfully written to " //$NON-NLS-1$ //$NON-NLS-2$
+                + dir.getAbsolutePath());
+        appendToJournal(Type.WRITE, category, digests);
     }
 
     @Override
     public void archive(String category, String key) throws IOException {
         File oldEntityFile = getFile(category, key);
-        new Historian(new File(storageBase, category)).historize(oldEntityFile);
+        if (!oldEntityFile.exists()) {
+            return;
+        }
+        byte[] content;
+        InputStream in = open(oldEntityFile);
+        try {
+            content = IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        getHistorian(category).historize(key, System.currentTimeMillis(), new ByteArrayInputStream(content));
+        appendToJournal(Type.ARCHIVE, category, Collections.singletonMap(key, DigestUtils.md5Hex(content)));
     }
 
     @Override
     public void writeToArchive(String category, String id, long timestamp, InputStream blob) throws IOException {
-        new Historian(new File(storageBase, category)).historize(id, timestamp, blob);
+        getHistorian(category).historize(id, timestamp, blob);
     }
 
     @Override
     public void readFromArchive(String category, String key, StorageConsumer consumer) throws IOException {
         HistoryIterator history = null;
         try {
-            history = new Historian(new File(storageBase, category)).getHistory(key);
+            history = getHistorian(category).getHistory(key);
             while (history.hasNext()) {
                 HistoryEntry next = history.next();
                 consumer.consume(category, key, next.getTimestamp(), IOUtils.toInputStream(next.getContent()));
             }
         } finally {
-            history.close();
+            if (history != null) {
+                history.close();
+            }
+        }
+    }
+
+    @Override
+    public int compactArchive(String category, int maxVersions, long maxAge, boolean collapseUnchanged)
+            throws IOException {
+        if (!new File(storageBase, category).isDirectory()) {
+            return 0;
         }
+        return getHistorian(category).compact(maxVersions, maxAge, collapseUnchanged);
+    }
+
+    @Override
+    public long getLastSequence() throws IOException {
+        return journal.getLastSequence();
+    }
+
+    @Override
+    public List<StorageChange> getChanges(long sequence) throws IOException {
+        return journal.getChanges(sequence);
     }
 
     @Override
@@ -116,9 +362,25 @@ public class FileStorageComponent implements StorageService {
 
     @Override
     public void read(String category, String key, StorageConsumer consumer) throws IOException {
-        File file = getFile(category, key);
+        read(category, key, getFile(category, key), consumer);
+    }
+
+    @Override
+    public void readMany(String category, Collection<String> keys, StorageConsumer consumer) throws IOException {
+        File dir = new File(storageBase, category);
+        for (String key : keys) {
+            read(category, key, new File(dir, key + ".xml"), consumer); //$NON-NLS-1$
+        }
+    }
+
+    private void read(String category, String key, File file, StorageConsumer consumer) throws IOException {
         if (file.exists() && file.isFile()) {
-            consumer.consume(category, key, file.lastModified(), toStream(file));
+            InputStream stream = toStream(file);
+            try {
+                consumer.consume(category, key, file.lastModified(), stream);
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
         }
     }
 
@@ -149,7 +411,125 @@ public class FileStorageComponent implements StorageService {
         return list;
     }
 
-    private static File getDefaultStorageDirectory() {
+    /**
+     * Copies the given content to the given file, compressing it if requested, and
+     * returns the stream to close once the file has been synchronized with the disk.
+     */
+    private OutputStream copy(InputStream content, FileOutputStream fos) throws IOException {
+        if (!compress) {
+            IOUtils.copy(content, fos);
+            return fos;
+        }
+        GZIPOutputStream out = new GZIPOutputStream(fos, BUFFER_SIZE);
+        IOUtils.copy(content, out);
+        out.finish();
+        return out;
+    }
+
+    private void sync(FileDescriptor fd) throws IOException {
+        switch (syncMode) {
+        case SYNC:
+            fd.sync();
+            break;
+        case GROUP:
+            groupCommit.commit(fd);
+            break;
+        default:
+            break;
+        }
+    }
+
+    // the content has already been stored at this point, so a failure to record the change
+    // must not be reported as failure of the write; other instances detect such changes
+    // only with a full refresh
+    private void appendToJournal(Type type, String category, Map<String, String> digests) {
+        try {
+            journal.append(type, category, digests);
+        } catch (IOException e) {
+            LOG.warn(MessageFormat.format("Failed to record changes of {0} in the journal: {1}",
+                    digests.keySet(), e.getMessage()));
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5"); //$NON-NLS-1$
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(MessageDigest digest) {
+        return new String(Hex.encodeHex(digest.digest()));
+    }
+
+    private static File createTempFile(File dir, String key) throws IOException {
+        // createTempFile requires prefixes with at least three characters
+        String prefix = key.length() < 2 ? key + "..." : key + "."; //$NON-NLS-1$ //$NON-NLS-2$
+        return File.createTempFile(prefix, TMP_SUFFIX, dir);
+    }
+
+    private static void rename(File source, File target) throws IOException {
+        if (source.renameTo(target)) {
+            return;
+        }
+        // renameTo replaces existing files atomically on POSIX systems, but fails on some
+        // other platforms, so that the target must be deleted first; the complete source
+        // is marked as such beforehand, so that a crash before the final rename can be
+        // recovered by recoverInterruptedWrites()
+        File newFile = new File(target.getParentFile(), target.getName() + NEW_SUFFIX);
+        FileUtils.deleteQuietly(newFile);
+        if (!source.renameTo(newFile) || (target.exists() && !target.delete()) || !newFile.renameTo(target)) {
+            throw new IOException(MessageFormat.format("Failed to rename {0} to {1}",
+                    source.getAbsolutePath(), target.getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Completes writes that have been interrupted by a crash after the written entity
+     * has been synchronized with the disk, and deletes the temporary files of writes
+     * that have been interrupted before.
+     * <p>
+     * This method is package protected for testing purposes.
+     */
+    void recoverInterruptedWrites() {
+        File[] dirs = storageBase.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            File[] files = dir.isDirectory() ? dir.listFiles() : null;
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(".xml" + NEW_SUFFIX)) { //$NON-NLS-1$
+                    File target = new File(dir, name.substring(0, name.length() - NEW_SUFFIX.length()));
+                    LOG.info(MessageFormat.format("Restoring completely written file {0}", target.getAbsolutePath()));
+                    if (!file.renameTo(target) && (!target.delete() || !file.renameTo(target))) {
+                        LOG.error(MessageFormat.format("Failed to restore {0}", target.getAbsolutePath()));
+                    }
+                } else if (TMP_FILE_NAME.matcher(name).matches()) {
+                    LOG.info(MessageFormat.format("Deleting incompletely written file {0}", file.getAbsolutePath()));
+                    FileUtils.deleteQuietly(file);
+                }
+            }
+        }
+    }
+
+    private static SyncMode getSyncMode() {
+        String value = BundleProperties.getProperty(PROPERTY_SYNC, SyncMode.GROUP.name());
+        try {
+            return SyncMode.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            LOG.warn(MessageFormat.format("Invalid value ''{0}'' for property {1}, using ''group''",
+                    value, PROPERTY_SYNC));
+            return SyncMode.GROUP;
+        }
+    }
+
+    static File getDefaultStorageDirectory() {
         File storageDirectory = null;
         String workdir = BundleProperties.getProperty(BundleProperties.PROPERTY_WORKDIR);
         if (workdir != null) {
@@ -170,23 +550,84 @@ public class FileStorageComponent implements StorageService {
         return storageDirectory;
     }
 
+    /**
+     * Creates a change journal in the given storage directory that is pruned
+     * as defined by {@link #PROPERTY_JOURNAL_SIZE}.
+     */
+    static ChangeJournal newChangeJournal(File storageBase) {
+        return new ChangeJournal(storageBase, NumberUtils.toLong(
+                BundleProperties.getProperty(PROPERTY_JOURNAL_SIZE), ChangeJournal.DEFAULT_MAX_SIZE / MB) * MB);
+    }
+
+    /**
+     * Creates a historian for the given category directory that rolls its segments and stores
+     * full versions as defined by the history properties of this storage service.
+     */
+    static Historian newHistorian(File dir) {
+        long maxSegmentSize = NumberUtils.toLong(BundleProperties.getProperty(PROPERTY_HISTORY_SEGMENT_SIZE),
+                Historian.DEFAULT_MAX_SEGMENT_SIZE / MB) * MB;
+        long maxSegmentAge = NumberUtils.toLong(BundleProperties.getProperty(PROPERTY_HISTORY_SEGMENT_AGE), 0L) * DAY;
+        int snapshotInterval = NumberUtils.toInt(BundleProperties.getProperty(PROPERTY_HISTORY_SNAPSHOT_INTERVAL),
+                Historian.DEFAULT_SNAPSHOT_INTERVAL);
+        return new Historian(dir, maxSegmentSize, maxSegmentAge, snapshotInterval);
+    }
+
+    private Historian getHistorian(String category) {
+        Historian historian = historians.get(category);
+        if (historian == null) {
+            historian = newHistorian(new File(storageBase, category));
+            Historian existing = historians.putIfAbsent(category, historian);
+            if (existing != null) {
+                historian = existing;
+            }
+        }
+        return historian;
+    }
+
     private File getFile(String category, String key) {
+        return new File(getDirectory(category), key + ".xml"); //$NON-NLS-1$
+    }
+
+    private File getDirectory(String category) {
         File path = new File(storageBase, category);
         if (!path.exists()) {
             path.mkdirs();
         }
-        return new File(path, key + ".xml"); //$NON-NLS-1$
+        return path;
     }
 
     private static String getPath(String category, String key) {
         return category + "/" + key; //$NON-NLS-1$
     }
 
-    private static InputStream toStream(File file) {
+    private static InputStream toStream(File file) throws IOException {
         try {
-            return file != null && file.exists() && file.isFile() && file.canRead() ? new FileInputStream(file) : null;
+            return file != null && file.exists() && file.isFile() && file.canRead() ? open(file) : null;
         } catch (FileNotFoundException e) {
             return null;
         }
     }
+
+    /**
+     * Opens an entity file, decompressing its content if the file is gzip-compressed.
+     */
+    private static InputStream open(File file) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(new FileInputStream(file), 2);
+        try {
+            byte[] magic = new byte[2];
+            int length = 0;
+            int n;
+            while (length < magic.length && (n = in.read(magic, length, magic.length - length)) > 0) {
+                length += n;
+            }
+            in.unread(magic, 0, length);
+            if (length == magic.length && (magic[0] & 0xff) == GZIP_MAGIC_1 && (magic[1] & 0xff) == GZIP_MAGIC_2) {
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            }
+            return in;
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw e;
+        }
+    }
 }
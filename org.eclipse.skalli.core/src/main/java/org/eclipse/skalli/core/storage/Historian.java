@@ -10,94 +10,370 @@
  *******************************************************************************/
 package org.eclipse.skalli.core.storage;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.eclipse.skalli.commons.BinaryDelta;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Maintains the history of the entities of a certain category.
+ * <p>
+ * The history is split into segments. New entries are always appended to the last
+ * segment. A new segment is started when the last segment exceeds a certain size
+ * or age. The first segment is named <tt>.history</tt>, all further segments
+ * <tt>.history.&lt;n&gt;</tt>. The segments currently in use are listed in the
+ * manifest <tt>.history.manifest</tt> with lines of the form <tt>n:created</tt>.
+ * Each entry in a segment consists of a header line of the form
+ * <tt>id:version:length:timestamp</tt> followed by <tt>length</tt> bytes of content
+ * and a line break.
+ * <p>
+ * Most entries do not store the full content of a version, but only a {@link BinaryDelta delta}
+ * to the preceding version of the same entity. Such entries are marked with a header of the form
+ * <tt>id:version:length:timestamp:d</tt>. Every {@link #DEFAULT_SNAPSHOT_INTERVAL n-th} version
+ * of an entity is stored in full, so that reconstructing a version never has to apply more than
+ * <tt>n-1</tt> deltas. Entries written before deltas had been introduced are full versions.
+ * <p>
+ * The positions of the entries are recorded in a sidecar index file per segment,
+ * e.g. <tt>.history.idx</tt>, with lines of the form <tt>id:version:offset:length:timestamp</tt>,
+ * where <tt>offset</tt> is the position of the content of an entry in the segment.
+ * The index is loaded into memory when the historian is first used, and is rebuilt
+ * from the segment if it is missing or does not match the segment. Appending an entry
+ * and looking up the history of an entity therefore do not depend on the size of the history.
+ * <p>
+ * The history can be {@link #compact(int, long, boolean) compacted} by dropping versions
+ * beyond a given retention, or by collapsing consecutive versions with the same content.
+ * Compaction encodes the remaining versions anew, which also converts full versions of older
+ * histories to deltas.
+ */
 public class Historian {
 
+    private static final Logger LOG = LoggerFactory.getLogger(Historian.class);
+
+    /** Default maximum size of a history segment in bytes. */
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 32L * 1024L * 1024L;
+
+    /** Default number of versions of an entity between two full versions. */
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 10;
+
     private static final String HISTORY_FILE = ".history"; //$NON-NLS-1$
+    private static final String MANIFEST_FILE = ".history.manifest"; //$NON-NLS-1$
+    private static final String INDEX_SUFFIX = ".idx"; //$NON-NLS-1$
+    private static final String TMP_SUFFIX = ".tmp"; //$NON-NLS-1$
+    private static final Pattern SEGMENT_NAME = Pattern.compile("\\.history(\\.(\\d+))?"); //$NON-NLS-1$
+    private static final String DELTA_MARKER = "d"; //$NON-NLS-1$
+
     private static final String CRLF = "\r\n"; //$NON-NLS-1$
+    private static final String UTF_8 = "UTF-8"; //$NON-NLS-1$
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // maximum length of an entry header that is accepted when a segment is scanned
+    private static final int MAX_HEADER_LENGTH = 4 * 1024;
+
+    // number of recently historized versions kept in memory as bases for the next deltas
+    private static final int RECENT_VERSIONS = 256;
+
+    private final File storageBase;
+    private final File manifestFile;
+    private final long maxSegmentSize;
+    private final long maxSegmentAge;
+    private final int snapshotInterval;
+
+    // segments in use, or null if the index has not been loaded yet; guarded by this
+    private List<Segment> segments;
+
+    // last modification time and length of the manifest when it was read; guarded by this
+    private long manifestModified;
+    private long manifestLength;
+
+    // in-memory copy of the index: all entries in the order of the history,
+    // and the same entries grouped by entity id; guarded by this
+    private List<IndexEntry> entries;
+    private Map<String, List<IndexEntry>> entriesById;
+
+    // most recently historized versions by entity id; guarded by this
+    private final Map<String, Version> recentVersions = new LinkedHashMap<String, Version>(16, 0.75f, true) {
+        private static final long serialVersionUID = -3387209315327355468L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Version> eldest) {
+            return size() > RECENT_VERSIONS;
+        }
+    };
+
+    static class Segment {
+        final int number;
+        final long created;
+        final File file;
+        final File indexFile;
 
-    private final File historyFile;
+        // length of the segment covered by the in-memory index
+        long indexedLength;
+
+        Segment(File storageBase, int number, long created) {
+            this.number = number;
+            this.created = created;
+            this.file = new File(storageBase, number > 0 ? HISTORY_FILE + "." + number : HISTORY_FILE); //$NON-NLS-1$
+            this.indexFile = new File(storageBase, file.getName() + INDEX_SUFFIX);
+        }
+    }
+
+    static class IndexEntry {
+        final String id;
+        final int version;
+        final Segment segment;
+        final long offset;
+        final int length;
+        final long timestamp;
+        final boolean delta;
+
+        // the preceding entry of the same entity, and the number of deltas
+        // since the last full version; assigned when the entry is added to the index
+        IndexEntry previous;
+        int depth;
+
+        IndexEntry(String id, int version, Segment segment, long offset, int length, long timestamp,
+                boolean delta) {
+            this.id = id;
+            this.version = version;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.timestamp = timestamp;
+            this.delta = delta;
+        }
+
+        long end() {
+            return offset + length + CRLF.length();
+        }
+
+        String toLine() {
+            String line = MessageFormat.format("{0}:{1}:{2}:{3}:{4}", //$NON-NLS-1$
+                    id, Integer.toString(version), Long.toString(offset), Integer.toString(length),
+                    Long.toString(timestamp));
+            return delta ? line + ":" + DELTA_MARKER : line; //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * The full content of a certain version of an entity.
+     */
+    private static class Version {
+        final IndexEntry entry;
+        final byte[] content;
+
+        Version(IndexEntry entry, byte[] content) {
+            this.entry = entry;
+            this.content = content;
+        }
+    }
 
     public Historian(File storageBase) {
-        this.historyFile = new File(storageBase, HISTORY_FILE);
+        this(storageBase, DEFAULT_MAX_SEGMENT_SIZE, 0L);
+    }
+
+    /**
+     * Creates a historian for the given directory.
+     *
+     * @param storageBase  the directory in which to store the history.
+     * @param maxSegmentSize  the size in bytes a segment may reach before a new segment is started,
+     * or zero if the size of segments should not be limited.
+     * @param maxSegmentAge  the age in milliseconds a segment may reach before a new segment is started,
+     * or zero if the age of segments should not be limited.
+     */
+    public Historian(File storageBase, long maxSegmentSize, long maxSegmentAge) {
+        this(storageBase, maxSegmentSize, maxSegmentAge, DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    /**
+     * Creates a historian for the given directory.
+     *
+     * @param storageBase  the directory in which to store the history.
+     * @param maxSegmentSize  the size in bytes a segment may reach before a new segment is started,
+     * or zero if the size of segments should not be limited.
+     * @param maxSegmentAge  the age in milliseconds a segment may reach before a new segment is started,
+     * or zero if the age of segments should not be limited.
+     * @param snapshotInterval  the number of versions of an entity between two full versions,
+     * or 1 if all versions should be stored in full.
+     */
+    public Historian(File storageBase, long maxSegmentSize, long maxSegmentAge, int snapshotInterval) {
+        this.storageBase = storageBase;
+        this.manifestFile = new File(storageBase, MANIFEST_FILE);
+        this.maxSegmentSize = maxSegmentSize;
+        this.maxSegmentAge = maxSegmentAge;
+        this.snapshotInterval = Math.max(snapshotInterval, 1);
     }
 
     void historize(File file) throws IOException {
         if (file != null && file.exists()) {
-            InputStream in = null;
-            OutputStream out = null;
-            try {
-                in = new BufferedInputStream(new FileInputStream(file));
-                out = new BufferedOutputStream(new FileOutputStream(historyFile, historyFile.exists()));
-                String header = MessageFormat.format("{0}:{1}:{2}",  //$NON-NLS-1$
-                        getNextEntryName(FilenameUtils.getBaseName(file.getAbsolutePath())),
-                        Long.toString(file.length()),
-                        Long.toString(System.currentTimeMillis()));
-                out.write(header.getBytes("UTF-8")); //$NON-NLS-1$
-                out.write(CRLF.getBytes("UTF-8")); //$NON-NLS-1$
-                IOUtils.copy(in, out);
-                out.write(CRLF.getBytes("UTF-8")); //$NON-NLS-1$
-            } finally {
-                IOUtils.closeQuietly(in);
-                IOUtils.closeQuietly(out);
-            }
+            historize(FilenameUtils.getBaseName(file.getAbsolutePath()), System.currentTimeMillis(),
+                    FileUtils.readFileToByteArray(file));
         }
     }
 
     void historize(String id, long timestamp, InputStream blob) throws IOException {
+        historize(id, timestamp, IOUtils.toByteArray(blob));
+    }
+
+    private synchronized void historize(String id, long timestamp, byte[] content) throws IOException {
+        ensureIndex();
+        Segment segment = getAppendSegment();
+        int version = getNextVersion(id);
+        List<IndexEntry> versions = entriesById.get(id);
+        IndexEntry previous = versions != null && versions.size() > 0 ? versions.get(versions.size() - 1) : null;
+        byte[] data = content;
+        if (previous != null && previous.depth + 1 < snapshotInterval) {
+            ContentReader reader = new ContentReader(recentVersions);
+            try {
+                byte[] delta = BinaryDelta.diff(reader.read(previous), content);
+                if (delta.length < content.length) {
+                    data = delta;
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        String header = toHeader(id, version, data.length, timestamp, data != content);
+        byte[] headerBytes = (header + CRLF).getBytes(UTF_8);
         OutputStream out = null;
         try {
-            byte[] buf = IOUtils.toByteArray(blob);
-            out = new BufferedOutputStream(new FileOutputStream(historyFile, historyFile.exists()));
-            String header = MessageFormat.format("{0}:{1}:{2}", //$NON-NLS-1$
-                    getNextEntryName(id), 
-                    Long.toString(buf.length),
-                    Long.toString(timestamp));
-            out.write(header.getBytes("UTF-8")); //$NON-NLS-1$
-            out.write(CRLF.getBytes("UTF-8")); //$NON-NLS-1$
-            out.write(buf);
-            out.write(CRLF.getBytes("UTF-8")); //$NON-NLS-1$
+            out = new FileOutputStream(segment.file, true);
+            out.write(headerBytes);
+            out.write(data);
+            out.write(CRLF.getBytes(UTF_8));
         } finally {
             IOUtils.closeQuietly(out);
         }
+        IndexEntry entry = new IndexEntry(id, version, segment,
+                segment.indexedLength + headerBytes.length, data.length, timestamp, data != content);
+        addEntry(entry);
+        recentVersions.put(id, new Version(entry, content));
+        segment.indexedLength = entry.end();
+        appendToIndexFile(entry);
     }
 
-    String getNextEntryName(String fileName) throws IOException {
-        int count = 0;
-        InputStream in = null;
-        try {
-            in = new BufferedInputStream(new FileInputStream(historyFile));
-            String header = readLine(in);
-            while (header.length() > 0) {
-                String[] parts = StringUtils.split(header, ':');
-                if (parts[0].startsWith(fileName)) {
-                    ++count;
+    synchronized String getNextEntryName(String fileName) throws IOException {
+        ensureIndex();
+        return fileName + ":" + getNextVersion(fileName); //$NON-NLS-1$
+    }
+
+    private int getNextVersion(String id) {
+        List<IndexEntry> versions = entriesById.get(id);
+        return versions != null && versions.size() > 0 ? versions.get(versions.size() - 1).version + 1 : 0;
+    }
+
+    /**
+     * Returns an iterator over the history of the given entity, or over the
+     * entries of all entities in the order they have been historized, if
+     * <code>fileName</code> is <code>null</code>.
+     */
+    HistoryIterator getHistory(String fileName) throws IOException {
+        List<IndexEntry> selected;
+        synchronized (this) {
+            ensureIndex();
+            List<IndexEntry> list = fileName != null ? entriesById.get(fileName) : entries;
+            selected = list != null ? new ArrayList<IndexEntry>(list) : Collections.<IndexEntry>emptyList();
+        }
+        return new HistoryIterator(selected);
+    }
+
+    /**
+     * Returns the number of segments of the history.
+     */
+    synchronized int getSegmentCount() throws IOException {
+        ensureIndex();
+        return segments.size();
+    }
+
+    /**
+     * Compacts the history by dropping entries that are no longer needed.
+     * The remaining entries are rewritten to new segments, then the manifest is switched
+     * to the new segments and the old segments are deleted. Version numbers and timestamps
+     * of the remaining entries are preserved.
+     *
+     * @param maxVersions  the number of most recent versions to keep for each entity,
+     * or zero if the number of versions should not be limited.
+     * @param maxAge  the age in milliseconds after which versions are dropped,
+     * or zero if versions should not be dropped because of their age.
+     * @param collapseUnchanged  if <code>true</code>, only the first of consecutive versions
+     * of an entity with the same content is kept.
+     *
+     * @return the number of entries that have been dropped.
+     */
+    synchronized int compact(int maxVersions, long maxAge, boolean collapseUnchanged) throws IOException {
+        ensureIndex();
+        if (!manifestFile.exists()) {
+            // otherwise the new segments could not be distinguished from the old ones
+            // should the compaction be interrupted
+            writeManifest(segments);
+        }
+        deleteOrphanedSegments();
+        Set<IndexEntry> dropped = new HashSet<IndexEntry>();
+        if (collapseUnchanged) {
+            collectUnchanged(dropped);
+        }
+        long minTimestamp = maxAge > 0 ? System.currentTimeMillis() - maxAge : Long.MIN_VALUE;
+        for (List<IndexEntry> versions : entriesById.values()) {
+            int remaining = 0;
+            for (int i = versions.size() - 1; i >= 0; --i) {
+                IndexEntry entry = versions.get(i);
+                if (dropped.contains(entry)) {
+                    continue;
+                }
+                if (entry.timestamp < minTimestamp || (maxVersions > 0 && remaining >= maxVersions)) {
+                    dropped.add(entry);
+                } else {
+                    ++remaining;
                 }
-                skip(in, Integer.valueOf(parts[2]) + CRLF.length());
-                header = readLine(in);
             }
-        } finally {
-            IOUtils.closeQuietly(in);
         }
-        return fileName + ":" + count; //$NON-NLS-1$
-    }
+        if (dropped.isEmpty()) {
+            return 0;
+        }
 
-    HistoryIterator getHistory(String fileName) {
-        return new HistoryIterator(fileName);
+        List<Segment> oldSegments = segments;
+        List<Segment> newSegments = rewrite(dropped);
+        writeManifest(newSegments);
+        for (Segment segment : oldSegments) {
+            FileUtils.deleteQuietly(segment.file);
+            FileUtils.deleteQuietly(segment.indexFile);
+        }
+        segments = null;
+        recentVersions.clear();
+        ensureIndex();
+        LOG.info(MessageFormat.format("Compacted history in {0}: {1} entries dropped, {2} entries remaining",
+                storageBase.getAbsolutePath(), dropped.size(), entries.size()));
+        return dropped.size();
     }
 
     class HistoryEntry {
@@ -131,93 +407,545 @@ public class Historian {
     }
 
     class HistoryIterator {
-        private InputStream in;
-        private String id;
-        private byte[] content;
-        private String[] parts;
+        private final List<IndexEntry> selected;
+        private final ContentReader reader = new ContentReader(new HashMap<String, Version>());
+        private int next;
 
-        HistoryIterator(String id) {
-            this.id = id;
+        HistoryIterator(List<IndexEntry> selected) {
+            this.selected = selected;
         }
 
         public boolean hasNext() throws IOException {
-            if (!historyFile.exists()) {
-                return false;
-            }
-            if (in == null) {
-                in = new BufferedInputStream(new FileInputStream(historyFile));
-            }
-            if (content == null) {
-                String header = readLine(in);
-                while (header.length() > 0) {
-                    parts = StringUtils.split(header, ':');
-                    if (id == null || id.equals(parts[0])) {
-                        content = new byte[Integer.valueOf(parts[2])];
-                        read(in, content);
-                        skip(in, CRLF.length());
-                        break;
-                    }
-                    header = readLine(in);
-                }
-            }
-            return content != null;
+            return next < selected.size();
         }
 
         public HistoryEntry next() throws IOException {
             if (!hasNext()) {
                 throw new NoSuchElementException();
             }
-            HistoryEntry next = new HistoryEntry(parts[0], new String(content, "UTF-8"), //$NON-NLS-1$
-                    Integer.valueOf(parts[1]), Long.valueOf(parts[3]));
-            content = null;
-            return next;
+            IndexEntry entry = selected.get(next++);
+            return new HistoryEntry(entry.id, new String(reader.read(entry), UTF_8), entry.version, entry.timestamp);
         }
 
         public void close() {
-            IOUtils.closeQuietly(in);
+            reader.close();
         }
     }
 
-    private static void skip(InputStream in, long n) throws IOException {
-        while (n > 0) {
-            n -= in.skip(n);
+    /**
+     * Reads the content of index entries, keeping the segment of the last read entry open.
+     */
+    private static class SegmentReader {
+        private Segment segment;
+        private RandomAccessFile in;
+
+        byte[] read(IndexEntry entry) throws IOException {
+            if (segment != entry.segment) {
+                close();
+                in = new RandomAccessFile(entry.segment.file, "r"); //$NON-NLS-1$
+                segment = entry.segment;
+            }
+            byte[] content = new byte[entry.length];
+            in.seek(entry.offset);
+            in.readFully(content);
+            return content;
+        }
+
+        void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                in = null;
+                segment = null;
+            }
         }
     }
 
-    private static void read(InputStream in, byte[] b) throws IOException {
-        int off = 0;
-        int len = b.length;
-        while (len > 0) {
-            int n = in.read(b, off, len);
-            len -= n;
-            off += n;
+    /**
+     * Reads the full content of index entries, reconstructing versions stored as deltas
+     * from the last full version of the entity. The content of the last read version of each
+     * entity is remembered, so that reading the versions of entities in the order of the history
+     * applies each delta only once.
+     */
+    private static class ContentReader {
+        private final SegmentReader reader = new SegmentReader();
+        private final Map<String, Version> lastVersions;
+
+        ContentReader(Map<String, Version> lastVersions) {
+            this.lastVersions = lastVersions;
+        }
+
+        byte[] read(IndexEntry entry) throws IOException {
+            List<IndexEntry> deltas = new ArrayList<IndexEntry>();
+            byte[] content = null;
+            IndexEntry next = entry;
+            while (content == null) {
+                Version known = lastVersions.get(next.id);
+                if (known != null && known.entry == next) {
+                    content = known.content;
+                } else if (!next.delta) {
+                    content = reader.read(next);
+                } else if (next.previous == null) {
+                    throw new IOException(MessageFormat.format("Missing base of version {0} of {1} in {2}",
+                            next.version, next.id, next.segment.file.getAbsolutePath()));
+                } else {
+                    deltas.add(next);
+                    next = next.previous;
+                }
+            }
+            for (int i = deltas.size() - 1; i >= 0; --i) {
+                content = BinaryDelta.patch(content, reader.read(deltas.get(i)));
+            }
+            lastVersions.put(entry.id, new Version(entry, content));
+            return content;
+        }
+
+        void close() {
+            reader.close();
         }
     }
 
-    private static String readLine(InputStream in) throws IOException {
-        StringBuffer b = new StringBuffer();
-        String result = null;
-        boolean done = false;
-        while (!done) {
-            int next = in.read();
-            switch (next) {
-            case -1:
-                result = b.toString();
-                done = true;
-                break;
-            case '\n':
-                if (b.length() == 0) {
-                    break;
+    /**
+     * Loads the index if it has not been loaded yet, or if the history has been
+     * changed by someone else in the meantime.
+     */
+    private void ensureIndex() throws IOException {
+        if (segments != null && manifestModified == manifestFile.lastModified()
+                && manifestLength == manifestFile.length()) {
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            long length = last != null && last.file.exists() ? last.file.length() : 0L;
+            if (last == null || length == last.indexedLength) {
+                return;
+            }
+        }
+        segments = readManifest();
+        entries = new ArrayList<IndexEntry>();
+        entriesById = new HashMap<String, List<IndexEntry>>();
+        for (Segment segment : segments) {
+            loadSegment(segment);
+        }
+    }
+
+    /**
+     * Reads the list of segments from the manifest. If there is no manifest, e.g. for a history
+     * written before segments had been introduced, the segments are determined from the file names.
+     */
+    private List<Segment> readManifest() throws IOException {
+        List<Segment> result = new ArrayList<Segment>();
+        manifestModified = manifestFile.lastModified();
+        manifestLength = manifestFile.length();
+        if (manifestFile.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), UTF_8));
+                String line = reader.readLine();
+                while (line != null) {
+                    String[] parts = StringUtils.split(line, ':');
+                    if (parts.length == 2) {
+                        result.add(new Segment(storageBase, Integer.parseInt(parts[0]), Long.parseLong(parts[1])));
+                    }
+                    line = reader.readLine();
                 }
-                result = b.toString();
-                done = true;
-                break;
-            case '\r':
-                break;
-            default:
-                b.append((char) next);
+            } catch (NumberFormatException e) {
+                throw new IOException(MessageFormat.format("Invalid manifest {0}", manifestFile.getAbsolutePath()));
+            } finally {
+                IOUtils.closeQuietly(reader);
+            }
+        } else {
+            File[] files = storageBase.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+                    if (matcher.matches() && file.isFile()) {
+                        int number = matcher.group(2) != null ? Integer.parseInt(matcher.group(2)) : 0;
+                        result.add(new Segment(storageBase, number, file.lastModified()));
+                    }
+                }
+            }
+            Collections.sort(result, new Comparator<Segment>() {
+                @Override
+                public int compare(Segment o1, Segment o2) {
+                    return o1.number < o2.number ? -1 : (o1.number == o2.number ? 0 : 1);
+                }
+            });
+        }
+        return result;
+    }
+
+    private void writeManifest(List<Segment> newSegments) throws IOException {
+        File tmpFile = new File(storageBase, MANIFEST_FILE + TMP_SUFFIX);
+        Writer out = null;
+        try {
+            out = new OutputStreamWriter(new FileOutputStream(tmpFile), UTF_8);
+            for (Segment segment : newSegments) {
+                out.write(Integer.toString(segment.number));
+                out.write(':');
+                out.write(Long.toString(segment.created));
+                out.write(CRLF);
             }
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        // renameTo does not replace existing files on all platforms
+        if (!tmpFile.renameTo(manifestFile) && (!manifestFile.delete() || !tmpFile.renameTo(manifestFile))) {
+            throw new IOException(MessageFormat.format("Failed to write manifest {0}",
+                    manifestFile.getAbsolutePath()));
+        }
+        manifestModified = manifestFile.lastModified();
+        manifestLength = manifestFile.length();
+    }
+
+    /**
+     * Returns the segment to which the next entry should be appended, and starts a new
+     * segment if the last segment has exceeded the maximum size or age.
+     */
+    private Segment getAppendSegment() throws IOException {
+        long now = System.currentTimeMillis();
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last != null && last.indexedLength > 0
+                && (maxSegmentSize > 0 && last.indexedLength >= maxSegmentSize
+                || maxSegmentAge > 0 && now - last.created >= maxSegmentAge)) {
+            last = new Segment(storageBase, last.number + 1, now);
+        } else if (last == null) {
+            storageBase.mkdirs();
+            last = new Segment(storageBase, 0, now);
+        } else {
+            return last;
+        }
+        List<Segment> newSegments = new ArrayList<Segment>(segments);
+        newSegments.add(last);
+        writeManifest(newSegments);
+        segments = newSegments;
+        return last;
+    }
+
+    /**
+     * Loads the index of a segment, or rebuilds it if the index file is missing
+     * or does not match the segment.
+     */
+    private void loadSegment(Segment segment) throws IOException {
+        segment.indexedLength = 0L;
+        long length = segment.file.exists() ? segment.file.length() : 0L;
+        if (length == 0L) {
+            FileUtils.deleteQuietly(segment.indexFile);
+            return;
+        }
+        List<IndexEntry> segmentEntries = readIndexFile(segment);
+        if (segmentEntries == null || segment.indexedLength != length) {
+            LOG.info(MessageFormat.format("Rebuilding history index {0}", segment.indexFile.getAbsolutePath()));
+            segment.indexedLength = 0L;
+            segmentEntries = scanSegment(segment, length);
+            if (segment.indexedLength < length) {
+                // the unreadable region extends to the end of the segment, i.e. the last entry
+                // has not been written completely, e.g. due to a crash
+                LOG.warn(MessageFormat.format("Truncating incomplete entry at position {0} of {1}",
+                        segment.indexedLength, segment.file.getAbsolutePath()));
+                truncate(segment.file, segment.indexedLength);
+            }
+            writeIndexFile(segment, segmentEntries);
+        }
+        for (IndexEntry entry : segmentEntries) {
+            addEntry(entry);
+        }
+    }
+
+    private List<IndexEntry> readIndexFile(Segment segment) throws IOException {
+        if (!segment.indexFile.exists()) {
+            return null;
+        }
+        List<IndexEntry> result = new ArrayList<IndexEntry>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(segment.indexFile), UTF_8), BUFFER_SIZE);
+            String line = reader.readLine();
+            while (line != null) {
+                if (line.length() > 0) {
+                    String[] parts = StringUtils.split(line, ':');
+                    if (parts.length != 5 && (parts.length != 6 || !DELTA_MARKER.equals(parts[5]))) {
+                        return null;
+                    }
+                    IndexEntry entry = new IndexEntry(parts[0], Integer.parseInt(parts[1]), segment,
+                            Long.parseLong(parts[2]), Integer.parseInt(parts[3]), Long.parseLong(parts[4]),
+                            parts.length == 6);
+                    if (entry.offset < segment.indexedLength) {
+                        return null;
+                    }
+                    result.add(entry);
+                    segment.indexedLength = entry.end();
+                }
+                line = reader.readLine();
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            return null;
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Builds the index of a segment by scanning its entries. Unreadable entries followed by
+     * valid entries, e.g. due to a corrupted disk, are skipped but left in the segment, while
+     * scanning stops at an unreadable region that extends to the end of the segment. The length
+     * of the segment covered by the returned entries is stored in {@link Segment#indexedLength}.
+     */
+    private List<IndexEntry> scanSegment(Segment segment, long length) throws IOException {
+        List<IndexEntry> result = new ArrayList<IndexEntry>();
+        RandomAccessFile raf = new RandomAccessFile(segment.file, "r"); //$NON-NLS-1$
+        try {
+            byte[] buffer = new byte[MAX_HEADER_LENGTH];
+            long pos = 0L;
+            while (pos < length) {
+                IndexEntry entry = readEntry(raf, segment, pos, length, buffer);
+                if (entry == null) {
+                    long next = resync(raf, segment, pos, length, buffer);
+                    if (next < 0L) {
+                        break;
+                    }
+                    LOG.error(MessageFormat.format("Skipping {0} bytes of unreadable entries at position {1} of {2}",
+                            next - pos, pos, segment.file.getAbsolutePath()));
+                    entry = readEntry(raf, segment, next, length, buffer);
+                }
+                result.add(entry);
+                pos = entry.end();
+                segment.indexedLength = pos;
+            }
+        } finally {
+            raf.close();
         }
         return result;
     }
+
+    /**
+     * Reads the header of the entry at the given position and checks that the content of
+     * the entry is terminated by a line break.
+     *
+     * @return the entry, or <code>null</code> if there is no valid entry at the given position.
+     */
+    private IndexEntry readEntry(RandomAccessFile raf, Segment segment, long pos, long length, byte[] buffer)
+            throws IOException {
+        raf.seek(pos);
+        int n = raf.read(buffer, 0, (int) Math.min(buffer.length, length - pos));
+        int i = 0;
+        while (i < n && (buffer[i] == '\r' || buffer[i] == '\n')) {
+            ++i;
+        }
+        StringBuilder header = new StringBuilder();
+        for (; i < n && buffer[i] != '\n'; ++i) {
+            if (buffer[i] != '\r') {
+                header.append((char) (buffer[i] & 0xff));
+            }
+        }
+        if (i >= n || header.length() == 0) {
+            return null;
+        }
+        IndexEntry entry = parseHeader(segment, header.toString(), pos + i + 1);
+        if (entry == null || entry.end() > length) {
+            return null;
+        }
+        raf.seek(entry.offset + entry.length);
+        return raf.read() == '\r' && raf.read() == '\n' ? entry : null;
+    }
+
+    /**
+     * Searches the next valid entry after an unreadable entry at the given position.
+     *
+     * @return the position of the next valid entry, or <tt>-1</tt> if there is none.
+     */
+    private long resync(RandomAccessFile raf, Segment segment, long from, long length, byte[] buffer)
+            throws IOException {
+        byte[] chunk = new byte[BUFFER_SIZE];
+        long pos = from + 1;
+        while (pos < length) {
+            raf.seek(pos);
+            int n = raf.read(chunk, 0, (int) Math.min(chunk.length, length - pos));
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; ++i) {
+                // entries start after the line break that terminates the previous entry
+                if (chunk[i] == '\n' && readEntry(raf, segment, pos + i + 1, length, buffer) != null) {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return -1L;
+    }
+
+    private IndexEntry parseHeader(Segment segment, String header, long offset) {
+        String[] parts = StringUtils.split(header, ':');
+        if (parts.length == 4 || parts.length == 5 && DELTA_MARKER.equals(parts[4])) {
+            try {
+                return new IndexEntry(parts[0], Integer.parseInt(parts[1]), segment, offset,
+                        Integer.parseInt(parts[2]), Long.parseLong(parts[3]), parts.length == 5);
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+        return null;
+    }
+
+    private void writeIndexFile(Segment segment, List<IndexEntry> segmentEntries) throws IOException {
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(segment.indexFile), UTF_8), BUFFER_SIZE);
+            for (IndexEntry entry : segmentEntries) {
+                out.write(entry.toLine());
+                out.write(CRLF);
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private void appendToIndexFile(IndexEntry entry) throws IOException {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(entry.segment.indexFile, true);
+            out.write((entry.toLine() + CRLF).getBytes(UTF_8));
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private void addEntry(IndexEntry entry) {
+        entries.add(entry);
+        List<IndexEntry> versions = entriesById.get(entry.id);
+        if (versions == null) {
+            versions = new ArrayList<IndexEntry>();
+            entriesById.put(entry.id, versions);
+        }
+        entry.previous = versions.isEmpty() ? null : versions.get(versions.size() - 1);
+        entry.depth = entry.delta && entry.previous != null ? entry.previous.depth + 1 : 0;
+        versions.add(entry);
+    }
+
+    private static String toHeader(String id, int version, int length, long timestamp, boolean delta) {
+        String header = MessageFormat.format("{0}:{1}:{2}:{3}", //$NON-NLS-1$
+                id, Integer.toString(version), Integer.toString(length), Long.toString(timestamp));
+        return delta ? header + ":" + DELTA_MARKER : header; //$NON-NLS-1$
+    }
+
+    /**
+     * Marks versions with the same content as their preceding version for removal.
+     */
+    private void collectUnchanged(Set<IndexEntry> dropped) throws IOException {
+        Map<String, String> lastDigests = new HashMap<String, String>();
+        ContentReader reader = new ContentReader(new HashMap<String, Version>());
+        try {
+            for (IndexEntry entry : entries) {
+                String digest = DigestUtils.md5Hex(reader.read(entry));
+                if (digest.equals(lastDigests.put(entry.id, digest))) {
+                    dropped.add(entry);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Copies all entries except the dropped ones to new segments numbered
+     * after the current segments, and writes the index files of the new segments.
+     * The content of the remaining entries is encoded anew, since the base of a delta
+     * may have been dropped.
+     */
+    private List<Segment> rewrite(Set<IndexEntry> dropped) throws IOException {
+        List<Segment> newSegments = new ArrayList<Segment>();
+        int number = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).number + 1;
+        long now = System.currentTimeMillis();
+        Segment segment = null;
+        List<IndexEntry> segmentEntries = null;
+        OutputStream out = null;
+        ContentReader reader = new ContentReader(new HashMap<String, Version>());
+        // last written content and number of deltas since the last full version of each entity
+        Map<String, byte[]> writtenContents = new HashMap<String, byte[]>();
+        Map<String, Integer> depths = new HashMap<String, Integer>();
+        try {
+            for (IndexEntry entry : entries) {
+                // dropped entries must be read nevertheless, since they may be the base of remaining entries
+                byte[] content = reader.read(entry);
+                if (dropped.contains(entry)) {
+                    continue;
+                }
+                byte[] data = content;
+                byte[] base = writtenContents.get(entry.id);
+                Integer depth = depths.get(entry.id);
+                if (base != null && depth + 1 < snapshotInterval) {
+                    byte[] delta = BinaryDelta.diff(base, content);
+                    if (delta.length < content.length) {
+                        data = delta;
+                    }
+                }
+                boolean isDelta = data != content;
+                writtenContents.put(entry.id, content);
+                depths.put(entry.id, isDelta ? depth + 1 : 0);
+                if (segment == null || maxSegmentSize > 0 && segment.indexedLength >= maxSegmentSize) {
+                    if (segment != null) {
+                        out.close();
+                        writeIndexFile(segment, segmentEntries);
+                    }
+                    segment = new Segment(storageBase, number++, now);
+                    segmentEntries = new ArrayList<IndexEntry>();
+                    newSegments.add(segment);
+                    out = new BufferedOutputStream(new FileOutputStream(segment.file), BUFFER_SIZE);
+                }
+                String header = toHeader(entry.id, entry.version, data.length, entry.timestamp, isDelta);
+                byte[] headerBytes = (header + CRLF).getBytes(UTF_8);
+                out.write(headerBytes);
+                out.write(data);
+                out.write(CRLF.getBytes(UTF_8));
+                IndexEntry newEntry = new IndexEntry(entry.id, entry.version, segment,
+                        segment.indexedLength + headerBytes.length, data.length, entry.timestamp, isDelta);
+                segmentEntries.add(newEntry);
+                segment.indexedLength = newEntry.end();
+            }
+            if (segment != null) {
+                out.close();
+                writeIndexFile(segment, segmentEntries);
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+            reader.close();
+        }
+        return newSegments;
+    }
+
+    /**
+     * Deletes segments that are not listed in the manifest, e.g. left over
+     * from a compaction that has been interrupted.
+     */
+    private void deleteOrphanedSegments() {
+        Set<String> names = new HashSet<String>();
+        for (Segment segment : segments) {
+            names.add(segment.file.getName());
+        }
+        File[] files = storageBase.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = StringUtils.removeEnd(file.getName(), INDEX_SUFFIX);
+                if (SEGMENT_NAME.matcher(name).matches() && !names.contains(name)) {
+                    FileUtils.deleteQuietly(file);
+                }
+            }
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+            raf.setLength(length);
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+        }
+    }
 }
@@ -0,0 +1,650 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only, log-structured file storing the content of all entities of a category.
+ * <p>
+ * The pack file consists of records of the form
+ * <tt>magic keyLength timestamp contentLength key content crc</tt>, where <tt>crc</tt> is the
+ * CRC-32 checksum of key and content. Writing an entity appends a new record, which supersedes
+ * all previous records of the same key. The position of the most recent record of each key is kept
+ * in an in-memory index, which is built by scanning and verifying the records when the pack file is opened.
+ * An incompletely written record at the end of the file, e.g. due to a crash, is truncated. Corrupt records
+ * followed by valid records are skipped, but left on disk until the next compaction.
+ * <p>
+ * Superseded records are removed by {@link #compact() compaction}, which copies the current records
+ * to a new pack file and then replaces the old file. Reads and writes proceed while the current records
+ * are copied; only the records written in the meantime are copied while writers are blocked.
+ * <p>
+ * Each compaction creates a new generation of the pack file: <tt>.pack</tt> is the initial generation,
+ * <tt>.pack.&lt;n&gt;</tt> the n-th compacted one. A new generation is written to a temporary file,
+ * synchronized with the disk and renamed to its final name, before the previous generation is deleted.
+ * When a pack file is opened, the most recent generation is used, and older generations as well as
+ * temporary files of interrupted compactions are deleted. So the current content is never deleted
+ * before its replacement is in place.
+ * <p>
+ * A pack file must not be shared by several instances, not even in the same process.
+ */
+class PackFile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PackFile.class);
+
+    static final String PACK_FILE = ".pack"; //$NON-NLS-1$
+
+    private static final String TMP_SUFFIX = ".tmp"; //$NON-NLS-1$
+    private static final String UTF_8 = "UTF-8"; //$NON-NLS-1$
+
+    // "SKP1"
+    private static final int MAGIC = 0x534b5031;
+
+    // magic, key length, timestamp and content length
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    // crc
+    private static final int TRAILER_SIZE = 4;
+
+    private static final int MAX_KEY_LENGTH = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Position of the most recent record of a key.
+     */
+    private static class Location {
+        final long offset;
+        final int keyLength;
+        final int length;
+        final long timestamp;
+
+        Location(long offset, int keyLength, int length, long timestamp) {
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.length = length;
+            this.timestamp = timestamp;
+        }
+
+        int size() {
+            return HEADER_SIZE + keyLength + length + TRAILER_SIZE;
+        }
+    }
+
+    private static final Comparator<Map.Entry<String, Location>> BY_OFFSET =
+            new Comparator<Map.Entry<String, Location>>() {
+                @Override
+                public int compare(Map.Entry<String, Location> o1, Map.Entry<String, Location> o2) {
+                    long d = o1.getValue().offset - o2.getValue().offset;
+                    return d < 0 ? -1 : (d == 0 ? 0 : 1);
+                }
+            };
+
+    /**
+     * The content of a record together with the time it has been written.
+     */
+    static class Record {
+        final byte[] content;
+        final long timestamp;
+
+        Record(byte[] content, long timestamp) {
+            this.content = content;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final File dir;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object compactionMonitor = new Object();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    // the following fields are guarded by lock
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private Map<String, Location> index = new HashMap<String, Location>();
+    private long size;
+    private long garbage;
+
+    /**
+     * Opens the pack file in the given directory, creating it if necessary, and builds the index.
+     */
+    PackFile(File dir) throws IOException {
+        dir.mkdirs();
+        this.dir = dir;
+        this.file = recover(dir);
+        scan();
+        open();
+    }
+
+    /**
+     * Returns the current generation of the pack file in the given directory,
+     * or <code>null</code> if there is no pack file.
+     */
+    static File getFile(File dir) {
+        File result = null;
+        long generation = -1L;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File candidate : files) {
+                long candidateGeneration = generationOf(candidate.getName(), false);
+                if (candidateGeneration > generation) {
+                    result = candidate;
+                    generation = candidateGeneration;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns <code>true</code> if the given directory contains a pack file,
+     * or a temporary pack file that is restored when the pack file is opened.
+     */
+    static boolean exists(File dir) {
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (generationOf(name, false) >= 0 || generationOf(name, true) >= 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines the current generation of the pack file in the given directory
+     * and deletes older generations and temporary files of interrupted compactions.
+     */
+    private static File recover(File dir) throws IOException {
+        File current = getFile(dir);
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException(MessageFormat.format("Failed to list {0}", dir.getAbsolutePath()));
+        }
+        if (current == null) {
+            // a compaction of a previous version deleted the pack file before renaming its
+            // complete and synchronized copy; adopt the most recent copy
+            File tmpFile = null;
+            long generation = -1L;
+            for (File candidate : files) {
+                long candidateGeneration = generationOf(candidate.getName(), true);
+                if (candidateGeneration > generation) {
+                    tmpFile = candidate;
+                    generation = candidateGeneration;
+                }
+            }
+            if (tmpFile == null) {
+                return new File(dir, PACK_FILE);
+            }
+            current = new File(dir, nameOf(generation));
+            if (!tmpFile.renameTo(current)) {
+                throw new IOException(MessageFormat.format("Failed to rename {0} to {1}",
+                        tmpFile.getAbsolutePath(), current.getName()));
+            }
+            LOG.warn(MessageFormat.format("Restored {0} from an interrupted compaction", current.getAbsolutePath()));
+            files = dir.listFiles();
+        }
+        for (File candidate : files) {
+            String name = candidate.getName();
+            if (!candidate.equals(current) && (generationOf(name, false) >= 0 || generationOf(name, true) >= 0)) {
+                FileUtils.deleteQuietly(candidate);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Returns the generation of the pack file with the given name, or <tt>-1</tt> if the name
+     * is not the name of a pack file, or of a temporary pack file, respectively.
+     */
+    private static long generationOf(String name, boolean tmp) {
+        if (tmp) {
+            if (!name.endsWith(TMP_SUFFIX)) {
+                return -1L;
+            }
+            name = name.substring(0, name.length() - TMP_SUFFIX.length());
+        }
+        if (name.equals(PACK_FILE)) {
+            return 0L;
+        }
+        if (!name.startsWith(PACK_FILE + ".")) { //$NON-NLS-1$
+            return -1L;
+        }
+        String suffix = name.substring(PACK_FILE.length() + 1);
+        return StringUtils.isNumeric(suffix) && suffix.length() > 0 && suffix.length() < 19
+                ? Long.parseLong(suffix) : -1L;
+    }
+
+    private static String nameOf(long generation) {
+        return generation > 0 ? PACK_FILE + "." + generation : PACK_FILE; //$NON-NLS-1$
+    }
+
+    /**
+     * Appends records for the given contents.
+     *
+     * @param contents  map of keys to the respective contents.
+     * @param timestamp  the time of writing.
+     */
+    void append(Map<String, byte[]> contents, long timestamp) throws IOException {
+        int total = 0;
+        Map<String, byte[]> keys = new HashMap<String, byte[]>();
+        for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            byte[] key = entry.getKey().getBytes(UTF_8);
+            keys.put(entry.getKey(), key);
+            total += HEADER_SIZE + key.length + entry.getValue().length + TRAILER_SIZE;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            byte[] key = keys.get(entry.getKey());
+            byte[] content = entry.getValue();
+            CRC32 crc = new CRC32();
+            crc.update(key);
+            crc.update(content);
+            buffer.putInt(MAGIC).putInt(key.length).putLong(timestamp).putInt(content.length);
+            buffer.put(key).put(content).putInt((int) crc.getValue());
+        }
+        buffer.flip();
+        lock.writeLock().lock();
+        try {
+            long position = size;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            long offset = size;
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                Location location = new Location(offset, keys.get(entry.getKey()).length, entry.getValue().length,
+                        timestamp);
+                put(index, entry.getKey(), location);
+                offset += location.size();
+            }
+            size = position;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Synchronizes the pack file with the disk.
+     */
+    void force() throws IOException {
+        lock.readLock().lock();
+        try {
+            channel.force(false);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the most recent record of the given key, or <code>null</code> if there is no such record.
+     */
+    Record read(String key) throws IOException {
+        lock.readLock().lock();
+        try {
+            Location location = index.get(key);
+            return location != null ? new Record(readRecord(channel, location), location.timestamp) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns all keys in the order of their records in the pack file, so that reading
+     * the records in that order reads the pack file sequentially.
+     */
+    List<String> keys() {
+        List<Map.Entry<String, Location>> entries;
+        lock.readLock().lock();
+        try {
+            entries = new ArrayList<Map.Entry<String, Location>>(index.entrySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+        Collections.sort(entries, BY_OFFSET);
+        List<String> keys = new ArrayList<String>(entries.size());
+        for (Map.Entry<String, Location> entry : entries) {
+            keys.add(entry.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the size of the pack file in bytes.
+     */
+    long getSize() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes occupied by superseded records.
+     */
+    long getGarbage() {
+        lock.readLock().lock();
+        try {
+            return garbage;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Marks the pack file for compaction.
+     *
+     * @return <code>true</code>, if the pack file has not been marked before.
+     */
+    boolean scheduleCompaction() {
+        return compactionScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Removes superseded records from the pack file.
+     *
+     * @return the number of bytes that have been reclaimed.
+     */
+    long compact() throws IOException {
+        synchronized (compactionMonitor) {
+            compactionScheduled.set(false);
+            List<Map.Entry<String, Location>> current;
+            FileChannel source;
+            long limit;
+            lock.readLock().lock();
+            try {
+                current = new ArrayList<Map.Entry<String, Location>>(index.entrySet());
+                source = channel;
+                limit = size;
+            } finally {
+                lock.readLock().unlock();
+            }
+            Collections.sort(current, BY_OFFSET);
+
+            File oldFile;
+            lock.readLock().lock();
+            try {
+                oldFile = file;
+            } finally {
+                lock.readLock().unlock();
+            }
+            File newFile = new File(dir, nameOf(generationOf(oldFile.getName(), false) + 1));
+            File tmpFile = new File(dir, newFile.getName() + TMP_SUFFIX);
+            Map<String, Location> newIndex = new HashMap<String, Location>();
+            RandomAccessFile out = new RandomAccessFile(tmpFile, "rw"); //$NON-NLS-1$
+            boolean success = false;
+            try {
+                out.setLength(0L);
+                // readers and writers proceed while the bulk of the records is copied,
+                // since records before the limit are never modified
+                long written = copy(source, current, out, newIndex, 0L);
+                lock.writeLock().lock();
+                try {
+                    long before = size;
+                    List<Map.Entry<String, Location>> appended = new ArrayList<Map.Entry<String, Location>>();
+                    for (Map.Entry<String, Location> entry : index.entrySet()) {
+                        if (entry.getValue().offset >= limit) {
+                            appended.add(entry);
+                        }
+                    }
+                    Collections.sort(appended, BY_OFFSET);
+                    written = copy(channel, appended, out, newIndex, written);
+                    out.getChannel().force(false);
+                    out.close();
+                    // the new generation has a name of its own, so the rename never has to replace
+                    // an existing file, and the old generation is deleted only afterwards
+                    if (!tmpFile.renameTo(newFile)) {
+                        throw new IOException(MessageFormat.format("Failed to replace {0} with its compacted copy",
+                                oldFile.getAbsolutePath()));
+                    }
+                    closeQuietly();
+                    file = newFile;
+                    open();
+                    if (!oldFile.delete()) {
+                        LOG.warn(MessageFormat.format("Failed to delete {0}, it will be deleted when reopened",
+                                oldFile.getAbsolutePath()));
+                    }
+                    index = newIndex;
+                    size = written;
+                    garbage = 0L;
+                    success = true;
+                    return before - written;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } finally {
+                IOUtils.closeQuietly(out);
+                if (!success) {
+                    FileUtils.deleteQuietly(tmpFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the pack file.
+     */
+    void close() {
+        lock.writeLock().lock();
+        try {
+            closeQuietly();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static long copy(FileChannel source, List<Map.Entry<String, Location>> entries, RandomAccessFile out,
+            Map<String, Location> newIndex, long position) throws IOException {
+        FileChannel target = out.getChannel();
+        for (Map.Entry<String, Location> entry : entries) {
+            Location location = entry.getValue();
+            ByteBuffer record = ByteBuffer.allocate(location.size());
+            read(source, record, location.offset);
+            record.flip();
+            long offset = position;
+            while (record.hasRemaining()) {
+                position += target.write(record, position);
+            }
+            newIndex.put(entry.getKey(), new Location(offset, location.keyLength, location.length,
+                    location.timestamp));
+        }
+        return position;
+    }
+
+    private void put(Map<String, Location> target, String key, Location location) {
+        Location previous = target.put(key, location);
+        if (previous != null) {
+            garbage += previous.size();
+        }
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+        channel = raf.getChannel();
+    }
+
+    private void closeQuietly() {
+        IOUtils.closeQuietly(raf);
+        raf = null;
+        channel = null;
+    }
+
+    /**
+     * Builds the index from the records of the pack file. Records are verified with their checksums.
+     * An invalid or incomplete record at the end of the pack file is truncated, while corrupt records
+     * followed by valid records are skipped and accounted as garbage.
+     */
+    private void scan() throws IOException {
+        long length = file.length();
+        long position = 0L;
+        if (file.exists()) {
+            RandomAccessFile in = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+            try {
+                FileChannel source = in.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (position < length) {
+                    String key = scanRecord(source, header, position, length);
+                    if (key != null) {
+                        Location location = scanned(header, position);
+                        put(index, key, location);
+                        position += location.size();
+                        continue;
+                    }
+                    long next = resync(source, header, position + 1, length);
+                    if (next < 0) {
+                        break;
+                    }
+                    LOG.error(MessageFormat.format(
+                            "Skipping {0} bytes of corrupt records at position {1} of {2}",
+                            next - position, position, file.getAbsolutePath()));
+                    garbage += next - position;
+                    position = next;
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        if (position < length) {
+            LOG.warn(MessageFormat.format("Truncating invalid or incomplete record at position {0} of {1}",
+                    position, file.getAbsolutePath()));
+            RandomAccessFile truncate = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+            try {
+                truncate.setLength(position);
+            } finally {
+                truncate.close();
+            }
+        }
+        size = position;
+    }
+
+    /**
+     * Reads and verifies the record at the given position.
+     *
+     * @param header  buffer that is filled with the header of the record.
+     *
+     * @return the key of the record, or <code>null</code> if there is no valid record at the given position.
+     */
+    private static String scanRecord(FileChannel source, ByteBuffer header, long position, long length)
+            throws IOException {
+        if (position + HEADER_SIZE > length) {
+            return null;
+        }
+        header.clear();
+        read(source, header, position);
+        Location location = scanned(header, position);
+        if (header.getInt(0) != MAGIC || location.keyLength < 0 || location.keyLength > MAX_KEY_LENGTH
+                || location.length < 0 || position + location.size() > length) {
+            return null;
+        }
+        try {
+            byte[] key = new byte[location.keyLength];
+            readRecordInto(source, location, key);
+            return new String(key, UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Location scanned(ByteBuffer header, long position) {
+        return new Location(position, header.getInt(4), header.getInt(16), header.getLong(8));
+    }
+
+    /**
+     * Searches the next valid record after a corrupt record.
+     *
+     * @return the position of the next valid record, or <tt>-1</tt> if there is none.
+     */
+    private static long resync(FileChannel source, ByteBuffer header, long from, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = from;
+        while (position + HEADER_SIZE <= length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_SIZE, length - position));
+            read(source, buffer, position);
+            int n = buffer.position();
+            for (int i = 0; i + 4 <= n; ++i) {
+                if (buffer.getInt(i) == MAGIC && scanRecord(source, header, position + i, length) != null) {
+                    return position + i;
+                }
+            }
+            // the magic number might span two buffers
+            position += Math.max(1, n - 3);
+        }
+        return -1L;
+    }
+
+    private static byte[] readRecord(FileChannel channel, Location location) throws IOException {
+        return readRecordInto(channel, location, new byte[location.keyLength]);
+    }
+
+    /**
+     * Reads and verifies the record at the given location.
+     *
+     * @param key  buffer for the key of the record.
+     *
+     * @return the content of the record.
+     * @throws IOException  if the record is invalid, or could not be read.
+     */
+    private static byte[] readRecordInto(FileChannel channel, Location location, byte[] key) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(location.size());
+        read(channel, record, location.offset);
+        record.flip();
+        if (record.getInt() != MAGIC) {
+            throw new IOException(MessageFormat.format("Invalid record at position {0}", location.offset));
+        }
+        record.position(HEADER_SIZE);
+        record.get(key);
+        byte[] content = new byte[location.length];
+        record.get(content);
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(content);
+        if (record.getInt() != (int) crc.getValue()) {
+            throw new IOException(MessageFormat.format("Checksum mismatch of record at position {0}",
+                    location.offset));
+        }
+        return content;
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.eclipse.skalli.commons.GroupCommit;
+import org.eclipse.skalli.commons.ThreadPool;
+import org.eclipse.skalli.core.storage.Historian.HistoryEntry;
+import org.eclipse.skalli.core.storage.Historian.HistoryIterator;
+import org.eclipse.skalli.core.storage.PackFile.Record;
+import org.eclipse.skalli.services.BundleProperties;
+import org.eclipse.skalli.services.persistence.CompactableStorage;
+import org.eclipse.skalli.services.persistence.JournaledStorage;
+import org.eclipse.skalli.services.persistence.StorageChange;
+import org.eclipse.skalli.services.persistence.StorageChange.Type;
+import org.eclipse.skalli.services.persistence.StorageConsumer;
+import org.eclipse.skalli.services.persistence.StorageService;
+import org.osgi.service.component.ComponentConstants;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implementation of a storage service that stores all entities of a category in a single
+ * {@link PackFile pack file} <tt>storageBase/category/.pack</tt> instead of one file per entity.
+ * <p>
+ * Writes append to the pack file and are synchronized with the disk with a {@link GroupCommit group commit},
+ * so that concurrent writes share one <tt>fsync</tt>. Reads look up the position of an entity in an in-memory
+ * index and read the entity with a single positioned read. Once superseded versions of entities occupy more than
+ * a certain share of a pack file, the pack file is compacted in the background.
+ * <p>
+ * All writes and archivings are recorded in a {@link ChangeJournal change journal} in the storage directory,
+ * the same way as with {@link FileStorageComponent}, so that other instances can catch up incrementally
+ * and incremental backups are possible.
+ * <p>
+ * The history of entities is maintained by a {@link Historian} per category, the same way and with the same
+ * history properties as with {@link FileStorageComponent}. Existing file storages can be migrated with the
+ * <tt>storage copy</tt> console command, since this storage service is registered with the type <tt>pack</tt>.
+ */
+public class PackFileStorageComponent implements StorageService, CompactableStorage, JournaledStorage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PackFileStorageComponent.class);
+
+    /**
+     * Name of the property that defines the share of superseded records in percent of the size
+     * of a pack file, above which the pack file is compacted. Default is 50 percent.
+     */
+    public static final String PROPERTY_COMPACTION_THRESHOLD = "skalli.storage.pack.compactionThreshold"; //$NON-NLS-1$
+
+    private static final int DEFAULT_COMPACTION_THRESHOLD = 50;
+
+    // pack files smaller than that are not compacted
+    private static final long MIN_COMPACTION_SIZE = 1024L * 1024L;
+
+    private final File storageBase;
+    private final int compactionThreshold;
+    private final GroupCommit<PackFile> groupCommit;
+    private final ChangeJournal journal;
+
+    // one pack file per category; guarded by packs
+    private final Map<String, PackFile> packs = new HashMap<String, PackFile>();
+
+    // one historian per category, so that the history index of a category is loaded only once
+    private final ConcurrentMap<String, Historian> historians = new ConcurrentHashMap<String, Historian>();
+
+    /**
+     * This constructor determines the storage directory the same way as
+     * {@link FileStorageComponent#FileStorageComponent()}.
+     */
+    public PackFileStorageComponent() {
+        this(FileStorageComponent.getDefaultStorageDirectory());
+    }
+
+    /**
+     *  This constructor allows to specify the storage directory explicitly, e.g. for testing purposes.
+     */
+    PackFileStorageComponent(File storageBase) {
+        this.storageBase = storageBase;
+        this.compactionThreshold = NumberUtils.toInt(BundleProperties.getProperty(PROPERTY_COMPACTION_THRESHOLD),
+                DEFAULT_COMPACTION_THRESHOLD);
+        this.groupCommit = new GroupCommit<PackFile>(new GroupCommit.Committer<PackFile>() {
+            @Override
+            public void commit(List<PackFile> items) throws IOException {
+                for (PackFile pack : new LinkedHashSet<PackFile>(items)) {
+                    pack.force();
+                }
+            }
+        }, 0L, 0);
+        this.journal = FileStorageComponent.newChangeJournal(storageBase);
+    }
+
+    protected void activate(ComponentContext context) {
+        LOG.info(MessageFormat.format("[StorageService][pack] {0} : activated",
+                (String) context.getProperties().get(ComponentConstants.COMPONENT_NAME)));
+    }
+
+    protected void deactivate(ComponentContext context) {
+        close();
+        LOG.info(MessageFormat.format("[StorageService][pack] {0} : deactivated",
+                (String) context.getProperties().get(ComponentConstants.COMPONENT_NAME)));
+    }
+
+    /**
+     * Closes all pack files. Pack files are reopened on the next access.
+     */
+    void close() {
+        synchronized (packs) {
+            for (PackFile pack : packs.values()) {
+                pack.close();
+            }
+            packs.clear();
+        }
+    }
+
+    @Override
+    public void write(String category, String key, InputStream blob) throws IOException {
+        byte[] content = IOUtils.toByteArray(blob);
+        PackFile pack = getPack(category, true);
+        pack.append(Collections.singletonMap(key, content), System.currentTimeMillis());
+        groupCommit.commit(pack);
+        appendToJournal(Type.WRITE, category, Collections.singletonMap(key, DigestUtils.md5Hex(content)));
+        checkCompaction(category, pack);
+    }
+
+    @Override
+    public void writeAll(String category, Map<String, InputStream> blobs) throws IOException {
+        Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+        Map<String, String> digests = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, InputStream> entry : blobs.entrySet()) {
+            byte[] content = IOUtils.toByteArray(entry.getValue());
+            contents.put(entry.getKey(), content);
+            digests.put(entry.getKey(), DigestUtils.md5Hex(content));
+        }
+        PackFile pack = getPack(category, true);
+        pack.append(contents, System.currentTimeMillis());
+        pack.force();
+        appendToJournal(Type.WRITE, category, digests);
+        checkCompaction(category, pack);
+    }
+
+    @Override
+    public InputStream read(String category, String key) throws IOException {
+        PackFile pack = getPack(category, false);
+        Record record = pack != null ? pack.read(key) : null;
+        return record != null ? new ByteArrayInputStream(record.content) : null;
+    }
+
+    @Override
+    public void read(String category, String key, StorageConsumer consumer) throws IOException {
+        readMany(category, Collections.singleton(key), consumer);
+    }
+
+    @Override
+    public void readMany(String category, Collection<String> keys, StorageConsumer consumer) throws IOException {
+        PackFile pack = getPack(category, false);
+        if (pack == null) {
+            return;
+        }
+        for (String key : keys) {
+            Record record = pack.read(key);
+            if (record != null) {
+                consumer.consume(category, key, record.timestamp, new ByteArrayInputStream(record.content));
+            }
+        }
+    }
+
+    @Override
+    public void readAll(String category, StorageConsumer consumer) throws IOException {
+        PackFile pack = getPack(category, false);
+        if (pack != null) {
+            // keys are returned in the order of the pack file
+            readMany(category, pack.keys(), consumer);
+        }
+    }
+
+    @Override
+    public List<String> keys(String category) throws IOException {
+        PackFile pack = getPack(category, false);
+        return pack != null ? pack.keys() : new ArrayList<String>();
+    }
+
+    @Override
+    public void archive(String category, String key) throws IOException {
+        PackFile pack = getPack(category, false);
+        Record record = pack != null ? pack.read(key) : null;
+        if (record != null) {
+            getHistorian(category).historize(key, System.currentTimeMillis(),
+                    new ByteArrayInputStream(record.content));
+            appendToJournal(Type.ARCHIVE, category, Collections.singletonMap(key, DigestUtils.md5Hex(record.content)));
+        }
+    }
+
+    @Override
+    public void writeToArchive(String category, String key, long timestamp, InputStream blob) throws IOException {
+        getHistorian(category).historize(key, timestamp, blob);
+    }
+
+    @Override
+    public void readFromArchive(String category, String key, StorageConsumer consumer) throws IOException {
+        HistoryIterator history = null;
+        try {
+            history = getHistorian(category).getHistory(key);
+            while (history.hasNext()) {
+                HistoryEntry next = history.next();
+                consumer.consume(category, key, next.getTimestamp(), IOUtils.toInputStream(next.getContent()));
+            }
+        } finally {
+            if (history != null) {
+                history.close();
+            }
+        }
+    }
+
+    @Override
+    public int compactArchive(String category, int maxVersions, long maxAge, boolean collapseUnchanged)
+            throws IOException {
+        if (!new File(storageBase, category).isDirectory()) {
+            return 0;
+        }
+        return getHistorian(category).compact(maxVersions, maxAge, collapseUnchanged);
+    }
+
+    @Override
+    public long getLastSequence() throws IOException {
+        return journal.getLastSequence();
+    }
+
+    @Override
+    public List<StorageChange> getChanges(long sequence) throws IOException {
+        return journal.getChanges(sequence);
+    }
+
+    /**
+     * Removes superseded records from the pack file of the given category.
+     * <p>
+     * This method is package protected for testing purposes.
+     *
+     * @return the number of bytes that have been reclaimed.
+     */
+    long compactPack(String category) throws IOException {
+        PackFile pack = getPack(category, false);
+        return pack != null ? pack.compact() : 0L;
+    }
+
+    private void checkCompaction(final String category, final PackFile pack) {
+        long size = pack.getSize();
+        if (size < MIN_COMPACTION_SIZE || pack.getGarbage() * 100L < size * compactionThreshold
+                || !pack.scheduleCompaction()) {
+            return;
+        }
+        ThreadPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    long reclaimed = pack.compact();
+                    LOG.info(MessageFormat.format("Compacted pack file of category {0}: {1} bytes reclaimed in {2} ms",
+                            category, reclaimed, System.currentTimeMillis() - start));
+                } catch (IOException e) {
+                    LOG.warn(MessageFormat.format("Failed to compact pack file of category {0}", category), e);
+                }
+            }
+        });
+    }
+
+    // the content has already been stored at this point, so a failure to record the change
+    // must not be reported as failure of the write
+    private void appendToJournal(Type type, String category, Map<String, String> digests) {
+        try {
+            journal.append(type, category, digests);
+        } catch (IOException e) {
+            LOG.warn(MessageFormat.format("Failed to record changes of {0} in the journal: {1}",
+                    digests.keySet(), e.getMessage()));
+        }
+    }
+
+    private PackFile getPack(String category, boolean create) throws IOException {
+        synchronized (packs) {
+            PackFile pack = packs.get(category);
+            if (pack == null) {
+                File dir = new File(storageBase, category);
+                if (!create && !PackFile.exists(dir)) {
+                    return null;
+                }
+                pack = new PackFile(dir);
+                packs.put(category, pack);
+            }
+            return pack;
+        }
+    }
+
+    private Historian getHistorian(String category) {
+        Historian historian = historians.get(category);
+        if (historian == null) {
+            historian = FileStorageComponent.newHistorian(new File(storageBase, category));
+            Historian existing = historians.putIfAbsent(category, historian);
+            if (existing != null) {
+                historian = existing;
+            }
+        }
+        return historian;
+    }
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.xstream;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+
+/**
+ * Thread-safe registry of pre-configured {@link IgnoreUnknownElementsXStream} instances.
+ * <p>
+ * Constructing an XStream instance and registering aliases and converters is expensive
+ * compared to the conversion of a small entity. This registry builds one instance for each
+ * combination of aliases, class loaders and converter classes and hands it out again on
+ * subsequent requests. Since XStream instances are thread-safe once they have been configured,
+ * instances may be shared between threads. Note that converters are compared by class only,
+ * i.e. converters passed to {@link #getXStream(Set, Set, Map)} must be stateless.
+ * <p>
+ * The registry should be {@link #invalidate() invalidated} whenever extension services
+ * come or go, so that instances holding references to class loaders of stopped bundles
+ * are released.
+ */
+public class XStreamRegistry {
+
+    // upper bound for the number of cached instances; should never be reached unless
+    // callers construct alias maps or class loader sets on the fly
+    private static final int MAX_SIZE = 64;
+
+    private static final Map<Key, XStream> instances = new ConcurrentHashMap<Key, XStream>();
+
+    private static final class Key {
+        private final Set<Class<?>> converterClasses;
+        private final Set<ClassLoader> classLoaders;
+        private final Map<String, Class<?>> aliases;
+        private final int hashCode;
+
+        Key(Set<? extends Converter> converters, Set<ClassLoader> classLoaders, Map<String, Class<?>> aliases) {
+            Set<Class<?>> converterClasses = new HashSet<Class<?>>();
+            if (converters != null) {
+                for (Converter converter : converters) {
+                    converterClasses.add(converter.getClass());
+                }
+            }
+            this.converterClasses = converterClasses;
+            this.classLoaders = classLoaders != null ?
+                    new HashSet<ClassLoader>(classLoaders) : Collections.<ClassLoader>emptySet();
+            this.aliases = aliases != null ?
+                    new HashMap<String, Class<?>>(aliases) : Collections.<String, Class<?>>emptyMap();
+            this.hashCode = 31 * (31 * this.converterClasses.hashCode() + this.classLoaders.hashCode())
+                    + this.aliases.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hashCode == other.hashCode
+                    && converterClasses.equals(other.converterClasses)
+                    && classLoaders.equals(other.classLoaders)
+                    && aliases.equals(other.aliases);
+        }
+    }
+
+    // no instances, please!
+    private XStreamRegistry() {
+    }
+
+    /**
+     * Returns an XStream instance configured with the given converters, class loaders and aliases.
+     * See {@link IgnoreUnknownElementsXStream#getXStreamInstance(Set, Set, Map)} for details.
+     *
+     * @param converters  the converters to register, or <code>null</code>.
+     * @param classLoaders  the class loaders to use, or <code>null</code>.
+     * @param aliases  the aliases to register, or <code>null</code>.
+     */
+    public static XStream getXStream(Set<? extends Converter> converters, Set<ClassLoader> classLoaders,
+            Map<String, Class<?>> aliases) {
+        Key key = new Key(converters, classLoaders, aliases);
+        XStream xstream = instances.get(key);
+        if (xstream == null) {
+            // two threads may build an instance for the same key concurrently,
+            // but that does no harm: the last one wins
+            xstream = IgnoreUnknownElementsXStream.getXStreamInstance(converters, classLoaders, aliases);
+            if (instances.size() >= MAX_SIZE) {
+                instances.clear();
+            }
+            instances.put(key, xstream);
+        }
+        return xstream;
+    }
+
+    /**
+     * Removes all cached instances from the registry.
+     */
+    public static void invalidate() {
+        instances.clear();
+    }
+
+    /**
+     * Returns the number of cached instances.
+     * <p>
+     * This method is package protected for testing purposes.
+     */
+    static int size() {
+        return instances.size();
+    }
+}
@@ -10,11 +10,28 @@
  *******************************************************************************/
 package org.eclipse.skalli.core.storage.jpa;
 
-import static org.junit.Assert.fail;
+import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.skalli.services.persistence.StorageConsumer;
 import org.eclipse.skalli.services.persistence.StorageService;
 import org.eclipse.skalli.testutil.BundleManager;
 import org.eclipse.skalli.testutil.StorageServiceTestBase;
+import org.junit.Test;
 
 @SuppressWarnings("nls")
 public class JPAStorageComponentTest extends StorageServiceTestBase {
@@ -28,4 +45,185 @@ public class JPAStorageComponentTest extends StorageServiceTestBase {
         }
         return jpaStorageService;
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        final StorageService storageService = getStorageService();
+        final String category = "test_concurrent";
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 8; ++i) {
+                final String id = TEST_ID + i;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int n = 0; n < 20; ++n) {
+                            storageService.archive(category, id);
+                            storageService.write(category, id, IOUtils.toInputStream(id + ":" + n, "UTF-8"));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(8, storageService.keys(category).size());
+        for (int i = 0; i < 8; ++i) {
+            String id = TEST_ID + i;
+            assertEquals(id + ":19", IOUtils.toString(storageService.read(category, id), "UTF-8"));
+            // the first archiving finds nothing to archive
+            final AtomicInteger archived = new AtomicInteger();
+            storageService.readFromArchive(category, id, new StorageConsumer() {
+                @Override
+                public void consume(String category, String key, long lastModified, InputStream blob)
+                        throws IOException {
+                    archived.incrementAndGet();
+                }
+            });
+            assertEquals(19, archived.get());
+        }
+    }
+
+    @Test
+    public void testCompressedContent() throws Exception {
+        JPAStorageComponent storageService = (JPAStorageComponent) getStorageService();
+        String content = TEST_CONTENT + StringUtils.repeat("<item>some repeated text</item>", 1000);
+        storageService.write("test_compressed", TEST_ID, IOUtils.toInputStream(content, "UTF-8"));
+        storageService.archive("test_compressed", TEST_ID);
+        assertEquals(content, IOUtils.toString(storageService.read("test_compressed", TEST_ID), "UTF-8"));
+
+        EntityManager em = storageService.getEntityManager();
+        try {
+            StorageItem item = em.find(StorageItem.class, new StorageId("test_compressed", TEST_ID));
+            assertNull(item.getContent());
+            assertTrue(item.getCompressedContent().length * 10 < content.length());
+        } finally {
+            em.close();
+        }
+    }
+
+    @Test
+    public void testMigrateContent() throws Exception {
+        JPAStorageComponent storageService = (JPAStorageComponent) getStorageService();
+
+        // rows written by a previous version carry their content as text
+        EntityManager em = storageService.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            StorageItem item = new StorageItem();
+            item.setCategory("test_migrate");
+            item.setId(TEST_ID);
+            item.setContent(TEST_CONTENT);
+            item.setDateModified(new Date());
+            em.persist(item);
+            HistoryStorageItem histItem = new HistoryStorageItem();
+            histItem.setCategory("test_migrate");
+            histItem.setId(TEST_ID);
+            histItem.setContent(TEST_CONTENT);
+            histItem.setDateCreated(new Date());
+            em.persist(histItem);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+        assertEquals(TEST_CONTENT, IOUtils.toString(storageService.read("test_migrate", TEST_ID), "UTF-8"));
+
+        storageService.migrateContent();
+        assertEquals(0, storageService.migrateContent());
+
+        em = storageService.getEntityManager();
+        try {
+            StorageItem item = em.find(StorageItem.class, new StorageId("test_migrate", TEST_ID));
+            em.refresh(item);
+            assertNull(item.getContent());
+            assertNotNull(item.getCompressedContent());
+        } finally {
+            em.close();
+        }
+        assertEquals(TEST_CONTENT, IOUtils.toString(storageService.read("test_migrate", TEST_ID), "UTF-8"));
+        final List<String> archived = new ArrayList<String>();
+        storageService.readFromArchive("test_migrate", TEST_ID, new StorageConsumer() {
+            @Override
+            public void consume(String category, String key, long lastModified, InputStream blob)
+                    throws IOException {
+                archived.add(IOUtils.toString(blob, "UTF-8"));
+            }
+        });
+        assertEquals(1, archived.size());
+        assertEquals(TEST_CONTENT, archived.get(0));
+    }
+
+    @Test
+    public void testDeltaEncodedHistory() throws Exception {
+        JPAStorageComponent storageService = (JPAStorageComponent) getStorageService();
+        storageService.setSnapshotInterval(4);
+        try {
+            List<String> versions = new ArrayList<String>();
+            StringBuilder content = new StringBuilder();
+            for (int i = 0; i < 200; ++i) {
+                content.append("<item><name>item ").append(i).append("</name></item>");
+            }
+            for (int n = 0; n < 10; ++n) {
+                content.replace(n * 100, n * 100 + 10, "<changed/>");
+                versions.add(content.toString());
+                storageService.write("test_delta", TEST_ID, IOUtils.toInputStream(content.toString(), "UTF-8"));
+                storageService.archive("test_delta", TEST_ID);
+            }
+            assertEquals(versions, readFromArchive(storageService, "test_delta"));
+
+            long size = 0;
+            long fullSize = 0;
+            EntityManager em = storageService.getEntityManager();
+            try {
+                List<HistoryStorageItem> items = em
+                        .createNamedQuery("getItemsByCompositeKey", HistoryStorageItem.class)
+                        .setParameter("category", "test_delta").setParameter("id", TEST_ID).getResultList();
+                assertEquals(10, items.size());
+                for (int n = 0; n < items.size(); ++n) {
+                    HistoryStorageItem item = items.get(n);
+                    // every 4th version carries its full content
+                    assertEquals(n % 4 != 0, item.isDelta());
+                    assertEquals(n % 4, item.getDeltaDepth());
+                    size += item.getCompressedContent().length;
+                    fullSize += CompressedContent.compress(versions.get(n)).length;
+                }
+            } finally {
+                em.close();
+            }
+            assertTrue(size + " vs " + fullSize, size * 2 < fullSize);
+
+            // replacing an archived version does not break the versions based on it
+            final List<Long> timestamps = new ArrayList<Long>();
+            storageService.readFromArchive("test_delta", TEST_ID, new StorageConsumer() {
+                @Override
+                public void consume(String category, String key, long lastModified, InputStream blob) {
+                    timestamps.add(lastModified);
+                }
+            });
+            storageService.writeToArchive("test_delta", TEST_ID, timestamps.get(1),
+                    IOUtils.toInputStream(TEST_CONTENT, "UTF-8"));
+            versions.set(1, TEST_CONTENT);
+            assertEquals(versions, readFromArchive(storageService, "test_delta"));
+        } finally {
+            storageService.setSnapshotInterval(10);
+        }
+    }
+
+    private List<String> readFromArchive(StorageService storageService, String category) throws Exception {
+        final List<String> archived = new ArrayList<String>();
+        storageService.readFromArchive(category, TEST_ID, new StorageConsumer() {
+            @Override
+            public void consume(String category, String key, long lastModified, InputStream blob)
+                    throws IOException {
+                archived.add(IOUtils.toString(blob, "UTF-8"));
+            }
+        });
+        return archived;
+    }
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage.jpa;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.UUID;
+
+import javax.persistence.EntityManager;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.skalli.services.persistence.StorageConsumer;
+import org.eclipse.skalli.services.persistence.StorageService;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.BundleManager;
+import org.junit.Test;
+
+/**
+ * Compares the size of the stored content and the heap allocated while reading and writing
+ * entities stored as text, the way previous versions did, and stored as compressed content.
+ * <p>
+ * The number of entities can be changed with the system property
+ * <tt>skalli.benchmark.entities</tt>. Allocated bytes are measured with
+ * <tt>com.sun.management.ThreadMXBean</tt> and reported as zero on other virtual machines.
+ */
+@SuppressWarnings("nls")
+public class JPAStorageContentBenchmark extends BenchmarkBase {
+
+    private static final int ENTITIES = getParameter("entities", 2000);
+
+    @Test
+    public void benchmarkContent() throws Exception {
+        StorageService service = BundleManager.waitService(StorageService.class, JPAStorageComponent.class, 1000);
+        if (service == null) {
+            fail(JPAStorageComponent.class.getName() + " is not active");
+        }
+        JPAStorageComponent storageService = (JPAStorageComponent) service;
+        StringBuilder sb = new StringBuilder("<entity-project>");
+        for (int i = 0; i < 200; ++i) {
+            sb.append("<extension name=\"ext").append(i).append("\"><value>")
+                    .append(StringUtils.repeat("text ", 10)).append(i).append("</value></extension>");
+        }
+        String content = sb.append("</entity-project>").toString();
+
+        // content stored as text like before
+        long allocated = allocatedBytes();
+        long textSize = 0L;
+        EntityManager em = storageService.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            for (int i = 0; i < ENTITIES; ++i) {
+                StorageItem item = new StorageItem();
+                item.setCategory("benchmark_text");
+                item.setId(UUID.randomUUID().toString());
+                item.setContent(IOUtils.toString(IOUtils.toInputStream(content, "UTF-8"), "UTF-8"));
+                item.setDateModified(new Date());
+                em.persist(item);
+                textSize += item.getContent().getBytes("UTF-8").length;
+            }
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+        long textWrite = allocatedBytes() - allocated;
+
+        // compressed content, written in one transaction as well for comparability
+        allocated = allocatedBytes();
+        long compressedSize = 0L;
+        em = storageService.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            for (int i = 0; i < ENTITIES; ++i) {
+                StorageItem item = new StorageItem();
+                item.setCategory("benchmark_compressed");
+                item.setId(UUID.randomUUID().toString());
+                item.setCompressedContent(CompressedContent.compress(IOUtils.toInputStream(content, "UTF-8")));
+                item.setDateModified(new Date());
+                em.persist(item);
+                compressedSize += item.getCompressedContent().length;
+            }
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+        long compressedWrite = allocatedBytes() - allocated;
+
+        long textRead = measureRead(storageService, "benchmark_text");
+        long compressedRead = measureRead(storageService, "benchmark_compressed");
+
+        report(ENTITIES + " entities of " + content.length() + " characters");
+        report("stored content: " + textSize / 1024L + " KB as text, "
+                + compressedSize / 1024L + " KB compressed");
+        report("allocated while writing: " + textWrite / ENTITIES + " bytes per entity as text, "
+                + compressedWrite / ENTITIES + " bytes per entity compressed");
+        report("allocated while reading: " + textRead / ENTITIES + " bytes per entity as text, "
+                + compressedRead / ENTITIES + " bytes per entity compressed");
+    }
+
+    private long measureRead(StorageService storageService, String category) throws IOException {
+        final byte[] buffer = new byte[4096];
+        long allocated = allocatedBytes();
+        storageService.readAll(category, new StorageConsumer() {
+            @Override
+            public void consume(String category, String key, long lastModified, InputStream blob)
+                    throws IOException {
+                while (blob.read(buffer) >= 0) {
+                    // consume the stream like a parser would
+                }
+            }
+        });
+        return allocatedBytes() - allocated;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0L;
+    }
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage.jpa;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.skalli.services.persistence.StorageService;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.BundleManager;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Compares the throughput of concurrent writes into the database configured for the tests
+ * with and without coalescing of writes. Each thread archives and then writes its entities,
+ * the way the persistence service saves historized entities.
+ * <p>
+ * The number of entities and threads can be changed with the system properties
+ * <tt>skalli.benchmark.entities</tt> and <tt>skalli.benchmark.threads</tt>.
+ */
+@SuppressWarnings("nls")
+public class JPAStorageWriteBenchmark extends BenchmarkBase {
+
+    private static final int ENTITIES = getParameter("entities", 4000);
+    private static final int THREADS = getParameter("threads", 8);
+
+    private JPAStorageComponent storageService;
+
+    @After
+    public void tearDown() throws Exception {
+        if (storageService != null) {
+            storageService.setGroupCommit(0L, 100);
+        }
+    }
+
+    @Test
+    public void benchmarkWrite() throws Exception {
+        StorageService service = BundleManager.waitService(StorageService.class, JPAStorageComponent.class, 1000);
+        if (service == null) {
+            fail(JPAStorageComponent.class.getName() + " is not active");
+        }
+        storageService = (JPAStorageComponent) service;
+        byte[] content = ("<entity>" + StringUtils.repeat("x", 4096) + "</entity>").getBytes("UTF-8");
+
+        storageService.setGroupCommit(0L, 1);
+        long single = measure("benchmark_single", content);
+        storageService.setGroupCommit(0L, 100);
+        long coalesced = measure("benchmark_coalesced", content);
+
+        report(ENTITIES + " entities written by " + THREADS
+                + " threads: " + ENTITIES * 1000L / single + " writes/s with one transaction per write, "
+                + ENTITIES * 1000L / coalesced + " writes/s with coalesced writes (speedup "
+                + (single * 100 / coalesced) / 100.0 + ")");
+    }
+
+    private long measure(final String category, final byte[] content) throws Exception {
+        final String[] keys = new String[ENTITIES];
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = UUID.randomUUID().toString();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            long start = System.currentTimeMillis();
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int t = 0; t < THREADS; ++t) {
+                final int thread = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = thread; i < keys.length; i += THREADS) {
+                            storageService.archive(category, keys[i]);
+                            storageService.write(category, keys[i], new ByteArrayInputStream(content));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+            long duration = Math.max(1L, System.currentTimeMillis() - start);
+            assertEquals(ENTITIES, storageService.keys(category).size());
+            return duration;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage.jpa;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.skalli.services.persistence.StorageCopy;
+import org.eclipse.skalli.services.persistence.StorageService;
+import org.eclipse.skalli.testutil.BenchmarkBase;
+import org.eclipse.skalli.testutil.BundleManager;
+import org.eclipse.skalli.testutil.HashMapStorageService;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares copying the content of an in-memory storage into the database
+ * configured for the tests key by key with the batched copy pipeline of {@link StorageCopy}
+ * with one and with several writer threads.
+ * <p>
+ * The number of entities and threads can be changed with the system properties
+ * <tt>skalli.benchmark.entities</tt> and <tt>skalli.benchmark.threads</tt>.
+ */
+@SuppressWarnings("nls")
+public class StorageCopyBenchmark extends BenchmarkBase {
+
+    private static final int ENTITIES = getParameter("entities", 4000);
+    private static final int THREADS = getParameter("threads", 4);
+
+    private HashMapStorageService sourceStorage;
+    private StorageService jpaStorage;
+
+    @Before
+    public void setup() throws Exception {
+        sourceStorage = new HashMapStorageService();
+        jpaStorage = BundleManager.waitService(StorageService.class, JPAStorageComponent.class, 1000);
+        if (jpaStorage == null) {
+            fail(JPAStorageComponent.class.getName() + " is not active");
+        }
+    }
+
+    @Test
+    public void benchmarkCopy() throws Exception {
+        byte[] content = ("<entity>" + StringUtils.repeat("x", 4096) + "</entity>").getBytes("UTF-8");
+        String[] categories = { "benchmark_copy_keys", "benchmark_copy_single", "benchmark_copy_parallel" };
+        for (String category : categories) {
+            for (int i = 0; i < ENTITIES; ++i) {
+                sourceStorage.write(category, UUID.randomUUID().toString(), new ByteArrayInputStream(content));
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        List<String> keys = sourceStorage.keys(categories[0]);
+        for (String key : keys) {
+            InputStream blob = sourceStorage.read(categories[0], key);
+            try {
+                jpaStorage.write(categories[0], key, blob);
+            } finally {
+                blob.close();
+            }
+        }
+        long keyByKey = Math.max(1L, System.currentTimeMillis() - start);
+        assertEquals(ENTITIES, jpaStorage.keys(categories[0]).size());
+
+        long single = measure(categories[1], 1);
+        long parallel = measure(categories[2], THREADS);
+
+        report(ENTITIES + " entities copied: "
+                + ENTITIES * 1000L / keyByKey + " records/s key by key, "
+                + ENTITIES * 1000L / single + " records/s with batches and 1 thread (speedup "
+                + (keyByKey * 100 / single) / 100.0 + "), "
+                + ENTITIES * 1000L / parallel + " records/s with batches and " + THREADS + " threads (speedup "
+                + (keyByKey * 100 / parallel) / 100.0 + ")");
+    }
+
+    private long measure(String category, int threads) throws Exception {
+        long start = System.currentTimeMillis();
+        int copied = new StorageCopy(sourceStorage, jpaStorage, threads).copy(category,
+                sourceStorage.keys(category), null);
+        long duration = Math.max(1L, System.currentTimeMillis() - start);
+        assertEquals(ENTITIES, copied);
+        assertEquals(ENTITIES, jpaStorage.keys(category).size());
+        return duration;
+    }
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage.jpa;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.skalli.services.persistence.StorageCopy;
+import org.eclipse.skalli.services.persistence.StorageService;
+import org.eclipse.skalli.testutil.BundleManager;
+import org.eclipse.skalli.testutil.HashMapStorageService;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Copies the content of an in-memory storage into the database
+ * configured for the tests with one and with several writer threads.
+ */
+@SuppressWarnings("nls")
+public class StorageCopyTest {
+
+    private static final int RECORDS = 250;
+
+    private HashMapStorageService sourceStorage;
+    private StorageService jpaStorage;
+
+    @Before
+    public void setup() throws Exception {
+        sourceStorage = new HashMapStorageService();
+        jpaStorage = BundleManager.waitService(StorageService.class, JPAStorageComponent.class, 1000);
+        if (jpaStorage == null) {
+            fail(JPAStorageComponent.class.getName() + " is not active");
+        }
+    }
+
+    @Test
+    public void testCopySingleThread() throws Exception {
+        assertCopy("test_copy_single", 1);
+    }
+
+    @Test
+    public void testCopyParallel() throws Exception {
+        assertCopy("test_copy_parallel", 4);
+    }
+
+    private void assertCopy(String category, int threads) throws Exception {
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < RECORDS; ++i) {
+            String key = UUID.randomUUID().toString();
+            sourceStorage.write(category, key, new ByteArrayInputStream(content(key)));
+            keys.add(key);
+        }
+
+        final List<Integer> progress = new ArrayList<Integer>();
+        final List<String> failed = new ArrayList<String>();
+        int copied = new StorageCopy(sourceStorage, jpaStorage, threads, 20).copy(category,
+                sourceStorage.keys(category), new StorageCopy.ProgressListener() {
+                    @Override
+                    public void copied(int copied, int total, long elapsed) {
+                        progress.add(copied);
+                    }
+
+                    @Override
+                    public void failed(List<String> keys, Exception e) {
+                        failed.addAll(keys);
+                    }
+                });
+
+        assertTrue(failed.isEmpty());
+        assertEquals(RECORDS, copied);
+        assertEquals(13, progress.size());
+        for (int i = 1; i < progress.size(); ++i) {
+            assertTrue(progress.get(i - 1) < progress.get(i));
+        }
+        assertEquals(RECORDS, progress.get(progress.size() - 1).intValue());
+        assertEquals(new HashSet<String>(keys), new HashSet<String>(jpaStorage.keys(category)));
+        for (String key : keys) {
+            assertArrayEquals(content(key), IOUtils.toByteArray(jpaStorage.read(category, key)));
+        }
+    }
+
+    private static byte[] content(String key) throws Exception {
+        return ("<entity><uuid>" + key + "</uuid></entity>").getBytes("UTF-8");
+    }
+}
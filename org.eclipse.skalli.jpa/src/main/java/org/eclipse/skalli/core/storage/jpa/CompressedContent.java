@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.core.storage.jpa;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Conversion of the content of {@link StorageItem storage items} and {@link HistoryStorageItem history items}
+ * to and from its compressed representation.
+ * <p>
+ * Content is stored gzip-compressed in a binary column. The compressed content is always held in memory
+ * as a whole, since binary columns are mapped to byte arrays. Writing compresses the content directly
+ * from the stream of the caller, and reading decompresses it on the fly from the compressed bytes, so that
+ * plain reads and writes do not keep the uncompressed document in memory. Rows written before content
+ * has been compressed still carry their content as text, which is used as long as no compressed content
+ * is available, see {@link JPAStorageComponent#migrateContent()}.
+ */
+class CompressedContent {
+
+    private static final String UTF_8 = "UTF-8"; //$NON-NLS-1$
+
+    private CompressedContent() {
+    }
+
+    /**
+     * Compresses the content of the given stream. The stream is not closed.
+     */
+    static byte[] compress(InputStream content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        IOUtils.copy(content, out);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Compresses the given text content.
+     */
+    static byte[] compress(String content) throws IOException {
+        return compress(new ByteArrayInputStream(content.getBytes(UTF_8)));
+    }
+
+    /**
+     * Returns a stream providing the uncompressed content of an item.
+     *
+     * @param compressed  the compressed content of the item, or <code>null</code>.
+     * @param text  the content of the item as text, if the item has been written
+     * before content has been compressed, or <code>null</code>.
+     *
+     * @return a stream, or <code>null</code> if the item has no content.
+     */
+    static InputStream asStream(byte[] compressed, String text) throws IOException {
+        if (compressed != null) {
+            return new GZIPInputStream(new ByteArrayInputStream(compressed));
+        }
+        return text != null ? new ByteArrayInputStream(text.getBytes(UTF_8)) : null;
+    }
+}
@@ -29,8 +29,12 @@ import org.eclipse.persistence.annotations.Index;
 
 @Table(name = "HistoryStorage")
 @NamedQueries({
-    @NamedQuery(name = "getItemsByCompositeKey", query = "SELECT r FROM HistoryStorageItem r WHERE r.category = :category AND r.id = :id"),
-    @NamedQuery(name = "getItemByTimestamp", query = "SELECT r FROM HistoryStorageItem r WHERE r.category = :category AND r.id = :id AND r.dateCreated = :dateCreated")
+    @NamedQuery(name = "getItemsByCompositeKey", query = "SELECT r FROM HistoryStorageItem r WHERE r.category = :category AND r.id = :id ORDER BY r.autoId"),
+    @NamedQuery(name = "getLatestItemsByCompositeKey", query = "SELECT r FROM HistoryStorageItem r WHERE r.category = :category AND r.id = :id ORDER BY r.autoId DESC"),
+    @NamedQuery(name = "getItemsByBase", query = "SELECT r FROM HistoryStorageItem r WHERE r.baseId = :baseId"),
+    @NamedQuery(name = "getItemByTimestamp", query = "SELECT r FROM HistoryStorageItem r WHERE r.category = :category AND r.id = :id AND r.dateCreated = :dateCreated"),
+    @NamedQuery(name = "getUncompressedHistory", query = "SELECT r FROM HistoryStorageItem r WHERE r.compressedContent IS NULL AND r.content IS NOT NULL"),
+    @NamedQuery(name = "compressHistoryContent", query = "UPDATE HistoryStorageItem r SET r.compressedContent = :compressedContent, r.content = NULL WHERE r.autoId = :autoId AND r.compressedContent IS NULL")
 })
 @Entity
 public class HistoryStorageItem {
@@ -46,8 +50,24 @@ public class HistoryStorageItem {
     private String id;
     @Temporal(TemporalType.TIMESTAMP)
     private Date dateCreated;
+    // content written before content has been compressed, or null
     @Lob
     private String content;
+    // gzip-compressed content, or the delta to the content of the base item,
+    // or null if the content has not been migrated yet
+    @Lob
+    @Column(name = "compressedContent")
+    private byte[] compressedContent;
+    // autoId of the item this item is a delta to, or null if the item carries its full content
+    @Column(name = "baseId")
+    private Integer baseId;
+    // number of deltas since the last item with full content, or null for items with full content
+    @Column(name = "deltaDepth")
+    private Integer deltaDepth;
+
+    public int getAutoId() {
+        return autoId;
+    }
 
     public String getCategory() {
         return category;
@@ -80,4 +100,36 @@ public class HistoryStorageItem {
     public void setContent(String content) {
         this.content = content;
     }
+
+    public byte[] getCompressedContent() {
+        return compressedContent;
+    }
+
+    public void setCompressedContent(byte[] compressedContent) {
+        this.compressedContent = compressedContent;
+    }
+
+    public Integer getBaseId() {
+        return baseId;
+    }
+
+    public void setBaseId(Integer baseId) {
+        this.baseId = baseId;
+    }
+
+    public int getDeltaDepth() {
+        return deltaDepth != null ? deltaDepth.intValue() : 0;
+    }
+
+    public void setDeltaDepth(int deltaDepth) {
+        this.deltaDepth = deltaDepth > 0 ? Integer.valueOf(deltaDepth) : null;
+    }
+
+    /**
+     * Returns <code>true</code>, if the {@link #getCompressedContent() compressed content}
+     * of this item is a delta to the content of the item with the given {@link #getBaseId() base id}.
+     */
+    public boolean isDelta() {
+        return baseId != null;
+    }
 }
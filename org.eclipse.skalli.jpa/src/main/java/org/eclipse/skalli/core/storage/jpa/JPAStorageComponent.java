@@ -15,17 +15,30 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.persistence.EntityManager;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.eclipse.persistence.config.HintValues;
 import org.eclipse.persistence.config.QueryHints;
 import org.eclipse.persistence.queries.CursoredStream;
+import org.eclipse.skalli.commons.BinaryDelta;
+import org.eclipse.skalli.commons.GroupCommit;
+import org.eclipse.skalli.commons.ThreadPool;
+import org.eclipse.skalli.services.BundleProperties;
 import org.eclipse.skalli.services.persistence.EntityManagerService;
 import org.eclipse.skalli.services.persistence.EntityManagerServiceBase;
 import org.eclipse.skalli.services.persistence.StorageConsumer;
@@ -35,16 +48,146 @@ import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Implementation of a storage service based on a relational database.
+ * <p>
+ * Concurrent calls of {@link #write(String, String, InputStream)} and {@link #archive(String, String)}
+ * are coalesced with a {@link GroupCommit group commit}: pending writes and archivings of several threads
+ * are committed together in one transaction, which the persistence provider sends to the database with
+ * JDBC batching. Each caller still returns only after its own change has been committed, and receives
+ * only the failure of its own change.
+ * <p>
+ * {@link #writeAll(String, Map)} commits its items page by page, each page in a transaction of its own
+ * that does not take part in the group commit. Therefore, a batch write and a concurrent single write
+ * of the same item are not ordered against each other: the content committed last wins, the same as for
+ * two concurrent single writes.
+ * <p>
+ * Content is stored gzip-compressed in binary columns, see {@link CompressedContent}. Archiving a version
+ * decompresses the current and the preceding version completely in memory to compute the delta between them,
+ * and reading archived versions reconstructs each version completely in memory.
+ * Rows that still carry their content as text, because they have been written by a previous version,
+ * are converted in the background when the component is activated, see {@link #migrateContent()}.
+ * <p>
+ * Archived versions of an item are stored as {@link BinaryDelta deltas} to the preceding version
+ * of the same item, except for every {@link #PROPERTY_SNAPSHOT_INTERVAL n-th} version, which carries
+ * its full content. Reconstructing a version therefore never has to apply more than <tt>n-1</tt> deltas.
+ */
 public class JPAStorageComponent extends EntityManagerServiceBase implements EntityManagerService, StorageService {
 
     private static final Logger LOG = LoggerFactory.getLogger(JPAStorageComponent.class);
 
+    /**
+     * Name of the property that defines in milliseconds how long a group commit waits
+     * for concurrent writes before committing them together. Default is zero, i.e. only
+     * writes that arrive while a previous group is being committed are grouped.
+     */
+    public static final String PROPERTY_COMMIT_WINDOW = "skalli.storage.jpa.commitWindow"; //$NON-NLS-1$
+
+    /**
+     * Name of the property that defines the maximum number of writes and archivings committed
+     * together in one transaction. Default is 100. A value of 1 disables the coalescing of writes,
+     * i.e. each write is committed in a transaction of its own.
+     */
+    public static final String PROPERTY_COMMIT_BATCH_SIZE = "skalli.storage.jpa.commitBatchSize"; //$NON-NLS-1$
+
+    /**
+     * Name of the property that defines the number of archived versions of an item between two
+     * versions that carry their full content. All other versions are stored as deltas to their
+     * preceding version. A value of 1 means that all versions carry their full content. Default is 10.
+     */
+    public static final String PROPERTY_SNAPSHOT_INTERVAL = "skalli.storage.jpa.snapshotInterval"; //$NON-NLS-1$
+
+    private static final int DEFAULT_SNAPSHOT_INTERVAL = 10;
+
     // page size for mass operations
     private static final int PAGE_SIZE = 100;
 
+    /**
+     * A pending write or archiving of a single item.
+     */
+    private static class Operation {
+        final String category;
+        final String id;
+        final byte[] compressedContent;
+        final Date date;
+        Exception failure;
+
+        // content is null for archivings
+        Operation(String category, String id, byte[] compressedContent) {
+            this.category = category;
+            this.id = id;
+            this.compressedContent = compressedContent;
+            this.date = new Date();
+        }
+
+        boolean isArchive() {
+            return compressedContent == null;
+        }
+    }
+
+    /**
+     * An archived version of an item together with its full content.
+     */
+    private static class HistoryVersion {
+        final HistoryStorageItem item;
+        final byte[] content;
+
+        HistoryVersion(HistoryStorageItem item, byte[] content) {
+            this.item = item;
+            this.content = content;
+        }
+    }
+
+    // coalesces concurrent operations, or null if each operation is committed on its own
+    private volatile GroupCommit<Operation> groupCommit;
+
+    private volatile int snapshotInterval;
+
+    // set when the component is deactivated, so that a running content migration stops
+    private volatile boolean cancelled;
+
+    public JPAStorageComponent() {
+        setGroupCommit(NumberUtils.toLong(BundleProperties.getProperty(PROPERTY_COMMIT_WINDOW), 0L),
+                NumberUtils.toInt(BundleProperties.getProperty(PROPERTY_COMMIT_BATCH_SIZE), PAGE_SIZE));
+        setSnapshotInterval(NumberUtils.toInt(BundleProperties.getProperty(PROPERTY_SNAPSHOT_INTERVAL),
+                DEFAULT_SNAPSHOT_INTERVAL));
+    }
+
+    /**
+     * Defines how concurrent writes and archivings are coalesced.
+     * <p>
+     * This method is package protected for testing purposes.
+     *
+     * @param commitWindow  the time in milliseconds a group commit waits for concurrent operations.
+     * @param batchSize  the maximum number of operations committed together, or 1 if operations
+     * should not be coalesced.
+     */
+    void setGroupCommit(long commitWindow, int batchSize) {
+        groupCommit = batchSize != 1 ? new GroupCommit<Operation>(new GroupCommit.Committer<Operation>() {
+            @Override
+            public void commit(List<Operation> operations) throws IOException {
+                commitAll(operations);
+            }
+        }, commitWindow, batchSize) : null;
+    }
+
+    /**
+     * Defines the number of archived versions of an item between two versions carrying their full content.
+     * <p>
+     * This method is package protected for testing purposes.
+     *
+     * @param snapshotInterval  the number of versions between two full versions, or 1 if all versions
+     * should carry their full content.
+     */
+    void setSnapshotInterval(int snapshotInterval) {
+        this.snapshotInterval = Math.max(snapshotInterval, 1);
+    }
+
     @Override
     protected void activate(ComponentContext context) {
         super.activate(context);
+        cancelled = false;
+        startContentMigration();
         LOG.info(MessageFormat.format("[StorageService][JPA] {0} : activated",
                 (String) context.getProperties().get(ComponentConstants.COMPONENT_NAME)));
     }
@@ -53,40 +196,40 @@ public class JPAStorageComponent extends EntityManagerServiceBase implements Ent
     protected void deactivate(ComponentContext context) {
         LOG.info(MessageFormat.format("[StorageService][JPA] {0} : deactivated",
                 (String) context.getProperties().get(ComponentConstants.COMPONENT_NAME)));
+        cancelled = true;
         super.deactivate(context);
     }
 
     @Override
     public void write(String category, String id, InputStream blob) throws IOException {
-        EntityManager em = getEntityManager();
-        em.getTransaction().begin();
-        try {
-            StorageItem item = findStorageItem(category, id, em);
-            if (item == null) {
-                StorageItem newItem = new StorageItem();
-                newItem.setId(id);
-                newItem.setCategory(category);
-                newItem.setDateModified(new Date());
-                newItem.setContent(IOUtils.toString(blob, "UTF-8")); //$NON-NLS-1$
-                em.persist(newItem);
-            } else { //update
-                item.setDateModified(new Date());
-                item.setContent(IOUtils.toString(blob, "UTF-8")); //$NON-NLS-1$
+        // read the content on the calling thread, since the caller owns the stream
+        commit(new Operation(category, id, CompressedContent.compress(blob)));
+    }
+
+    @Override
+    public void writeAll(String category, Map<String, InputStream> blobs) throws IOException {
+        List<String> ids = new ArrayList<String>(blobs.keySet());
+        for (int from = 0; from < ids.size(); from += PAGE_SIZE) {
+            List<Operation> page = new ArrayList<Operation>();
+            for (String id : ids.subList(from, Math.min(from + PAGE_SIZE, ids.size()))) {
+                page.add(new Operation(category, id, CompressedContent.compress(blobs.get(id))));
+            }
+            // a page is a batch of its own and therefore bypasses the group commit
+            commitAll(page);
+            for (Operation operation : page) {
+                rethrow(operation);
             }
-            em.getTransaction().commit();
-        } finally {
-            em.close();
         }
     }
 
     @Override
     public InputStream read(String category, String id) throws IOException {
         EntityManager em = getEntityManager();
-        ByteArrayInputStream returnStream = null;
+        InputStream returnStream = null;
         try {
             StorageItem item = findStorageItem(category, id, em);
             if (item != null) {
-                returnStream = new ByteArrayInputStream(item.getContent().getBytes("UTF-8")); //$NON-NLS-1$
+                returnStream = asStream(item);
             }
         } finally {
             em.close();
@@ -101,7 +244,25 @@ public class JPAStorageComponent extends EntityManagerServiceBase implements Ent
             StorageItem item = findStorageItem(category, id, em);
             if (item != null) {
                 consumer.consume(item.getCategory(), item.getId(), item.getDateModified().getTime(),
-                        asStream(item.getContent()));
+                        asStream(item));
+            }
+        } finally {
+            em.close();
+        }
+    }
+
+    @Override
+    public void readMany(String category, Collection<String> keys, StorageConsumer consumer) throws IOException {
+        EntityManager em = getEntityManager();
+        try {
+            List<String> ids = new ArrayList<String>(keys);
+            for (int from = 0; from < ids.size(); from += PAGE_SIZE) {
+                List<String> page = ids.subList(from, Math.min(from + PAGE_SIZE, ids.size()));
+                for (StorageItem item : findStorageItems(category, page, em).values()) {
+                    consumer.consume(item.getCategory(), item.getId(), item.getDateModified().getTime(),
+                            asStream(item));
+                }
+                em.clear();
             }
         } finally {
             em.close();
@@ -123,7 +284,7 @@ public class JPAStorageComponent extends EntityManagerServiceBase implements Ent
                 while (cursor.hasNext()) {
                     StorageItem next = (StorageItem)cursor.next();
                     consumer.consume(next.getCategory(), next.getId(), next.getDateModified().getTime(),
-                            asStream(next.getContent()));
+                            asStream(next));
                 }
             } finally {
                 if (cursor != null) {
@@ -137,23 +298,7 @@ public class JPAStorageComponent extends EntityManagerServiceBase implements Ent
 
     @Override
     public void archive(String category, String id) throws IOException {
-        EntityManager em = getEntityManager();
-        try {
-            em.getTransaction().begin();
-            StorageItem item = findStorageItem(category, id, em);
-            if (item == null) {
-                return;
-            }
-            HistoryStorageItem histItem = new HistoryStorageItem();
-            histItem.setCategory(category);
-            histItem.setId(id);
-            histItem.setContent(item.getContent());
-            histItem.setDateCreated(new Date());
-            em.persist(histItem);
-            em.getTransaction().commit();
-        } finally {
-            em.close();
-        }
+        commit(new Operation(category, id, null));
     }
 
     @Override
@@ -166,11 +311,28 @@ public class JPAStorageComponent extends EntityManagerServiceBase implements Ent
                 HistoryStorageItem newItem = new HistoryStorageItem();
                 newItem.setCategory(category);
                 newItem.setId(id);
-                newItem.setContent(IOUtils.toString(blob, "UTF-8")); //$NON-NLS-1$
+                newItem.setCompressedContent(CompressedContent.compress(blob));
                 newItem.setDateCreated(new Date(timestamp));
                 em.persist(newItem);
             } else {
-                item.setContent(IOUtils.toString(blob, "UTF-8")); //$NON-NLS-1$
+                byte[] content = IOUtils.toByteArray(blob);
+                if (!Arrays.equals(content, readHistoryContent(item, new HashMap<Integer, byte[]>(), em))) {
+                    // versions based on the replaced content must carry their full content from now on
+                    TypedQuery<HistoryStorageItem> query = em.createNamedQuery("getItemsByBase", //$NON-NLS-1$
+                            HistoryStorageItem.class);
+                    query.setParameter("baseId", item.getAutoId()); //$NON-NLS-1$
+                    for (HistoryStorageItem dependent : query.getResultList()) {
+                        byte[] dependentContent = readHistoryContent(dependent, new HashMap<Integer, byte[]>(), em);
+                        dependent.setCompressedContent(CompressedContent.compress(
+                                new ByteArrayInputStream(dependentContent)));
+                        dependent.setBaseId(null);
+                        dependent.setDeltaDepth(0);
+                    }
+                    item.setCompressedContent(CompressedContent.compress(new ByteArrayInputStream(content)));
+                    item.setContent(null);
+                    item.setBaseId(null);
+                    item.setDeltaDepth(0);
+                }
             }
             em.getTransaction().commit();
         } finally {
@@ -191,10 +353,13 @@ public class JPAStorageComponent extends EntityManagerServiceBase implements Ent
             CursoredStream cursor = null;
             try {
                 cursor = (CursoredStream) query.getSingleResult();
+                // items are ordered by autoId, so that the base of a delta is read before the delta
+                Map<Integer, byte[]> contents = new HashMap<Integer, byte[]>();
                 while (cursor.hasNext()) {
                     HistoryStorageItem next = (HistoryStorageItem)cursor.next();
+                    byte[] content = readHistoryContent(next, contents, em);
                     consumer.consume(next.getCategory(), next.getId(), next.getDateCreated().getTime(),
-                            asStream(next.getContent()));
+                            new ByteArrayInputStream(content));
                 }
             } finally {
                 if (cursor != null) {
@@ -220,10 +385,213 @@ public class JPAStorageComponent extends EntityManagerServiceBase implements Ent
         return resultList;
     }
 
+    private void commit(Operation operation) throws IOException {
+        GroupCommit<Operation> groupCommit = this.groupCommit;
+        if (groupCommit != null) {
+            groupCommit.commit(operation);
+        } else {
+            commitAll(Collections.singletonList(operation));
+        }
+        rethrow(operation);
+    }
+
+    private static void rethrow(Operation operation) throws IOException {
+        if (operation.failure instanceof IOException) {
+            throw (IOException) operation.failure;
+        }
+        if (operation.failure != null) {
+            throw (RuntimeException) operation.failure;
+        }
+    }
+
+    /**
+     * Commits the given operations in one transaction. If that fails, the operations are
+     * committed one by one, so that a failing operation does not fail the operations of
+     * other callers. Failures are reported in the respective operations.
+     */
+    private void commitAll(List<Operation> operations) {
+        try {
+            execute(operations);
+        } catch (Exception e) {
+            if (operations.size() == 1) {
+                operations.get(0).failure = e;
+                return;
+            }
+            LOG.warn(MessageFormat.format("Failed to commit {0} operations together, committing them one by one: {1}",
+                    operations.size(), e.getMessage()));
+            for (Operation operation : operations) {
+                try {
+                    execute(Collections.singletonList(operation));
+                } catch (Exception e1) {
+                    operation.failure = e1;
+                }
+            }
+        }
+    }
+
+    private void execute(List<Operation> operations) throws IOException {
+        EntityManager em = getEntityManager();
+        try {
+            em.getTransaction().begin();
+            Map<StorageId, StorageItem> items = findStorageItems(operations, em);
+            Map<StorageId, HistoryVersion> latestVersions = new HashMap<StorageId, HistoryVersion>();
+            for (Operation operation : operations) {
+                StorageId key = new StorageId(operation.category, operation.id);
+                StorageItem item = items.get(key);
+                if (operation.isArchive()) {
+                    // an item written earlier in the same transaction is archived with its new content
+                    if (item != null) {
+                        archiveItem(key, item, operation.date, latestVersions, em);
+                    }
+                } else if (item == null) {
+                    StorageItem newItem = new StorageItem();
+                    newItem.setId(operation.id);
+                    newItem.setCategory(operation.category);
+                    newItem.setDateModified(operation.date);
+                    newItem.setCompressedContent(operation.compressedContent);
+                    em.persist(newItem);
+                    items.put(key, newItem);
+                } else { //update
+                    item.setDateModified(operation.date);
+                    item.setCompressedContent(operation.compressedContent);
+                    item.setContent(null);
+                }
+            }
+            em.getTransaction().commit();
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+    }
+
+    /**
+     * Archives the current content of the given item, either as delta to the latest archived version
+     * of the item, or with its full content, if the latest archived version is the last of a chain of
+     * deltas, or if the delta would not be smaller than the compressed content.
+     */
+    private void archiveItem(StorageId key, StorageItem item, Date date, Map<StorageId, HistoryVersion> latestVersions,
+            EntityManager em) throws IOException {
+        HistoryVersion previous = latestVersions.get(key);
+        if (previous == null) {
+            previous = findLatestHistoryVersion(item.getCategory(), item.getId(), em);
+        }
+        HistoryStorageItem histItem = new HistoryStorageItem();
+        histItem.setCategory(item.getCategory());
+        histItem.setId(item.getId());
+        histItem.setDateCreated(date);
+        byte[] content = IOUtils.toByteArray(asStream(item));
+        byte[] compressedContent = item.getCompressedContent() != null ? item.getCompressedContent()
+                : CompressedContent.compress(new ByteArrayInputStream(content));
+        byte[] delta = null;
+        int depth = previous != null ? previous.item.getDeltaDepth() + 1 : 0;
+        if (previous != null && depth < snapshotInterval) {
+            delta = BinaryDelta.diff(previous.content, content);
+        }
+        if (delta != null && delta.length < compressedContent.length) {
+            histItem.setCompressedContent(delta);
+            histItem.setBaseId(previous.item.getAutoId());
+            histItem.setDeltaDepth(depth);
+        } else {
+            histItem.setCompressedContent(compressedContent);
+        }
+        // the id of the new item is assigned by the table generator on persist
+        em.persist(histItem);
+        latestVersions.put(key, new HistoryVersion(histItem, content));
+    }
+
+    private static HistoryVersion findLatestHistoryVersion(String category, String id, EntityManager em)
+            throws IOException {
+        TypedQuery<HistoryStorageItem> query = em.createNamedQuery("getLatestItemsByCompositeKey", //$NON-NLS-1$
+                HistoryStorageItem.class);
+        query.setParameter("category", category); //$NON-NLS-1$
+        query.setParameter("id", id); //$NON-NLS-1$
+        query.setMaxResults(1);
+        List<HistoryStorageItem> resultList = query.getResultList();
+        if (resultList.isEmpty()) {
+            return null;
+        }
+        HistoryStorageItem latest = resultList.get(0);
+        return new HistoryVersion(latest, readHistoryContent(latest, new HashMap<Integer, byte[]>(), em));
+    }
+
+    /**
+     * Returns the full content of an archived version, applying the chain of deltas back
+     * to the last version with full content, or to a version with already known content.
+     *
+     * @param item  the archived version.
+     * @param knownContents  the full content of already read versions by autoId.
+     * The content of the given version is added to this map.
+     * @param em  the entity manager to retrieve the bases of deltas with.
+     */
+    private static byte[] readHistoryContent(HistoryStorageItem item, Map<Integer, byte[]> knownContents,
+            EntityManager em) throws IOException {
+        List<HistoryStorageItem> deltas = new ArrayList<HistoryStorageItem>();
+        byte[] content = null;
+        HistoryStorageItem next = item;
+        while (content == null) {
+            content = knownContents.get(next.getAutoId());
+            if (content == null) {
+                if (!next.isDelta()) {
+                    InputStream in = asStream(next);
+                    content = in != null ? IOUtils.toByteArray(in) : new byte[0];
+                } else {
+                    deltas.add(next);
+                    Integer baseId = next.getBaseId();
+                    next = em.find(HistoryStorageItem.class, baseId);
+                    if (next == null) {
+                        throw new IOException(MessageFormat.format("Missing base {0} of archived version {1}",
+                                baseId, deltas.get(deltas.size() - 1).getAutoId()));
+                    }
+                }
+            }
+        }
+        for (int i = deltas.size() - 1; i >= 0; --i) {
+            content = BinaryDelta.patch(content, deltas.get(i).getCompressedContent());
+        }
+        knownContents.put(item.getAutoId(), content);
+        return content;
+    }
+
+    private static Map<StorageId, StorageItem> findStorageItems(List<Operation> operations, EntityManager em) {
+        Map<String, Set<String>> idsByCategory = new LinkedHashMap<String, Set<String>>();
+        for (Operation operation : operations) {
+            Set<String> ids = idsByCategory.get(operation.category);
+            if (ids == null) {
+                ids = new LinkedHashSet<String>();
+                idsByCategory.put(operation.category, ids);
+            }
+            ids.add(operation.id);
+        }
+        Map<StorageId, StorageItem> result = new HashMap<StorageId, StorageItem>();
+        for (Map.Entry<String, Set<String>> entry : idsByCategory.entrySet()) {
+            List<String> ids = new ArrayList<String>(entry.getValue());
+            for (int from = 0; from < ids.size(); from += PAGE_SIZE) {
+                List<String> page = ids.subList(from, Math.min(from + PAGE_SIZE, ids.size()));
+                for (StorageItem item : findStorageItems(entry.getKey(), page, em).values()) {
+                    result.put(new StorageId(item.getCategory(), item.getId()), item);
+                }
+            }
+        }
+        return result;
+    }
+
     private static StorageItem findStorageItem(String category, String id, EntityManager em) {
         return em.find(StorageItem.class, new StorageId(category, id));
     }
 
+    private static Map<String, StorageItem> findStorageItems(String category, List<String> ids, EntityManager em) {
+        TypedQuery<StorageItem> query = em.createNamedQuery("getByIds", StorageItem.class); //$NON-NLS-1$
+        query.setParameter("category", category); //$NON-NLS-1$
+        query.setParameter("ids", new ArrayList<String>(ids)); //$NON-NLS-1$
+        Map<String, StorageItem> result = new HashMap<String, StorageItem>();
+        for (StorageItem item : query.getResultList()) {
+            result.put(item.getId(), item);
+        }
+        return result;
+    }
+
     private static HistoryStorageItem findHistoryItem(String category, String id, long timestamp, EntityManager em) {
         TypedQuery<HistoryStorageItem> query = em.createNamedQuery("getItemByTimestamp", HistoryStorageItem.class); //$NON-NLS-1$
         query.setParameter("category", category); //$NON-NLS-1$
@@ -236,7 +604,83 @@ public class JPAStorageComponent extends EntityManagerServiceBase implements Ent
         return resultList.isEmpty() ? null : resultList.get(0);
     }
 
-    private static InputStream asStream(String content) throws IOException {
-        return new ByteArrayInputStream(content.getBytes("UTF-8")); //$NON-NLS-1$
+    /**
+     * Converts all rows that still carry their content as text to compressed content. Each row
+     * is converted with a conditional update, so that rows written concurrently with compressed
+     * content are not overwritten with their previous content. Rows are converted page by page,
+     * and the conversion stops after the current page when the component is deactivated.
+     *
+     * @return the number of converted rows.
+     * @throws IOException  if an i/o error occured while converting the rows.
+     */
+    public int migrateContent() throws IOException {
+        int migrated = 0;
+        EntityManager em = getEntityManager();
+        try {
+            while (!cancelled) {
+                TypedQuery<StorageItem> query = em.createNamedQuery("getUncompressed", StorageItem.class); //$NON-NLS-1$
+                query.setMaxResults(PAGE_SIZE);
+                List<StorageItem> items = query.getResultList();
+                TypedQuery<HistoryStorageItem> historyQuery = em.createNamedQuery("getUncompressedHistory", //$NON-NLS-1$
+                        HistoryStorageItem.class);
+                historyQuery.setMaxResults(PAGE_SIZE);
+                List<HistoryStorageItem> historyItems = historyQuery.getResultList();
+                if (items.isEmpty() && historyItems.isEmpty()) {
+                    break;
+                }
+                em.getTransaction().begin();
+                for (StorageItem item : items) {
+                    Query update = em.createNamedQuery("compressContent"); //$NON-NLS-1$
+                    update.setParameter("compressedContent", CompressedContent.compress(item.getContent())); //$NON-NLS-1$
+                    update.setParameter("category", item.getCategory()); //$NON-NLS-1$
+                    update.setParameter("id", item.getId()); //$NON-NLS-1$
+                    migrated += update.executeUpdate();
+                }
+                for (HistoryStorageItem item : historyItems) {
+                    Query update = em.createNamedQuery("compressHistoryContent"); //$NON-NLS-1$
+                    update.setParameter("compressedContent", CompressedContent.compress(item.getContent())); //$NON-NLS-1$
+                    update.setParameter("autoId", item.getAutoId()); //$NON-NLS-1$
+                    migrated += update.executeUpdate();
+                }
+                em.getTransaction().commit();
+                em.clear();
+            }
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+        return migrated;
+    }
+
+    private void startContentMigration() {
+        ThreadPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    int migrated = migrateContent();
+                    if (cancelled) {
+                        LOG.info(MessageFormat.format(
+                                "Compressed the content of {0} rows in {1} ms before the component was deactivated",
+                                migrated, System.currentTimeMillis() - start));
+                    } else if (migrated > 0) {
+                        LOG.info(MessageFormat.format("Compressed the content of {0} rows in {1} ms",
+                                migrated, System.currentTimeMillis() - start));
+                    }
+                } catch (Exception e) {
+                    LOG.warn("Failed to compress the content of rows written by a previous version", e);
+                }
+            }
+        });
+    }
+
+    private static InputStream asStream(StorageItem item) throws IOException {
+        return CompressedContent.asStream(item.getCompressedContent(), item.getContent());
+    }
+
+    private static InputStream asStream(HistoryStorageItem item) throws IOException {
+        return CompressedContent.asStream(item.getCompressedContent(), item.getContent());
     }
 }
@@ -10,6 +10,7 @@ package org.eclipse.skalli.core.storage.jpa;
 
 import java.util.Date;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.IdClass;
@@ -24,7 +25,10 @@ import javax.persistence.TemporalType;
 @Table(name = "Storage")
 @NamedQueries({
         @NamedQuery(name = "getByCategory", query = "SELECT r FROM StorageItem r WHERE r.category = :category"),
-        @NamedQuery(name = "getIdsByCategory", query = "SELECT r.id FROM StorageItem r WHERE r.category = :category")
+        @NamedQuery(name = "getIdsByCategory", query = "SELECT r.id FROM StorageItem r WHERE r.category = :category"),
+        @NamedQuery(name = "getByIds", query = "SELECT r FROM StorageItem r WHERE r.category = :category AND r.id IN :ids"),
+        @NamedQuery(name = "getUncompressed", query = "SELECT r FROM StorageItem r WHERE r.compressedContent IS NULL AND r.content IS NOT NULL"),
+        @NamedQuery(name = "compressContent", query = "UPDATE StorageItem r SET r.compressedContent = :compressedContent, r.content = NULL WHERE r.category = :category AND r.id = :id AND r.compressedContent IS NULL")
 })
 @Entity
 public class StorageItem {
@@ -32,8 +36,13 @@ public class StorageItem {
     private String category;
     @Id
     private String id;
+    // content written before content has been compressed, or null
     @Lob
     private String content;
+    // gzip-compressed content, or null if the content has not been migrated yet
+    @Lob
+    @Column(name = "compressedContent")
+    private byte[] compressedContent;
     @Temporal(TemporalType.TIMESTAMP)
     private Date dateModified;
 
@@ -61,6 +70,14 @@ public class StorageItem {
         this.content = content;
     }
 
+    public byte[] getCompressedContent() {
+        return compressedContent;
+    }
+
+    public void setCompressedContent(byte[] compressedContent) {
+        this.compressedContent = compressedContent;
+    }
+
     public Date getDateModified() {
         return dateModified;
     }
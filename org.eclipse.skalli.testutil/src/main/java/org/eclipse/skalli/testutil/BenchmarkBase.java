@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.testutil;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+
+/**
+ * Base class for benchmarks.
+ * <p>
+ * Benchmarks are not part of the regular test suite: the build excludes classes named
+ * <tt>*Benchmark</tt> from its test runs, and benchmarks are skipped unless the system
+ * property <tt>skalli.benchmark</tt> is <code>true</code>, so that running all tests of a
+ * bundle from the IDE does not start them. Parameters of a benchmark, for example the number
+ * of entities or iterations, can be changed with system properties of the form
+ * <tt>skalli.benchmark.&lt;parameter&gt;</tt>.
+ */
+@SuppressWarnings("nls")
+public abstract class BenchmarkBase {
+
+    /** System property that enables benchmarks. */
+    public static final String PROPERTY_BENCHMARK = "skalli.benchmark";
+
+    @BeforeClass
+    public static void assumeBenchmarksEnabled() {
+        Assume.assumeTrue(Boolean.getBoolean(PROPERTY_BENCHMARK));
+    }
+
+    /**
+     * Returns the value of the system property <tt>skalli.benchmark.&lt;name&gt;</tt>,
+     * or the given default value if the property is not set or is not a number.
+     */
+    protected static int getParameter(String name, int defaultValue) {
+        return Integer.getInteger(PROPERTY_BENCHMARK + "." + name, defaultValue);
+    }
+
+    /**
+     * Returns the value of the system property <tt>skalli.benchmark.&lt;name&gt;</tt>,
+     * or the given default value if the property is not set or is not a number.
+     */
+    protected static long getParameter(String name, long defaultValue) {
+        return Long.getLong(PROPERTY_BENCHMARK + "." + name, defaultValue);
+    }
+
+    /**
+     * Prints a result of the benchmark prefixed with the name of the benchmark class.
+     */
+    protected void report(String message) {
+        System.out.println(getClass().getSimpleName() + ": " + message);
+    }
+}
@@ -23,19 +23,20 @@ import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
 import org.eclipse.skalli.services.persistence.StorageConsumer;
-import org.eclipse.skalli.services.persistence.StorageService;
+import org.eclipse.skalli.services.persistence.StorageServiceBase;
 
 /**
  * Simple implementation of a storage service based on a hash map
- * for testing purposes.
+ * for testing purposes. All operations are synchronized, so the storage
+ * can be used in tests with concurrent readers and writers.
  */
 @SuppressWarnings("nls")
-public class HashMapStorageService implements StorageService {
+public class HashMapStorageService extends StorageServiceBase {
 
     private Map<StorageKey, ByteArrayStorageItem> store = new HashMap<StorageKey, ByteArrayStorageItem>();
     private Map<StorageKey, List<ByteArrayStorageItem>> archive = new HashMap<StorageKey, List<ByteArrayStorageItem>>();
 
-    public Map<StorageKey, byte[]> asMap() {
+    public synchronized Map<StorageKey, byte[]> asMap() {
         Map<StorageKey, byte[]> result = new HashMap<StorageKey, byte[]>();
         for (Entry<StorageKey, ByteArrayStorageItem> next: store.entrySet()) {
             result.put(next.getKey(), next.getValue().toByteArray());
@@ -44,19 +45,19 @@ public class HashMapStorageService implements StorageService {
     }
 
     @Override
-    public void write(String category, String id, InputStream blob) throws IOException {
+    public synchronized void write(String category, String id, InputStream blob) throws IOException {
         StorageKey key = keyOf(category, id);
         store.put(key, new ByteArrayStorageItem(key, IOUtils.toByteArray(blob)));
     }
 
     @Override
-    public InputStream read(String category, String id) throws IOException {
+    public synchronized InputStream read(String category, String id) throws IOException {
         ByteArrayStorageItem item = store.get(keyOf(category, id));
         return item != null ? item.getContent() : null;
     }
 
     @Override
-    public void read(String category, String id, StorageConsumer consumer) throws IOException {
+    public synchronized void read(String category, String id, StorageConsumer consumer) throws IOException {
         ByteArrayStorageItem item = store.get(keyOf(category, id));
         if (item != null) {
             consumer.consume(category, item.getId(), item.lastModified(), item.getContent());
@@ -64,14 +65,14 @@ public class HashMapStorageService implements StorageService {
     }
 
     @Override
-    public void readAll(String category, StorageConsumer consumer) throws IOException {
+    public synchronized void readAll(String category, StorageConsumer consumer) throws IOException {
        for (ByteArrayStorageItem next: store.values()) {
            consumer.consume(category, next.getId(), next.lastModified(), next.getContent());
        }
     }
 
     @Override
-    public void archive(String category, String id) throws IOException {
+    public synchronized void archive(String category, String id) throws IOException {
         StorageKey key = keyOf(category, id);
         ByteArrayStorageItem item = store.get(key);
         if (item != null) {
@@ -81,12 +82,14 @@ public class HashMapStorageService implements StorageService {
     }
 
     @Override
-    public void writeToArchive(String category, String id, long timestamp, InputStream blob) throws IOException {
+    public synchronized void writeToArchive(String category, String id, long timestamp, InputStream blob)
+            throws IOException {
         writeToArchive(keyOf(category, id), timestamp, blob);
     }
 
     @Override
-    public void readFromArchive(String category, String id, StorageConsumer consumer) throws IOException {
+    public synchronized void readFromArchive(String category, String id, StorageConsumer consumer)
+            throws IOException {
         List<ByteArrayStorageItem> items = archive.get(keyOf(category, id));
         if (items != null) {
             for (ByteArrayStorageItem next: items) {
@@ -96,7 +99,7 @@ public class HashMapStorageService implements StorageService {
     }
 
     @Override
-    public List<String> keys(String category) throws IOException {
+    public synchronized List<String> keys(String category) throws IOException {
         List<String> result = new ArrayList<String>();
         Set<StorageKey> allKeys = store.keySet();
         for (StorageKey key : allKeys) {
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2014 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.skalli.testutil;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.skalli.services.persistence.StorageService;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares restoring a number of entities into a storage service with single writes
+ * and with batch writes, the way a restore from a backup does.
+ * <p>
+ * The number of entities can be changed with the system property <tt>skalli.benchmark.entities</tt>.
+ */
+@SuppressWarnings("nls")
+public abstract class StorageServiceBenchmarkBase extends BenchmarkBase {
+
+    protected static final int ENTITIES = getParameter("entities", 10000);
+    protected static final int BATCH_SIZE = 100;
+
+    /**
+     * Creates the {@link StorageService} instance under test.
+     */
+    protected abstract StorageService getStorageService() throws Exception;
+
+    @Test
+    public void benchmarkRestore() throws Exception {
+        StorageService storageService = getStorageService();
+        byte[] content = ("<entity>" + StringUtils.repeat("x", 4096) + "</entity>").getBytes("UTF-8");
+
+        String[] keys = createKeys();
+        long start = System.currentTimeMillis();
+        for (String key : keys) {
+            storageService.write("benchmark_single", key, new ByteArrayInputStream(content));
+        }
+        long single = Math.max(1L, System.currentTimeMillis() - start);
+
+        keys = createKeys();
+        start = System.currentTimeMillis();
+        Map<String, InputStream> batch = new HashMap<String, InputStream>();
+        for (String key : keys) {
+            batch.put(key, new ByteArrayInputStream(content));
+            if (batch.size() == BATCH_SIZE) {
+                storageService.writeAll("benchmark_batch", batch);
+                batch.clear();
+            }
+        }
+        storageService.writeAll("benchmark_batch", batch);
+        long batched = Math.max(1L, System.currentTimeMillis() - start);
+
+        Assert.assertEquals(ENTITIES, storageService.keys("benchmark_single").size());
+        Assert.assertEquals(ENTITIES, storageService.keys("benchmark_batch").size());
+        report("restore of " + ENTITIES + " entities: "
+                + single + " ms with single writes, " + batched + " ms with batches of " + BATCH_SIZE
+                + " (speedup " + (single * 100 / batched) / 100.0 + ")");
+    }
+
+    private String[] createKeys() {
+        String[] keys = new String[ENTITIES];
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = UUID.randomUUID().toString();
+        }
+        return keys;
+    }
+}
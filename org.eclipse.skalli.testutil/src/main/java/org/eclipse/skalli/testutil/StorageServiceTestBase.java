@@ -17,7 +17,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.IOUtils;
 import org.eclipse.skalli.services.persistence.StorageConsumer;
@@ -71,6 +73,38 @@ public abstract class StorageServiceTestBase {
         stream.close();
     }
 
+    @Test
+    public void testWriteAllReadMany() throws Exception {
+        final String TEST_CATEGORY = "test_batch";
+        StorageService storageService = getStorageService();
+        writeContent(TEST_CATEGORY, TEST_ID, TEST_CONTENT);
+
+        Map<String, InputStream> blobs = new HashMap<String, InputStream>();
+        for (int i = 0; i < 250; ++i) {
+            blobs.put(TEST_ID + i, new ByteArrayInputStream((TEST_CONTENT + i).getBytes("UTF-8")));
+        }
+        blobs.put(TEST_ID, new ByteArrayInputStream(TEST_CONTENT_UPDATED.getBytes("UTF-8")));
+        storageService.writeAll(TEST_CATEGORY, blobs);
+        assertEquals(251, storageService.keys(TEST_CATEGORY).size());
+
+        List<String> keys = new ArrayList<String>(blobs.keySet());
+        keys.add(TEST_NONEXISTING_ID);
+        final Map<String, String> contents = new HashMap<String, String>();
+        storageService.readMany(TEST_CATEGORY, keys, new StorageConsumer() {
+            @Override
+            public void consume(String category, String key, long lastModified, InputStream blob) throws IOException {
+                assertEquals(TEST_CATEGORY, category);
+                assertTrue(lastModified > 0);
+                contents.put(key, IOUtils.toString(blob, "UTF-8"));
+            }
+        });
+        assertEquals(251, contents.size());
+        for (int i = 0; i < 250; ++i) {
+            assertEquals(TEST_CONTENT + i, contents.get(TEST_ID + i));
+        }
+        assertEquals(TEST_CONTENT_UPDATED, contents.get(TEST_ID));
+    }
+
     @Test
     public void testReadNonExistingId() throws Exception {
         StorageService storageService = getStorageService();